@@ -0,0 +1,144 @@
+package cluster;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * HashRing assigns keys, such as game ids, to the nodes of a cluster by
+ * consistent hashing. Every node is placed on a ring of 32 bit hashes at many
+ * points, and a key belongs to the node of the first point at or after the
+ * key's hash, wrapping around. Adding or removing a node moves only about 1/n
+ * of the keys, and the many points per node keep the shares even. Nodes are
+ * placed in sorted order, so every process given the same names builds the
+ * same ring. The ring never changes once built and can be shared without
+ * locking.
+ *
+ * @author knorms
+ *
+ */
+public final class HashRing {
+  /**
+   * Points each node is placed at when not told otherwise.
+   */
+  public static final int DEFAULT_REPLICAS = 128;
+
+  private static final HashFunction HASH = Hashing.murmur3_32();
+
+  private final List<String> nodes;
+  // sorted hashes of the points and the node at each
+  private final int[] points;
+  private final String[] owners;
+
+  /**
+   * Construct a ring with the default number of points per node.
+   *
+   * @param nodes
+   *          Names of the nodes, e.g. host:port.
+   */
+  public HashRing(Collection<String> nodes) {
+    this(nodes, DEFAULT_REPLICAS);
+  }
+
+  /**
+   * Construct a ring.
+   *
+   * @param nodes
+   *          Names of the nodes, e.g. host:port.
+   * @param replicas
+   *          Points each node is placed at.
+   */
+  public HashRing(Collection<String> nodes, int replicas) {
+    if (nodes.isEmpty() || replicas < 1) {
+      throw new IllegalArgumentException(
+          "ERROR: a ring needs at least one node and one point per node.");
+    }
+    List<String> sorted = new ArrayList<>(nodes);
+    Collections.sort(sorted);
+    for (int i = 1; i < sorted.size(); i++) {
+      if (sorted.get(i).equals(sorted.get(i - 1))) {
+        throw new IllegalArgumentException(
+            "ERROR: node " + sorted.get(i) + " is listed twice.");
+      }
+    }
+    this.nodes = Collections.unmodifiableList(sorted);
+
+    // on the rare collision the node placed first keeps the point
+    TreeMap<Integer, String> ring = new TreeMap<>();
+    for (String node : sorted) {
+      for (int i = 0; i < replicas; i++) {
+        ring.putIfAbsent(hash(node + "#" + i), node);
+      }
+    }
+    points = new int[ring.size()];
+    owners = new String[ring.size()];
+    int i = 0;
+    for (Map.Entry<Integer, String> point : ring.entrySet()) {
+      points[i] = point.getKey();
+      owners[i] = point.getValue();
+      i++;
+    }
+  }
+
+  /**
+   * Parse a comma separated list of node names.
+   *
+   * @param nodes
+   *          Names such as "localhost:4601,localhost:4602".
+   * @return the ring of those nodes.
+   */
+  public static HashRing parse(String nodes) {
+    List<String> names = new ArrayList<>();
+    for (String name : nodes.split(",")) {
+      if (!name.trim().isEmpty()) {
+        names.add(name.trim());
+      }
+    }
+    return new HashRing(names);
+  }
+
+  /**
+   * Find the node a key belongs to.
+   *
+   * @param key
+   *          Key, e.g. a game id.
+   * @return name of the owning node.
+   */
+  public String owner(int key) {
+    int i = Arrays.binarySearch(points, HASH.hashInt(key).asInt());
+    if (i < 0) {
+      i = -i - 1;
+    }
+    return owners[i == points.length ? 0 : i];
+  }
+
+  /**
+   * @return the names of the nodes, sorted
+   */
+  public List<String> getNodes() {
+    return nodes;
+  }
+
+  /**
+   * Tell whether a node is part of the ring.
+   *
+   * @param node
+   *          Name of the node.
+   * @return true if the ring places keys on it.
+   */
+  public boolean contains(String node) {
+    return Collections.binarySearch(nodes, node) >= 0;
+  }
+
+  private static int hash(String point) {
+    return HASH.hashUnencodedChars(point).asInt();
+  }
+
+}
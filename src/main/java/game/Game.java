@@ -13,6 +13,8 @@ import board.Board;
 import board.BoardObject;
 import board.IllegalMoveException;
 import board.Location;
+import metrics.TurnTracer;
+import metrics.TurnTracer.Phase;
 import pieces.GhostPawn;
 import pieces.King;
 import pieces.Pawn;
@@ -58,6 +60,10 @@ public class Game {
   private TimeControl timeControl;
   private boolean isPublic;
 
+  private GameListener listener = GameListener.NONE;
+  // set while the game is rebuilt from a log, which says where boxes spawn
+  private boolean replaying = false;
+
   private static final String START_POSITION_FEN =
       "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
 
@@ -74,13 +80,36 @@ public class Game {
   }
 
   /**
-   * Enumerates options for game time controls.
+   * Enumerates options for game time controls: starting time on each clock
+   * and the increment added after every move.
    *
    * @author knorms
    *
    */
   public enum TimeControl {
-    QUICK, STANDARD, SLOW
+    QUICK(300, 5), STANDARD(900, 15), SLOW(2700, 45);
+
+    private final long initialMillis;
+    private final long incrementMillis;
+
+    TimeControl(int initialSeconds, int incrementSeconds) {
+      this.initialMillis = initialSeconds * 1000L;
+      this.incrementMillis = incrementSeconds * 1000L;
+    }
+
+    /**
+     * @return the starting time on each clock, in milliseconds
+     */
+    public long getInitialMillis() {
+      return initialMillis;
+    }
+
+    /**
+     * @return the time added to a clock after each move, in milliseconds
+     */
+    public long getIncrementMillis() {
+      return incrementMillis;
+    }
   }
 
   private GameState gameState;
@@ -224,18 +253,26 @@ public class Game {
       throw new IllegalMoveException(String.format(
           "ERROR: Move is invalid for %s", p.getClass().getSimpleName()));
     }
+    TurnTracer.mark(Phase.VALIDATE);
+    listener.moving(this);
     executeMove(move);
+    listener.moved(move);
+    if (!actionOptions.isEmpty()) {
+      listener.offered(actionOptions);
+    }
     tilNextPowerup--;
 
     if (!spawnedPowerObject.isEmpty()) {
       spawnedPowerObject.clear();
     }
 
-    // after move, check if new PowerObject should spawn
-    if (tilNextPowerup == 0) {
-      spawnPowerObject(getSpawnLoc(), PowerObject.createRandPowerObject());
+    // after move, check if new PowerObject should spawn; the count starts
+    // over first so listeners see the new one
+    if (tilNextPowerup == 0 && !replaying) {
       updateTilNextPowerUp();
+      spawnPowerObject(getSpawnLoc(), PowerObject.createRandPowerObject());
     }
+    TurnTracer.mark(Phase.SPAWN);
 
     // update active player and reset GhostPawns
     whiteToMove = !whiteToMove;
@@ -268,6 +305,7 @@ public class Game {
     removedLocations.forEach((loc, power) -> {
       removePowerUp(loc, power);
     });
+    TurnTracer.mark(Phase.POWER_DECAY);
   }
 
   /**
@@ -378,6 +416,64 @@ public class Game {
     tilNextPowerup = remainingTurns;
   }
 
+  /**
+   * Start or stop replaying a log of the game. While replaying, no power
+   * box spawns at random; the log spawns them with spawnPowerObject and sets
+   * the count to the next one. A count that ran out without a spawn in the
+   * log starts over when replaying stops.
+   *
+   * @param replay
+   *          Whether the game is being replayed.
+   */
+  public void setReplaying(boolean replay) {
+    replaying = replay;
+    if (!replay && tilNextPowerup <= 0) {
+      updateTilNextPowerUp();
+    }
+  }
+
+  /**
+   * Add a listener to be told of every change the game makes, after the
+   * listeners added before it.
+   *
+   * @param added
+   *          Listener.
+   */
+  public void addListener(GameListener added) {
+    listener = listener == GameListener.NONE ? added
+        : GameListener.both(listener, added);
+  }
+
+  /**
+   * @return number of turns until the next PowerObject spawns
+   */
+  public int getTilNextPowerUp() {
+    return tilNextPowerup;
+  }
+
+  /**
+   * @return location of a pawn waiting to be promoted, or null
+   */
+  Location getToPromote() {
+    return toPromote;
+  }
+
+  /**
+   * Put back the turn of a game read from a snapshot.
+   *
+   * @param white
+   *          Whether white is to move.
+   * @param over
+   *          Whether the game is over.
+   * @param promote
+   *          Location of a pawn waiting to be promoted, or null.
+   */
+  void restoreTurn(boolean white, boolean over, Location promote) {
+    whiteToMove = white;
+    gameOver = over;
+    toPromote = promote;
+  }
+
   /**
    * Randomly select a board location on which to spawn a PowerObject; allowable
    * board locations range from rows 2 to 5 (inclusive) and includes all
@@ -405,6 +501,7 @@ public class Game {
   public void spawnPowerObject(Location loc, PowerObject powerObj) {
     board.addBoardObject(loc, powerObj);
     spawnedPowerObject.put(loc, powerObj);
+    listener.spawned(loc, powerObj);
   }
 
   /**
@@ -494,6 +591,7 @@ public class Game {
    */
   public void executeMove(Move move) {
     Collection<BoardObject> captured = board.move(move);
+    TurnTracer.mark(Phase.BOARD_MOVE);
 
     // add move to history
     history.add(move);
@@ -502,6 +600,7 @@ public class Game {
 
     // manage captured power-ups or king
     manageCaptured(captured, end);
+    TurnTracer.mark(Phase.CAPTURES);
 
   }
 
@@ -523,6 +622,7 @@ public class Game {
   public void executePromotion(Location loc) {
     Piece newPiece = getActivePlayer().getPromotion();
     board.placePiece(loc, newPiece);
+    listener.promoted(loc, newPiece);
     gameState = GameState.WAITING_FOR_MOVE;
     whiteToMove = !whiteToMove;
   }
@@ -535,6 +635,7 @@ public class Game {
   public Location executePromotionToQueen() {
     Piece newPiece = new Queen(getActivePlayer().getColor());
     board.placePiece(toPromote, newPiece);
+    listener.promoted(toPromote, newPiece);
     gameState = GameState.WAITING_FOR_MOVE;
     whiteToMove = !whiteToMove;
     return toPromote;
@@ -621,8 +722,16 @@ public class Game {
    */
   public void executePowerAction(Object input) {
     actionOptions.clear();
+    // executing the action clears it
+    PowerAction action = getActivePlayer().getAction();
     getActivePlayer().executeAction(input);
     gameState = GameState.WAITING_FOR_MOVE;
+    listener.powerUsed(action,
+        input instanceof Location ? (Location) input : null);
+    // a piece moved by the power may have captured another box
+    if (!actionOptions.isEmpty()) {
+      listener.offered(actionOptions);
+    }
     if (actionOptions.isEmpty()) {
       whiteToMove = !whiteToMove;
     }
@@ -0,0 +1,142 @@
+package game;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import game.Game.TimeControl;
+
+/**
+ * A GameClock is the authoritative chess clock of one game: a remaining time
+ * for each color, of which at most one runs at a time. The player whose clock
+ * is stopped gets the increment of the time control added for the move they
+ * just completed.
+ *
+ * @author knorms
+ *
+ */
+public class GameClock {
+  private static final LongSupplier MONOTONIC_MILLIS =
+      () -> TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+
+  private final long incrementMillis;
+  private final LongSupplier now;
+  private long whiteMillis;
+  private long blackMillis;
+  // color whose clock is running, or null while stopped
+  private Color running;
+  private long runningSince;
+
+  /**
+   * Construct a stopped clock for a time control.
+   *
+   * @param timeControl
+   *          Time control of the game.
+   */
+  public GameClock(TimeControl timeControl) {
+    this(timeControl, MONOTONIC_MILLIS);
+  }
+
+  /**
+   * Construct a stopped clock reading time from a custom source.
+   *
+   * @param timeControl
+   *          Time control of the game.
+   * @param now
+   *          Source of the current time in milliseconds; only differences
+   *          between its readings are used.
+   */
+  public GameClock(TimeControl timeControl, LongSupplier now) {
+    this.incrementMillis = timeControl.getIncrementMillis();
+    this.whiteMillis = timeControl.getInitialMillis();
+    this.blackMillis = timeControl.getInitialMillis();
+    this.now = now;
+  }
+
+  /**
+   * Start or hand over the clock so that color's time runs. If the other
+   * color's clock was running, the time it used is deducted and the increment
+   * added. Nothing happens if color's clock is already running.
+   *
+   * @param color
+   *          Color now to move.
+   */
+  public synchronized void runFor(Color color) {
+    if (running == color) {
+      return;
+    }
+    long time = now.getAsLong();
+    if (running != null) {
+      set(running, get(running) - (time - runningSince) + incrementMillis);
+    }
+    running = color;
+    runningSince = time;
+  }
+
+  /**
+   * Stop the clock, e.g. when the game ends. The time used so far is
+   * deducted without an increment.
+   */
+  public synchronized void stop() {
+    if (running != null) {
+      set(running, get(running) - (now.getAsLong() - runningSince));
+      running = null;
+    }
+  }
+
+  /**
+   * Get the time a color has left right now.
+   *
+   * @param color
+   *          Color.
+   * @return remaining time in milliseconds; negative once the color flagged.
+   */
+  public synchronized long remaining(Color color) {
+    long left = get(color);
+    if (color == running) {
+      left -= now.getAsLong() - runningSince;
+    }
+    return left;
+  }
+
+  /**
+   * Stop the clock and set the time each color has left, e.g. for a game
+   * moved here from another server.
+   *
+   * @param white
+   *          Time left for white, in milliseconds.
+   * @param black
+   *          Time left for black, in milliseconds.
+   */
+  public synchronized void setRemaining(long white, long black) {
+    running = null;
+    whiteMillis = white;
+    blackMillis = black;
+  }
+
+  /**
+   * @return the color whose clock is running, or null if it is stopped
+   */
+  public synchronized Color getRunning() {
+    return running;
+  }
+
+  /**
+   * @return true if the running clock has run out
+   */
+  public synchronized boolean isFlagged() {
+    return running != null && remaining(running) <= 0;
+  }
+
+  private long get(Color color) {
+    return color == Color.WHITE ? whiteMillis : blackMillis;
+  }
+
+  private void set(Color color, long millis) {
+    if (color == Color.WHITE) {
+      whiteMillis = millis;
+    } else {
+      blackMillis = millis;
+    }
+  }
+
+}
@@ -0,0 +1,138 @@
+package game;
+
+import java.util.List;
+
+import board.Location;
+import pieces.Piece;
+import poweractions.PowerAction;
+import powerups.PowerObject;
+
+/**
+ * GameListener is told of every change a game makes that a recording of it
+ * needs, in the order the game makes them. It is called on the thread playing
+ * the turn, with the game locked, so implementations must only hand events
+ * off and never block, e.g. on disk.
+ *
+ * @author knorms
+ *
+ */
+public interface GameListener {
+  /**
+   * A listener that ignores everything.
+   */
+  GameListener NONE = new GameListener() {
+  };
+
+  /**
+   * Get a listener that tells two others, in order.
+   *
+   * @param first
+   *          Listener told first.
+   * @param second
+   *          Listener told second.
+   * @return the listener.
+   */
+  static GameListener both(GameListener first, GameListener second) {
+    return new GameListener() {
+      @Override
+      public void moving(Game game) {
+        first.moving(game);
+        second.moving(game);
+      }
+
+      @Override
+      public void moved(Move move) {
+        first.moved(move);
+        second.moved(move);
+      }
+
+      @Override
+      public void promoted(Location loc, Piece piece) {
+        first.promoted(loc, piece);
+        second.promoted(loc, piece);
+      }
+
+      @Override
+      public void spawned(Location loc, PowerObject powerObject) {
+        first.spawned(loc, powerObject);
+        second.spawned(loc, powerObject);
+      }
+
+      @Override
+      public void offered(List<PowerAction> actions) {
+        first.offered(actions);
+        second.offered(actions);
+      }
+
+      @Override
+      public void powerUsed(PowerAction action, Location input) {
+        first.powerUsed(action, input);
+        second.powerUsed(action, input);
+      }
+    };
+  }
+
+  /**
+   * Called when a player's move has been checked and is about to be made,
+   * with the game as it stood between turns: after the last move, its
+   * promotion, any spawn it caused and any power used since.
+   *
+   * @param game
+   *          The game.
+   */
+  default void moving(Game game) {
+  }
+
+  /**
+   * Called after a player's move, before any spawn it causes. Moves made by
+   * powers are not reported; they follow from powerUsed.
+   *
+   * @param move
+   *          Move made.
+   */
+  default void moved(Move move) {
+  }
+
+  /**
+   * Called after a pawn was promoted.
+   *
+   * @param loc
+   *          Location of the new piece.
+   * @param piece
+   *          The new piece.
+   */
+  default void promoted(Location loc, Piece piece) {
+  }
+
+  /**
+   * Called after a power box appeared on the board.
+   *
+   * @param loc
+   *          Location of the box.
+   * @param powerObject
+   *          The box.
+   */
+  default void spawned(Location loc, PowerObject powerObject) {
+  }
+
+  /**
+   * Called when capturing a power box offered the player powers to choose
+   * from.
+   *
+   * @param actions
+   *          Powers offered.
+   */
+  default void offered(List<PowerAction> actions) {
+  }
+
+  /**
+   * Called after a power was used.
+   *
+   * @param action
+   *          Power used; a PieceMover knows where it moved a piece to.
+   * @param input
+   *          Location the player chose for it, or null.
+   */
+  default void powerUsed(PowerAction action, Location input) {
+  }
+}
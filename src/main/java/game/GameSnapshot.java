@@ -0,0 +1,294 @@
+package game;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import board.Board;
+import board.Board.EmptySpace;
+import board.BoardObject;
+import board.Location;
+import game.Game.GameState;
+import game.Game.TimeControl;
+import pieces.Bishop;
+import pieces.GhostPawn;
+import pieces.King;
+import pieces.Knight;
+import pieces.Pawn;
+import pieces.Piece;
+import pieces.Queen;
+import pieces.Rook;
+import poweractions.PowerAction;
+import powerups.BlackHole;
+import powerups.Invulnerability;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+import powerups.PowerUp;
+
+/**
+ * GameSnapshot writes the state of a game in a compact binary form and reads
+ * it back, so a game can be moved to another server or survive a restart.
+ * Every square is written with everything on it, followed by whose turn it
+ * is, the move history and any power choices being offered. A game takes a
+ * few hundred bytes. Players are not part of it: the server that owns the
+ * game writes them along with their sessions' state.
+ *
+ * @author knorms
+ *
+ */
+public final class GameSnapshot {
+  private static final String EMPTY_FEN = "8/8/8/8/8/8/8/8 w - - 0 1";
+
+  // kinds of board object
+  private static final int EMPTY = 0;
+  private static final int KING = 1;
+  private static final int QUEEN = 2;
+  private static final int ROOK = 3;
+  private static final int BISHOP = 4;
+  private static final int KNIGHT = 5;
+  private static final int PAWN = 6;
+  private static final int GHOST_PAWN = 7;
+  private static final int POWER_OBJECT = 8;
+  private static final int INVULNERABILITY = 9;
+  private static final int BLACK_HOLE = 10;
+
+  private GameSnapshot() {
+  }
+
+  /**
+   * Write a game. The caller holds the game's lock.
+   *
+   * @param game
+   *          Game to write.
+   * @param out
+   *          Output to write to.
+   * @throws IOException
+   *           If the output fails.
+   */
+  public static void write(Game game, DataOutput out) throws IOException {
+    Board board = game.getBoard();
+    out.writeByte(board.getLocationSet().size());
+    for (Location loc : board.getLocationSet()) {
+      Collection<BoardObject> objs = board.getObjsAt(loc);
+      writeLocation(loc, out);
+      out.writeByte(objs.size());
+      for (BoardObject obj : objs) {
+        writeObject(obj, out);
+      }
+    }
+
+    out.writeBoolean(game.whiteToMove());
+    out.writeBoolean(game.getGameOverStatus());
+    out.writeByte(game.getGameState().ordinal());
+    out.writeByte(game.getTimeControl() == null ? -1
+        : game.getTimeControl().ordinal());
+    out.writeBoolean(game.isPublic());
+    out.writeByte(game.getTilNextPowerUp());
+    Location toPromote = game.getToPromote();
+    out.writeBoolean(toPromote != null);
+    if (toPromote != null) {
+      writeLocation(toPromote, out);
+    }
+
+    List<Move> history = game.getHistory();
+    out.writeShort(history.size());
+    for (Move move : history) {
+      writeLocation(move.getStart(), out);
+      writeLocation(move.getEnd(), out);
+    }
+
+    List<PowerAction> actions = game.getActionOptions();
+    out.writeByte(actions.size());
+    for (PowerAction action : actions) {
+      out.writeByte(action.getRarity().ordinal());
+      out.writeByte(action.getId());
+      writeLocation(action.getWhereCaptured(), out);
+    }
+  }
+
+  /**
+   * Read a game written by write. It has no players yet.
+   *
+   * @param in
+   *          Input to read from.
+   * @return the game.
+   * @throws IOException
+   *           If the input fails or holds something write can't have written.
+   */
+  public static Game read(DataInput in) throws IOException {
+    Game game = new Game(EMPTY_FEN);
+    Board board = game.getBoard();
+    // the empty board has an empty space on every square; it is kept only
+    // where the snapshot has one
+    Set<Location> empty = new HashSet<>();
+    int squares = in.readUnsignedByte();
+    for (int i = 0; i < squares; i++) {
+      Location loc = readLocation(in);
+      int count = in.readUnsignedByte();
+      for (int j = 0; j < count; j++) {
+        BoardObject obj = readObject(in);
+        if (obj == null) {
+          empty.add(loc);
+        } else if (obj instanceof PowerUp) {
+          game.addPowerUp(loc, (PowerUp) obj);
+        } else {
+          board.addBoardObject(loc, obj);
+        }
+      }
+    }
+    for (int row = 0; row < Board.SIZE; row++) {
+      for (int col = 0; col < Board.SIZE; col++) {
+        Location loc = new Location(row, col);
+        if (!empty.contains(loc)) {
+          board.removeEmpty(loc);
+        }
+      }
+    }
+
+    boolean whiteToMove = in.readBoolean();
+    boolean gameOver = in.readBoolean();
+    game.setGameState(GameState.values()[in.readUnsignedByte()]);
+    int timeControl = in.readByte();
+    if (timeControl >= 0) {
+      game.setTimeControl(TimeControl.values()[timeControl]);
+    }
+    game.setPublic(in.readBoolean());
+    game.setTilNextPowerUp(in.readUnsignedByte());
+    Location toPromote = in.readBoolean() ? readLocation(in) : null;
+    game.restoreTurn(whiteToMove, gameOver, toPromote);
+
+    int moves = in.readUnsignedShort();
+    List<Move> history = game.getHistory();
+    for (int i = 0; i < moves; i++) {
+      history.add(new Move(readLocation(in), readLocation(in)));
+    }
+
+    // powers look at the board when they are made, so they come last
+    int actions = in.readUnsignedByte();
+    for (int i = 0; i < actions; i++) {
+      Rarity rarity = Rarity.values()[in.readUnsignedByte()];
+      int id = in.readUnsignedByte();
+      PowerAction action =
+          PowerAction.ofId(rarity, id, game, readLocation(in));
+      if (action == null) {
+        throw new IOException("ERROR: no power " + id + " of " + rarity);
+      }
+      game.addActionOption(action);
+    }
+    return game;
+  }
+
+  private static void writeLocation(Location loc, DataOutput out)
+      throws IOException {
+    out.writeByte(loc.getRow() * Board.SIZE + loc.getCol());
+  }
+
+  private static Location readLocation(DataInput in) throws IOException {
+    int square = in.readUnsignedByte();
+    try {
+      return new Location(square / Board.SIZE, square % Board.SIZE);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("ERROR: no square " + square, e);
+    }
+  }
+
+  /**
+   * Write an object as its kind, then a color and whether it moved for a
+   * piece, a rarity for a power box, or the turns left for a power up.
+   */
+  private static void writeObject(BoardObject obj, DataOutput out)
+      throws IOException {
+    if (obj instanceof Piece) {
+      Piece piece = (Piece) obj;
+      out.writeByte(kindOf(piece));
+      out.writeByte(piece.getColor().ordinal());
+      out.writeBoolean(piece.getMoved());
+    } else if (obj instanceof PowerObject) {
+      out.writeByte(POWER_OBJECT);
+      out.writeByte(((PowerObject) obj).getRarity().ordinal());
+    } else if (obj instanceof PowerUp) {
+      out.writeByte(obj instanceof BlackHole ? BLACK_HOLE : INVULNERABILITY);
+      out.writeInt(((PowerUp) obj).getTurnsRemaining());
+    } else if (obj instanceof EmptySpace) {
+      out.writeByte(EMPTY);
+    } else {
+      throw new IOException("ERROR: can't write " + obj);
+    }
+  }
+
+  /**
+   * Read an object written by writeObject.
+   *
+   * @return the object, or null for an empty space.
+   */
+  private static BoardObject readObject(DataInput in) throws IOException {
+    int kind = in.readUnsignedByte();
+    switch (kind) {
+      case EMPTY:
+        return null;
+      case POWER_OBJECT:
+        return PowerObject.ofRarity(Rarity.values()[in.readUnsignedByte()]);
+      case INVULNERABILITY:
+        return new Invulnerability(in.readInt());
+      case BLACK_HOLE:
+        return new BlackHole(in.readInt());
+      default:
+        break;
+    }
+    Color color = Color.values()[in.readUnsignedByte()];
+    Piece piece;
+    switch (kind) {
+      case KING:
+        piece = new King(color);
+        break;
+      case QUEEN:
+        piece = new Queen(color);
+        break;
+      case ROOK:
+        piece = new Rook(color);
+        break;
+      case BISHOP:
+        piece = new Bishop(color);
+        break;
+      case KNIGHT:
+        piece = new Knight(color);
+        break;
+      case PAWN:
+        piece = new Pawn(color);
+        break;
+      case GHOST_PAWN:
+        piece = new GhostPawn(color);
+        break;
+      default:
+        throw new IOException("ERROR: no kind of board object " + kind);
+    }
+    if (in.readBoolean()) {
+      piece.setMoved();
+    }
+    return piece;
+  }
+
+  private static int kindOf(Piece piece) throws IOException {
+    if (piece instanceof King) {
+      return KING;
+    } else if (piece instanceof Queen) {
+      return QUEEN;
+    } else if (piece instanceof Rook) {
+      return ROOK;
+    } else if (piece instanceof Bishop) {
+      return BISHOP;
+    } else if (piece instanceof Knight) {
+      return KNIGHT;
+    } else if (piece instanceof GhostPawn) {
+      return GHOST_PAWN;
+    } else if (piece instanceof Pawn) {
+      return PAWN;
+    }
+    throw new IOException("ERROR: can't write " + piece);
+  }
+
+}
@@ -0,0 +1,196 @@
+package game;
+
+import java.util.SplittableRandom;
+
+import board.Board;
+import board.BoardObject;
+import board.Location;
+import pieces.Bishop;
+import pieces.King;
+import pieces.Knight;
+import pieces.Pawn;
+import pieces.Piece;
+import pieces.Queen;
+import pieces.Rook;
+import powerups.BlackHole;
+import powerups.Invulnerability;
+import powerups.PowerObject;
+import repl.ChessReplUtils;
+
+/**
+ * PositionHash gives a position a 64-bit Zobrist hash: a fixed random number
+ * for each kind of piece or power on each square, for each castling right
+ * and for black to move, xored together. The same position always hashes the
+ * same, on any server; two different ones hash the same about once in 2^64.
+ *
+ * Power boxes, black holes and shields are hashed, so a position with one is
+ * not the same as one without. Whether a pawn can be taken en passant is
+ * not.
+ *
+ * @author knorms
+ *
+ */
+public final class PositionHash {
+  private static final int PIECES = 12;
+  private static final int BOX = PIECES;
+  private static final int BLACK_HOLE = BOX + 3;
+  private static final int SHIELD = BLACK_HOLE + 1;
+  private static final int KINDS = SHIELD + 1;
+  private static final int SQUARES = Board.SIZE * Board.SIZE;
+  private static final int KING_COL = 4;
+
+  private static final long[] KEYS = new long[SQUARES * KINDS];
+  // white and black, king side and queen side
+  private static final long[] CASTLING = new long[4];
+  private static final long BLACK_TO_MOVE;
+
+  static {
+    SplittableRandom random = new SplittableRandom(0x9e3779b97f4a7c15L);
+    for (int i = 0; i < KEYS.length; i++) {
+      KEYS[i] = random.nextLong();
+    }
+    for (int i = 0; i < CASTLING.length; i++) {
+      CASTLING[i] = random.nextLong();
+    }
+    BLACK_TO_MOVE = random.nextLong();
+  }
+
+  private PositionHash() {
+  }
+
+  /**
+   * Hash the position of a game.
+   *
+   * @param game
+   *          Game.
+   * @return the hash.
+   */
+  public static long of(Game game) {
+    return of(game.getBoard(), game.whiteToMove());
+  }
+
+  /**
+   * Hash a position.
+   *
+   * @param board
+   *          Board.
+   * @param whiteToMove
+   *          Whether white moves next.
+   * @return the hash.
+   */
+  public static long of(Board board, boolean whiteToMove) {
+    long hash = whiteToMove ? 0 : BLACK_TO_MOVE;
+    for (int row = 0; row < Board.SIZE; row++) {
+      for (int col = 0; col < Board.SIZE; col++) {
+        int square = row * Board.SIZE + col;
+        for (BoardObject obj : board.getObjsAt(new Location(row, col))) {
+          int kind = kindOf(obj);
+          if (kind >= 0) {
+            hash ^= KEYS[square * KINDS + kind];
+          }
+        }
+      }
+    }
+    for (Color color : Color.values()) {
+      int home = homeRow(color);
+      Piece king = board.getPieceAt(new Location(home, KING_COL));
+      if (!(king instanceof King) || king.getColor() != color
+          || king.getMoved()) {
+        continue;
+      }
+      if (unmovedRook(board, color, home, Board.SIZE - 1)) {
+        hash ^= CASTLING[color.ordinal() * 2];
+      }
+      if (unmovedRook(board, color, home, 0)) {
+        hash ^= CASTLING[color.ordinal() * 2 + 1];
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Hash the position of a FEN string, as Board reads it. The castling
+   * field gives the castling rights.
+   *
+   * @param fen
+   *          FEN string.
+   * @return the hash.
+   * @throws IllegalArgumentException
+   *           If fen is malformed.
+   */
+  public static long ofFen(String fen) {
+    if (!ChessReplUtils.isFenValid(fen.trim())) {
+      throw new IllegalArgumentException("ERROR: invalid FEN.");
+    }
+    Board board = new Board(fen.trim());
+    String[] fields = fen.trim().split("\\s+");
+    String castling = fields[2];
+    // which case a color's castling rights are written in
+    Color upper = ChessReplUtils.charToPiece('K').getColor();
+    for (Color color : Color.values()) {
+      int home = homeRow(color);
+      boolean kingSide = castling.indexOf(color == upper ? 'K' : 'k') >= 0;
+      boolean queenSide = castling.indexOf(color == upper ? 'Q' : 'q') >= 0;
+      markMoved(board, color, home, KING_COL, kingSide || queenSide);
+      markMoved(board, color, home, Board.SIZE - 1, kingSide);
+      markMoved(board, color, home, 0, queenSide);
+    }
+    return of(board, "w".equals(fields[1]));
+  }
+
+  private static void markMoved(Board board, Color color, int row, int col,
+      boolean canCastle) {
+    Piece piece = board.getPieceAt(new Location(row, col));
+    if (!canCastle && piece != null && piece.getColor() == color) {
+      piece.setMoved();
+    }
+  }
+
+  private static boolean unmovedRook(Board board, Color color, int row,
+      int col) {
+    Piece rook = board.getPieceAt(new Location(row, col));
+    return rook instanceof Rook && rook.getColor() == color
+        && !rook.getMoved();
+  }
+
+  private static int homeRow(Color color) {
+    return color == Color.WHITE ? 0 : Board.SIZE - 1;
+  }
+
+  /**
+   * Get the kind of an object for its key.
+   *
+   * @return the kind, or -1 if it isn't hashed.
+   */
+  private static int kindOf(BoardObject obj) {
+    if (obj instanceof Piece) {
+      Piece piece = (Piece) obj;
+      int kind;
+      if (piece instanceof King) {
+        kind = 0;
+      } else if (piece instanceof Queen) {
+        kind = 1;
+      } else if (piece instanceof Rook) {
+        kind = 2;
+      } else if (piece instanceof Bishop) {
+        kind = 3;
+      } else if (piece instanceof Knight) {
+        kind = 4;
+      } else if (piece instanceof Pawn) {
+        kind = 5;
+      } else {
+        // a ghost pawn, there to be taken en passant
+        return -1;
+      }
+      return kind * 2 + piece.getColor().ordinal();
+    } else if (obj instanceof PowerObject) {
+      return BOX + ((PowerObject) obj).getRarity().ordinal();
+    } else if (obj instanceof BlackHole) {
+      return BLACK_HOLE;
+    } else if (obj instanceof Invulnerability) {
+      return SHIELD;
+    }
+    return -1;
+  }
+
+}
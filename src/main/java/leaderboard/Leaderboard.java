@@ -0,0 +1,387 @@
+package leaderboard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Leaderboard ranks players by a score, highest first and ties by name, in an
+ * indexable skip list: each link also counts the players it skips, so
+ * changing a score, finding a player's rank and finding the player at a
+ * rank all take O(log n), and a page starts where the last one ended without
+ * counting the players before it.
+ *
+ * Pages are keyed by the score and name of the last player of the page
+ * before, so a player moving while someone pages through doesn't shift the
+ * pages after. The first page is serialized once and cached until a change
+ * reaches it; changes further down leave it alone.
+ *
+ * @author knorms
+ *
+ */
+public final class Leaderboard {
+  /**
+   * Players on the first page, and on any page a client doesn't size.
+   */
+  public static final int FIRST_PAGE = 50;
+
+  private static final int MAX_LEVEL = 32;
+  private static final double P = 0.25;
+
+  private final Node head = new Node(null, 0, MAX_LEVEL);
+  private final Map<String, Node> nodes = new HashMap<>();
+  private int level = 1;
+  private volatile String firstPage;
+
+  /**
+   * A player on the board.
+   */
+  private static final class Node {
+    private final String name;
+    private final long score;
+    private final Node[] next;
+    // players from this node to next, at each level
+    private final int[] span;
+
+    private Node(String name, long score, int levels) {
+      this.name = name;
+      this.score = score;
+      next = new Node[levels];
+      span = new int[levels];
+    }
+
+    /**
+     * @return whether this node ranks above the player with score and name.
+     */
+    private boolean above(long otherScore, String otherName) {
+      return score > otherScore
+          || score == otherScore && name.compareTo(otherName) < 0;
+    }
+  }
+
+  /**
+   * A player's place on the board.
+   */
+  public static final class Entry {
+    private final int rank;
+    private final String name;
+    private final long score;
+
+    private Entry(int rank, String name, long score) {
+      this.rank = rank;
+      this.name = name;
+      this.score = score;
+    }
+
+    /**
+     * @return the rank, 1 for the top.
+     */
+    public int getRank() {
+      return rank;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getScore() {
+      return score;
+    }
+
+    /**
+     * @return the key of the page after this entry.
+     */
+    public String cursor() {
+      return score + ":" + name;
+    }
+  }
+
+  /**
+   * @return the number of players on the board.
+   */
+  public synchronized int size() {
+    return nodes.size();
+  }
+
+  /**
+   * Set a player's score, adding them if they aren't on the board.
+   *
+   * @param name
+   *          Name of the player.
+   * @param score
+   *          Their score.
+   */
+  public synchronized void set(String name, long score) {
+    Node old = nodes.get(name);
+    if (old != null && old.score == score) {
+      return;
+    }
+    int oldRank = old == null ? Integer.MAX_VALUE : delete(old);
+    if (Math.min(oldRank, insert(name, score)) <= FIRST_PAGE) {
+      firstPage = null;
+    }
+  }
+
+  /**
+   * Add to a player's score, starting from 0 if they aren't on the board.
+   *
+   * @param name
+   *          Name of the player.
+   * @param delta
+   *          Amount to add.
+   * @return their new score.
+   */
+  public synchronized long add(String name, long delta) {
+    Node old = nodes.get(name);
+    long score = (old == null ? 0 : old.score) + delta;
+    set(name, score);
+    return score;
+  }
+
+  /**
+   * Take a player off the board.
+   *
+   * @param name
+   *          Name of the player.
+   * @return false if they weren't on it.
+   */
+  public synchronized boolean remove(String name) {
+    Node old = nodes.get(name);
+    if (old == null) {
+      return false;
+    }
+    if (delete(old) <= FIRST_PAGE) {
+      firstPage = null;
+    }
+    return true;
+  }
+
+  /**
+   * Get a player's place.
+   *
+   * @param name
+   *          Name of the player.
+   * @return their entry, or null if they aren't on the board.
+   */
+  public synchronized Entry entry(String name) {
+    Node node = nodes.get(name);
+    if (node == null) {
+      return null;
+    }
+    int rank = 0;
+    Node x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && (x.next[i] == node
+          || x.next[i].above(node.score, node.name))) {
+        rank += x.span[i];
+        x = x.next[i];
+      }
+      if (x == node) {
+        break;
+      }
+    }
+    return new Entry(rank, node.name, node.score);
+  }
+
+  /**
+   * Get the player at a rank.
+   *
+   * @param rank
+   *          Rank, 1 for the top.
+   * @return their entry, or null if there is no one at that rank.
+   */
+  public synchronized Entry at(int rank) {
+    if (rank < 1 || rank > nodes.size()) {
+      return null;
+    }
+    int traversed = 0;
+    Node x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && traversed + x.span[i] <= rank) {
+        traversed += x.span[i];
+        x = x.next[i];
+      }
+      if (traversed == rank) {
+        break;
+      }
+    }
+    return new Entry(rank, x.name, x.score);
+  }
+
+  /**
+   * Get a page of players, highest first.
+   *
+   * @param after
+   *          Cursor of the last entry of the page before, or null for the
+   *          first page.
+   * @param limit
+   *          Most players to get.
+   * @return the players; fewer than limit on the last page.
+   * @throws IllegalArgumentException
+   *           If after is not a cursor.
+   */
+  public synchronized List<Entry> entries(String after, int limit) {
+    int rank = 0;
+    Node x = head;
+    if (after != null) {
+      int colon = after.indexOf(':');
+      long score;
+      try {
+        score = Long.parseLong(after.substring(0, Math.max(colon, 0)));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("after must be a cursor.");
+      }
+      String name = after.substring(colon + 1);
+      // the last player at or above the cursor
+      for (int i = level - 1; i >= 0; i--) {
+        while (x.next[i] != null && (x.next[i].above(score, name)
+            || x.next[i].score == score && x.next[i].name.equals(name))) {
+          rank += x.span[i];
+          x = x.next[i];
+        }
+      }
+    }
+    List<Entry> page = new ArrayList<>(Math.min(limit, FIRST_PAGE));
+    for (x = x.next[0]; x != null && page.size() < limit; x = x.next[0]) {
+      page.add(new Entry(++rank, x.name, x.score));
+    }
+    return page;
+  }
+
+  /**
+   * Get a page of players as {players: [{rank, name, score}, ...], next},
+   * where next is there if the page is full and there may be more players.
+   *
+   * @param after
+   *          Cursor of the last entry of the page before, or null for the
+   *          first page.
+   * @param limit
+   *          Most players to get.
+   * @return encoded page.
+   * @throws IllegalArgumentException
+   *           If after is not a cursor.
+   */
+  public String page(String after, int limit) {
+    List<Entry> entries = entries(after, limit);
+    JsonArray players = new JsonArray();
+    for (Entry entry : entries) {
+      JsonObject player = new JsonObject();
+      player.addProperty("rank", entry.rank);
+      player.addProperty("name", entry.name);
+      player.addProperty("score", entry.score);
+      players.add(player);
+    }
+    JsonObject page = new JsonObject();
+    page.add("players", players);
+    if (entries.size() == limit) {
+      page.addProperty("next", entries.get(limit - 1).cursor());
+    }
+    return page.toString();
+  }
+
+  /**
+   * Get the first page of FIRST_PAGE players. The text is cached until a
+   * change reaches it.
+   *
+   * @return encoded page, as page makes it.
+   */
+  public String firstPage() {
+    String page = firstPage;
+    if (page == null) {
+      // built under the lock so a concurrent change can't be cached over
+      synchronized (this) {
+        if (firstPage == null) {
+          firstPage = page(null, FIRST_PAGE);
+        }
+        page = firstPage;
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Insert a player who isn't on the board.
+   *
+   * @return their rank.
+   */
+  private int insert(String name, long score) {
+    Node[] update = new Node[MAX_LEVEL];
+    int[] rank = new int[MAX_LEVEL];
+    Node x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      rank[i] = i == level - 1 ? 0 : rank[i + 1];
+      while (x.next[i] != null && x.next[i].above(score, name)) {
+        rank[i] += x.span[i];
+        x = x.next[i];
+      }
+      update[i] = x;
+    }
+    int levels = randomLevel();
+    if (levels > level) {
+      for (int i = level; i < levels; i++) {
+        rank[i] = 0;
+        update[i] = head;
+        head.span[i] = nodes.size();
+      }
+      level = levels;
+    }
+    Node node = new Node(name, score, levels);
+    for (int i = 0; i < levels; i++) {
+      node.next[i] = update[i].next[i];
+      update[i].next[i] = node;
+      node.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+      update[i].span[i] = rank[0] - rank[i] + 1;
+    }
+    for (int i = levels; i < level; i++) {
+      update[i].span[i]++;
+    }
+    nodes.put(name, node);
+    return rank[0] + 1;
+  }
+
+  /**
+   * Delete a player on the board.
+   *
+   * @return the rank they had.
+   */
+  private int delete(Node node) {
+    Node[] update = new Node[MAX_LEVEL];
+    int rank = 0;
+    Node x = head;
+    for (int i = level - 1; i >= 0; i--) {
+      while (x.next[i] != null && x.next[i].above(node.score, node.name)) {
+        rank += x.span[i];
+        x = x.next[i];
+      }
+      update[i] = x;
+    }
+    for (int i = 0; i < level; i++) {
+      if (update[i].next[i] == node) {
+        update[i].span[i] += node.span[i] - 1;
+        update[i].next[i] = node.next[i];
+      } else {
+        update[i].span[i]--;
+      }
+    }
+    while (level > 1 && head.next[level - 1] == null) {
+      level--;
+    }
+    nodes.remove(node.name);
+    return rank + 1;
+  }
+
+  private static int randomLevel() {
+    int levels = 1;
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (levels < MAX_LEVEL && random.nextDouble() < P) {
+      levels++;
+    }
+    return levels;
+  }
+
+}
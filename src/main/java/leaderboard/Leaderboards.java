@@ -0,0 +1,133 @@
+package leaderboard;
+
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Map;
+
+import game.Game.TimeControl;
+import storage.GameArchive;
+import storage.Rating;
+import storage.RatingBook;
+
+/**
+ * Leaderboards keeps a leaderboard of wins and one of ratings for each time
+ * control, rebuilt from the recorded games and the rating book at startup
+ * and kept up to date as games end and rating periods are rated.
+ *
+ * @author knorms
+ *
+ */
+public final class Leaderboards {
+  private final Map<Kind, Map<TimeControl, Leaderboard>> boards =
+      new EnumMap<>(Kind.class);
+
+  /**
+   * What a leaderboard ranks players by.
+   */
+  public enum Kind {
+    /**
+     * Games won; a win counts as soon as the game ends.
+     */
+    WINS,
+    /**
+     * Rating, rounded; a rating counts once its period is rated.
+     */
+    RATING
+  }
+
+  /**
+   * Construct empty leaderboards.
+   */
+  public Leaderboards() {
+    for (Kind kind : Kind.values()) {
+      Map<TimeControl, Leaderboard> byTimeControl =
+          new EnumMap<>(TimeControl.class);
+      for (TimeControl tc : TimeControl.values()) {
+        byTimeControl.put(tc, new Leaderboard());
+      }
+      boards.put(kind, byTimeControl);
+    }
+  }
+
+  /**
+   * Build the leaderboards of the recorded games and keep the rating ones
+   * up to date with a rating book.
+   *
+   * @param archive
+   *          Archive of the recorded games.
+   * @param ratings
+   *          Ratings of their players; its listener is replaced.
+   * @return the leaderboards; finished must be called for the games that
+   *         end from now on.
+   * @throws SQLException
+   *           If the wins can't be counted.
+   */
+  public static Leaderboards load(GameArchive archive, RatingBook ratings)
+      throws SQLException {
+    Leaderboards leaderboards = new Leaderboards();
+    // listen first: a period rated while loading is set twice, not missed
+    ratings.setListener(leaderboards::rated);
+    for (TimeControl tc : TimeControl.values()) {
+      Leaderboard wins = leaderboards.get(Kind.WINS, tc);
+      for (Map.Entry<String, Long> winner : archive.topWinners(tc.name(),
+          Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE).entrySet()) {
+        wins.set(winner.getKey(), winner.getValue());
+      }
+      leaderboards.rated(tc, ratings.ratings(tc));
+    }
+    return leaderboards;
+  }
+
+  /**
+   * Get a leaderboard.
+   *
+   * @param kind
+   *          What it ranks by.
+   * @param timeControl
+   *          Time control of the games it counts.
+   * @return the leaderboard.
+   */
+  public Leaderboard get(Kind kind, TimeControl timeControl) {
+    return boards.get(kind).get(timeControl);
+  }
+
+  /**
+   * Count the result of a game that ended.
+   *
+   * @param timeControl
+   *          Time control of the game, or null if it was untimed.
+   * @param white
+   *          Name of the white player.
+   * @param black
+   *          Name of the black player.
+   * @param result
+   *          "1-0", "0-1", "1/2-1/2" or "*".
+   */
+  public void finished(TimeControl timeControl, String white, String black,
+      String result) {
+    if (timeControl == null) {
+      return;
+    }
+    String winner =
+        "1-0".equals(result) ? white : "0-1".equals(result) ? black : null;
+    if (winner != null) {
+      get(Kind.WINS, timeControl).add(winner, 1);
+    }
+  }
+
+  /**
+   * Set the ratings of players.
+   *
+   * @param timeControl
+   *          Time control of the ratings.
+   * @param ratings
+   *          Ratings by player name.
+   */
+  public void rated(TimeControl timeControl, Map<String, Rating> ratings) {
+    Leaderboard board = get(Kind.RATING, timeControl);
+    for (Map.Entry<String, Rating> rating : ratings.entrySet()) {
+      board.set(rating.getKey(), rating.getValue().rounded());
+    }
+  }
+
+}
@@ -0,0 +1,307 @@
+package main;
+
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import board.Location;
+import game.Game.TimeControl;
+import game.PositionHash;
+import leaderboard.Leaderboard;
+import leaderboard.Leaderboard.Entry;
+import leaderboard.Leaderboards;
+import leaderboard.Leaderboards.Kind;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+import spark.Spark;
+import storage.GameArchive;
+import storage.GameArchive.Filter;
+import storage.GameArchive.Outcome;
+import storage.GameJournal;
+import storage.GameRecord;
+import storage.PlayerProfile;
+import storage.PositionIndex;
+import storage.PositionIndex.MoveStats;
+import storage.PositionIndex.Occurrence;
+import websockets.GameReplayStream;
+
+/**
+ * The routes that read the games recorded with --db.
+ *
+ * @author knorms
+ *
+ */
+final class ArchiveRoutes {
+  private static final Gson GSON = new Gson();
+  private static final int DEFAULT_LIMIT = 50;
+  private static final int MAX_LIMIT = 100;
+
+  private ArchiveRoutes() {
+  }
+
+  /**
+   * A route whose bad parameters get a 400 instead of an error page.
+   */
+  private interface ParamRoute {
+    Object handle(Request req, Response res) throws Exception;
+  }
+
+  private static Route checked(ParamRoute route) {
+    return new Route() {
+
+      @Override
+      public Object handle(Request req, Response res) throws Exception {
+        try {
+          return route.handle(req, res);
+        } catch (IllegalArgumentException e) {
+          res.status(400);
+          return "ERROR: " + e.getMessage();
+        }
+      }
+
+    };
+  }
+
+  private static long param(Request req, String name, long orElse) {
+    String value = req.queryParams(name);
+    if (value == null) {
+      return orElse;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(name + " must be a number.");
+    }
+  }
+
+  private static int limit(Request req) {
+    long limit = param(req, "limit", DEFAULT_LIMIT);
+    if (limit < 1 || limit > MAX_LIMIT) {
+      throw new IllegalArgumentException(
+          "limit must be from 1 to " + MAX_LIMIT + ".");
+    }
+    return (int) limit;
+  }
+
+  private static long position(Request req) {
+    String fen = req.queryParams("fen");
+    if (fen == null) {
+      throw new IllegalArgumentException("fen is required.");
+    }
+    try {
+      return PositionHash.ofFen(fen);
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("fen is not a valid FEN.");
+    }
+  }
+
+  private static Leaderboard leaderboard(Leaderboards leaderboards,
+      Request req) {
+    Kind kind;
+    try {
+      kind = Kind.valueOf(req.params("kind").toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("kind must be wins or rating.");
+    }
+    try {
+      return leaderboards.get(kind,
+          TimeControl.valueOf(req.params("timeControl")
+              .toUpperCase(Locale.ROOT)));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException(
+          "timeControl must be quick, standard or slow.");
+    }
+  }
+
+  private static String square(int square) {
+    return new Location(square / 8, square % 8).toString();
+  }
+
+  /**
+   * Add the routes.
+   *
+   * @param archive
+   *          Archive of the recorded games.
+   * @param positions
+   *          Index of the positions of the games, or null.
+   * @param leaderboards
+   *          Leaderboards of the players of the games, or null.
+   */
+  static void add(GameArchive archive, PositionIndex positions,
+      Leaderboards leaderboards) {
+    Spark.get("/games/export", checked((req, res) -> {
+      long from = param(req, "from", 0);
+      res.type("application/gzip");
+      res.header("Content-Disposition",
+          "attachment; filename=\"games.bin.gz\"");
+      GZIPOutputStream out =
+          new GZIPOutputStream(res.raw().getOutputStream(), 1 << 16);
+      archive.export(from, out);
+      out.finish();
+      return "";
+    }));
+
+    Spark.get("/replay/:id", checked((req, res) -> {
+      long id;
+      try {
+        id = Long.parseLong(req.params("id"));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("id must be a number.");
+      }
+      long from = param(req, "from", 0);
+      if (from < 0 || from > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("from must be a ply.");
+      }
+      GameReplayStream replay = GameReplayStream.open(archive, id, (int) from);
+      if (replay == null) {
+        res.status(404);
+        return "ERROR: no finished game " + id + ".";
+      }
+      res.type("application/x-ndjson");
+      replay.writeTo(new OutputStreamWriter(res.raw().getOutputStream(),
+          StandardCharsets.UTF_8));
+      return "";
+    }));
+
+    Spark.get("/players/:name/games", checked((req, res) -> {
+      Filter filter = new Filter()
+          .timeControl(req.queryParams("timeControl"))
+          .started(param(req, "since", Long.MIN_VALUE),
+              param(req, "until", Long.MAX_VALUE));
+      if (req.queryParams("outcome") != null) {
+        try {
+          filter.outcome(Outcome.valueOf(
+              req.queryParams("outcome").toUpperCase(Locale.ROOT)));
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException(
+              "outcome must be win, loss or draw.");
+        }
+      }
+      int limit = limit(req);
+      List<GameRecord> games = archive.games(req.params("name"), filter,
+          param(req, "before", Long.MAX_VALUE), limit);
+      JsonObject page = new JsonObject();
+      JsonArray list = new JsonArray();
+      for (GameRecord game : games) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("id", game.getId());
+        entry.addProperty("white", game.getWhite());
+        entry.addProperty("black", game.getBlack());
+        entry.addProperty("timeControl", game.getTimeControl());
+        entry.addProperty("started", game.getStarted());
+        entry.addProperty("ended", game.getEnded());
+        entry.addProperty("result", game.getResult());
+        entry.addProperty("reason", game.getReason());
+        list.add(entry);
+      }
+      page.add("games", list);
+      if (games.size() == limit) {
+        page.addProperty("next", games.get(games.size() - 1).getId());
+      }
+      res.type("application/json");
+      return GSON.toJson(page);
+    }));
+
+    Spark.get("/players/:name", checked((req, res) -> {
+      PlayerProfile profile = archive.profile(req.params("name"));
+      res.type("application/json");
+      return GSON.toJson(profile);
+    }));
+
+    Spark.get("/games/winners", checked((req, res) -> {
+      Map<String, Long> winners = archive.topWinners(
+          req.queryParams("timeControl"), param(req, "since", Long.MIN_VALUE),
+          param(req, "until", Long.MAX_VALUE), limit(req));
+      JsonArray list = new JsonArray();
+      for (Map.Entry<String, Long> winner : winners.entrySet()) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("name", winner.getKey());
+        entry.addProperty("wins", winner.getValue());
+        list.add(entry);
+      }
+      res.type("application/json");
+      return GSON.toJson(list);
+    }));
+
+    if (leaderboards != null) {
+      Spark.get("/leaderboards/:kind/:timeControl", checked((req, res) -> {
+        Leaderboard board = leaderboard(leaderboards, req);
+        String after = req.queryParams("after");
+        int limit = limit(req);
+        res.type("application/json");
+        if (after == null && limit == Leaderboard.FIRST_PAGE) {
+          return board.firstPage();
+        }
+        return board.page(after, limit);
+      }));
+
+      Spark.get("/leaderboards/:kind/:timeControl/:name",
+          checked((req, res) -> {
+            Entry entry =
+                leaderboard(leaderboards, req).entry(req.params("name"));
+            if (entry == null) {
+              res.status(404);
+              return "ERROR: " + req.params("name") + " is not ranked.";
+            }
+            JsonObject player = new JsonObject();
+            player.addProperty("rank", entry.getRank());
+            player.addProperty("name", entry.getName());
+            player.addProperty("score", entry.getScore());
+            res.type("application/json");
+            return GSON.toJson(player);
+          }));
+    }
+
+    if (positions == null) {
+      return;
+    }
+    Spark.get("/positions/games", checked((req, res) -> {
+      long hash = position(req);
+      int limit = limit(req);
+      List<Occurrence> games =
+          positions.games(hash, param(req, "after", 0), limit);
+      JsonObject page = new JsonObject();
+      JsonArray list = new JsonArray();
+      for (Occurrence game : games) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("id", game.getGame());
+        entry.addProperty("ply", game.getPly());
+        list.add(entry);
+      }
+      page.add("games", list);
+      if (games.size() == limit) {
+        page.addProperty("next", games.get(games.size() - 1).getGame());
+      }
+      res.type("application/json");
+      return GSON.toJson(page);
+    }));
+
+    Spark.get("/positions/moves", checked((req, res) -> {
+      JsonArray list = new JsonArray();
+      for (MoveStats move : positions.moves(position(req))) {
+        JsonObject entry = new JsonObject();
+        entry.addProperty("from", square(move.getFrom()));
+        entry.addProperty("to", square(move.getTo()));
+        if (move.getPromotion() != 0) {
+          entry.addProperty("promotion", String.valueOf(
+              "qrbn".charAt(move.getPromotion() - GameJournal.QUEEN)));
+        }
+        entry.addProperty("whiteWins", move.getWhiteWins());
+        entry.addProperty("draws", move.getDraws());
+        entry.addProperty("blackWins", move.getBlackWins());
+        list.add(entry);
+      }
+      res.type("application/json");
+      return GSON.toJson(list);
+    }));
+  }
+
+}
@@ -1,10 +1,21 @@
 package main;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
 
+import cluster.HashRing;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
+import leaderboard.Leaderboards;
+import metrics.MetricsRegistry;
+import metrics.TurnTracer;
 import repl.ChessProjectHandler;
 import repl.Repl;
 import spark.ExceptionHandler;
@@ -12,8 +23,19 @@ import spark.Request;
 import spark.Response;
 import spark.Route;
 import spark.Spark;
+import storage.EventLog;
+import storage.GameArchive;
+import storage.GameJournal;
+import storage.GameRecorder;
+import storage.PositionIndex;
+import storage.RatingBook;
 import websockets.ChessWebSocket;
+import websockets.GameMigration;
+import websockets.GameRecovery;
+import websockets.GameReaper.Phase;
+import websockets.HomeRouter;
 import websockets.HomeWebSocket;
+import websockets.PlayRouter;
 
 /**
  * The Main class of our project. This is where execution begins.
@@ -36,6 +58,17 @@ public final class Main {
 
   private ChessProjectHandler chessProjectHandler = new ChessProjectHandler();
 
+  // run by one shutdown hook, last opened first: the games are drained
+  // before the event log is closed, and it before the database
+  private final Deque<Runnable> shutdown = new ArrayDeque<>();
+
+  // games recorded with --db, or null
+  private GameArchive archive;
+  // leaderboards of the players of those games, or null
+  private Leaderboards leaderboards;
+  // index of the positions of those games with --positions, or null
+  private PositionIndex positions;
+
   // Set to a small quantity in order to prevent floating point errors
   // from ruining the case where the input maximum radius is exactly the
   // distance two stars are from each other
@@ -49,12 +82,177 @@ public final class Main {
     // Parse command line arguments
     OptionParser parser = new OptionParser();
     parser.accepts("gui");
+    parser.accepts("debug");
+    // per session limit of a message type, as TYPE=burst:perSecond
+    parser.accepts("rate-limit").withRequiredArg().ofType(String.class);
+    // limit shared by all sessions of an address, as burst:perSecond
+    parser.accepts("address-rate-limit").withRequiredArg()
+        .ofType(String.class);
+    // turns slower than this many milliseconds are logged phase by phase
+    parser.accepts("slow-turn-ms").withRequiredArg().ofType(Integer.class);
     parser.accepts("port").withRequiredArg().ofType(Integer.class)
         .defaultsTo(DEFAULT_PORT);
+    // every node of a cluster, as host:port,host:port,...
+    parser.accepts("nodes").withRequiredArg().ofType(String.class);
+    // this node's name among --nodes; defaults to localhost:<port>
+    parser.accepts("self").withRequiredArg().ofType(String.class);
+    // route clients to the --nodes instead of hosting games
+    parser.accepts("router");
+    // games are written here on shutdown and restored from here at startup
+    parser.accepts("drain-file").withRequiredArg().ofType(String.class);
+    // on shutdown, hand the games to this server, as host:port
+    parser.accepts("drain-to").withRequiredArg().ofType(String.class);
+    // shared by servers handing games to each other; enables /migrate
+    parser.accepts("migration-secret").withRequiredArg()
+        .ofType(String.class);
+    // record finished games in this SQLite database
+    parser.accepts("db").withRequiredArg().ofType(String.class);
+    // minutes in a rating period of the players of the recorded games
+    parser.accepts("rating-period-minutes").withRequiredArg()
+        .ofType(Integer.class).defaultsTo(60);
+    // index the positions of the recorded games in this directory
+    parser.accepts("positions").withRequiredArg().ofType(String.class);
+    // minutes between adding the games recorded since to the index
+    parser.accepts("positions-minutes").withRequiredArg()
+        .ofType(Integer.class).defaultsTo(10);
+    // log every change to the games to segments in this directory
+    parser.accepts("event-log").withRequiredArg().ofType(String.class);
+    // seconds between checkpoints of the games next to the event log
+    parser.accepts("checkpoint-seconds").withRequiredArg()
+        .ofType(Integer.class).defaultsTo(60);
+    // idle time in seconds before a game is evicted, per phase
+    for (Phase phase : Phase.values()) {
+      parser.accepts(ttlOption(phase)).withRequiredArg().ofType(Integer.class);
+    }
     OptionSet options = parser.parse(args);
 
-    if (options.has("gui")) {
-      runSparkServer((int) options.valueOf("port"));
+    HashRing ring = options.has("nodes")
+        ? HashRing.parse(options.valueOf("nodes").toString()) : null;
+    if (options.has("router")) {
+      if (ring == null) {
+        throw new IllegalArgumentException(
+            "ERROR: a router needs the --nodes to route to.");
+      }
+      runRouter((int) options.valueOf("port"), ring);
+    } else if (options.has("gui")) {
+      if (ring != null) {
+        ChessWebSocket.setCluster(ring,
+            options.has("self") ? options.valueOf("self").toString()
+                : "localhost:" + options.valueOf("port"));
+      }
+      ChessWebSocket.setDebug(options.has("debug"));
+      if (options.has("slow-turn-ms")) {
+        TurnTracer.getDefault()
+            .setSlowThreshold((int) options.valueOf("slow-turn-ms"));
+      }
+      for (Object limit : options.valuesOf("rate-limit")) {
+        String[] typeAndLimit = limit.toString().split("=", 2);
+        if (typeAndLimit.length != 2) {
+          throw new IllegalArgumentException(
+              "ERROR: rate limit must be TYPE=burst:perSecond.");
+        }
+        ChessWebSocket.setRateLimit(typeAndLimit[0], typeAndLimit[1]);
+      }
+      if (options.has("address-rate-limit")) {
+        ChessWebSocket.setAddressRateLimit(
+            options.valueOf("address-rate-limit").toString());
+      }
+      for (Phase phase : Phase.values()) {
+        if (options.has(ttlOption(phase))) {
+          ChessWebSocket.setGameTtl(phase, TimeUnit.SECONDS
+              .toMillis((int) options.valueOf(ttlOption(phase))));
+        }
+      }
+      Path drainFile = options.has("drain-file")
+          ? Paths.get(options.valueOf("drain-file").toString()) : null;
+      String drainTo = options.has("drain-to")
+          ? options.valueOf("drain-to").toString() : null;
+      String secret = options.has("migration-secret")
+          ? options.valueOf("migration-secret").toString() : null;
+      if (drainTo != null && secret == null) {
+        throw new IllegalArgumentException(
+            "ERROR: --drain-to needs the --migration-secret of the peer.");
+      }
+      if (options.has("db")) {
+        String db = options.valueOf("db").toString();
+        try {
+          GameRecorder recorder = new GameRecorder(db);
+          ChessWebSocket.setRecorder(recorder);
+          GameArchive games = new GameArchive(recorder.getStore());
+          archive = games;
+          RatingBook ratings = new RatingBook(recorder.getStore(),
+              TimeUnit.MINUTES.toMillis(
+                  (int) options.valueOf("rating-period-minutes")));
+          HomeWebSocket.setRatings(ratings);
+          // before any game can end, so no win is missed or counted twice
+          leaderboards = Leaderboards.load(games, ratings);
+          ChessWebSocket.setLeaderboards(leaderboards);
+          ratings.schedule(TimeUnit.MINUTES.toMillis(1));
+          shutdown.push(() -> {
+            games.close();
+            recorder.close();
+          });
+        } catch (SQLException e) {
+          System.err.println("ERROR: could not open " + db + ", games will not"
+              + " be recorded: " + e.getMessage());
+        }
+      }
+      if (options.has("positions") && !options.has("db")) {
+        throw new IllegalArgumentException(
+            "ERROR: --positions needs the games recorded with --db.");
+      }
+      if (options.has("positions") && archive != null) {
+        Path dir = Paths.get(options.valueOf("positions").toString());
+        try {
+          positions = new PositionIndex(dir);
+          positions.schedule(archive, TimeUnit.MINUTES
+              .toMillis((int) options.valueOf("positions-minutes")));
+        } catch (IOException e) {
+          System.err.println("ERROR: could not open the position index in "
+              + dir + ": " + e.getMessage());
+        }
+      }
+      if (options.has("event-log")) {
+        Path dir = Paths.get(options.valueOf("event-log").toString());
+        try {
+          GameJournal journal = new GameJournal(new EventLog(dir));
+          ChessWebSocket.setJournal(journal);
+          // bring back the games a crash left in the log, then checkpoint
+          // them under the ids they have now
+          GameRecovery.recover(dir);
+          System.out.println("checkpointed "
+              + GameRecovery.checkpoint(journal, dir) + " games");
+          GameRecovery.schedule(journal, dir, TimeUnit.SECONDS
+              .toMillis((int) options.valueOf("checkpoint-seconds")));
+          shutdown.push(journal::close);
+        } catch (IOException e) {
+          System.err.println("ERROR: could not open the event log in " + dir
+              + ": " + e.getMessage());
+        }
+      }
+      if (drainFile != null) {
+        try {
+          System.out.println("restored "
+              + GameMigration.restore(drainFile) + " games");
+        } catch (IOException e) {
+          System.err.println("ERROR: could not restore games from "
+              + drainFile + ": " + e.getMessage());
+        }
+      }
+      runSparkServer((int) options.valueOf("port"), secret);
+      if (drainFile != null || drainTo != null) {
+        shutdown.push(() -> GameMigration.drain(drainTo, secret, drainFile));
+      }
+      // hooks run all at once, so the steps share one that runs them in turn
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        for (Runnable step : shutdown) {
+          try {
+            step.run();
+          } catch (RuntimeException e) {
+            System.err.println("ERROR: shutting down: " + e.getMessage());
+          }
+        }
+      }, "shutdown"));
     }
 
     Repl repl = new Repl();
@@ -64,14 +262,38 @@ public final class Main {
 
   }
 
-  @SuppressWarnings("unchecked")
-  private void runSparkServer(int port) {
-    Spark.port(port);
-    Spark.externalStaticFileLocation("src/main/resources/static");
-    Spark.exception(Exception.class, new ExceptionPrinter());
+  private static String ttlOption(Phase phase) {
+    return phase.name().toLowerCase() + "-ttl";
+  }
 
+  private void runSparkServer(int port, String migrationSecret) {
+    Spark.port(port);
     Spark.webSocket("/play", ChessWebSocket.class);
     Spark.webSocket("/home", HomeWebSocket.class);
+    addRoutes(migrationSecret);
+  }
+
+  /**
+   * Serve the pages and forward /play and /home to the nodes of a cluster,
+   * which host the games.
+   */
+  private void runRouter(int port, HashRing ring) {
+    PlayRouter.setNodes(ring);
+    HomeRouter.setNodes(ring);
+    Spark.port(port);
+    Spark.webSocket("/play", PlayRouter.class);
+    Spark.webSocket("/home", HomeRouter.class);
+    addRoutes(null);
+  }
+
+  /**
+   * Serve the pages, the metrics, the recorded games if there are any and,
+   * given a secret, games handed over by other servers.
+   */
+  @SuppressWarnings("unchecked")
+  private void addRoutes(String migrationSecret) {
+    Spark.externalStaticFileLocation("src/main/resources/static");
+    Spark.exception(Exception.class, new ExceptionPrinter());
 
     Spark.get("/", new Route() {
 
@@ -82,6 +304,33 @@ public final class Main {
       }
 
     });
+    Spark.get("/metrics", new Route() {
+
+      @Override
+      public Object handle(Request req, Response res) throws Exception {
+        res.type("text/plain; version=0.0.4");
+        return MetricsRegistry.getDefault().scrape();
+      }
+
+    });
+    if (archive != null) {
+      ArchiveRoutes.add(archive, positions, leaderboards);
+    }
+    if (migrationSecret != null) {
+      Spark.post("/migrate", new Route() {
+
+        @Override
+        public Object handle(Request req, Response res) throws Exception {
+          if (!GameMigration.authorized(
+              req.headers(GameMigration.SECRET_HEADER), migrationSecret)) {
+            res.status(403);
+            return "";
+          }
+          return GameMigration.restore(req.bodyAsBytes()) + "\n";
+        }
+
+      });
+    }
     Spark.init();
 
   }
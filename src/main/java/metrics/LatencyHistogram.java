@@ -0,0 +1,192 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A LatencyHistogram counts durations in buckets whose width grows with the
+ * value, in the manner of an HDR histogram: every power of two is split into
+ * 16 equal buckets, so any recorded value is known to within 1/16 of itself.
+ * Recording is a handful of atomic increments and never locks or allocates, so
+ * it can stay on in production; reading takes a snapshot.
+ *
+ * @author knorms
+ *
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  // values from 2^(MAX_EXPONENT + 1) nanoseconds (about 2 minutes) up all
+  // land in an extra, last bucket
+  private static final int MAX_EXPONENT = 36;
+
+  /**
+   * Number of buckets.
+   */
+  static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record one duration.
+   *
+   * @param nanos
+   *          Duration in nanoseconds; negative durations count as 0.
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucketOf(value));
+    sum.add(value);
+    long seen = max.get();
+    while (value > seen && !max.compareAndSet(seen, value)) {
+      seen = max.get();
+    }
+  }
+
+  /**
+   * Record the time elapsed since a reading of System.nanoTime().
+   *
+   * @param startNanos
+   *          Reading taken when the timed work began.
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * @return a copy of the current counts
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+      count += copy[i];
+    }
+    return new Snapshot(copy, count, sum.sum(), max.get());
+  }
+
+  /**
+   * Get the bucket a value is counted in.
+   *
+   * @param value
+   *          Non-negative value.
+   * @return bucket index.
+   */
+  static int bucketOf(long value) {
+    if (value < SUB_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+    return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+  }
+
+  /**
+   * Get the largest value counted in a bucket.
+   *
+   * @param bucket
+   *          Bucket index.
+   * @return largest value of the bucket, or Long.MAX_VALUE for the last.
+   */
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_COUNT) {
+      return bucket;
+    }
+    if (bucket == BUCKETS - 1) {
+      return Long.MAX_VALUE;
+    }
+    int shift = bucket / SUB_COUNT - 1;
+    long lower = (long) (SUB_COUNT + bucket % SUB_COUNT) << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+  /**
+   * A copy of a histogram's counts, taken while recording goes on. Its count
+   * always agrees with its buckets; the sum and maximum may be a few
+   * recordings ahead.
+   *
+   * @author knorms
+   *
+   */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return the sum of the durations recorded, in nanoseconds
+     */
+    public long getSum() {
+      return sum;
+    }
+
+    /**
+     * @return the longest duration recorded, in nanoseconds
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * Count the durations known to be at most a bound. Durations in the
+     * bucket that straddles the bound are left out.
+     *
+     * @param nanos
+     *          Bound in nanoseconds.
+     * @return number of durations.
+     */
+    public long countAtOrBelow(long nanos) {
+      long below = 0;
+      for (int i = 0; i < BUCKETS && upperBoundOf(i) <= nanos; i++) {
+        below += counts[i];
+      }
+      return below;
+    }
+
+    /**
+     * Get a quantile of the durations recorded.
+     *
+     * @param quantile
+     *          Quantile between 0 and 1, e.g. 0.99.
+     * @return a duration, in nanoseconds, no more than 1/16 above the true
+     *         quantile; 0 if nothing was recorded.
+     */
+    public long valueAt(double quantile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(upperBoundOf(i), max);
+        }
+      }
+      return max;
+    }
+  }
+
+}
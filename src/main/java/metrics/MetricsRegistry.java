@@ -0,0 +1,233 @@
+package metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * MetricsRegistry holds the server's counters, gauges and latency histograms
+ * and writes them out in the Prometheus text format. Metrics are registered
+ * once, up front, and then updated directly by the code they measure; the
+ * registry is only involved again when they are scraped.
+ *
+ * @author knorms
+ *
+ */
+public final class MetricsRegistry {
+  private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+  // upper bounds, in seconds, of the histogram buckets written out
+  private static final double[] LATENCY_BOUNDS = {0.00005, 0.0001, 0.00025,
+      0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5,
+      5, 10};
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final Map<String, Family> families = new LinkedHashMap<>();
+
+  /**
+   * @return the registry shared by the whole server
+   */
+  public static MetricsRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Register a counter updated by the caller.
+   *
+   * @param name
+   *          Metric name, ending in _total.
+   * @param help
+   *          One line description.
+   * @param labels
+   *          Label names and values, alternating.
+   * @return the counter.
+   */
+  public LongAdder counter(String name, String help, String... labels) {
+    LongAdder counter = new LongAdder();
+    counter(name, help, counter::sum, labels);
+    return counter;
+  }
+
+  /**
+   * Register a counter kept elsewhere.
+   *
+   * @param name
+   *          Metric name, ending in _total.
+   * @param help
+   *          One line description.
+   * @param value
+   *          Reads the counter.
+   * @param labels
+   *          Label names and values, alternating.
+   */
+  public void counter(String name, String help, LongSupplier value,
+      String... labels) {
+    add(name, help, "counter",
+        (out, n, l) -> sample(out, n, l, value.getAsLong()), labels);
+  }
+
+  /**
+   * Register a gauge.
+   *
+   * @param name
+   *          Metric name.
+   * @param help
+   *          One line description.
+   * @param value
+   *          Reads the current value.
+   * @param labels
+   *          Label names and values, alternating.
+   */
+  public void gauge(String name, String help, LongSupplier value,
+      String... labels) {
+    add(name, help, "gauge",
+        (out, n, l) -> sample(out, n, l, value.getAsLong()), labels);
+  }
+
+  /**
+   * Register a latency histogram, written out in seconds.
+   *
+   * @param name
+   *          Metric name, ending in _seconds.
+   * @param help
+   *          One line description.
+   * @param labels
+   *          Label names and values, alternating.
+   * @return the histogram.
+   */
+  public LatencyHistogram histogram(String name, String help,
+      String... labels) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    add(name, help, "histogram",
+        (out, n, l) -> writeHistogram(out, n, l, histogram.snapshot()),
+        labels);
+    return histogram;
+  }
+
+  /**
+   * Write every metric in the Prometheus text format.
+   *
+   * @return the metrics.
+   */
+  public synchronized String scrape() {
+    StringBuilder out = new StringBuilder();
+    for (Family family : families.values()) {
+      out.append("# HELP ").append(family.name).append(' ')
+          .append(family.help).append('\n');
+      out.append("# TYPE ").append(family.name).append(' ')
+          .append(family.type).append('\n');
+      for (Series series : family.series) {
+        series.writer.write(out, family.name, series.labels);
+      }
+    }
+    return out.toString();
+  }
+
+  private synchronized void add(String name, String help, String type,
+      SeriesWriter writer, String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException(
+          "ERROR: labels must be name, value pairs.");
+    }
+    Family family = families.computeIfAbsent(name,
+        n -> new Family(n, help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(
+          "ERROR: " + name + " is already a " + family.type + ".");
+    }
+    String formatted = formatLabels(labels);
+    for (Series series : family.series) {
+      if (series.labels.equals(formatted)) {
+        throw new IllegalArgumentException(
+            "ERROR: " + name + "{" + formatted + "} is already registered.");
+      }
+    }
+    family.series.add(new Series(formatted, writer));
+  }
+
+  private static String formatLabels(String... labels) {
+    StringBuilder formatted = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        formatted.append(',');
+      }
+      formatted.append(labels[i]).append("=\"");
+      for (char c : labels[i + 1].toCharArray()) {
+        if (c == '\\' || c == '"') {
+          formatted.append('\\').append(c);
+        } else if (c == '\n') {
+          formatted.append("\\n");
+        } else {
+          formatted.append(c);
+        }
+      }
+      formatted.append('"');
+    }
+    return formatted.toString();
+  }
+
+  private static void sample(StringBuilder out, String name, String labels,
+      Object value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  private static void writeHistogram(StringBuilder out, String name,
+      String labels, LatencyHistogram.Snapshot snapshot) {
+    String prefix = labels.isEmpty() ? "" : labels + ",";
+    for (double bound : LATENCY_BOUNDS) {
+      sample(out, name + "_bucket", prefix + "le=\"" + bound + "\"",
+          snapshot.countAtOrBelow((long) (bound * NANOS_PER_SECOND)));
+    }
+    sample(out, name + "_bucket", prefix + "le=\"+Inf\"",
+        snapshot.getCount());
+    sample(out, name + "_sum", labels,
+        snapshot.getSum() / NANOS_PER_SECOND);
+    sample(out, name + "_count", labels, snapshot.getCount());
+  }
+
+  /**
+   * Writes the samples of one series.
+   */
+  @FunctionalInterface
+  private interface SeriesWriter {
+    void write(StringBuilder out, String name, String labels);
+  }
+
+  /**
+   * Metrics sharing a name, told apart by their labels.
+   */
+  private static final class Family {
+    private final String name;
+    private final String help;
+    private final String type;
+    private final List<Series> series = new ArrayList<>();
+
+    Family(String name, String help, String type) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  /**
+   * One labelled metric of a family.
+   */
+  private static final class Series {
+    private final String labels;
+    private final SeriesWriter writer;
+
+    Series(String labels, SeriesWriter writer) {
+      this.labels = labels;
+      this.writer = writer;
+    }
+  }
+
+}
@@ -0,0 +1,205 @@
+package metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * TurnTracer breaks the time a turn takes down into phases. A turn's trace
+ * lives in a thread local: the code handling the move begins it, the code
+ * along the way marks the end of each phase it runs, and the handler ends it.
+ * The time since the previous mark is charged to the phase marked, so a mark
+ * is one clock read and an add. Marks on a thread with no trace running, such
+ * as the REPL's, do nothing.
+ *
+ * Each phase's time is recorded in a histogram. Turns slower than a threshold
+ * are also logged with their full breakdown, at most once a second so a
+ * stalled server doesn't flood its log.
+ *
+ * @author knorms
+ *
+ */
+public final class TurnTracer {
+  /**
+   * Phases of a turn, in the order they run.
+   *
+   * @author knorms
+   *
+   */
+  public enum Phase {
+    VALIDATE, BOARD_MOVE, CAPTURES, SPAWN, POWER_DECAY, BUILD_UPDATES,
+    PUBLISH, SEND
+  }
+
+  /**
+   * Default time a turn may take before its trace is logged.
+   */
+  public static final long DEFAULT_SLOW_MILLIS = 50;
+
+  private static final long LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final Phase[] PHASES = Phase.values();
+  private static final ThreadLocal<Trace> CURRENT =
+      ThreadLocal.withInitial(Trace::new);
+  private static final TurnTracer DEFAULT = new TurnTracer(
+      MetricsRegistry.getDefault(), System.err::println, System::nanoTime);
+
+  private final LatencyHistogram[] phaseLatency =
+      new LatencyHistogram[PHASES.length];
+  private final LatencyHistogram turnLatency;
+  private final LongAdder slowTurns;
+  private final Consumer<String> log;
+  private final LongSupplier nanos;
+  private final AtomicLong nextLog = new AtomicLong(Long.MIN_VALUE);
+  private volatile long slowNanos =
+      TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_MILLIS);
+
+  /**
+   * Construct a tracer.
+   *
+   * @param registry
+   *          Registry to keep the phase histograms in.
+   * @param log
+   *          Where the breakdowns of slow turns are written.
+   * @param nanos
+   *          Source of the current time in nanoseconds.
+   */
+  public TurnTracer(MetricsRegistry registry, Consumer<String> log,
+      LongSupplier nanos) {
+    for (Phase phase : PHASES) {
+      phaseLatency[phase.ordinal()] = registry.histogram(
+          "chess_turn_phase_duration_seconds",
+          "Time spent in each phase of a turn.", "phase", phase.name());
+    }
+    this.turnLatency = registry.histogram("chess_turn_duration_seconds",
+        "Time from starting a turn to sending its updates.");
+    this.slowTurns = registry.counter("chess_slow_turns_total",
+        "Turns slower than the slow turn threshold.");
+    this.log = log;
+    this.nanos = nanos;
+  }
+
+  /**
+   * @return the tracer shared by the whole server
+   */
+  public static TurnTracer getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Set how long a turn may take before its breakdown is logged.
+   *
+   * @param millis
+   *          Threshold in milliseconds.
+   */
+  public void setSlowThreshold(long millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException(
+          "ERROR: threshold must not be negative.");
+    }
+    slowNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+
+  /**
+   * Begin tracing a turn on this thread, discarding any unfinished trace.
+   *
+   * @param gameId
+   *          Game the turn is played in, for the log.
+   */
+  public void begin(int gameId) {
+    Trace trace = CURRENT.get();
+    trace.tracer = this;
+    trace.gameId = gameId;
+    trace.marked = 0;
+    trace.start = nanos.getAsLong();
+    trace.last = trace.start;
+    for (int i = 0; i < trace.phaseNanos.length; i++) {
+      trace.phaseNanos[i] = 0;
+    }
+  }
+
+  /**
+   * Charge the time since the last mark to a phase of this thread's turn.
+   *
+   * @param phase
+   *          Phase that just finished.
+   */
+  public static void mark(Phase phase) {
+    Trace trace = CURRENT.get();
+    if (trace.tracer == null) {
+      return;
+    }
+    long now = trace.tracer.nanos.getAsLong();
+    trace.phaseNanos[phase.ordinal()] += now - trace.last;
+    trace.marked |= 1 << phase.ordinal();
+    trace.last = now;
+  }
+
+  /**
+   * Finish this thread's turn, recording the time of each phase marked.
+   */
+  public static void end() {
+    Trace trace = CURRENT.get();
+    TurnTracer tracer = trace.tracer;
+    if (tracer == null) {
+      return;
+    }
+    trace.tracer = null;
+    tracer.record(trace);
+  }
+
+  /**
+   * Drop this thread's turn without recording it, e.g. for an illegal move.
+   */
+  public static void discard() {
+    CURRENT.get().tracer = null;
+  }
+
+  private void record(Trace trace) {
+    long total = trace.last - trace.start;
+    for (Phase phase : PHASES) {
+      if ((trace.marked & 1 << phase.ordinal()) != 0) {
+        phaseLatency[phase.ordinal()].record(trace.phaseNanos[phase.ordinal()]);
+      }
+    }
+    turnLatency.record(total);
+    if (total < slowNanos) {
+      return;
+    }
+    slowTurns.increment();
+    long next = nextLog.get();
+    if (trace.last >= next
+        && nextLog.compareAndSet(next, trace.last + LOG_INTERVAL_NANOS)) {
+      log.accept(describe(trace, total));
+    }
+  }
+
+  private static String describe(Trace trace, long total) {
+    StringBuilder line = new StringBuilder(String.format(
+        "Slow turn in game %d: %.1fms (", trace.gameId, total / 1e6));
+    String separator = "";
+    for (Phase phase : PHASES) {
+      if ((trace.marked & 1 << phase.ordinal()) != 0) {
+        line.append(separator).append(String.format("%s %.1fms", phase,
+            trace.phaseNanos[phase.ordinal()] / 1e6));
+        separator = ", ";
+      }
+    }
+    return line.append(')').toString();
+  }
+
+  /**
+   * The turn being traced on one thread. Reused from turn to turn.
+   */
+  private static final class Trace {
+    private final long[] phaseNanos = new long[PHASES.length];
+    // tracer that began the turn, or null if none is running
+    private TurnTracer tracer;
+    private int gameId;
+    private int marked;
+    private long start;
+    private long last;
+  }
+
+}
@@ -89,7 +89,7 @@ public abstract class Piece implements BoardObject {
    *
    * @return True if piece has moved and false if it hasn't.
    */
-  boolean getMoved() {
+  public boolean getMoved() {
     return this.moved;
   }
 
@@ -69,7 +69,9 @@ public class Clone extends PowerAction implements PieceMover {
     if (vacantSquares.isEmpty()) {
       return;
     }
-    endLocation = getRandomLocation();
+    if (endLocation == null) {
+      endLocation = getRandomLocation();
+    }
     getGame().executeMove(new Move(startLocation, endLocation));
     Piece p = board.getPieceAt(endLocation);
     board.addBoardObject(startLocation, p);
@@ -84,6 +86,11 @@ public class Clone extends PowerAction implements PieceMover {
     return endLocation;
   }
 
+  @Override
+  public void setEndLocation(Location end) {
+    endLocation = end;
+  }
+
   private Location getRandomLocation() {
     if (vacantSquares.isEmpty()) {
       return null;
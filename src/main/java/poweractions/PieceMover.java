@@ -17,4 +17,13 @@ public interface PieceMover {
    */
   Location getEndLocation();
 
+  /**
+   * Set where the piece goes instead of choosing at random, e.g. to replay a
+   * game. Call before the action acts.
+   *
+   * @param end
+   *          End location the piece went to.
+   */
+  void setEndLocation(Location end);
+
 }
@@ -27,6 +27,11 @@ public abstract class PowerAction {
   private final Game game;
   private final Location whereCaptured;
   private static final Multimap<Rarity, String> POWER_ACTIONS;
+  // names by rarity and id; ids with no power left are null
+  private static final String[][] NAMES = {
+      {"Adjust", "Rewind", "SecondEffort", "Shield", "Swap"},
+      {"BlackHole", null, "EyeForAnEye", null, "SendAway"},
+      {"Armageddon", null, "Clone"}};
   private int id;
 
   static {
@@ -96,6 +101,65 @@ public abstract class PowerAction {
     return actionOptions;
   }
 
+  /**
+   * Create a power action from its rarity and id.
+   *
+   * @param rarity
+   *          Rarity of the action.
+   * @param id
+   *          Id of the action within its rarity.
+   * @param game
+   *          Game PowerAction will modify.
+   * @param whereCaptured
+   *          Location where PowerObject was captured.
+   * @return the PowerAction, or null if there is none with that id.
+   */
+  public static PowerAction ofId(Rarity rarity, int id, Game game,
+      Location whereCaptured) {
+    String[] names = NAMES[rarity.ordinal()];
+    if (id < 0 || id >= names.length || names[id] == null) {
+      return null;
+    }
+    return stringToAction(names[id], game, whereCaptured);
+  }
+
+  /**
+   * Get the name of a power action from its rarity and id, as
+   * stringToAction takes it.
+   *
+   * @param rarity
+   *          Rarity of the action.
+   * @param id
+   *          Id of the action within its rarity.
+   * @return its name, or null if there is none with that id.
+   */
+  public static String nameOf(Rarity rarity, int id) {
+    String[] names = NAMES[rarity.ordinal()];
+    return id < 0 || id >= names.length ? null : names[id];
+  }
+
+  /**
+   * Get the id of a power action from its name, as stringToAction takes it
+   * or as its class is named.
+   *
+   * @param rarity
+   *          Rarity of the action.
+   * @param name
+   *          Name of the action.
+   * @return its id within its rarity, or -1 if there is none of that name.
+   */
+  public static int idOf(Rarity rarity, String name) {
+    String[] names = NAMES[rarity.ordinal()];
+    for (int id = 0; id < names.length; id++) {
+      // EyeForAnEye's class is EyeForEye
+      if (names[id] != null && (names[id].equalsIgnoreCase(name)
+          || names[id].replace("An", "").equalsIgnoreCase(name))) {
+        return id;
+      }
+    }
+    return -1;
+  }
+
   /**
    * Create a power action of the specified name.
    *
@@ -61,6 +61,10 @@ public class SendAway extends PowerAction implements PieceMover {
     Piece p = getGame().getPieceAt((Location) input);
     int row = p.getColor() == Color.WHITE ? 0 : beyondBoard - 1;
     Game game = getGame();
+    if (endLocation != null) {
+      game.executeMove(new Move((Location) input, endLocation));
+      return;
+    }
 
     Collections.shuffle(columns);
     int col;
@@ -84,6 +88,11 @@ public class SendAway extends PowerAction implements PieceMover {
     return endLocation;
   }
 
+  @Override
+  public void setEndLocation(Location end) {
+    endLocation = end;
+  }
+
   @Override
   public String toString() {
     return "Send Away: return any one piece on the "
@@ -0,0 +1,427 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+
+/**
+ * EventLog is an append-only log of records in memory-mapped segment files.
+ * An append copies the record into the mapped segment and returns, without a
+ * system call; a syncer thread forces the segments to disk every few
+ * milliseconds, so one fsync covers every record appended since the last
+ * (group commit). A crash loses at most the records of the last interval.
+ *
+ * A record is its length, the CRC-32 of its bytes, then the bytes, so a
+ * record torn by a crash is detected and the log ends before it. Segments
+ * are named after the position of their first record; a record that doesn't
+ * fit in the current segment starts the next one, and the rest of the full
+ * segment stays zero, which reads as its end. A position is a segment's
+ * first position plus the offset in it, so positions only grow.
+ *
+ * @author knorms
+ *
+ */
+public final class EventLog implements AutoCloseable {
+  /**
+   * Size of a segment file when not told otherwise.
+   */
+  public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+  /**
+   * Time between syncs when not told otherwise.
+   */
+  public static final long DEFAULT_SYNC_MILLIS = 5;
+
+  private static final int HEADER_BYTES = 2 * Integer.BYTES;
+  private static final String SUFFIX = ".log";
+
+  private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+  private static final LongAdder APPENDED = METRICS.counter(
+      "chess_log_records_total", "Records appended to the event log.");
+  private static final LongAdder BYTES = METRICS.counter(
+      "chess_log_bytes_total", "Bytes appended to the event log.");
+  private static final LatencyHistogram SYNCS = METRICS.histogram(
+      "chess_log_sync_duration_seconds",
+      "Time to force the event log's new records to disk.");
+
+  private static final ThreadLocal<CRC32> CRC =
+      ThreadLocal.withInitial(CRC32::new);
+
+  private final Path dir;
+  private final int segmentBytes;
+  private final long syncMillis;
+
+  // guarded by this
+  private MappedByteBuffer segment;
+  private long segmentStart;
+  private final List<MappedByteBuffer> full = new ArrayList<>();
+  private boolean closed = false;
+
+  private volatile long end;
+  private volatile long durable;
+  private final Thread syncer;
+
+  /**
+   * Visits the records of a log.
+   */
+  public interface Visitor {
+    /**
+     * Called for each record in order.
+     *
+     * @param position
+     *          Position of the record.
+     * @param record
+     *          Bytes of the record, only valid during the call.
+     */
+    void visit(long position, ByteBuffer record);
+  }
+
+  /**
+   * Open the log in dir with the default segment size and sync interval.
+   *
+   * @param dir
+   *          Directory of the segments, created if need be.
+   * @throws IOException
+   *           If the log can't be opened.
+   */
+  public EventLog(Path dir) throws IOException {
+    this(dir, DEFAULT_SEGMENT_BYTES, DEFAULT_SYNC_MILLIS);
+  }
+
+  /**
+   * Open the log in dir, appending after the last intact record.
+   *
+   * @param dir
+   *          Directory of the segments, created if need be.
+   * @param segmentBytes
+   *          Size of a segment file.
+   * @param syncMillis
+   *          Time between syncs.
+   * @throws IOException
+   *           If the log can't be opened.
+   */
+  public EventLog(Path dir, int segmentBytes, long syncMillis)
+      throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.syncMillis = syncMillis;
+    Files.createDirectories(dir);
+
+    TreeMap<Long, Path> segments = segments(dir);
+    if (segments.isEmpty()) {
+      map(0);
+    } else {
+      long last = segments.lastKey();
+      long tail = read(dir, last, (position, record) -> {
+      });
+      map(last);
+      // clear whatever a crash left after the last intact record, so it
+      // can't be read as part of the records appended after it
+      segment.position((int) (tail - last));
+      ByteBuffer rest = segment.duplicate();
+      byte[] zeros = new byte[64 * 1024];
+      while (rest.hasRemaining()) {
+        rest.put(zeros, 0, Math.min(zeros.length, rest.remaining()));
+      }
+      end = tail;
+    }
+    durable = end;
+
+    syncer = new Thread(this::run, "event-log-sync");
+    syncer.setDaemon(true);
+    syncer.start();
+  }
+
+  /**
+   * Append a record. Doesn't wait for the disk; see awaitDurable.
+   *
+   * @param record
+   *          Bytes from its position to its limit; the position is moved to
+   *          the limit.
+   * @return position of the record.
+   * @throws IllegalStateException
+   *           If the log is closed or a new segment can't be created.
+   */
+  public long append(ByteBuffer record) {
+    int length = record.remaining();
+    if (length == 0 || length > segmentBytes - HEADER_BYTES) {
+      throw new IllegalArgumentException(
+          "ERROR: record of " + length + " bytes doesn't fit a segment.");
+    }
+    CRC32 crc = CRC.get();
+    crc.reset();
+    crc.update(record.duplicate());
+
+    long position;
+    synchronized (this) {
+      if (closed) {
+        throw new IllegalStateException("ERROR: the event log is closed.");
+      }
+      if (segment.remaining() < HEADER_BYTES + length) {
+        full.add(segment);
+        try {
+          map(segmentStart + segment.position());
+        } catch (IOException e) {
+          throw new IllegalStateException(
+              "ERROR: could not start a segment: " + e.getMessage(), e);
+        }
+      }
+      position = segmentStart + segment.position();
+      segment.putInt(length);
+      segment.putInt((int) crc.getValue());
+      segment.put(record);
+      end = segmentStart + segment.position();
+    }
+    APPENDED.increment();
+    BYTES.add(length);
+    return position;
+  }
+
+  /**
+   * Get the position the next record will be appended at, unless it starts
+   * a new segment.
+   *
+   * @return end of the log.
+   */
+  public long end() {
+    return end;
+  }
+
+  /**
+   * Get the position up to which records are on disk.
+   *
+   * @return end of the records synced.
+   */
+  public long durable() {
+    return durable;
+  }
+
+  /**
+   * Wait until the records before a position are on disk, e.g. before
+   * telling someone they are.
+   *
+   * @param position
+   *          End of the records to wait for.
+   * @param timeoutMillis
+   *          Longest time to wait.
+   * @return true if they are on disk.
+   * @throws InterruptedException
+   *           If interrupted while waiting.
+   */
+  public boolean awaitDurable(long position, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    synchronized (syncer) {
+      while (durable < position) {
+        long left = deadline - System.nanoTime();
+        if (left <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(syncer, left);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sync what is appended and stop taking records.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    syncer.interrupt();
+    try {
+      syncer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Read the records of the log in dir, from the segment a position is in
+   * up to the first record that is torn or missing.
+   *
+   * @param dir
+   *          Directory of the segments.
+   * @param from
+   *          Position to start at; records before it are skipped.
+   * @param visitor
+   *          Visitor of the records.
+   * @return the position after the last record read.
+   * @throws IOException
+   *           If a segment can't be read.
+   */
+  public static long read(Path dir, long from, Visitor visitor)
+      throws IOException {
+    TreeMap<Long, Path> segments = segments(dir);
+    Long first = segments.floorKey(from);
+    if (first == null) {
+      first = segments.isEmpty() ? from : segments.firstKey();
+    }
+    long position = Math.max(from, first);
+    for (Path file : segments.tailMap(first).values()) {
+      long start = startOf(file);
+      if (start > position) {
+        // a segment is missing; what follows can't be trusted
+        break;
+      }
+      ByteBuffer buf;
+      try (FileChannel channel = FileChannel.open(file,
+          StandardOpenOption.READ)) {
+        buf = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      }
+      int offset = (int) (position - start);
+      long next = scan(buf, start, offset, visitor);
+      position = next;
+      if (buf.capacity() - (next - start) >= HEADER_BYTES
+          && buf.getInt((int) (next - start)) != 0) {
+        // torn record
+        break;
+      }
+    }
+    return position;
+  }
+
+  /**
+   * Visit the intact records of a segment from offset on.
+   *
+   * @return position after the last one.
+   */
+  private static long scan(ByteBuffer buf, long start, int offset,
+      Visitor visitor) {
+    CRC32 crc = CRC.get();
+    int at = offset;
+    while (buf.capacity() - at >= HEADER_BYTES) {
+      int length = buf.getInt(at);
+      if (length <= 0 || length > buf.capacity() - at - HEADER_BYTES) {
+        break;
+      }
+      ByteBuffer record = buf.duplicate();
+      record.limit(at + HEADER_BYTES + length);
+      record.position(at + HEADER_BYTES);
+      crc.reset();
+      crc.update(record.duplicate());
+      if ((int) crc.getValue() != buf.getInt(at + Integer.BYTES)) {
+        break;
+      }
+      visitor.visit(start + at, record.slice());
+      at += HEADER_BYTES + length;
+    }
+    return start + at;
+  }
+
+  /**
+   * Delete the segments that only hold records before a position, e.g. once
+   * a snapshot covers them.
+   *
+   * @param position
+   *          Position of the first record to keep.
+   * @return number of segments deleted.
+   * @throws IOException
+   *           If a segment can't be deleted.
+   */
+  public int deleteBefore(long position) throws IOException {
+    long current;
+    synchronized (this) {
+      current = segmentStart;
+    }
+    TreeMap<Long, Path> segments = segments(dir);
+    Long keep = segments.floorKey(Math.min(position, current));
+    if (keep == null) {
+      return 0;
+    }
+    int deleted = 0;
+    for (Path file : segments.headMap(keep).values()) {
+      Files.delete(file);
+      deleted++;
+    }
+    return deleted;
+  }
+
+  /**
+   * Map a new or existing segment and make it current. Called with the log
+   * locked or before it is shared.
+   */
+  private void map(long start) throws IOException {
+    Path file = dir.resolve(String.format("%020d%s", start, SUFFIX));
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      // the mapping stays valid once the channel is closed
+      segment = channel.map(MapMode.READ_WRITE, 0, segmentBytes);
+    }
+    segmentStart = start;
+    end = start;
+  }
+
+  private void run() {
+    boolean stopping = false;
+    while (!stopping) {
+      try {
+        Thread.sleep(syncMillis);
+      } catch (InterruptedException e) {
+        stopping = true;
+      }
+      long target = end;
+      if (target == durable) {
+        continue;
+      }
+      List<MappedByteBuffer> toSync;
+      MappedByteBuffer current;
+      synchronized (this) {
+        toSync = new ArrayList<>(full);
+        full.clear();
+        current = segment;
+      }
+      long start = System.nanoTime();
+      // a segment filled up since is synced now, the new one next time
+      for (MappedByteBuffer buf : toSync) {
+        buf.force();
+      }
+      current.force();
+      SYNCS.recordSince(start);
+      synchronized (syncer) {
+        durable = target;
+        syncer.notifyAll();
+      }
+    }
+  }
+
+  private static long startOf(Path file) {
+    String name = file.getFileName().toString();
+    return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+  }
+
+  private static TreeMap<Long, Path> segments(Path dir) throws IOException {
+    TreeMap<Long, Path> segments = new TreeMap<>();
+    if (!Files.isDirectory(dir)) {
+      return segments;
+    }
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+      for (Path file : files) {
+        segments.put(startOf(file), file);
+      }
+    }
+    return segments;
+  }
+
+}
@@ -0,0 +1,676 @@
+package storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+import poweractions.PowerAction;
+import powerups.PowerObject.Rarity;
+
+/**
+ * GameArchive reads the games a GameRecorder kept back out of its database:
+ * a player's games, newest first, a page at a time; how a player has done;
+ * who won the most games. Each query reads a range of one of the indexes
+ * GameRecorder creates on the games table, so it takes about as long with
+ * millions of games as with a few. Pages are keyed by the id of the last
+ * game seen rather than an offset, so later pages are as quick as the
+ * first.
+ *
+ * Profiles of the players looked up most are cached for a few seconds.
+ * Queries share a few connections, each used by one query at a time.
+ *
+ * @author knorms
+ *
+ */
+public final class GameArchive implements AutoCloseable {
+  private static final String COLUMNS = "id, white, black, time_control,"
+      + " started, ended, result, reason";
+  private static final String WHITE_WIN = "1-0";
+  private static final String BLACK_WIN = "0-1";
+  private static final String DRAW = "1/2-1/2";
+  private static final int READERS = 4;
+
+  private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+  private static final LatencyHistogram QUERIES = METRICS.histogram(
+      "chess_archive_query_duration_seconds",
+      "Time to query the archived games.");
+  private static final LongAdder PROFILE_LOOKUPS = METRICS.counter(
+      "chess_archive_profile_lookups_total",
+      "Player profiles looked up in the archive.");
+  private static final LongAdder PROFILE_MISSES = METRICS.counter(
+      "chess_archive_profile_misses_total",
+      "Player profiles looked up that had to be read from the database.");
+  private static final String SELECT_GAMES = "SELECT id, white, black,"
+      + " time_control, started, ended, result, reason FROM games"
+      + " WHERE id >= ? AND id < ? AND ended IS NOT NULL ORDER BY id";
+  private static final String SELECT_MOVES = "SELECT game, ply, from_square,"
+      + " to_square, promotion FROM moves WHERE game >= ? AND game < ?"
+      + " ORDER BY game, ply";
+  private static final String SELECT_SPAWNS = "SELECT game, ply, square,"
+      + " rarity FROM spawns WHERE game >= ? AND game < ?"
+      + " ORDER BY game, ply, rowid";
+  private static final String SELECT_POWERS = "SELECT game, ply, rarity,"
+      + " power, input, moved_to FROM powers WHERE game >= ? AND game < ?"
+      + " ORDER BY game, ply, rowid";
+
+  private final SqliteStore store;
+  private final BlockingQueue<Connection> readers =
+      new ArrayBlockingQueue<>(READERS);
+  private final Cache<String, PlayerProfile> profiles;
+  private volatile boolean closed = false;
+
+  /**
+   * How a player's game ended, from their side.
+   */
+  public enum Outcome {
+    WIN, LOSS, DRAW
+  }
+
+  /**
+   * A game as it stood before the move of a ply, saved by GameRecorder.
+   */
+  public static final class Keyframe {
+    private final int ply;
+    private final byte[] snapshot;
+
+    private Keyframe(int ply, byte[] snapshot) {
+      this.ply = ply;
+      this.snapshot = snapshot;
+    }
+
+    /**
+     * @return number of moves made before it.
+     */
+    public int getPly() {
+      return ply;
+    }
+
+    /**
+     * @return the game, as GameSnapshot writes it.
+     */
+    public byte[] getSnapshot() {
+      return snapshot;
+    }
+  }
+
+  /**
+   * Which of a player's games to list; all of them unless narrowed.
+   */
+  public static final class Filter {
+    private String timeControl;
+    private Outcome outcome;
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+
+    /**
+     * Only list games of a time control.
+     *
+     * @param name
+     *          Name of the time control.
+     * @return this filter.
+     */
+    public Filter timeControl(String name) {
+      timeControl = name;
+      return this;
+    }
+
+    /**
+     * Only list games the player won, lost or drew.
+     *
+     * @param gameOutcome
+     *          Outcome.
+     * @return this filter.
+     */
+    public Filter outcome(Outcome gameOutcome) {
+      outcome = gameOutcome;
+      return this;
+    }
+
+    /**
+     * Only list games started in a time range.
+     *
+     * @param from
+     *          Earliest start, in ms since the epoch.
+     * @param to
+     *          Start to list games before, in ms since the epoch.
+     * @return this filter.
+     */
+    public Filter started(long from, long to) {
+      since = from;
+      until = to;
+      return this;
+    }
+  }
+
+  /**
+   * Read the games of a store that has the tables of GameRecorder, caching
+   * up to 10000 profiles for 10 seconds.
+   *
+   * @param store
+   *          Store to read.
+   */
+  public GameArchive(SqliteStore store) {
+    this(store, 10000, TimeUnit.SECONDS.toMillis(10));
+  }
+
+  /**
+   * Read the games of a store that has the tables of GameRecorder.
+   *
+   * @param store
+   *          Store to read.
+   * @param maxProfiles
+   *          Number of player profiles to cache.
+   * @param profileMillis
+   *          How long a profile is cached; a game that ends in that time
+   *          may not be counted in it yet.
+   */
+  public GameArchive(SqliteStore store, int maxProfiles, long profileMillis) {
+    this.store = store;
+    profiles = CacheBuilder.newBuilder().maximumSize(maxProfiles)
+        .expireAfterWrite(profileMillis, TimeUnit.MILLISECONDS).build();
+  }
+
+  /**
+   * Get the id every game up to which has finished, so that no game with a
+   * lower id will be added to the archive later. A game that was never
+   * finished, e.g. because the server crashed, stops counting after a day.
+   *
+   * @return the id; 0 if there are no games.
+   * @throws SQLException
+   *           If the database can't be read.
+   */
+  public long finishedThrough() throws SQLException {
+    long day = TimeUnit.DAYS.toMillis(1);
+    return query(connection -> {
+      try (PreparedStatement statement = connection.prepareStatement(
+          "SELECT (SELECT MIN(id) FROM games WHERE ended IS NULL"
+              + " AND started > ?), (SELECT MAX(id) FROM games)")) {
+        statement.setLong(1, System.currentTimeMillis() - day);
+        try (ResultSet row = statement.executeQuery()) {
+          row.next();
+          long unfinished = row.getLong(1);
+          return row.wasNull() ? row.getLong(2) : unfinished - 1;
+        }
+      }
+    });
+  }
+
+  /**
+   * Get a page of a player's finished games, newest first.
+   *
+   * @param player
+   *          Name of the player.
+   * @param filter
+   *          Which games to list.
+   * @param before
+   *          Id of the last game of the page before, or Long.MAX_VALUE for
+   *          the first page.
+   * @param limit
+   *          Most games to get.
+   * @return the games; the next page starts before the last one.
+   * @throws SQLException
+   *           If the database can't be read.
+   */
+  public List<GameRecord> games(String player, Filter filter, long before,
+      int limit) throws SQLException {
+    StringBuilder sql = new StringBuilder();
+    List<Object> args = new ArrayList<>();
+    side(sql, args, "white", player, filter, before, limit);
+    sql.append(" UNION ALL ");
+    side(sql, args, "black", player, filter, before, limit);
+    sql.append(" ORDER BY id DESC LIMIT ?");
+    args.add(limit);
+    return query(connection -> {
+      List<GameRecord> games = new ArrayList<>();
+      try (PreparedStatement statement = prepare(connection, sql, args);
+          ResultSet row = statement.executeQuery()) {
+        while (row.next()) {
+          games.add(new GameRecord(row.getLong(1), row.getString(2),
+              row.getString(3), row.getString(4), row.getLong(5),
+              row.getLong(6), row.getString(7), row.getString(8)));
+        }
+      }
+      return games;
+    });
+  }
+
+  /**
+   * Add the query of a player's games on one side to sql; each side reads
+   * its own index, from the newest game down. Games a player played
+   * against themselves are only listed on the white side.
+   */
+  private static void side(StringBuilder sql, List<Object> args, String side,
+      String player, Filter filter, long before, int limit) {
+    boolean white = "white".equals(side);
+    sql.append("SELECT * FROM (SELECT ").append(COLUMNS)
+        .append(" FROM games WHERE ").append(side)
+        .append(" = ? AND id < ? AND result IS NOT NULL");
+    args.add(player);
+    args.add(before);
+    if (!white) {
+      sql.append(" AND white IS NOT ?");
+      args.add(player);
+    }
+    if (filter.timeControl != null) {
+      sql.append(" AND time_control = ?");
+      args.add(filter.timeControl);
+    }
+    if (filter.outcome != null) {
+      sql.append(" AND result = ?");
+      if (filter.outcome == Outcome.DRAW) {
+        args.add(DRAW);
+      } else {
+        args.add(white == (filter.outcome == Outcome.WIN) ? WHITE_WIN
+            : BLACK_WIN);
+      }
+    }
+    if (filter.since != Long.MIN_VALUE) {
+      sql.append(" AND started >= ?");
+      args.add(filter.since);
+    }
+    if (filter.until != Long.MAX_VALUE) {
+      sql.append(" AND started < ?");
+      args.add(filter.until);
+    }
+    sql.append(" ORDER BY id DESC LIMIT ?)");
+    args.add(limit);
+  }
+
+  /**
+   * Get how a player has done, from the cache if it was looked up lately.
+   *
+   * @param player
+   *          Name of the player.
+   * @return their profile; all zeros if they haven't finished a game.
+   * @throws SQLException
+   *           If the database can't be read.
+   */
+  public PlayerProfile profile(String player) throws SQLException {
+    PROFILE_LOOKUPS.increment();
+    try {
+      return profiles.get(player, () -> {
+        PROFILE_MISSES.increment();
+        return loadProfile(player);
+      });
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Read how a player has done from the database.
+   */
+  private PlayerProfile loadProfile(String player) throws SQLException {
+    String sql = "SELECT result, COUNT(*), MAX(started) FROM games"
+        + " WHERE %s = ? AND result IS NOT NULL%s GROUP BY result";
+    return query(connection -> {
+      long[] counts = new long[5];
+      for (String side : new String[] {"white", "black"}) {
+        boolean white = "white".equals(side);
+        try (PreparedStatement statement = connection.prepareStatement(
+            String.format(sql, side, white ? "" : " AND white IS NOT ?"))) {
+          statement.setString(1, player);
+          if (!white) {
+            statement.setString(2, player);
+          }
+          try (ResultSet row = statement.executeQuery()) {
+            while (row.next()) {
+              String result = row.getString(1);
+              long count = row.getLong(2);
+              counts[0] += count;
+              if (DRAW.equals(result)) {
+                counts[3] += count;
+              } else if (WHITE_WIN.equals(result)) {
+                counts[white ? 1 : 2] += count;
+              } else if (BLACK_WIN.equals(result)) {
+                counts[white ? 2 : 1] += count;
+              }
+              counts[4] = Math.max(counts[4], row.getLong(3));
+            }
+          }
+        }
+      }
+      return new PlayerProfile(player, counts[0], counts[1], counts[2],
+          counts[3], counts[4]);
+    });
+  }
+
+  /**
+   * Get the players who won the most games.
+   *
+   * @param timeControl
+   *          Name of the time control to count games of, or null for all.
+   *          Counting all reads every win in the archive.
+   * @param since
+   *          Earliest start of a game to count, in ms since the epoch.
+   * @param until
+   *          Start to count games before, in ms since the epoch.
+   * @param limit
+   *          Most players to get.
+   * @return the players and their wins, most first.
+   * @throws SQLException
+   *           If the database can't be read.
+   */
+  public Map<String, Long> topWinners(String timeControl, long since,
+      long until, int limit) throws SQLException {
+    String wins = "SELECT %1$s AS name, COUNT(*) AS wins FROM games"
+        + " WHERE result = ?" + (timeControl == null ? ""
+            : " AND time_control = ?")
+        + " AND started >= ? AND started < ? AND %1$s IS NOT NULL"
+        + " GROUP BY %1$s";
+    String sql = "SELECT name, SUM(wins) AS total FROM ("
+        + String.format(wins, "white") + " UNION ALL "
+        + String.format(wins, "black")
+        + ") GROUP BY name ORDER BY total DESC, name LIMIT ?";
+    List<Object> args = new ArrayList<>();
+    for (String result : new String[] {WHITE_WIN, BLACK_WIN}) {
+      args.add(result);
+      if (timeControl != null) {
+        args.add(timeControl);
+      }
+      args.add(since);
+      args.add(until);
+    }
+    args.add(limit);
+    return query(connection -> {
+      Map<String, Long> winners = new LinkedHashMap<>();
+      try (PreparedStatement statement = prepare(connection, sql, args);
+          ResultSet row = statement.executeQuery()) {
+        while (row.next()) {
+          winners.put(row.getString(1), row.getLong(2));
+        }
+      }
+      return winners;
+    });
+  }
+
+  /**
+   * Get the last keyframe of a game at or before a ply.
+   *
+   * @param game
+   *          Id of the game.
+   * @param ply
+   *          Ply to replay from.
+   * @return the keyframe, or null if the game has none that early.
+   * @throws SQLException
+   *           If the database can't be read.
+   */
+  public Keyframe keyframe(long game, int ply) throws SQLException {
+    return query(connection -> {
+      try (PreparedStatement statement = connection.prepareStatement(
+          "SELECT ply, snapshot FROM keyframes WHERE game = ? AND ply <= ?"
+              + " ORDER BY ply DESC LIMIT 1")) {
+        statement.setLong(1, game);
+        statement.setInt(2, ply);
+        try (ResultSet row = statement.executeQuery()) {
+          return row.next() ? new Keyframe(row.getInt(1), row.getBytes(2))
+              : null;
+        }
+      }
+    });
+  }
+
+  /**
+   * Close the connections of the queries.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    Connection connection;
+    while ((connection = readers.poll()) != null) {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        // closing anyway
+      }
+    }
+  }
+
+  /**
+   * A query on a connection.
+   */
+  private interface Query<T> {
+    T apply(Connection connection) throws SQLException;
+  }
+
+  /**
+   * Run a query on an idle connection, or a new one if none is idle.
+   */
+  private <T> T query(Query<T> query) throws SQLException {
+    long start = System.nanoTime();
+    Connection connection = readers.poll();
+    if (connection == null) {
+      connection = store.connect();
+    }
+    boolean reusable = false;
+    try {
+      T result = query.apply(connection);
+      reusable = true;
+      return result;
+    } finally {
+      if (!reusable || closed || !readers.offer(connection)) {
+        connection.close();
+      }
+      QUERIES.recordSince(start);
+    }
+  }
+
+  private static PreparedStatement prepare(Connection connection,
+      CharSequence sql, List<Object> args) throws SQLException {
+    PreparedStatement statement = connection.prepareStatement(sql.toString());
+    for (int i = 0; i < args.size(); i++) {
+      statement.setObject(i + 1, args.get(i));
+    }
+    return statement;
+  }
+
+  /**
+   * Write the finished games from an id on to out, in id order, in the
+   * format of GameRecordWriter. The games are streamed straight from the
+   * database as it was when the export began, so any number can be
+   * exported; the tables are read in step, by game and ply, on the indexes
+   * GameRecorder creates. A spawn comes before a power used at the same ply.
+   *
+   * @param fromId
+   *          Id of the first game to write.
+   * @param out
+   *          Stream to write to; it is flushed, not closed.
+   * @return number of games written.
+   * @throws IOException
+   *           If out fails.
+   * @throws SQLException
+   *           If the database can't be read.
+   */
+  public long export(long fromId, OutputStream out)
+      throws IOException, SQLException {
+    return export(fromId, Long.MAX_VALUE, out);
+  }
+
+  /**
+   * Write the finished games with ids in a range to out, as export does.
+   *
+   * @param fromId
+   *          Id of the first game to write.
+   * @param untilId
+   *          Id to write games before.
+   * @param out
+   *          Stream to write to; it is flushed, not closed.
+   * @return number of games written.
+   * @throws IOException
+   *           If out fails.
+   * @throws SQLException
+   *           If the database can't be read.
+   */
+  public long export(long fromId, long untilId, OutputStream out)
+      throws IOException, SQLException {
+    GameRecordWriter writer = new GameRecordWriter(out);
+    long count = 0;
+    try (Connection connection = store.connect()) {
+      // one read transaction, so the tables agree with each other
+      connection.setAutoCommit(false);
+      try (Cursor games =
+          new Cursor(connection, SELECT_GAMES, fromId, untilId);
+          Cursor moves =
+              new Cursor(connection, SELECT_MOVES, fromId, untilId);
+          Cursor spawns =
+              new Cursor(connection, SELECT_SPAWNS, fromId, untilId);
+          Cursor powers =
+              new Cursor(connection, SELECT_POWERS, fromId, untilId)) {
+        for (; games.valid(); games.next()) {
+          ResultSet game = games.row;
+          long id = game.getLong(1);
+          writer.beginGame(new GameRecord(id, game.getString(2),
+              game.getString(3), game.getString(4), game.getLong(5),
+              game.getLong(6), game.getString(7), game.getString(8)));
+          // games still being played have rows but aren't exported
+          moves.skipBefore(id);
+          spawns.skipBefore(id);
+          powers.skipBefore(id);
+          while (moves.at(id) || spawns.at(id) || powers.at(id)) {
+            int ply = Math.min(moves.ply(id),
+                Math.min(spawns.ply(id), powers.ply(id)));
+            while (spawns.ply(id) == ply) {
+              ResultSet spawn = spawns.row;
+              writer.spawn(spawn.getInt(3),
+                  Rarity.valueOf(spawn.getString(4)));
+              spawns.next();
+            }
+            while (powers.ply(id) == ply) {
+              writePower(writer, powers.row);
+              powers.next();
+            }
+            if (moves.ply(id) == ply) {
+              ResultSet move = moves.row;
+              writer.move(move.getInt(3), move.getInt(4),
+                  promotionKind(move.getString(5)));
+              moves.next();
+            }
+          }
+          writer.endGame();
+          count++;
+        }
+      } finally {
+        connection.rollback();
+      }
+    }
+    writer.finish();
+    return count;
+  }
+
+  private static void writePower(GameRecordWriter writer, ResultSet power)
+      throws IOException, SQLException {
+    Rarity rarity = Rarity.valueOf(power.getString(3));
+    int id = PowerAction.idOf(rarity, power.getString(4));
+    if (id < 0) {
+      // a power since removed; there is no id to write it with
+      return;
+    }
+    int input = power.getInt(5);
+    if (power.wasNull()) {
+      input = -1;
+    }
+    int movedTo = power.getInt(6);
+    if (power.wasNull()) {
+      movedTo = -1;
+    }
+    writer.power(rarity, id, input, movedTo);
+  }
+
+  /**
+   * Get the kind of piece a pawn was promoted to from its recorded name.
+   *
+   * @return its kind, as GameJournal.kindOf, or 0 for none.
+   */
+  private static int promotionKind(String promotion) {
+    if (promotion == null) {
+      return 0;
+    }
+    switch (promotion) {
+      case "Rook":
+        return GameJournal.ROOK;
+      case "Bishop":
+        return GameJournal.BISHOP;
+      case "Knight":
+        return GameJournal.KNIGHT;
+      default:
+        return GameJournal.QUEEN;
+    }
+  }
+
+  /**
+   * Rows of a query by game and ply, read one at a time.
+   */
+  private static final class Cursor implements AutoCloseable {
+    private final PreparedStatement statement;
+    private final ResultSet row;
+    private boolean valid;
+
+    private Cursor(Connection connection, String sql, long fromId,
+        long untilId) throws SQLException {
+      statement = connection.prepareStatement(sql);
+      statement.setLong(1, fromId);
+      statement.setLong(2, untilId);
+      row = statement.executeQuery();
+      valid = row.next();
+    }
+
+    private boolean valid() {
+      return valid;
+    }
+
+    /**
+     * Move to the next row, if there is one.
+     */
+    private void next() throws SQLException {
+      valid = valid && row.next();
+    }
+
+    private void skipBefore(long gameId) throws SQLException {
+      while (valid && row.getLong(1) < gameId) {
+        next();
+      }
+    }
+
+    private boolean at(long gameId) throws SQLException {
+      return valid && row.getLong(1) == gameId;
+    }
+
+    /**
+     * Get the ply of the row if it is of a game.
+     *
+     * @return the ply, or MAX_VALUE if the row is of another game.
+     */
+    private int ply(long gameId) throws SQLException {
+      return at(gameId) ? row.getInt(2) : Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void close() throws SQLException {
+      statement.close();
+    }
+  }
+
+}
@@ -0,0 +1,182 @@
+package storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import board.Location;
+import game.GameListener;
+import game.Move;
+import pieces.Piece;
+import poweractions.PieceMover;
+import poweractions.PowerAction;
+import powerups.PowerObject;
+
+/**
+ * GameHistory keeps what a recording of a game has recorded so far, as the
+ * words GameRecordWriter writes for its events, so the recording can be
+ * carried on elsewhere: written with the game when it is exported or
+ * checkpointed, and written to the database again under the same or a new
+ * id. It is fed by the game as a listener, and only touched with the game
+ * locked.
+ *
+ * @author knorms
+ *
+ */
+public final class GameHistory implements GameListener {
+  private final long started;
+  private short[] words;
+  private int size;
+  private int ply = 0;
+  private int lastMove = -1;
+
+  /**
+   * Start the history of a game starting now.
+   */
+  public GameHistory() {
+    this(System.currentTimeMillis(), new short[64], 0);
+  }
+
+  private GameHistory(long started, short[] words, int size) {
+    this.started = started;
+    this.words = words;
+    this.size = size;
+  }
+
+  /**
+   * @return when the game started, in milliseconds since the epoch.
+   */
+  public long getStarted() {
+    return started;
+  }
+
+  /**
+   * @return the number of moves made.
+   */
+  public int getPly() {
+    return ply;
+  }
+
+  /**
+   * Hand the events so far to a handler, in order.
+   *
+   * @param handler
+   *          Handler of the events.
+   * @throws IOException
+   *           If the history is malformed.
+   */
+  void replay(GameRecordReader.Handler handler) throws IOException {
+    for (int i = 0; i < size; i++) {
+      int word = words[i] & 0xffff;
+      boolean power = word >>> 12 == GameRecordWriter.POWER;
+      GameRecordReader.event(word, power ? words[++i] & 0xffff : 0,
+          handler);
+    }
+  }
+
+  /**
+   * Get a copy that isn't changed by the game going on.
+   *
+   * @return the copy.
+   */
+  GameHistory copy() {
+    GameHistory copy =
+        new GameHistory(started, Arrays.copyOf(words, size), size);
+    copy.ply = ply;
+    return copy;
+  }
+
+  /**
+   * Write the history to out.
+   *
+   * @param out
+   *          Output to write to.
+   * @throws IOException
+   *           If the output fails.
+   */
+  public void write(DataOutput out) throws IOException {
+    out.writeLong(started);
+    out.writeInt(size);
+    for (int i = 0; i < size; i++) {
+      out.writeShort(words[i]);
+    }
+  }
+
+  /**
+   * Read a history written by write.
+   *
+   * @param in
+   *          Input to read from.
+   * @return the history.
+   * @throws IOException
+   *           If the input fails or is malformed.
+   */
+  public static GameHistory read(DataInput in) throws IOException {
+    long started = in.readLong();
+    int size = in.readInt();
+    if (size < 0) {
+      throw new IOException("ERROR: malformed history.");
+    }
+    short[] words = new short[Math.max(size, 64)];
+    for (int i = 0; i < size; i++) {
+      words[i] = in.readShort();
+    }
+    GameHistory history = new GameHistory(started, words, size);
+    // count the moves, so the next one gets the right ply
+    history.replay(new GameRecordReader.Handler() {
+      @Override
+      public void moved(int from, int to, int promotion) {
+        history.ply++;
+      }
+    });
+    return history;
+  }
+
+  @Override
+  public void moved(Move move) {
+    lastMove = size;
+    add(GameRecordWriter.moveWord(squareOf(move.getStart()),
+        squareOf(move.getEnd()), 0));
+    ply++;
+  }
+
+  @Override
+  public void promoted(Location loc, Piece piece) {
+    int kind = GameJournal.kindOf(piece);
+    if (lastMove >= 0 && kind > 0) {
+      words[lastMove] |= kind << 12;
+    }
+  }
+
+  @Override
+  public void spawned(Location loc, PowerObject powerObject) {
+    add(GameRecordWriter.spawnWord(squareOf(loc),
+        powerObject.getRarity()));
+  }
+
+  @Override
+  public void powerUsed(PowerAction action, Location input) {
+    int id = action.getId();
+    if (id < 0 || id > 0xff) {
+      return;
+    }
+    Location end = action instanceof PieceMover
+        ? ((PieceMover) action).getEndLocation() : null;
+    add(GameRecordWriter.powerWord(action.getRarity(), id));
+    add(GameRecordWriter.squaresWord(input == null ? -1 : squareOf(input),
+        end == null ? -1 : squareOf(end)));
+  }
+
+  private void add(int word) {
+    if (size == words.length) {
+      words = Arrays.copyOf(words, size * 2);
+    }
+    words[size++] = (short) word;
+  }
+
+  private static int squareOf(Location loc) {
+    return loc.getRow() * 8 + loc.getCol();
+  }
+
+}
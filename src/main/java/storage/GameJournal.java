@@ -0,0 +1,501 @@
+package storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import board.Location;
+import game.Color;
+import game.Game;
+import game.GameListener;
+import game.Move;
+import metrics.MetricsRegistry;
+import pieces.Bishop;
+import pieces.Knight;
+import pieces.Piece;
+import pieces.Queen;
+import pieces.Rook;
+import poweractions.PieceMover;
+import poweractions.PowerAction;
+import powerups.PowerObject;
+
+/**
+ * GameJournal writes every change a game makes to an event log as it is
+ * made, so a game can be followed or rebuilt from the log alone. Each game
+ * gets a listener that appends its events, tagged with the game id; the
+ * random outcomes (where boxes spawn, the powers offered, where a power
+ * moved a piece) are logged with them.
+ *
+ * A record is a type byte, the game id, then the fields of the event.
+ * Squares are a byte, row * 8 + column, or -1 for none; strings are a short
+ * length and that many bytes of UTF-8.
+ *
+ * @author knorms
+ *
+ */
+public final class GameJournal implements AutoCloseable {
+  static final byte STARTED = 0;
+  static final byte MOVED = 1;
+  static final byte PROMOTED = 2;
+  static final byte SPAWNED = 3;
+  static final byte OFFERED = 4;
+  static final byte POWER_USED = 5;
+  static final byte ENDED = 6;
+  static final byte JOINED = 7;
+  static final byte RECORDED = 8;
+
+  /**
+   * Piece kinds a pawn can be promoted to, as in GameSnapshot.
+   */
+  public static final int QUEEN = 2;
+  public static final int ROOK = 3;
+  public static final int BISHOP = 4;
+  public static final int KNIGHT = 5;
+
+  private static final int MAX_RECORD = 64;
+  private static final ThreadLocal<ByteBuffer> SCRATCH =
+      ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_RECORD));
+  private static final LongAdder LOST = MetricsRegistry.getDefault().counter(
+      "chess_log_lost_total",
+      "Game events not logged because the event log was closed.");
+
+  private final EventLog log;
+
+  /**
+   * Events read back from a journal. Squares are row * 8 + column, or -1.
+   */
+  public interface Handler {
+    /**
+     * A game was created.
+     *
+     * @param gameId
+     *          Game id.
+     * @param timeControl
+     *          Ordinal of its time control, or -1.
+     * @param isPublic
+     *          Whether it is listed in the lobby.
+     */
+    default void started(int gameId, int timeControl, boolean isPublic) {
+    }
+
+    /**
+     * A player joined a game.
+     *
+     * @param gameId
+     *          Game id.
+     * @param color
+     *          Color of the player.
+     * @param name
+     *          Name of the player.
+     * @param token
+     *          Token the player resumes with.
+     */
+    default void joined(int gameId, Color color, String name, String token) {
+    }
+
+    /**
+     * A player moved.
+     *
+     * @param gameId
+     *          Game id.
+     * @param from
+     *          Start square.
+     * @param to
+     *          End square.
+     */
+    default void moved(int gameId, int from, int to) {
+    }
+
+    /**
+     * A pawn was promoted.
+     *
+     * @param gameId
+     *          Game id.
+     * @param square
+     *          Square of the new piece.
+     * @param kind
+     *          QUEEN, ROOK, BISHOP or KNIGHT.
+     */
+    default void promoted(int gameId, int square, int kind) {
+    }
+
+    /**
+     * A power box appeared.
+     *
+     * @param gameId
+     *          Game id.
+     * @param square
+     *          Square of the box.
+     * @param rarity
+     *          Ordinal of its rarity.
+     * @param next
+     *          Turns until the next box spawns.
+     */
+    default void spawned(int gameId, int square, int rarity, int next) {
+    }
+
+    /**
+     * A player was offered powers.
+     *
+     * @param gameId
+     *          Game id.
+     * @param rarity
+     *          Ordinal of their rarity.
+     * @param ids
+     *          Ids of the powers in the order offered.
+     * @param captured
+     *          Square the box was captured on.
+     */
+    default void offered(int gameId, int rarity, int[] ids, int captured) {
+    }
+
+    /**
+     * A player used a power.
+     *
+     * @param gameId
+     *          Game id.
+     * @param rarity
+     *          Ordinal of its rarity.
+     * @param id
+     *          Id of the power.
+     * @param input
+     *          Square the player chose, or -1.
+     * @param movedTo
+     *          Square the power moved a piece to, or -1.
+     */
+    default void powerUsed(int gameId, int rarity, int id, int input,
+        int movedTo) {
+    }
+
+    /**
+     * A game was removed.
+     *
+     * @param gameId
+     *          Game id.
+     */
+    default void ended(int gameId) {
+    }
+
+    /**
+     * Recording of a game started.
+     *
+     * @param gameId
+     *          Game id.
+     * @param recordId
+     *          Id of the game in the database.
+     */
+    default void recorded(int gameId, long recordId) {
+    }
+  }
+
+  /**
+   * Journal games to a log.
+   *
+   * @param log
+   *          Log to append to.
+   */
+  public GameJournal(EventLog log) {
+    this.log = log;
+  }
+
+  /**
+   * Get the log events are appended to.
+   *
+   * @return the log.
+   */
+  public EventLog getLog() {
+    return log;
+  }
+
+  /**
+   * Log that a game was created and get the listener that logs its changes.
+   *
+   * @param gameId
+   *          Game id.
+   * @param game
+   *          Game, in its starting position.
+   * @return the listener to add to the game.
+   */
+  public GameListener started(int gameId, Game game) {
+    ByteBuffer buf = begin(STARTED, gameId);
+    buf.put((byte) (game.getTimeControl() == null ? -1
+        : game.getTimeControl().ordinal()));
+    buf.put((byte) (game.isPublic() ? 1 : 0));
+    append(buf);
+    return listener(gameId, game);
+  }
+
+  /**
+   * Get a listener that logs a game's changes without logging that it was
+   * created, e.g. for a game brought back from a snapshot.
+   *
+   * @param gameId
+   *          Game id.
+   * @param game
+   *          Game.
+   * @return the listener to add to the game.
+   */
+  public GameListener listener(int gameId, Game game) {
+    return new Listener(gameId, game);
+  }
+
+  /**
+   * Log that a player joined a game.
+   *
+   * @param gameId
+   *          Game id.
+   * @param color
+   *          Color of the player.
+   * @param name
+   *          Name of the player, or null.
+   * @param token
+   *          Token the player resumes with.
+   */
+  public void joined(int gameId, Color color, String name, String token) {
+    byte[] nameBytes = (name == null ? "" : name)
+        .getBytes(StandardCharsets.UTF_8);
+    byte[] tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buf = ByteBuffer.allocate(
+        1 + Integer.BYTES + 1 + 2 * Short.BYTES + nameBytes.length
+            + tokenBytes.length);
+    buf.put(JOINED);
+    buf.putInt(gameId);
+    buf.put((byte) color.ordinal());
+    buf.putShort((short) nameBytes.length);
+    buf.put(nameBytes);
+    buf.putShort((short) tokenBytes.length);
+    buf.put(tokenBytes);
+    append(buf);
+  }
+
+  /**
+   * Log that a game was removed.
+   *
+   * @param gameId
+   *          Game id.
+   */
+  public void ended(int gameId) {
+    append(begin(ENDED, gameId));
+  }
+
+  /**
+   * Log that recording of a game started.
+   *
+   * @param gameId
+   *          Game id.
+   * @param recordId
+   *          Id of the game in the database.
+   */
+  public void recorded(int gameId, long recordId) {
+    append(begin(RECORDED, gameId).putLong(recordId));
+  }
+
+  /**
+   * Sync the log and close it.
+   */
+  @Override
+  public void close() {
+    log.close();
+  }
+
+  /**
+   * Read the events of a journal.
+   *
+   * @param dir
+   *          Directory of the log.
+   * @param from
+   *          Position to start at.
+   * @param handler
+   *          Handler of the events.
+   * @return the position after the last event read.
+   * @throws IOException
+   *           If the log can't be read.
+   */
+  public static long read(Path dir, long from, Handler handler)
+      throws IOException {
+    return EventLog.read(dir, from, (position, record) -> {
+      dispatch(record, handler);
+    });
+  }
+
+  /**
+   * Get the game a record is about without reading the rest of it.
+   *
+   * @param record
+   *          Record of an event.
+   * @return the game id.
+   */
+  public static int gameIdOf(ByteBuffer record) {
+    return record.getInt(record.position() + 1);
+  }
+
+  /**
+   * Hand one record to a handler.
+   *
+   * @param record
+   *          Record of an event.
+   * @param handler
+   *          Handler of the event.
+   */
+  public static void dispatch(ByteBuffer record, Handler handler) {
+    byte type = record.get();
+    int gameId = record.getInt();
+    switch (type) {
+      case STARTED:
+        handler.started(gameId, record.get(), record.get() != 0);
+        break;
+      case MOVED:
+        handler.moved(gameId, record.get(), record.get());
+        break;
+      case PROMOTED:
+        handler.promoted(gameId, record.get(), record.get());
+        break;
+      case SPAWNED:
+        handler.spawned(gameId, record.get(), record.get(), record.get());
+        break;
+      case OFFERED:
+        int rarity = record.get();
+        int captured = record.get();
+        int[] ids = new int[record.get()];
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = record.get();
+        }
+        handler.offered(gameId, rarity, ids, captured);
+        break;
+      case POWER_USED:
+        handler.powerUsed(gameId, record.get(), record.get(), record.get(),
+            record.get());
+        break;
+      case ENDED:
+        handler.ended(gameId);
+        break;
+      case JOINED:
+        Color color = Color.values()[record.get()];
+        String name = readString(record);
+        handler.joined(gameId, color, name.isEmpty() ? null : name,
+            readString(record));
+        break;
+      case RECORDED:
+        handler.recorded(gameId, record.getLong());
+        break;
+      default:
+        // written by a newer version; skip it
+        break;
+    }
+  }
+
+  /**
+   * Get the kind of a piece a pawn was promoted to.
+   *
+   * @param piece
+   *          Piece.
+   * @return its kind, or -1 if a pawn can't become it.
+   */
+  public static int kindOf(Piece piece) {
+    if (piece instanceof Queen) {
+      return QUEEN;
+    } else if (piece instanceof Rook) {
+      return ROOK;
+    } else if (piece instanceof Bishop) {
+      return BISHOP;
+    } else if (piece instanceof Knight) {
+      return KNIGHT;
+    }
+    return -1;
+  }
+
+  private static String readString(ByteBuffer record) {
+    byte[] bytes = new byte[record.getShort() & 0xffff];
+    record.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static ByteBuffer begin(byte type, int gameId) {
+    ByteBuffer buf = SCRATCH.get();
+    buf.clear();
+    buf.put(type);
+    buf.putInt(gameId);
+    return buf;
+  }
+
+  private void append(ByteBuffer buf) {
+    buf.flip();
+    try {
+      log.append(buf);
+    } catch (IllegalStateException e) {
+      // shutting down; the game must go on regardless
+      LOST.increment();
+    }
+  }
+
+  private static byte squareOf(Location loc) {
+    return (byte) (loc == null ? -1 : loc.getRow() * 8 + loc.getCol());
+  }
+
+  /**
+   * Logs the changes of one game.
+   */
+  private final class Listener implements GameListener {
+    private final int gameId;
+    private final Game game;
+
+    private Listener(int gameId, Game game) {
+      this.gameId = gameId;
+      this.game = game;
+    }
+
+    @Override
+    public void moved(Move move) {
+      ByteBuffer buf = begin(MOVED, gameId);
+      buf.put(squareOf(move.getStart()));
+      buf.put(squareOf(move.getEnd()));
+      append(buf);
+    }
+
+    @Override
+    public void promoted(Location loc, Piece piece) {
+      ByteBuffer buf = begin(PROMOTED, gameId);
+      buf.put(squareOf(loc));
+      buf.put((byte) kindOf(piece));
+      append(buf);
+    }
+
+    @Override
+    public void spawned(Location loc, PowerObject powerObject) {
+      ByteBuffer buf = begin(SPAWNED, gameId);
+      buf.put(squareOf(loc));
+      buf.put((byte) powerObject.getRarity().ordinal());
+      buf.put((byte) game.getTilNextPowerUp());
+      append(buf);
+    }
+
+    @Override
+    public void offered(List<PowerAction> actions) {
+      ByteBuffer buf = begin(OFFERED, gameId);
+      PowerAction first = actions.get(0);
+      buf.put((byte) first.getRarity().ordinal());
+      buf.put(squareOf(first.getWhereCaptured()));
+      int count = Math.min(actions.size(), MAX_RECORD - buf.position() - 1);
+      buf.put((byte) count);
+      for (int i = 0; i < count; i++) {
+        buf.put((byte) actions.get(i).getId());
+      }
+      append(buf);
+    }
+
+    @Override
+    public void powerUsed(PowerAction action, Location input) {
+      ByteBuffer buf = begin(POWER_USED, gameId);
+      buf.put((byte) action.getRarity().ordinal());
+      buf.put((byte) action.getId());
+      buf.put(squareOf(input));
+      buf.put(squareOf(action instanceof PieceMover
+          ? ((PieceMover) action).getEndLocation() : null));
+      append(buf);
+    }
+  }
+
+}
@@ -0,0 +1,82 @@
+package storage;
+
+/**
+ * Who played an archived game, when, and how it ended: the header of a game
+ * in the binary record format of GameRecordWriter.
+ *
+ * @author knorms
+ *
+ */
+public final class GameRecord {
+  private final long id;
+  private final String white;
+  private final String black;
+  private final String timeControl;
+  private final long started;
+  private final long ended;
+  private final String result;
+  private final String reason;
+
+  /**
+   * @param id
+   *          Id of the game in the archive.
+   * @param white
+   *          Name of the white player, or null.
+   * @param black
+   *          Name of the black player, or null.
+   * @param timeControl
+   *          Name of the time control, or null if it was untimed.
+   * @param started
+   *          When it started, in ms since the epoch.
+   * @param ended
+   *          When it ended, in ms since the epoch, or 0 if it hasn't.
+   * @param result
+   *          "1-0", "0-1", "1/2-1/2" or "*", or null if it hasn't ended.
+   * @param reason
+   *          Why it ended, or null.
+   */
+  public GameRecord(long id, String white, String black, String timeControl,
+      long started, long ended, String result, String reason) {
+    this.id = id;
+    this.white = white;
+    this.black = black;
+    this.timeControl = timeControl;
+    this.started = started;
+    this.ended = ended;
+    this.result = result;
+    this.reason = reason;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public String getWhite() {
+    return white;
+  }
+
+  public String getBlack() {
+    return black;
+  }
+
+  public String getTimeControl() {
+    return timeControl;
+  }
+
+  public long getStarted() {
+    return started;
+  }
+
+  public long getEnded() {
+    return ended;
+  }
+
+  public String getResult() {
+    return result;
+  }
+
+  public String getReason() {
+    return reason;
+  }
+
+}
@@ -0,0 +1,183 @@
+package storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import powerups.PowerObject.Rarity;
+
+/**
+ * GameRecordReader reads back a stream of games written by
+ * GameRecordWriter, one game at a time, handing their events to a handler.
+ *
+ * @author knorms
+ *
+ */
+public final class GameRecordReader {
+  private final DataInputStream in;
+
+  /**
+   * Events of a game read back. Squares are row * 8 + column, or -1.
+   */
+  public interface Handler {
+    /**
+     * A game starts; its events follow.
+     *
+     * @param record
+     *          Header of the game.
+     */
+    default void game(GameRecord record) {
+    }
+
+    /**
+     * A player moved.
+     *
+     * @param from
+     *          Start square.
+     * @param to
+     *          End square.
+     * @param promotion
+     *          What a pawn became, as GameJournal.kindOf, or 0.
+     */
+    default void moved(int from, int to, int promotion) {
+    }
+
+    /**
+     * A power box appeared.
+     *
+     * @param square
+     *          Square of the box.
+     * @param rarity
+     *          Its rarity.
+     */
+    default void spawned(int square, Rarity rarity) {
+    }
+
+    /**
+     * A player used a power.
+     *
+     * @param rarity
+     *          Its rarity.
+     * @param id
+     *          Its id within the rarity, as PowerAction.ofId takes it.
+     * @param input
+     *          Square the player chose, or -1.
+     * @param movedTo
+     *          Square it moved a piece to, or -1.
+     */
+    default void powerUsed(Rarity rarity, int id, int input, int movedTo) {
+    }
+  }
+
+  /**
+   * Read games from in.
+   *
+   * @param in
+   *          Stream to read; it is not closed.
+   * @throws IOException
+   *           If in fails or is not a stream of games.
+   */
+  public GameRecordReader(InputStream in) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+    if (this.in.readInt() != GameRecordWriter.MAGIC) {
+      throw new IOException("ERROR: not a stream of games.");
+    }
+  }
+
+  /**
+   * Read the next game.
+   *
+   * @param handler
+   *          Handler of its events.
+   * @return false if the stream ended instead.
+   * @throws IOException
+   *           If the stream fails, is cut short or is malformed.
+   */
+  public boolean next(Handler handler) throws IOException {
+    if (in.readByte() == 0) {
+      return false;
+    }
+    long id = readVarLong();
+    String white = readString();
+    String black = readString();
+    String timeControl = readString();
+    long started = readVarLong();
+    long duration = readVarLong();
+    handler.game(new GameRecord(id, white, black, timeControl, started,
+        duration == 0 ? 0 : started + duration - 1, readString(),
+        readString()));
+
+    while (true) {
+      int word = in.readUnsignedShort();
+      int tag = word >>> 12;
+      if (tag == GameRecordWriter.END) {
+        return true;
+      }
+      event(word, tag == GameRecordWriter.POWER ? in.readUnsignedShort() : 0,
+          handler);
+    }
+  }
+
+  /**
+   * Hand one event of a game to a handler.
+   *
+   * @param word
+   *          Word of the event.
+   * @param squares
+   *          Word after it if it is a POWER, else ignored.
+   * @param handler
+   *          Handler of the event.
+   * @throws IOException
+   *           If the word is malformed.
+   */
+  static void event(int word, int squares, Handler handler)
+      throws IOException {
+    int tag = word >>> 12;
+    if (tag == GameRecordWriter.SPAWN) {
+      handler.spawned(word & 0x3f, rarity(word >>> 6 & 0x3f));
+    } else if (tag == GameRecordWriter.POWER) {
+      handler.powerUsed(rarity(word >>> 8 & 0xf), word & 0xff,
+          (squares >>> 8) - 1, (squares & 0xff) - 1);
+    } else if (tag == 0 || tag >= GameJournal.QUEEN
+        && tag <= GameJournal.KNIGHT) {
+      handler.moved(word >>> 6 & 0x3f, word & 0x3f, tag);
+    } else {
+      throw new IOException("ERROR: unknown record " + tag + ".");
+    }
+  }
+
+  private static Rarity rarity(int ordinal) throws IOException {
+    if (ordinal >= Rarity.values().length) {
+      throw new IOException("ERROR: unknown rarity " + ordinal + ".");
+    }
+    return Rarity.values()[ordinal];
+  }
+
+  private long readVarLong() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("ERROR: malformed number.");
+  }
+
+  private String readString() throws IOException {
+    long length = readVarLong();
+    if (length == 0) {
+      return null;
+    }
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("ERROR: malformed string.");
+    }
+    byte[] bytes = new byte[(int) length - 1];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,261 @@
+package storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import powerups.PowerObject.Rarity;
+
+/**
+ * GameRecordWriter writes games one after another to a stream in a compact
+ * binary format that, unlike PGN, keeps the power boxes and the powers used.
+ * Nothing is held but the game being written, so any number of games can be
+ * streamed. GameRecordReader reads them back.
+ *
+ * The stream starts with MAGIC. Each game is a 1 byte, its header, then its
+ * events as 16-bit words in the order they happened, ending with END; a 0
+ * byte ends the stream. The header is the id, the names of the players and
+ * of the time control, the start time, the duration plus one (0 if it
+ * hasn't ended), the result and the reason. Numbers are unsigned varints;
+ * strings are their length plus one (0 for null) and that many bytes of
+ * UTF-8.
+ *
+ * The top four bits of a word tag it. Squares are six bits, row * 8 +
+ * column.
+ * <ul>
+ * <li>0, or a promotion kind of GameJournal (2 to 5): a move, then the from
+ * and to squares.</li>
+ * <li>SPAWN: six bits of the box's Rarity, then its square.</li>
+ * <li>POWER: four bits of the power's Rarity, then eight bits of its id
+ * within the rarity as PowerAction.ofId takes it. The next word is the
+ * square the player chose plus one, in the high byte, and the square the
+ * power moved a piece to plus one, in the low byte; 0 for none.</li>
+ * </ul>
+ *
+ * @author knorms
+ *
+ */
+public final class GameRecordWriter {
+  /**
+   * First four bytes of a stream of games.
+   */
+  public static final int MAGIC = 0x43485231;
+
+  static final int SPAWN = 8;
+  static final int POWER = 9;
+  static final int END = 15;
+
+  private final DataOutputStream out;
+  private boolean inGame = false;
+
+  /**
+   * Write games to out.
+   *
+   * @param out
+   *          Stream to write to; it is not closed.
+   * @throws IOException
+   *           If out fails.
+   */
+  public GameRecordWriter(OutputStream out) throws IOException {
+    this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    this.out.writeInt(MAGIC);
+  }
+
+  /**
+   * Start a game. Its events follow, then endGame.
+   *
+   * @param record
+   *          Header of the game.
+   * @throws IOException
+   *           If the stream fails.
+   */
+  public void beginGame(GameRecord record) throws IOException {
+    if (inGame) {
+      throw new IllegalStateException("ERROR: the last game was not ended.");
+    }
+    inGame = true;
+    out.writeByte(1);
+    writeVarLong(record.getId());
+    writeString(record.getWhite());
+    writeString(record.getBlack());
+    writeString(record.getTimeControl());
+    writeVarLong(record.getStarted());
+    writeVarLong(record.getEnded() == 0 ? 0
+        : record.getEnded() - record.getStarted() + 1);
+    writeString(record.getResult());
+    writeString(record.getReason());
+  }
+
+  /**
+   * Write a move.
+   *
+   * @param from
+   *          Start square.
+   * @param to
+   *          End square.
+   * @param promotion
+   *          What a pawn became, as GameJournal.kindOf, or 0.
+   * @throws IOException
+   *           If the stream fails.
+   */
+  public void move(int from, int to, int promotion) throws IOException {
+    if (promotion != 0 && (promotion < GameJournal.QUEEN
+        || promotion > GameJournal.KNIGHT)) {
+      throw new IllegalArgumentException(
+          "ERROR: not a promotion: " + promotion);
+    }
+    word(moveWord(from, to, promotion));
+  }
+
+  /**
+   * Pack a move into a word as move writes it.
+   *
+   * @param from
+   *          Start square.
+   * @param to
+   *          End square.
+   * @param promotion
+   *          What a pawn became, as GameJournal.kindOf, or 0.
+   * @return the word.
+   */
+  static int moveWord(int from, int to, int promotion) {
+    return promotion << 12 | square(from) << 6 | square(to);
+  }
+
+  /**
+   * Write that a power box appeared.
+   *
+   * @param square
+   *          Square of the box.
+   * @param rarity
+   *          Its rarity.
+   * @throws IOException
+   *           If the stream fails.
+   */
+  public void spawn(int square, Rarity rarity) throws IOException {
+    word(spawnWord(square, rarity));
+  }
+
+  /**
+   * Pack a spawn into a word as spawn writes it.
+   *
+   * @param square
+   *          Square of the box.
+   * @param rarity
+   *          Its rarity.
+   * @return the word.
+   */
+  static int spawnWord(int square, Rarity rarity) {
+    return SPAWN << 12 | rarity.ordinal() << 6 | square(square);
+  }
+
+  /**
+   * Write that a power was used.
+   *
+   * @param rarity
+   *          Its rarity.
+   * @param id
+   *          Its id within the rarity.
+   * @param input
+   *          Square the player chose, or -1.
+   * @param movedTo
+   *          Square it moved a piece to, or -1.
+   * @throws IOException
+   *           If the stream fails.
+   */
+  public void power(Rarity rarity, int id, int input, int movedTo)
+      throws IOException {
+    word(powerWord(rarity, id));
+    out.writeShort(squaresWord(input, movedTo));
+  }
+
+  /**
+   * Pack a power into the first word power writes.
+   *
+   * @param rarity
+   *          Its rarity.
+   * @param id
+   *          Its id within the rarity.
+   * @return the word.
+   */
+  static int powerWord(Rarity rarity, int id) {
+    if (id < 0 || id > 0xff) {
+      throw new IllegalArgumentException("ERROR: not a power id: " + id);
+    }
+    return POWER << 12 | rarity.ordinal() << 8 | id;
+  }
+
+  /**
+   * Pack the squares of a power into the word power writes after it.
+   *
+   * @param input
+   *          Square the player chose, or -1.
+   * @param movedTo
+   *          Square it moved a piece to, or -1.
+   * @return the word.
+   */
+  static int squaresWord(int input, int movedTo) {
+    return (input < 0 ? 0 : square(input) + 1) << 8
+        | (movedTo < 0 ? 0 : square(movedTo) + 1);
+  }
+
+  /**
+   * End the game.
+   *
+   * @throws IOException
+   *           If the stream fails.
+   */
+  public void endGame() throws IOException {
+    word(END << 12);
+    inGame = false;
+  }
+
+  /**
+   * Write the end of the stream and flush it.
+   *
+   * @throws IOException
+   *           If the stream fails.
+   */
+  public void finish() throws IOException {
+    if (inGame) {
+      endGame();
+    }
+    out.writeByte(0);
+    out.flush();
+  }
+
+  private void word(int word) throws IOException {
+    if (!inGame) {
+      throw new IllegalStateException("ERROR: no game was begun.");
+    }
+    out.writeShort(word);
+  }
+
+  private static int square(int square) {
+    if (square < 0 || square >= 64) {
+      throw new IllegalArgumentException("ERROR: not a square: " + square);
+    }
+    return square;
+  }
+
+  private void writeVarLong(long value) throws IOException {
+    while ((value & ~0x7fL) != 0) {
+      out.writeByte((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+
+  private void writeString(String s) throws IOException {
+    if (s == null) {
+      writeVarLong(0);
+      return;
+    }
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(bytes.length + 1);
+    out.write(bytes);
+  }
+
+}
@@ -0,0 +1,539 @@
+package storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+import board.Location;
+import game.Game;
+import game.Game.TimeControl;
+import game.GameListener;
+import game.GameSnapshot;
+import game.Move;
+import pieces.Piece;
+import poweractions.PieceMover;
+import poweractions.PowerAction;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+
+/**
+ * GameRecorder keeps finished games in a SQLite database: who played, the
+ * moves, where power boxes appeared, the powers used and the result. Games
+ * are recorded as they are played through a listener on each game, which
+ * only queues writes on the store, so recording never makes a turn wait on
+ * the disk.
+ *
+ * Squares are numbered row * 8 + column, as in the binary protocol. The ply
+ * of a spawn, promotion or power is the number of moves made before it.
+ *
+ * Every KEYFRAME_PLIES moves the whole game is saved as a GameSnapshot, as it
+ * stood before the move of that ply, so a replay can start from the nearest
+ * keyframe instead of from the first move.
+ *
+ * A recording keeps its game's history, which is written with the game
+ * when it is checkpointed or exported, so the recording can go on after a
+ * restart with resume, or on another server with adopt.
+ *
+ * @author knorms
+ *
+ */
+public final class GameRecorder implements AutoCloseable {
+  /**
+   * Moves between keyframes.
+   */
+  public static final int KEYFRAME_PLIES = 16;
+
+  /**
+   * Tables recorded games are kept in.
+   */
+  static final String[] SCHEMA = {
+      "CREATE TABLE IF NOT EXISTS games (id INTEGER PRIMARY KEY,"
+          + " white TEXT, black TEXT, time_control TEXT,"
+          + " started INTEGER NOT NULL, ended INTEGER, result TEXT,"
+          + " reason TEXT, plies INTEGER NOT NULL DEFAULT 0)",
+      "CREATE TABLE IF NOT EXISTS moves (game INTEGER NOT NULL,"
+          + " ply INTEGER NOT NULL, from_square INTEGER NOT NULL,"
+          + " to_square INTEGER NOT NULL, promotion TEXT,"
+          + " PRIMARY KEY (game, ply)) WITHOUT ROWID",
+      "CREATE TABLE IF NOT EXISTS spawns (game INTEGER NOT NULL,"
+          + " ply INTEGER NOT NULL, square INTEGER NOT NULL,"
+          + " rarity TEXT NOT NULL)",
+      "CREATE TABLE IF NOT EXISTS powers (game INTEGER NOT NULL,"
+          + " ply INTEGER NOT NULL, rarity TEXT NOT NULL,"
+          + " power TEXT NOT NULL, input INTEGER, moved_to INTEGER)",
+      "CREATE TABLE IF NOT EXISTS keyframes (game INTEGER NOT NULL,"
+          + " ply INTEGER NOT NULL, snapshot BLOB NOT NULL,"
+          + " PRIMARY KEY (game, ply)) WITHOUT ROWID",
+      // ratings kept by RatingBook, and the end of the last period it rated
+      "CREATE TABLE IF NOT EXISTS ratings (player TEXT NOT NULL,"
+          + " time_control TEXT NOT NULL, rating REAL NOT NULL,"
+          + " deviation REAL NOT NULL, volatility REAL NOT NULL,"
+          + " games INTEGER NOT NULL, rated_at INTEGER NOT NULL,"
+          + " PRIMARY KEY (player, time_control)) WITHOUT ROWID",
+      "CREATE TABLE IF NOT EXISTS rating_periods (id INTEGER PRIMARY KEY"
+          + " CHECK (id = 0), rated_until INTEGER NOT NULL)",
+      // so GameArchive can read them in game order
+      "CREATE INDEX IF NOT EXISTS spawns_game ON spawns (game, ply)",
+      "CREATE INDEX IF NOT EXISTS powers_game ON powers (game, ply)",
+      // a player's games newest first, filtered without reading the table
+      "CREATE INDEX IF NOT EXISTS games_white"
+          + " ON games (white, id, time_control, result, started)",
+      "CREATE INDEX IF NOT EXISTS games_black"
+          + " ON games (black, id, time_control, result, started)",
+      // wins by time control and date, counted from the index alone
+      "CREATE INDEX IF NOT EXISTS games_result"
+          + " ON games (result, time_control, started, white, black)",
+      // the games of a rating period, read by RatingBook
+      "CREATE INDEX IF NOT EXISTS games_ended ON games (ended)"};
+
+  private static final String INSERT_GAME = "INSERT OR IGNORE INTO games"
+      + " (id, white, black, time_control, started) VALUES (?, ?, ?, ?, ?)";
+  private static final String INSERT_MOVE = "INSERT INTO moves"
+      + " (game, ply, from_square, to_square) VALUES (?, ?, ?, ?)";
+  private static final String INSERT_PROMOTED = "INSERT INTO moves"
+      + " (game, ply, from_square, to_square, promotion)"
+      + " VALUES (?, ?, ?, ?, ?)";
+  private static final String[] DELETE_EVENTS = {
+      "DELETE FROM moves WHERE game = ?", "DELETE FROM spawns WHERE game = ?",
+      "DELETE FROM powers WHERE game = ?"};
+  private static final String[] PROMOTIONS =
+      {null, null, "Queen", "Rook", "Bishop", "Knight"};
+  private static final String UPDATE_PROMOTION =
+      "UPDATE moves SET promotion = ? WHERE game = ? AND ply = ?";
+  private static final String INSERT_SPAWN = "INSERT INTO spawns"
+      + " (game, ply, square, rarity) VALUES (?, ?, ?, ?)";
+  private static final String INSERT_POWER = "INSERT INTO powers"
+      + " (game, ply, rarity, power, input, moved_to)"
+      + " VALUES (?, ?, ?, ?, ?, ?)";
+  private static final String INSERT_KEYFRAME = "INSERT OR REPLACE INTO"
+      + " keyframes (game, ply, snapshot) VALUES (?, ?, ?)";
+  private static final String UPDATE_RESULT = "UPDATE games SET ended = ?,"
+      + " result = ?, reason = ?, plies = ? WHERE id = ?";
+
+  private final SqliteStore store;
+  private final AtomicLong nextId;
+
+  /**
+   * Open the database at path, creating it if need be.
+   *
+   * @param path
+   *          Path of the database file.
+   * @throws SQLException
+   *           If the database can't be opened.
+   */
+  public GameRecorder(String path) throws SQLException {
+    this(new SqliteStore(path, SCHEMA));
+  }
+
+  /**
+   * Record games in a store that has the tables in SCHEMA.
+   *
+   * @param store
+   *          Store to write to.
+   * @throws SQLException
+   *           If the games recorded so far can't be counted.
+   */
+  GameRecorder(SqliteStore store) throws SQLException {
+    this.store = store;
+    try (Connection connection = store.connect();
+        Statement statement = connection.createStatement();
+        ResultSet last = statement.executeQuery("SELECT MAX(id) FROM games")) {
+      nextId = new AtomicLong(last.next() ? last.getLong(1) + 1 : 1);
+    }
+  }
+
+  /**
+   * Get the store games are written to, e.g. to query them.
+   *
+   * @return the store.
+   */
+  public SqliteStore getStore() {
+    return store;
+  }
+
+  /**
+   * Start recording a game. Set the returned recording as the game's
+   * listener.
+   *
+   * @param timeControl
+   *          Time control of the game, or null if it is untimed.
+   * @param white
+   *          Name of the white player.
+   * @param black
+   *          Name of the black player.
+   * @return the recording.
+   */
+  public Recording start(TimeControl timeControl, String white,
+      String black) {
+    long id = nextId.getAndIncrement();
+    GameHistory history = new GameHistory();
+    String control = timeControl == null ? null : timeControl.name();
+    store.submit(s -> insertGame(s, id, white, black, control, history));
+    return new Recording(id, timeControl, white, black, history);
+  }
+
+  /**
+   * Go on recording a game recorded here before, e.g. one brought back
+   * after a crash. Its moves, boxes and powers are written again from its
+   * history, which the game's record is now exactly; what was written of
+   * it before but isn't in the history is dropped. Set the returned
+   * recording as the game's listener.
+   *
+   * @param id
+   *          Id the game was recorded under.
+   * @param timeControl
+   *          Time control of the game, or null if it is untimed.
+   * @param white
+   *          Name of the white player.
+   * @param black
+   *          Name of the black player.
+   * @param history
+   *          What had been recorded of the game.
+   * @return the recording.
+   */
+  public Recording resume(long id, TimeControl timeControl, String white,
+      String black, GameHistory history) {
+    // games started from now on must not reuse it
+    nextId.accumulateAndGet(id + 1, Math::max);
+    return record(id, timeControl, white, black, history);
+  }
+
+  /**
+   * Go on recording a game recorded elsewhere, e.g. on a server that
+   * handed it over, under a new id. Its moves, boxes and powers so far are
+   * written from its history. Set the returned recording as the game's
+   * listener.
+   *
+   * @param timeControl
+   *          Time control of the game, or null if it is untimed.
+   * @param white
+   *          Name of the white player.
+   * @param black
+   *          Name of the black player.
+   * @param history
+   *          What had been recorded of the game.
+   * @return the recording.
+   */
+  public Recording adopt(TimeControl timeControl, String white,
+      String black, GameHistory history) {
+    return record(nextId.getAndIncrement(), timeControl, white, black,
+        history);
+  }
+
+  private Recording record(long id, TimeControl timeControl, String white,
+      String black, GameHistory history) {
+    GameHistory written = history.copy();
+    String control = timeControl == null ? null : timeControl.name();
+    store.submit(s -> {
+      insertGame(s, id, white, black, control, written);
+      for (String delete : DELETE_EVENTS) {
+        s.statement(delete).setLong(1, id);
+        s.statement(delete).executeUpdate();
+      }
+      insertEvents(s, id, written);
+    });
+    return new Recording(id, timeControl, white, black, history);
+  }
+
+  /**
+   * Record how a game ended.
+   *
+   * @param recording
+   *          Recording of the game.
+   * @param result
+   *          "1-0", "0-1", "1/2-1/2", or "*" if the game was given up on
+   *          without a result.
+   * @param reason
+   *          Why the game ended, or null.
+   */
+  public void finish(Recording recording, String result, String reason) {
+    long id = recording.id;
+    int plies = recording.history.getPly();
+    long ended = System.currentTimeMillis();
+    store.submit(s -> {
+      PreparedStatement update = s.statement(UPDATE_RESULT);
+      update.setLong(1, ended);
+      update.setString(2, result);
+      update.setString(3, reason);
+      update.setInt(4, plies);
+      update.setLong(5, id);
+      update.executeUpdate();
+    });
+  }
+
+  /**
+   * Commit what is queued and close the database.
+   */
+  @Override
+  public void close() {
+    store.close();
+  }
+
+  private static void insertGame(SqliteStore s, long id,
+      String white, String black, String control, GameHistory history)
+      throws SQLException {
+    PreparedStatement insert = s.statement(INSERT_GAME);
+    insert.setLong(1, id);
+    insert.setString(2, white);
+    insert.setString(3, black);
+    insert.setString(4, control);
+    insert.setLong(5, history.getStarted());
+    insert.executeUpdate();
+  }
+
+  /**
+   * Write the moves, boxes and powers of a history, as the listener
+   * would have.
+   */
+  private static void insertEvents(SqliteStore s, long id,
+      GameHistory history) throws SQLException {
+    EventWriter writer = new EventWriter(s, id);
+    try {
+      history.replay(writer);
+    } catch (IOException e) {
+      throw new SQLException("ERROR: malformed history.", e);
+    }
+    if (writer.failed != null) {
+      throw writer.failed;
+    }
+  }
+
+  private static int squareOf(Location loc) {
+    return loc.getRow() * 8 + loc.getCol();
+  }
+
+  /**
+   * Writes the events of a history read back, stopping at the first that
+   * fails.
+   */
+  private static final class EventWriter implements GameRecordReader.Handler {
+    private final SqliteStore s;
+    private final long id;
+    private int ply = 0;
+    private SQLException failed;
+
+    private EventWriter(SqliteStore s, long id) {
+      this.s = s;
+      this.id = id;
+    }
+
+    @Override
+    public void moved(int from, int to, int promotion) {
+      if (failed != null) {
+        return;
+      }
+      try {
+        PreparedStatement insert = s.statement(INSERT_PROMOTED);
+        insert.setLong(1, id);
+        insert.setInt(2, ply++);
+        insert.setInt(3, from);
+        insert.setInt(4, to);
+        insert.setString(5, PROMOTIONS[promotion]);
+        insert.executeUpdate();
+      } catch (SQLException e) {
+        failed = e;
+      }
+    }
+
+    @Override
+    public void spawned(int square, Rarity rarity) {
+      if (failed != null) {
+        return;
+      }
+      try {
+        PreparedStatement insert = s.statement(INSERT_SPAWN);
+        insert.setLong(1, id);
+        insert.setInt(2, ply);
+        insert.setInt(3, square);
+        insert.setString(4, rarity.name());
+        insert.executeUpdate();
+      } catch (SQLException e) {
+        failed = e;
+      }
+    }
+
+    @Override
+    public void powerUsed(Rarity rarity, int powerId, int input,
+        int movedTo) {
+      if (failed != null) {
+        return;
+      }
+      String name = PowerAction.nameOf(rarity, powerId);
+      if (name == null) {
+        // a power since removed, as GameArchive skips it
+        return;
+      }
+      try {
+        PreparedStatement insert = s.statement(INSERT_POWER);
+        insert.setLong(1, id);
+        insert.setInt(2, ply);
+        insert.setString(3, rarity.name());
+        insert.setString(4, name);
+        insert.setObject(5, input < 0 ? null : input);
+        insert.setObject(6, movedTo < 0 ? null : movedTo);
+        insert.executeUpdate();
+      } catch (SQLException e) {
+        failed = e;
+      }
+    }
+  }
+
+  /**
+   * Recording of one game, fed by the game as a listener. Only touched with
+   * the game locked.
+   */
+  public final class Recording implements GameListener {
+    private final long id;
+    private final TimeControl timeControl;
+    private final String white;
+    private final String black;
+    private final GameHistory history;
+
+    private Recording(long id, TimeControl timeControl, String white,
+        String black, GameHistory history) {
+      this.id = id;
+      this.timeControl = timeControl;
+      this.white = white;
+      this.black = black;
+      this.history = history;
+    }
+
+    /**
+     * Get the id of the game in the database.
+     *
+     * @return the id.
+     */
+    public long getId() {
+      return id;
+    }
+
+    /**
+     * @return the time control, or null if the game is untimed.
+     */
+    public TimeControl getTimeControl() {
+      return timeControl;
+    }
+
+    /**
+     * @return the name of the white player.
+     */
+    public String getWhite() {
+      return white;
+    }
+
+    /**
+     * @return the name of the black player.
+     */
+    public String getBlack() {
+      return black;
+    }
+
+    /**
+     * @return what has been recorded of the game so far.
+     */
+    public GameHistory getHistory() {
+      return history;
+    }
+
+    @Override
+    public void moving(Game game) {
+      int at = history.getPly();
+      if (at == 0 || at % KEYFRAME_PLIES != 0) {
+        return;
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+      try {
+        GameSnapshot.write(game, new DataOutputStream(bytes));
+      } catch (IOException e) {
+        // nothing to fail writing to memory; a replay just goes further back
+        return;
+      }
+      byte[] snapshot = bytes.toByteArray();
+      store.submit(s -> {
+        PreparedStatement insert = s.statement(INSERT_KEYFRAME);
+        insert.setLong(1, id);
+        insert.setInt(2, at);
+        insert.setBytes(3, snapshot);
+        insert.executeUpdate();
+      });
+    }
+
+    @Override
+    public void moved(Move move) {
+      int at = history.getPly();
+      history.moved(move);
+      int from = squareOf(move.getStart());
+      int to = squareOf(move.getEnd());
+      store.submit(s -> {
+        PreparedStatement insert = s.statement(INSERT_MOVE);
+        insert.setLong(1, id);
+        insert.setInt(2, at);
+        insert.setInt(3, from);
+        insert.setInt(4, to);
+        insert.executeUpdate();
+      });
+    }
+
+    @Override
+    public void promoted(Location loc, Piece piece) {
+      history.promoted(loc, piece);
+      if (history.getPly() == 0) {
+        return;
+      }
+      int at = history.getPly() - 1;
+      String promotion = piece.getClass().getSimpleName();
+      store.submit(s -> {
+        PreparedStatement update = s.statement(UPDATE_PROMOTION);
+        update.setString(1, promotion);
+        update.setLong(2, id);
+        update.setInt(3, at);
+        update.executeUpdate();
+      });
+    }
+
+    @Override
+    public void spawned(Location loc, PowerObject powerObject) {
+      history.spawned(loc, powerObject);
+      int at = history.getPly();
+      int square = squareOf(loc);
+      String rarity = powerObject.getRarity().name();
+      store.submit(s -> {
+        PreparedStatement insert = s.statement(INSERT_SPAWN);
+        insert.setLong(1, id);
+        insert.setInt(2, at);
+        insert.setInt(3, square);
+        insert.setString(4, rarity);
+        insert.executeUpdate();
+      });
+    }
+
+    @Override
+    public void powerUsed(PowerAction action, Location input) {
+      history.powerUsed(action, input);
+      int at = history.getPly();
+      String rarity = action.getRarity().name();
+      String power = action.getClass().getSimpleName();
+      Integer square = input == null ? null : squareOf(input);
+      Location end = action instanceof PieceMover
+          ? ((PieceMover) action).getEndLocation() : null;
+      Integer movedTo = end == null ? null : squareOf(end);
+      store.submit(s -> {
+        PreparedStatement insert = s.statement(INSERT_POWER);
+        insert.setLong(1, id);
+        insert.setInt(2, at);
+        insert.setString(3, rarity);
+        insert.setString(4, power);
+        insert.setObject(5, square);
+        insert.setObject(6, movedTo);
+        insert.executeUpdate();
+      });
+    }
+  }
+
+}
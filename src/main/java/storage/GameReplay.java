@@ -0,0 +1,182 @@
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import board.Board;
+import board.IllegalMoveException;
+import board.Location;
+import game.Color;
+import game.Game;
+import game.GameSnapshot;
+import game.Move;
+import pieces.Bishop;
+import pieces.Knight;
+import pieces.Piece;
+import pieces.Queen;
+import pieces.Rook;
+import players.GuiPlayer;
+import poweractions.PieceMover;
+import poweractions.PowerAction;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+import storage.GameArchive.Keyframe;
+
+/**
+ * GameReplay plays the events of a recorded game, as GameRecordReader hands
+ * them over, on a Game, so it ends up as the game that was recorded. The
+ * game replays without spawning boxes of its own.
+ *
+ * @author knorms
+ *
+ */
+public final class GameReplay {
+
+  private GameReplay() {
+  }
+
+  /**
+   * Create the game to replay a record on.
+   *
+   * @param record
+   *          Header of the recorded game.
+   * @return a new game in the starting position.
+   */
+  public static Game newGame(GameRecord record) {
+    Game game = new Game();
+    ready(game, record);
+    return game;
+  }
+
+  /**
+   * Make a game ready to replay a record on, e.g. one read from a keyframe.
+   *
+   * @param game
+   *          Game, without players.
+   * @param record
+   *          Header of the recorded game.
+   */
+  public static void ready(Game game, GameRecord record) {
+    game.setReplaying(true);
+    game.addPlayer(new GuiPlayer(Color.WHITE, -1, record.getWhite()));
+    game.addPlayer(new GuiPlayer(Color.BLACK, -1, record.getBlack()));
+  }
+
+  /**
+   * Create the game to replay the rest of a record on from a keyframe of
+   * it.
+   *
+   * @param keyframe
+   *          Keyframe of the game.
+   * @param record
+   *          Header of the recorded game.
+   * @return the game as it stood at the keyframe.
+   * @throws IOException
+   *           If the keyframe is malformed.
+   */
+  public static Game fromKeyframe(Keyframe keyframe, GameRecord record)
+      throws IOException {
+    Game game = GameSnapshot.read(new DataInputStream(
+        new ByteArrayInputStream(keyframe.getSnapshot())));
+    ready(game, record);
+    return game;
+  }
+
+  /**
+   * Make a recorded move, and its promotion.
+   *
+   * @param game
+   *          Game replayed on.
+   * @param from
+   *          Start square.
+   * @param to
+   *          End square.
+   * @param promotion
+   *          What a pawn became, as GameJournal.kindOf, or 0.
+   * @throws IllegalMoveException
+   *           If the move can't be made in the game.
+   */
+  public static void move(Game game, int from, int to, int promotion)
+      throws IllegalMoveException {
+    game.getActivePlayer().setMove(
+        new Move(locationOf(from), locationOf(to)));
+    game.turn();
+    if (promotion == 0) {
+      return;
+    }
+    Color color = game.getActivePlayer().getColor();
+    Piece piece;
+    if (promotion == GameJournal.ROOK) {
+      piece = new Rook(color);
+    } else if (promotion == GameJournal.BISHOP) {
+      piece = new Bishop(color);
+    } else if (promotion == GameJournal.KNIGHT) {
+      piece = new Knight(color);
+    } else {
+      piece = new Queen(color);
+    }
+    game.getActivePlayer().setPromotion(piece);
+    game.executePromotion(locationOf(to));
+  }
+
+  /**
+   * Put a recorded power box on the board.
+   *
+   * @param game
+   *          Game replayed on.
+   * @param square
+   *          Square of the box.
+   * @param rarity
+   *          Its rarity.
+   */
+  public static void spawn(Game game, int square, Rarity rarity) {
+    game.spawnPowerObject(locationOf(square), PowerObject.ofRarity(rarity));
+  }
+
+  /**
+   * Use a recorded power.
+   *
+   * @param game
+   *          Game replayed on.
+   * @param rarity
+   *          Its rarity.
+   * @param id
+   *          Its id within the rarity.
+   * @param input
+   *          Square the player chose, or -1.
+   * @param movedTo
+   *          Square it moved a piece to, or -1.
+   * @param captured
+   *          Square of the box captured for it, the end of the last move.
+   * @throws IllegalStateException
+   *           If there is no such power.
+   */
+  public static void power(Game game, Rarity rarity, int id, int input,
+      int movedTo, int captured) {
+    PowerAction action =
+        PowerAction.ofId(rarity, id, game, locationOf(captured));
+    if (action == null) {
+      throw new IllegalStateException("ERROR: no power " + id + " of "
+          + rarity + ".");
+    }
+    if (action instanceof PieceMover && movedTo >= 0) {
+      ((PieceMover) action).setEndLocation(locationOf(movedTo));
+    }
+    game.getActivePlayer().setAction(action);
+    game.executePowerAction(locationOf(input));
+  }
+
+  /**
+   * Get the location of a square.
+   *
+   * @param square
+   *          Square, row * 8 + column, or -1.
+   * @return its location, or null for -1.
+   */
+  public static Location locationOf(int square) {
+    return square < 0 ? null
+        : new Location(square / Board.SIZE, square % Board.SIZE);
+  }
+
+}
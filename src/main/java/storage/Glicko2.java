@@ -0,0 +1,156 @@
+package storage;
+
+/**
+ * Glicko2 updates ratings the way Glickman's "Example of the Glicko-2
+ * system" describes: all of a player's games in a rating period are rated at
+ * once against their opponents' ratings from before the period, and a
+ * player's deviation grows with each period they sit out.
+ *
+ * @author knorms
+ *
+ */
+public final class Glicko2 {
+  /**
+   * Rating of a new player.
+   */
+  public static final double DEFAULT_RATING = 1500;
+
+  /**
+   * Deviation of a new player, and the most a deviation grows to.
+   */
+  public static final double DEFAULT_DEVIATION = 350;
+
+  /**
+   * Volatility of a new player.
+   */
+  public static final double DEFAULT_VOLATILITY = 0.06;
+
+  /**
+   * How much volatility may change in a period; 0.3 to 1.2, lower for less
+   * erratic ratings.
+   */
+  static final double TAU = 0.5;
+
+  private static final double SCALE = 173.7178;
+  private static final double EPSILON = 0.000001;
+  private static final double MAX_PHI = DEFAULT_DEVIATION / SCALE;
+
+  private Glicko2() {
+  }
+
+  /**
+   * Grow a player's deviation for the periods they didn't play in.
+   *
+   * @param rating
+   *          Rating of the player.
+   * @param periods
+   *          Number of periods without games.
+   * @return the rating with a deviation of at most DEFAULT_DEVIATION.
+   */
+  public static Rating idle(Rating rating, long periods) {
+    if (periods <= 0) {
+      return rating;
+    }
+    double phi = rating.getDeviation() / SCALE;
+    double sigma = rating.getVolatility();
+    double grown = Math.min(MAX_PHI,
+        Math.sqrt(phi * phi + periods * sigma * sigma));
+    return new Rating(rating.getRating(), grown * SCALE, sigma,
+        rating.getGames(), rating.getRatedAt());
+  }
+
+  /**
+   * Rate a player's games of a period.
+   *
+   * @param player
+   *          Rating of the player before the period.
+   * @param opponents
+   *          Ratings of their opponents before the period.
+   * @param scores
+   *          Score of each game: 1 for a win, 0.5 for a draw, 0 for a loss.
+   * @param count
+   *          Number of games; the first count opponents and scores are
+   *          read.
+   * @param ratedAt
+   *          End of the period, in ms since the epoch.
+   * @return the rating after the period.
+   */
+  public static Rating rate(Rating player, Rating[] opponents,
+      double[] scores, int count, long ratedAt) {
+    if (count == 0) {
+      return idle(player, 1);
+    }
+    double mu = (player.getRating() - DEFAULT_RATING) / SCALE;
+    double phi = player.getDeviation() / SCALE;
+    double sigma = player.getVolatility();
+
+    // estimated variance from the games alone, and the improvement in them
+    double inverseV = 0;
+    double improvement = 0;
+    for (int i = 0; i < count; i++) {
+      double muJ = (opponents[i].getRating() - DEFAULT_RATING) / SCALE;
+      double g = g(opponents[i].getDeviation() / SCALE);
+      double e = 1 / (1 + Math.exp(-g * (mu - muJ)));
+      inverseV += g * g * e * (1 - e);
+      improvement += g * (scores[i] - e);
+    }
+    double v = 1 / inverseV;
+    double delta = v * improvement;
+
+    double newSigma = volatility(phi, sigma, v, delta);
+    double phiStar = Math.sqrt(phi * phi + newSigma * newSigma);
+    double newPhi = 1 / Math.sqrt(1 / (phiStar * phiStar) + inverseV);
+    double newMu = mu + newPhi * newPhi * improvement;
+    return new Rating(DEFAULT_RATING + newMu * SCALE,
+        Math.min(MAX_PHI, newPhi) * SCALE, newSigma,
+        player.getGames() + count, ratedAt);
+  }
+
+  private static double g(double phi) {
+    return 1 / Math.sqrt(1 + 3 * phi * phi / (Math.PI * Math.PI));
+  }
+
+  /**
+   * Find the new volatility by the Illinois algorithm, step 5 of the
+   * example.
+   */
+  private static double volatility(double phi, double sigma, double v,
+      double delta) {
+    double a = Math.log(sigma * sigma);
+    double bigA = a;
+    double bigB;
+    if (delta * delta > phi * phi + v) {
+      bigB = Math.log(delta * delta - phi * phi - v);
+    } else {
+      int k = 1;
+      while (f(a - k * TAU, phi, v, delta, a) < 0) {
+        k++;
+      }
+      bigB = a - k * TAU;
+    }
+    double fA = f(bigA, phi, v, delta, a);
+    double fB = f(bigB, phi, v, delta, a);
+    while (Math.abs(bigB - bigA) > EPSILON) {
+      double bigC = bigA + (bigA - bigB) * fA / (fB - fA);
+      double fC = f(bigC, phi, v, delta, a);
+      if (fC * fB <= 0) {
+        bigA = bigB;
+        fA = fB;
+      } else {
+        fA /= 2;
+      }
+      bigB = bigC;
+      fB = fC;
+    }
+    return Math.exp(bigA / 2);
+  }
+
+  private static double f(double x, double phi, double v, double delta,
+      double a) {
+    double ex = Math.exp(x);
+    double d = phi * phi + v + ex;
+    return ex * (delta * delta - phi * phi - v - ex) / (2 * d * d)
+        - (x - a) / (TAU * TAU);
+  }
+
+}
@@ -0,0 +1,65 @@
+package storage;
+
+/**
+ * How a player has done in the archived games, from GameArchive.
+ *
+ * @author knorms
+ *
+ */
+public final class PlayerProfile {
+  private final String name;
+  private final long games;
+  private final long wins;
+  private final long losses;
+  private final long draws;
+  private final long lastPlayed;
+
+  /**
+   * @param name
+   *          Name of the player.
+   * @param games
+   *          Number of finished games they played, with a result or not.
+   * @param wins
+   *          Number they won.
+   * @param losses
+   *          Number they lost.
+   * @param draws
+   *          Number drawn.
+   * @param lastPlayed
+   *          When their last game started, in ms since the epoch, or 0.
+   */
+  public PlayerProfile(String name, long games, long wins, long losses,
+      long draws, long lastPlayed) {
+    this.name = name;
+    this.games = games;
+    this.wins = wins;
+    this.losses = losses;
+    this.draws = draws;
+    this.lastPlayed = lastPlayed;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getGames() {
+    return games;
+  }
+
+  public long getWins() {
+    return wins;
+  }
+
+  public long getLosses() {
+    return losses;
+  }
+
+  public long getDraws() {
+    return draws;
+  }
+
+  public long getLastPlayed() {
+    return lastPlayed;
+  }
+
+}
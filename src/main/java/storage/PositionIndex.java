@@ -0,0 +1,957 @@
+package storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import board.IllegalMoveException;
+import game.Game;
+import game.PositionHash;
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+import powerups.PowerObject.Rarity;
+
+/**
+ * PositionIndex finds the archived games that reached a position, by the
+ * position's PositionHash, and what was played from it and how those games
+ * ended, for an opening explorer.
+ *
+ * The index is built from the finished games of a GameArchive by replaying
+ * their records, in batches of games run in parallel. Each build writes
+ * sorted, immutable run files to a directory, which are memory-mapped and
+ * searched by binary search; when there are more than a few runs they are
+ * merged into one. A build only reads the games after the last one indexed,
+ * so it can be run again whenever games have been recorded.
+ *
+ * A run file is a header, then its entries, then its summaries. The header
+ * is MAGIC, 1 if the run was merged from all the runs before it or else 0,
+ * the number of entries, the number of summaries and the id of the last
+ * game the index had read when it was written. An
+ * entry is 16 bytes, sorted: the position hash, then the game id in 32
+ * bits, the ply in 14, the result in 2 and the move played from the
+ * position in 16, as GameRecordWriter writes moves, or NO_MOVE if the game
+ * ended there. A summary is 24 bytes, sorted: a position hash, a move and
+ * how many games that played it white won, black won and were drawn.
+ *
+ * @author knorms
+ *
+ */
+public final class PositionIndex implements AutoCloseable {
+  /**
+   * First four bytes of a run file.
+   */
+  public static final int MAGIC = 0x43485049;
+  /**
+   * The move of a position a game ended in.
+   */
+  public static final int NO_MOVE = 0xffff;
+
+  private static final int HEADER = 32;
+  private static final int ENTRY = 16;
+  private static final int SUMMARY = 24;
+  private static final int MAX_RUNS = 8;
+  private static final int MAX_PLY = (1 << 14) - 1;
+  private static final int WHITE_WON = 0;
+  private static final int BLACK_WON = 1;
+  private static final int DRAWN = 2;
+  private static final int UNDECIDED = 3;
+  private static final String WHITE_WIN = "1-0";
+  private static final String BLACK_WIN = "0-1";
+  private static final String DRAW = "1/2-1/2";
+  private static final String PREFIX = "run-";
+  private static final String SUFFIX = ".idx";
+  private static final String TEMPORARY = ".tmp";
+
+  private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+  private static final LatencyHistogram LOOKUPS = METRICS.histogram(
+      "chess_position_lookup_duration_seconds",
+      "Time to look up a position in the position index.");
+  private static final LongAdder POSITIONS = METRICS.counter(
+      "chess_positions_indexed_total",
+      "Positions of archived games added to the position index.");
+
+  private final Path dir;
+  private final Object writing = new Object();
+  private volatile List<Run> runs;
+  private long nextRun;
+
+  /**
+   * A game that reached a position.
+   */
+  public static final class Occurrence {
+    private final long game;
+    private final int ply;
+
+    private Occurrence(long game, int ply) {
+      this.game = game;
+      this.ply = ply;
+    }
+
+    /**
+     * @return id of the game.
+     */
+    public long getGame() {
+      return game;
+    }
+
+    /**
+     * @return how many moves had been made when the game first reached the
+     *         position.
+     */
+    public int getPly() {
+      return ply;
+    }
+  }
+
+  /**
+   * A move played from a position and how the games that played it ended.
+   */
+  public static final class MoveStats {
+    private final int move;
+    private long whiteWins;
+    private long blackWins;
+    private long draws;
+
+    private MoveStats(int move) {
+      this.move = move;
+    }
+
+    /**
+     * @return square the move started from, row * 8 + column.
+     */
+    public int getFrom() {
+      return move >>> 6 & 0x3f;
+    }
+
+    /**
+     * @return square the move ended on, row * 8 + column.
+     */
+    public int getTo() {
+      return move & 0x3f;
+    }
+
+    /**
+     * @return what a pawn became, as GameJournal.kindOf, or 0.
+     */
+    public int getPromotion() {
+      return move >>> 12;
+    }
+
+    public long getWhiteWins() {
+      return whiteWins;
+    }
+
+    public long getBlackWins() {
+      return blackWins;
+    }
+
+    public long getDraws() {
+      return draws;
+    }
+
+    /**
+     * @return number of games with a result that played the move.
+     */
+    public long getGames() {
+      return whiteWins + blackWins + draws;
+    }
+  }
+
+  /**
+   * Open the index in dir, creating the directory if need be. Files left
+   * by a build or merge that didn't finish are deleted.
+   *
+   * @param dir
+   *          Directory of the run files.
+   * @throws IOException
+   *           If the directory can't be read or a run is malformed.
+   */
+  public PositionIndex(Path dir) throws IOException {
+    this.dir = dir;
+    Files.createDirectories(dir);
+    List<Run> opened = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(TEMPORARY)) {
+          Files.delete(file);
+        } else if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+          long seq = seqOf(file);
+          opened.add(Run.open(file, seq));
+          nextRun = Math.max(nextRun, seq + 1);
+        }
+      }
+    }
+    opened.sort(Comparator.comparingLong(run -> run.seq));
+    for (int i = opened.size() - 1; i > 0; i--) {
+      if (opened.get(i).merged) {
+        // the merge stopped before it deleted the runs it replaced
+        for (Run replaced : opened.subList(0, i)) {
+          Files.delete(replaced.file);
+        }
+        opened.subList(0, i).clear();
+        break;
+      }
+    }
+    runs = Collections.unmodifiableList(opened);
+  }
+
+  /**
+   * @return id of the last game read into the index, or 0.
+   */
+  public long indexedThrough() {
+    long through = 0;
+    for (Run run : runs) {
+      through = Math.max(through, run.through);
+    }
+    return through;
+  }
+
+  /**
+   * @return number of positions indexed, counting each game's separately.
+   */
+  public long size() {
+    long size = 0;
+    for (Run run : runs) {
+      size += run.entries;
+    }
+    return size;
+  }
+
+  /**
+   * @return number of run files.
+   */
+  public int runs() {
+    return runs.size();
+  }
+
+  /**
+   * List the games that reached a position, by id, a page at a time.
+   *
+   * @param hash
+   *          PositionHash of the position.
+   * @param afterGame
+   *          Id of the last game of the page before, or 0.
+   * @param limit
+   *          Most games to list.
+   * @return the games, each with the first ply it reached the position at.
+   */
+  public List<Occurrence> games(long hash, long afterGame, int limit) {
+    long start = System.nanoTime();
+    List<Occurrence> found = new ArrayList<>();
+    long after = Math.max(afterGame, -1);
+    for (Run run : runs) {
+      // games are in one run each, so each run's page is sorted already
+      long last = -1;
+      int listed = 0;
+      long i = run.lowerBound(hash, (after + 1) << 32);
+      for (; i < run.entries && listed < limit
+          && run.entryHash(i) == hash; i++) {
+        long value = run.entryValue(i);
+        long game = value >>> 32;
+        if (game != last) {
+          found.add(new Occurrence(game, (int) (value >>> 18 & MAX_PLY)));
+          last = game;
+          listed++;
+        }
+      }
+    }
+    found.sort(Comparator.comparingLong(Occurrence::getGame));
+    LOOKUPS.recordSince(start);
+    return found.size() > limit ? new ArrayList<>(found.subList(0, limit))
+        : found;
+  }
+
+  /**
+   * Get the moves played from a position, most played first.
+   *
+   * @param hash
+   *          PositionHash of the position.
+   * @return the moves, with how the games that played them ended.
+   */
+  public List<MoveStats> moves(long hash) {
+    long start = System.nanoTime();
+    Map<Integer, MoveStats> moves = new HashMap<>();
+    for (Run run : runs) {
+      for (long i = run.summaryBound(hash); i < run.summaries
+          && run.summaryHash(i) == hash; i++) {
+        MoveStats stats = moves.computeIfAbsent(run.summaryMove(i),
+            MoveStats::new);
+        stats.whiteWins += run.summaryCount(i, WHITE_WON);
+        stats.blackWins += run.summaryCount(i, BLACK_WON);
+        stats.draws += run.summaryCount(i, DRAWN);
+      }
+    }
+    List<MoveStats> sorted = new ArrayList<>(moves.values());
+    sorted.sort(Comparator.comparingLong(MoveStats::getGames).reversed()
+        .thenComparingInt(stats -> stats.move));
+    LOOKUPS.recordSince(start);
+    return sorted;
+  }
+
+  /**
+   * Index the games finished since the last build. The games are split
+   * into batches, each exported, replayed and written to a run of its own
+   * on a pool of threads; the runs are added once all of them are written,
+   * so a build that fails adds nothing. Runs are then merged if there are
+   * too many.
+   *
+   * @param archive
+   *          Archive of the games.
+   * @param threads
+   *          Number of batches to run at once.
+   * @param batchGames
+   *          Ids of games in a batch.
+   * @return number of games indexed.
+   * @throws IOException
+   *           If a run can't be written.
+   * @throws SQLException
+   *           If the archive can't be read.
+   * @throws InterruptedException
+   *           If interrupted while waiting for the batches.
+   */
+  public long build(GameArchive archive, int threads, int batchGames)
+      throws IOException, SQLException, InterruptedException {
+    synchronized (writing) {
+      long from = indexedThrough() + 1;
+      long through = Math.min(archive.finishedThrough(), Integer.MAX_VALUE);
+      if (through < from) {
+        return 0;
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(threads,
+          runnable -> {
+            Thread thread = new Thread(runnable, "position-index");
+            thread.setDaemon(true);
+            return thread;
+          });
+      List<Path> written = new ArrayList<>();
+      List<Future<Batch>> batches = new ArrayList<>();
+      long games = 0;
+      try {
+        for (long first = from; first <= through; first += batchGames) {
+          long start = first;
+          long until = Math.min(first + batchGames, through + 1);
+          Path file = dir.resolve(PREFIX + nextRun++ + TEMPORARY);
+          written.add(file);
+          batches.add(pool.submit(() -> indexBatch(archive, start, until,
+              through, file)));
+        }
+        List<Path> kept = new ArrayList<>();
+        for (int i = 0; i < batches.size(); i++) {
+          Batch batch = batches.get(i).get();
+          games += batch.games;
+          if (batch.positions > 0 || i == batches.size() - 1) {
+            // the last run is kept even if empty, for where the build got to
+            kept.add(written.get(i));
+          }
+        }
+        List<Run> added = new ArrayList<>(runs);
+        for (Path file : kept) {
+          String name = file.getFileName().toString();
+          Path run = dir.resolve(name.substring(0,
+              name.length() - TEMPORARY.length()) + SUFFIX);
+          Files.move(file, run, StandardCopyOption.ATOMIC_MOVE);
+          added.add(Run.open(run, seqOf(run)));
+        }
+        runs = Collections.unmodifiableList(added);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof SQLException) {
+          throw (SQLException) cause;
+        }
+        throw new IllegalStateException(cause);
+      } finally {
+        pool.shutdownNow();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        for (Path file : written) {
+          Files.deleteIfExists(file);
+        }
+      }
+      if (runs.size() > MAX_RUNS) {
+        compact();
+      }
+      return games;
+    }
+  }
+
+  /**
+   * Build the index every periodMillis on a thread of its own.
+   *
+   * @param archive
+   *          Archive of the games.
+   * @param periodMillis
+   *          Time between the end of a build and the start of the next.
+   * @return the scheduler, to shut down.
+   */
+  public ScheduledExecutorService schedule(GameArchive archive,
+      long periodMillis) {
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+          Thread thread = new Thread(runnable, "position-index-build");
+          thread.setDaemon(true);
+          return thread;
+        });
+    int threads = Runtime.getRuntime().availableProcessors();
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        long start = System.nanoTime();
+        long games = build(archive, threads, 10000);
+        if (games > 0) {
+          System.out.printf("indexed the positions of %d games in %d ms%n",
+              games, (System.nanoTime() - start) / 1000000);
+        }
+      } catch (IOException | SQLException | RuntimeException e) {
+        System.err.println("ERROR: position index build failed: "
+            + e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, 0, periodMillis, TimeUnit.MILLISECONDS);
+    return scheduler;
+  }
+
+  /**
+   * Merge all the runs into one. Entries are merged in order; summaries of
+   * the same position and move are added up.
+   *
+   * @throws IOException
+   *           If the merged run can't be written.
+   */
+  public void compact() throws IOException {
+    synchronized (writing) {
+      List<Run> merging = runs;
+      if (merging.size() < 2) {
+        return;
+      }
+      long seq = nextRun++;
+      Path file = dir.resolve(PREFIX + seq + TEMPORARY);
+      try (RunWriter writer = new RunWriter(file)) {
+        int k = merging.size();
+        long[] at = new long[k];
+        while (true) {
+          int min = -1;
+          for (int r = 0; r < k; r++) {
+            Run run = merging.get(r);
+            if (at[r] < run.entries && (min < 0 || compare(
+                run.entryHash(at[r]), run.entryValue(at[r]),
+                merging.get(min).entryHash(at[min]),
+                merging.get(min).entryValue(at[min])) < 0)) {
+              min = r;
+            }
+          }
+          if (min < 0) {
+            break;
+          }
+          Run run = merging.get(min);
+          writer.entry(run.entryHash(at[min]), run.entryValue(at[min]));
+          at[min]++;
+        }
+
+        Arrays.fill(at, 0);
+        long[] counts = new long[3];
+        while (true) {
+          int min = -1;
+          for (int r = 0; r < k; r++) {
+            Run run = merging.get(r);
+            if (at[r] < run.summaries && (min < 0 || compare(
+                run.summaryHash(at[r]), run.summaryMove(at[r]),
+                merging.get(min).summaryHash(at[min]),
+                merging.get(min).summaryMove(at[min])) < 0)) {
+              min = r;
+            }
+          }
+          if (min < 0) {
+            break;
+          }
+          long hash = merging.get(min).summaryHash(at[min]);
+          int move = merging.get(min).summaryMove(at[min]);
+          Arrays.fill(counts, 0);
+          for (int r = 0; r < k; r++) {
+            Run run = merging.get(r);
+            if (at[r] < run.summaries && run.summaryHash(at[r]) == hash
+                && run.summaryMove(at[r]) == move) {
+              for (int result = 0; result < counts.length; result++) {
+                counts[result] += run.summaryCount(at[r], result);
+              }
+              at[r]++;
+            }
+          }
+          writer.summary(hash, move, counts);
+        }
+        long through = 0;
+        for (Run run : merging) {
+          through = Math.max(through, run.through);
+        }
+        writer.finish(through, true);
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(file);
+        throw e;
+      }
+      Path merged = dir.resolve(PREFIX + seq + SUFFIX);
+      Files.move(file, merged, StandardCopyOption.ATOMIC_MOVE);
+      runs = Collections.singletonList(Run.open(merged, seq));
+      // lookups still reading the old runs keep their mappings
+      for (Run run : merging) {
+        Files.deleteIfExists(run.file);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    runs = Collections.emptyList();
+  }
+
+  private static long seqOf(Path run) {
+    String name = run.getFileName().toString();
+    return Long.parseLong(name.substring(PREFIX.length(),
+        name.length() - SUFFIX.length()));
+  }
+
+  private static int compare(long hash, long value, long otherHash,
+      long otherValue) {
+    int c = Long.compare(hash, otherHash);
+    return c != 0 ? c : Long.compare(value, otherValue);
+  }
+
+  /**
+   * What a batch wrote.
+   */
+  private static final class Batch {
+    private final long games;
+    private final long positions;
+
+    private Batch(long games, long positions) {
+      this.games = games;
+      this.positions = positions;
+    }
+  }
+
+  /**
+   * Export, replay and write the games with ids from first until until to
+   * a run.
+   */
+  private static Batch indexBatch(GameArchive archive, long first,
+      long until, long through, Path file) throws IOException, SQLException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    archive.export(first, until, bytes);
+    GameRecordReader reader =
+        new GameRecordReader(new ByteArrayInputStream(bytes.toByteArray()));
+    bytes = null;
+    Replayer replayer = new Replayer();
+    long games = 0;
+    while (reader.next(replayer)) {
+      replayer.ended();
+      games++;
+    }
+    int n = replayer.size;
+    long[] hashes = replayer.hashes;
+    long[] values = replayer.values;
+    sort(hashes, values, 0, n);
+
+    // one summary key per game that played a move from a position, with
+    // its result in the low bits, sorted so equal moves are together
+    long[] summaryHashes = new long[n];
+    long[] summaryMoves = new long[n];
+    int m = 0;
+    for (int i = 0; i < n; i++) {
+      int move = (int) (values[i] & 0xffff);
+      int result = (int) (values[i] >>> 16 & 3);
+      if (move != NO_MOVE && result != UNDECIDED) {
+        summaryHashes[m] = hashes[i];
+        summaryMoves[m++] = (long) move << 2 | result;
+      }
+    }
+    sort(summaryHashes, summaryMoves, 0, m);
+
+    try (RunWriter writer = new RunWriter(file)) {
+      for (int i = 0; i < n; i++) {
+        writer.entry(hashes[i], values[i]);
+      }
+      long[] counts = new long[3];
+      for (int i = 0; i < m;) {
+        long hash = summaryHashes[i];
+        long move = summaryMoves[i] >>> 2;
+        Arrays.fill(counts, 0);
+        for (; i < m && summaryHashes[i] == hash
+            && summaryMoves[i] >>> 2 == move; i++) {
+          counts[(int) (summaryMoves[i] & 3)]++;
+        }
+        writer.summary(hash, (int) move, counts);
+      }
+      writer.finish(through, false);
+    }
+    POSITIONS.add(n);
+    return new Batch(games, n);
+  }
+
+  /**
+   * Sort two arrays together by the first, then the second.
+   */
+  private static void sort(long[] keys, long[] values, int lo, int hi) {
+    while (hi - lo > 16) {
+      int mid = (lo + hi) >>> 1;
+      long pivotKey = keys[mid];
+      long pivotValue = values[mid];
+      int i = lo;
+      int j = hi - 1;
+      while (i <= j) {
+        while (compare(keys[i], values[i], pivotKey, pivotValue) < 0) {
+          i++;
+        }
+        while (compare(keys[j], values[j], pivotKey, pivotValue) > 0) {
+          j--;
+        }
+        if (i <= j) {
+          swap(keys, values, i++, j--);
+        }
+      }
+      // recurse into the smaller part, loop on the larger
+      if (j - lo < hi - i) {
+        sort(keys, values, lo, j + 1);
+        lo = i;
+      } else {
+        sort(keys, values, i, hi);
+        hi = j + 1;
+      }
+    }
+    for (int i = lo + 1; i < hi; i++) {
+      for (int j = i; j > lo && compare(keys[j], values[j], keys[j - 1],
+          values[j - 1]) < 0; j--) {
+        swap(keys, values, j, j - 1);
+      }
+    }
+  }
+
+  private static void swap(long[] keys, long[] values, int i, int j) {
+    long key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    long value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+  }
+
+  /**
+   * Replays the records of games on a Game, collecting the hash of each
+   * position before a move and at the end. A game that can't be replayed
+   * is indexed as far as it got.
+   */
+  private static final class Replayer implements GameRecordReader.Handler {
+    private long[] hashes = new long[1 << 12];
+    private long[] values = new long[1 << 12];
+    private int size = 0;
+    private Game game;
+    private long id;
+    private int result;
+    private int ply;
+    private int lastMoved;
+
+    @Override
+    public void game(GameRecord record) {
+      id = record.getId();
+      ply = 0;
+      lastMoved = -1;
+      if (BLACK_WIN.equals(record.getResult())) {
+        result = BLACK_WON;
+      } else if (WHITE_WIN.equals(record.getResult())) {
+        result = WHITE_WON;
+      } else if (DRAW.equals(record.getResult())) {
+        result = DRAWN;
+      } else {
+        result = UNDECIDED;
+      }
+      game = GameReplay.newGame(record);
+    }
+
+    @Override
+    public void moved(int from, int to, int promotion) {
+      if (game == null) {
+        return;
+      }
+      add(GameRecordWriter.moveWord(from, to, promotion));
+      try {
+        GameReplay.move(game, from, to, promotion);
+        lastMoved = to;
+        ply++;
+      } catch (IllegalMoveException | RuntimeException e) {
+        stop();
+      }
+    }
+
+    @Override
+    public void spawned(int square, Rarity rarity) {
+      if (game == null) {
+        return;
+      }
+      try {
+        GameReplay.spawn(game, square, rarity);
+      } catch (RuntimeException e) {
+        stop();
+      }
+    }
+
+    @Override
+    public void powerUsed(Rarity rarity, int powerId, int input,
+        int movedTo) {
+      if (game == null) {
+        return;
+      }
+      try {
+        GameReplay.power(game, rarity, powerId, input, movedTo, lastMoved);
+      } catch (RuntimeException e) {
+        stop();
+      }
+    }
+
+    /**
+     * The game's record ended; index where it ended.
+     */
+    private void ended() {
+      if (game != null) {
+        add(NO_MOVE);
+        game = null;
+      }
+    }
+
+    private void stop() {
+      game = null;
+    }
+
+    private void add(int move) {
+      if (ply > MAX_PLY || id > Integer.MAX_VALUE) {
+        stop();
+        return;
+      }
+      if (size == hashes.length) {
+        hashes = Arrays.copyOf(hashes, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      hashes[size] = PositionHash.of(game);
+      values[size++] = id << 32 | (long) ply << 18 | result << 16 | move;
+    }
+  }
+
+  /**
+   * Writes a run file: entries, then summaries, then the header.
+   */
+  private static final class RunWriter implements AutoCloseable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+    private long entries = 0;
+    private long summaries = 0;
+
+    private RunWriter(Path file) throws IOException {
+      channel = FileChannel.open(file, StandardOpenOption.CREATE,
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      channel.position(HEADER);
+    }
+
+    private void entry(long hash, long value) throws IOException {
+      if (summaries > 0) {
+        throw new IllegalStateException("ERROR: entry after a summary.");
+      }
+      room(ENTRY);
+      buffer.putLong(hash).putLong(value);
+      entries++;
+    }
+
+    private void summary(long hash, int move, long[] counts)
+        throws IOException {
+      room(SUMMARY);
+      buffer.putLong(hash).putInt(move);
+      for (long count : counts) {
+        buffer.putInt((int) Math.min(count, Integer.MAX_VALUE));
+      }
+      summaries++;
+    }
+
+    private void finish(long through, boolean merged) throws IOException {
+      flush();
+      buffer.putInt(MAGIC).putInt(merged ? 1 : 0).putLong(entries)
+          .putLong(summaries)
+          .putLong(through).flip();
+      channel.write(buffer, 0);
+      buffer.clear();
+      channel.force(true);
+    }
+
+    private void room(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /**
+   * A mapped run file.
+   */
+  private static final class Run {
+    private final Path file;
+    private final long seq;
+    private final long entries;
+    private final long summaries;
+    private final long through;
+    private final boolean merged;
+    private final Section entrySection;
+    private final Section summarySection;
+
+    private Run(Path file, long seq, FileChannel channel, ByteBuffer header)
+        throws IOException {
+      this.file = file;
+      this.seq = seq;
+      merged = header.getInt() == 1;
+      entries = header.getLong();
+      summaries = header.getLong();
+      through = header.getLong();
+      if (channel.size() != HEADER + entries * ENTRY + summaries * SUMMARY) {
+        throw new IOException("ERROR: " + file + " is cut short.");
+      }
+      entrySection = new Section(channel, HEADER, entries, ENTRY);
+      summarySection = new Section(channel, HEADER + entries * ENTRY,
+          summaries, SUMMARY);
+    }
+
+    private static Run open(Path file, long seq) throws IOException {
+      try (FileChannel channel = FileChannel.open(file,
+          StandardOpenOption.READ)) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (header.hasRemaining() && channel.read(header) >= 0) {
+          continue;
+        }
+        header.flip();
+        if (header.remaining() < HEADER || header.getInt() != MAGIC) {
+          throw new IOException("ERROR: " + file + " is not a run.");
+        }
+        return new Run(file, seq, channel, header);
+      }
+    }
+
+    private long entryHash(long i) {
+      return entrySection.getLong(i, 0);
+    }
+
+    private long entryValue(long i) {
+      return entrySection.getLong(i, 8);
+    }
+
+    private long summaryHash(long i) {
+      return summarySection.getLong(i, 0);
+    }
+
+    private int summaryMove(long i) {
+      return summarySection.getInt(i, 8);
+    }
+
+    private int summaryCount(long i, int result) {
+      return summarySection.getInt(i, 12 + result * 4);
+    }
+
+    /**
+     * @return index of the first entry not before hash and value.
+     */
+    private long lowerBound(long hash, long value) {
+      long lo = 0;
+      long hi = entries;
+      while (lo < hi) {
+        long mid = (lo + hi) >>> 1;
+        if (compare(entryHash(mid), entryValue(mid), hash, value) < 0) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    /**
+     * @return index of the first summary not before hash.
+     */
+    private long summaryBound(long hash) {
+      long lo = 0;
+      long hi = summaries;
+      while (lo < hi) {
+        long mid = (lo + hi) >>> 1;
+        if (summaryHash(mid) < hash) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+  }
+
+  /**
+   * Fixed-size records of a file, mapped in chunks of whole records under
+   * 1 GB, since a mapping can't be larger than 2 GB.
+   */
+  private static final class Section {
+    private final MappedByteBuffer[] chunks;
+    private final int recordSize;
+    private final long perChunk;
+
+    private Section(FileChannel channel, long offset, long records,
+        int recordSize) throws IOException {
+      this.recordSize = recordSize;
+      perChunk = (1 << 30) / recordSize;
+      chunks = new MappedByteBuffer[(int) ((records + perChunk - 1)
+          / perChunk)];
+      for (int c = 0; c < chunks.length; c++) {
+        long first = c * perChunk;
+        chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+            offset + first * recordSize,
+            Math.min(perChunk, records - first) * recordSize);
+      }
+    }
+
+    private long getLong(long record, int field) {
+      return chunks[(int) (record / perChunk)].getLong(
+          (int) (record % perChunk) * recordSize + field);
+    }
+
+    private int getInt(long record, int field) {
+      return chunks[(int) (record / perChunk)].getInt(
+          (int) (record % perChunk) * recordSize + field);
+    }
+  }
+
+}
@@ -0,0 +1,79 @@
+package storage;
+
+/**
+ * A player's Glicko-2 rating in one time control, on the Glicko scale: a
+ * rating around 1500, the deviation of that estimate and how volatile the
+ * player's results are.
+ *
+ * @author knorms
+ *
+ */
+public final class Rating {
+  /**
+   * Rating of a player who hasn't been rated yet.
+   */
+  public static final Rating UNRATED =
+      new Rating(Glicko2.DEFAULT_RATING, Glicko2.DEFAULT_DEVIATION,
+          Glicko2.DEFAULT_VOLATILITY, 0, 0);
+
+  private final double rating;
+  private final double deviation;
+  private final double volatility;
+  private final int games;
+  private final long ratedAt;
+
+  /**
+   * @param rating
+   *          Rating.
+   * @param deviation
+   *          Rating deviation.
+   * @param volatility
+   *          Volatility.
+   * @param games
+   *          Number of rated games.
+   * @param ratedAt
+   *          End of the last rating period the player played in, in ms since
+   *          the epoch, or 0.
+   */
+  public Rating(double rating, double deviation, double volatility,
+      int games, long ratedAt) {
+    this.rating = rating;
+    this.deviation = deviation;
+    this.volatility = volatility;
+    this.games = games;
+    this.ratedAt = ratedAt;
+  }
+
+  public double getRating() {
+    return rating;
+  }
+
+  public double getDeviation() {
+    return deviation;
+  }
+
+  public double getVolatility() {
+    return volatility;
+  }
+
+  public int getGames() {
+    return games;
+  }
+
+  public long getRatedAt() {
+    return ratedAt;
+  }
+
+  /**
+   * @return the rating, rounded, as the matchmaker and lobby show it.
+   */
+  public int rounded() {
+    return (int) Math.round(rating);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%.0f (%.0f)", rating, deviation);
+  }
+
+}
@@ -0,0 +1,400 @@
+package storage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+import game.Game.TimeControl;
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+
+/**
+ * RatingBook rates the players of the recorded games with Glicko-2, per time
+ * control, in rating periods of a fixed length: once a period is over, every
+ * game finished in it with a result is read in one query, each player's
+ * games are rated together against their opponents' ratings from before the
+ * period, and the new ratings are written in one transaction through the
+ * store's writer. Periods without games cost nothing; the deviation of a
+ * player who sits periods out grows when they are next looked up or rated.
+ *
+ * Every rating is kept in memory, so the matchmaker and the lobby look one
+ * up without touching the database. Untimed games, games without a result
+ * and games a player played against themselves are not rated.
+ *
+ * @author knorms
+ *
+ */
+public final class RatingBook {
+  /**
+   * Time after a period ends before it is rated, for the results of its last
+   * games to be committed.
+   */
+  static final long SETTLE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+  private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+  private static final LongAdder RATED = METRICS.counter(
+      "chess_rated_games_total", "Games rated by the rating book.");
+  private static final LatencyHistogram PERIODS = METRICS.histogram(
+      "chess_rating_period_duration_seconds",
+      "Time to rate the games of one rating period.");
+
+  private static final String SELECT_RATINGS = "SELECT player,"
+      + " time_control, rating, deviation, volatility, games, rated_at"
+      + " FROM ratings";
+  private static final String SELECT_RATED =
+      "SELECT rated_until FROM rating_periods WHERE id = 0";
+  private static final String SELECT_NEXT =
+      "SELECT MIN(ended) FROM games WHERE ended >= ?";
+  // on the index of ended: the planner would rather scan games_result
+  private static final String SELECT_GAMES = "SELECT white, black,"
+      + " time_control, result FROM games INDEXED BY games_ended"
+      + " WHERE ended >= ? AND ended < ?"
+      + " AND result IN ('1-0', '0-1', '1/2-1/2')"
+      + " AND time_control IS NOT NULL";
+  private static final String UPSERT_RATING = "INSERT OR REPLACE INTO"
+      + " ratings (player, time_control, rating, deviation, volatility,"
+      + " games, rated_at) VALUES (?, ?, ?, ?, ?, ?, ?)";
+  private static final String UPDATE_RATED = "INSERT OR REPLACE INTO"
+      + " rating_periods (id, rated_until) VALUES (0, ?)";
+
+  private final SqliteStore store;
+  private final long periodMillis;
+  private final LongSupplier now;
+  private final Map<TimeControl, Map<String, Rating>> ratings =
+      new EnumMap<>(TimeControl.class);
+  private volatile long ratedUntil;
+  private volatile BiConsumer<TimeControl, Map<String, Rating>> listener;
+
+  /**
+   * Load the ratings kept in a store that has the tables of GameRecorder.
+   *
+   * @param store
+   *          Store of the recorded games.
+   * @param periodMillis
+   *          Length of a rating period. Glicko-2 works best with periods in
+   *          which players play 10 to 15 games.
+   * @throws SQLException
+   *           If the ratings can't be read.
+   */
+  public RatingBook(SqliteStore store, long periodMillis)
+      throws SQLException {
+    this(store, periodMillis, System::currentTimeMillis);
+  }
+
+  /**
+   * Load the ratings kept in a store, reading time from a custom source.
+   *
+   * @param store
+   *          Store of the recorded games.
+   * @param periodMillis
+   *          Length of a rating period.
+   * @param now
+   *          Source of the current time in milliseconds.
+   * @throws SQLException
+   *           If the ratings can't be read.
+   */
+  RatingBook(SqliteStore store, long periodMillis, LongSupplier now)
+      throws SQLException {
+    this.store = store;
+    this.periodMillis = periodMillis;
+    this.now = now;
+    for (TimeControl tc : TimeControl.values()) {
+      ratings.put(tc, new ConcurrentHashMap<>());
+    }
+    try (Connection connection = store.connect();
+        Statement statement = connection.createStatement()) {
+      try (ResultSet row = statement.executeQuery(SELECT_RATINGS)) {
+        while (row.next()) {
+          TimeControl tc = timeControlOf(row.getString(2));
+          if (tc != null) {
+            ratings.get(tc).put(row.getString(1),
+                new Rating(row.getDouble(3), row.getDouble(4),
+                    row.getDouble(5), row.getInt(6), row.getLong(7)));
+          }
+        }
+      }
+      try (ResultSet row = statement.executeQuery(SELECT_RATED)) {
+        ratedUntil = row.next() ? row.getLong(1) : 0;
+      }
+    }
+  }
+
+  /**
+   * Get a player's current rating in a time control.
+   *
+   * @param player
+   *          Name of the player.
+   * @param timeControl
+   *          Time control.
+   * @return their rating, with its deviation grown for the periods they
+   *         haven't played in; Rating.UNRATED if they have no games rated.
+   */
+  public Rating rating(String player, TimeControl timeControl) {
+    Rating rating = ratings.get(timeControl).get(player);
+    if (rating == null) {
+      return Rating.UNRATED;
+    }
+    return before(rating, Math.floorDiv(now.getAsLong(), periodMillis)
+        * periodMillis);
+  }
+
+  /**
+   * Get the ratings of every rated player of a time control, as of the end
+   * of the last period they played in.
+   *
+   * @param timeControl
+   *          Time control.
+   * @return unmodifiable view of the ratings by player name.
+   */
+  public Map<String, Rating> ratings(TimeControl timeControl) {
+    return Collections.unmodifiableMap(ratings.get(timeControl));
+  }
+
+  /**
+   * Hear of the ratings of each period as it is rated.
+   *
+   * @param onRated
+   *          Called on the rating thread, once per time control played in
+   *          a period, with the new ratings of the players who played in it;
+   *          or null.
+   */
+  public void setListener(
+      BiConsumer<TimeControl, Map<String, Rating>> onRated) {
+    listener = onRated;
+  }
+
+  /**
+   * @return the end of the last period rated, in ms since the epoch, or 0.
+   */
+  public long ratedUntil() {
+    return ratedUntil;
+  }
+
+  /**
+   * Rate every period that is over and hasn't been rated, oldest first.
+   *
+   * @return number of games rated.
+   * @throws SQLException
+   *           If the games can't be read.
+   */
+  public synchronized long rate() throws SQLException {
+    long rated = 0;
+    try (Connection connection = store.connect();
+        PreparedStatement next = connection.prepareStatement(SELECT_NEXT);
+        PreparedStatement games =
+            connection.prepareStatement(SELECT_GAMES)) {
+      while (true) {
+        next.setLong(1, ratedUntil);
+        long first;
+        try (ResultSet row = next.executeQuery()) {
+          if (!row.next()) {
+            break;
+          }
+          first = row.getLong(1);
+          if (row.wasNull()) {
+            break;
+          }
+        }
+        long start = Math.floorDiv(first, periodMillis) * periodMillis;
+        long end = start + periodMillis;
+        if (end + SETTLE_MILLIS > now.getAsLong()) {
+          break;
+        }
+        long began = System.nanoTime();
+        games.setLong(1, Math.max(start, ratedUntil));
+        games.setLong(2, end);
+        int count = ratePeriod(games, start, end);
+        PERIODS.recordSince(began);
+        if (count < 0) {
+          // the store is full or closed; try again next time
+          break;
+        }
+        rated += count;
+        RATED.add(count);
+      }
+    }
+    return rated;
+  }
+
+  /**
+   * Rate the games of one period and queue the new ratings.
+   *
+   * @return number of games rated, or -1 if the ratings couldn't be queued.
+   */
+  private int ratePeriod(PreparedStatement games, long start, long end)
+      throws SQLException {
+    Map<TimeControl, Map<String, Results>> byPlayer =
+        new EnumMap<>(TimeControl.class);
+    int count = 0;
+    try (ResultSet row = games.executeQuery()) {
+      while (row.next()) {
+        String white = row.getString(1);
+        String black = row.getString(2);
+        TimeControl tc = timeControlOf(row.getString(3));
+        if (white == null || black == null || white.equals(black)
+            || tc == null) {
+          continue;
+        }
+        String result = row.getString(4);
+        double score = "1-0".equals(result) ? 1 : "0-1".equals(result) ? 0
+            : 0.5;
+        Map<String, Results> results =
+            byPlayer.computeIfAbsent(tc, t -> new HashMap<>());
+        Map<String, Rating> current = ratings.get(tc);
+        Rating whiteBefore = before(current.get(white), start);
+        Rating blackBefore = before(current.get(black), start);
+        results.computeIfAbsent(white, p -> new Results(whiteBefore))
+            .add(blackBefore, score);
+        results.computeIfAbsent(black, p -> new Results(blackBefore))
+            .add(whiteBefore, 1 - score);
+        count++;
+      }
+    }
+
+    Map<TimeControl, Map<String, Rating>> rated =
+        new EnumMap<>(TimeControl.class);
+    for (Map.Entry<TimeControl, Map<String, Results>> tc : byPlayer
+        .entrySet()) {
+      Map<String, Rating> after = new HashMap<>();
+      for (Map.Entry<String, Results> player : tc.getValue().entrySet()) {
+        Results results = player.getValue();
+        after.put(player.getKey(), Glicko2.rate(results.before,
+            results.opponents, results.scores, results.count, end));
+      }
+      rated.put(tc.getKey(), after);
+    }
+    if (!store.submit(s -> write(s, rated, end))) {
+      return -1;
+    }
+    BiConsumer<TimeControl, Map<String, Rating>> onRated = listener;
+    for (Map.Entry<TimeControl, Map<String, Rating>> tc : rated.entrySet()) {
+      ratings.get(tc.getKey()).putAll(tc.getValue());
+      if (onRated != null) {
+        onRated.accept(tc.getKey(),
+            Collections.unmodifiableMap(tc.getValue()));
+      }
+    }
+    ratedUntil = end;
+    return count;
+  }
+
+  /**
+   * Write the ratings of a period and its end, in one transaction with
+   * whatever else the writer commits.
+   */
+  private static void write(SqliteStore store,
+      Map<TimeControl, Map<String, Rating>> rated, long end)
+      throws SQLException {
+    PreparedStatement upsert = store.statement(UPSERT_RATING);
+    for (Map.Entry<TimeControl, Map<String, Rating>> tc : rated.entrySet()) {
+      for (Map.Entry<String, Rating> player : tc.getValue().entrySet()) {
+        Rating rating = player.getValue();
+        upsert.setString(1, player.getKey());
+        upsert.setString(2, tc.getKey().name());
+        upsert.setDouble(3, rating.getRating());
+        upsert.setDouble(4, rating.getDeviation());
+        upsert.setDouble(5, rating.getVolatility());
+        upsert.setInt(6, rating.getGames());
+        upsert.setLong(7, rating.getRatedAt());
+        upsert.addBatch();
+      }
+    }
+    upsert.executeBatch();
+    PreparedStatement update = store.statement(UPDATE_RATED);
+    update.setLong(1, end);
+    update.executeUpdate();
+  }
+
+  /**
+   * Get a rating as it stands at the start of a period, after the periods
+   * since it was last rated.
+   */
+  private Rating before(Rating rating, long start) {
+    if (rating == null) {
+      return Rating.UNRATED;
+    }
+    return Glicko2.idle(rating,
+        Math.max(0, (start - rating.getRatedAt()) / periodMillis));
+  }
+
+  private static TimeControl timeControlOf(String name) {
+    if (name == null) {
+      return null;
+    }
+    try {
+      return TimeControl.valueOf(name);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Rate the periods that are over every checkMillis on a thread of its
+   * own, starting now.
+   *
+   * @param checkMillis
+   *          Time between the end of one rating run and the start of the
+   *          next.
+   * @return the scheduler, to shut down.
+   */
+  public ScheduledExecutorService schedule(long checkMillis) {
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+          Thread thread = new Thread(runnable, "rating-periods");
+          thread.setDaemon(true);
+          return thread;
+        });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        long start = System.nanoTime();
+        long games = rate();
+        if (games > 0) {
+          System.out.printf("rated %d games in %d ms%n", games,
+              (System.nanoTime() - start) / 1000000);
+        }
+      } catch (SQLException | RuntimeException e) {
+        System.err.println("ERROR: rating games failed: " + e.getMessage());
+      }
+    }, 0, checkMillis, TimeUnit.MILLISECONDS);
+    return scheduler;
+  }
+
+  /**
+   * A player's games of a period.
+   */
+  private static final class Results {
+    private final Rating before;
+    private Rating[] opponents = new Rating[4];
+    private double[] scores = new double[4];
+    private int count = 0;
+
+    private Results(Rating before) {
+      this.before = before;
+    }
+
+    private void add(Rating opponent, double score) {
+      if (count == opponents.length) {
+        opponents = Arrays.copyOf(opponents, count * 2);
+        scores = Arrays.copyOf(scores, count * 2);
+      }
+      opponents[count] = opponent;
+      scores[count] = score;
+      count++;
+    }
+  }
+
+}
@@ -0,0 +1,317 @@
+package storage;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+
+/**
+ * SqliteStore is a SQLite database written behind the callers' backs. Writes
+ * are queued without blocking and applied by one thread, which takes
+ * whatever has queued up, applies it in a single transaction and commits, so
+ * the busier the server the bigger the batches. The database runs in WAL
+ * mode, where a commit appends to the log instead of rewriting pages and
+ * readers don't block the writer. Statements are prepared once per SQL
+ * string and reused.
+ *
+ * If the queue is full, e.g. because the disk stalls, writes are dropped and
+ * counted rather than holding up the games. A write the database rejects
+ * is lost on its own: its batch is rolled back and applied again a write at
+ * a time.
+ *
+ * @author knorms
+ *
+ */
+public final class SqliteStore implements AutoCloseable {
+  /**
+   * Writes the queue holds when not told otherwise.
+   */
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+
+  private static final int MAX_BATCH = 4096;
+  private static final long CLOSING_POLL_MILLIS = 100;
+
+  private final String url;
+  private final Connection connection;
+  private final Map<String, PreparedStatement> statements = new HashMap<>();
+  private final BlockingQueue<Write> queue;
+  private final Thread writer;
+  private volatile boolean closed = false;
+
+  private static final Set<SqliteStore> OPEN = ConcurrentHashMap.newKeySet();
+  private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+  private static final LongAdder DROPPED = METRICS.counter(
+      "chess_store_dropped_total",
+      "Writes dropped because a store's queue was full.");
+  private static final LongAdder FAILED = METRICS.counter(
+      "chess_store_failed_total",
+      "Writes the database rejected.");
+  private static final LongAdder WRITTEN = METRICS.counter(
+      "chess_store_written_total", "Writes committed to the database.");
+  private static final LatencyHistogram FLUSHES = METRICS.histogram(
+      "chess_store_flush_duration_seconds",
+      "Time to apply and commit one batch of writes.");
+
+  static {
+    METRICS.gauge("chess_store_queued", "Writes waiting for the database.",
+        () -> OPEN.stream().mapToLong(store -> store.queue.size()).sum());
+  }
+
+  /**
+   * A write to apply on the writer thread, inside its transaction.
+   */
+  public interface Write {
+    /**
+     * Apply the write.
+     *
+     * @param store
+     *          Store to get statements from.
+     * @throws SQLException
+     *           If the write fails; it is lost, the rest of its batch isn't.
+     */
+    void apply(SqliteStore store) throws SQLException;
+  }
+
+  /**
+   * Marks a point in the queue that flush waits for to be committed.
+   */
+  private static final class Flush implements Write {
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    @Override
+    public void apply(SqliteStore store) {
+    }
+  }
+
+  /**
+   * Open a database file, creating it if need be, with the default queue
+   * capacity.
+   *
+   * @param path
+   *          Path of the database file.
+   * @param schema
+   *          Statements run once at open, e.g. CREATE TABLE IF NOT EXISTS.
+   * @throws SQLException
+   *           If the database can't be opened.
+   */
+  public SqliteStore(String path, String... schema) throws SQLException {
+    this(path, DEFAULT_CAPACITY, schema);
+  }
+
+  /**
+   * Open a database file, creating it if need be.
+   *
+   * @param path
+   *          Path of the database file.
+   * @param capacity
+   *          Writes that may wait in the queue.
+   * @param schema
+   *          Statements run once at open, e.g. CREATE TABLE IF NOT EXISTS.
+   * @throws SQLException
+   *           If the database can't be opened.
+   */
+  public SqliteStore(String path, int capacity, String... schema)
+      throws SQLException {
+    url = "jdbc:sqlite:" + path;
+    connection = DriverManager.getConnection(url);
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("PRAGMA journal_mode=WAL");
+      // in WAL mode a crash can't corrupt the database with this, only lose
+      // the last commits
+      statement.execute("PRAGMA synchronous=NORMAL");
+      for (String sql : schema) {
+        statement.execute(sql);
+      }
+    }
+    connection.setAutoCommit(false);
+
+    queue = new ArrayBlockingQueue<>(capacity);
+    OPEN.add(this);
+    writer = new Thread(this::run, "sqlite-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queue a write without waiting.
+   *
+   * @param write
+   *          Write to apply later.
+   * @return false if it was dropped because the queue is full or the store
+   *         is closed.
+   */
+  public boolean submit(Write write) {
+    if (closed || !queue.offer(write)) {
+      DROPPED.increment();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Get a prepared statement, preparing it on first use. Only for writes,
+   * which run on the writer thread.
+   *
+   * @param sql
+   *          SQL of the statement.
+   * @return the statement, with its parameters still set from the last use.
+   * @throws SQLException
+   *           If the SQL is invalid.
+   */
+  public PreparedStatement statement(String sql) throws SQLException {
+    PreparedStatement statement = statements.get(sql);
+    if (statement == null) {
+      statement = connection.prepareStatement(sql);
+      statements.put(sql, statement);
+    }
+    return statement;
+  }
+
+  /**
+   * Open another connection to the database, e.g. for queries, which in WAL
+   * mode run alongside the writer.
+   *
+   * @return a new connection; the caller closes it.
+   * @throws SQLException
+   *           If the database can't be opened.
+   */
+  public Connection connect() throws SQLException {
+    return DriverManager.getConnection(url);
+  }
+
+  /**
+   * Wait until everything queued so far is committed.
+   *
+   * @param timeoutMillis
+   *          Longest time to wait.
+   * @return true if the queue emptied in time.
+   * @throws InterruptedException
+   *           If interrupted while waiting.
+   */
+  public boolean flush(long timeoutMillis) throws InterruptedException {
+    Flush flush = new Flush();
+    return submit(flush) && flush.done.await(timeoutMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop taking writes, commit what is queued and close the database.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    OPEN.remove(this);
+    writer.interrupt();
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    List<Write> batch = new ArrayList<>(MAX_BATCH);
+    // close's interrupt may be spent before the queue is drained, so once
+    // closed nothing waits for long
+    while (!closed || !queue.isEmpty()) {
+      try {
+        Write write = closed
+            ? queue.poll(CLOSING_POLL_MILLIS, TimeUnit.MILLISECONDS)
+            : queue.take();
+        if (write != null) {
+          batch.add(write);
+        }
+      } catch (InterruptedException e) {
+        // woken by close; commit what is left
+      }
+      queue.drainTo(batch, MAX_BATCH - batch.size());
+      if (!batch.isEmpty()) {
+        apply(batch);
+        batch.clear();
+      }
+    }
+    try {
+      for (PreparedStatement statement : statements.values()) {
+        statement.close();
+      }
+      connection.close();
+    } catch (SQLException e) {
+      System.err.println("ERROR: closing the database: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Apply a batch in one transaction, or if that fails, each write in its
+   * own so only the ones the database rejects are lost.
+   */
+  private void apply(List<Write> batch) {
+    long start = System.nanoTime();
+    try {
+      for (Write write : batch) {
+        write.apply(this);
+      }
+      connection.commit();
+      WRITTEN.add(batch.size());
+      for (Write write : batch) {
+        flushed(write);
+      }
+    } catch (SQLException | RuntimeException e) {
+      rollback();
+      for (Write write : batch) {
+        try {
+          write.apply(this);
+          connection.commit();
+          WRITTEN.increment();
+          flushed(write);
+        } catch (SQLException | RuntimeException rejected) {
+          FAILED.increment();
+          System.err.println("ERROR: lost a write: " + rejected.getMessage());
+          rollback();
+        }
+      }
+    }
+    FLUSHES.recordSince(start);
+  }
+
+  private static void flushed(Write write) {
+    if (write instanceof Flush) {
+      ((Flush) write).done.countDown();
+    }
+  }
+
+  /**
+   * Roll back, and prepare the statements again from then on: the driver
+   * leaves the ones of a failed transaction unusable.
+   */
+  private void rollback() {
+    try {
+      connection.rollback();
+    } catch (SQLException e) {
+      // the next commit will fail too and say so
+    }
+    for (PreparedStatement statement : statements.values()) {
+      try {
+        statement.close();
+      } catch (SQLException e) {
+        // it is dropped either way
+      }
+    }
+    statements.clear();
+  }
+
+}
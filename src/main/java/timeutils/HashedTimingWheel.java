@@ -0,0 +1,273 @@
+package timeutils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A HashedTimingWheel runs delayed tasks from a single thread with constant
+ * cost per scheduled task, however many are pending. Time is cut into ticks
+ * and a task lands in the bucket of the tick it is due in, modulo the wheel
+ * size; a task further away than one turn of the wheel counts down the turns
+ * left before it fires. Each tick only the tasks in one bucket are visited.
+ *
+ * Tasks fire up to one tick late, never early. They run on the wheel's thread,
+ * so they must be short and must not block.
+ *
+ * Scheduling and cancelling may happen from any thread: both are handed to the
+ * wheel's thread through lock-free queues, and a cancelled task is unlinked
+ * from its bucket on the next tick.
+ *
+ * @author knorms
+ *
+ */
+public final class HashedTimingWheel {
+  // most additions moved into buckets per tick, so a burst can't stall a tick
+  private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+  private final long tickNanos;
+  private final Bucket[] wheel;
+  private final int mask;
+  private final long startNanos;
+  private final Queue<Timeout> additions = new ConcurrentLinkedQueue<>();
+  private final Queue<Timeout> cancellations = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final Thread worker;
+  private volatile boolean running = true;
+  // ticks completed; only touched by the worker
+  private long tick = 0;
+
+  /**
+   * Construct and start a wheel.
+   *
+   * @param name
+   *          Name of the wheel's thread.
+   * @param tickMillis
+   *          Length of a tick in milliseconds; tasks fire up to this late.
+   * @param wheelSize
+   *          Number of buckets, rounded up to a power of two. Tasks due within
+   *          wheelSize ticks are visited once; later ones once per turn.
+   */
+  public HashedTimingWheel(String name, long tickMillis, int wheelSize) {
+    if (tickMillis <= 0 || wheelSize <= 0) {
+      throw new IllegalArgumentException(
+          "ERROR: tick and wheel size must be positive.");
+    }
+    int size = Integer.highestOneBit(wheelSize);
+    if (size < wheelSize) {
+      size <<= 1;
+    }
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    this.mask = size - 1;
+    this.startNanos = System.nanoTime();
+    this.worker = new Thread(this::run, name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Schedule a task.
+   *
+   * @param task
+   *          Task to run.
+   * @param delay
+   *          Time from now until the task is due.
+   * @param unit
+   *          Unit of delay.
+   * @return handle to cancel the task with.
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    long deadline = System.nanoTime() - startNanos
+        + Math.max(0, unit.toNanos(delay));
+    Timeout timeout = new Timeout(task, deadline);
+    pending.incrementAndGet();
+    additions.add(timeout);
+    return timeout;
+  }
+
+  /**
+   * @return the number of tasks that are scheduled and neither run nor
+   *         cancelled
+   */
+  public int pending() {
+    return pending.get();
+  }
+
+  /**
+   * Stop the wheel. Tasks that have not run yet never will.
+   */
+  public void stop() {
+    running = false;
+    worker.interrupt();
+  }
+
+  private void run() {
+    while (running) {
+      long deadline = tickNanos * (tick + 1);
+      long sleep = deadline - (System.nanoTime() - startNanos);
+      if (sleep > 0) {
+        LockSupport.parkNanos(this, sleep);
+        continue;
+      }
+      removeCancelled();
+      transferAdditions();
+      expire(wheel[(int) (tick & mask)], deadline);
+      tick++;
+    }
+  }
+
+  private void removeCancelled() {
+    Timeout timeout;
+    while ((timeout = cancellations.poll()) != null) {
+      if (timeout.bucket != null) {
+        timeout.bucket.remove(timeout);
+      }
+    }
+  }
+
+  private void transferAdditions() {
+    for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+      Timeout timeout = additions.poll();
+      if (timeout == null) {
+        return;
+      }
+      if (timeout.state.get() != Timeout.WAITING) {
+        continue;
+      }
+      long due = timeout.deadline / tickNanos;
+      timeout.remainingRounds = (due - tick) / wheel.length;
+      // anything already overdue goes into the current bucket
+      wheel[(int) (Math.max(due, tick) & mask)].add(timeout);
+    }
+  }
+
+  private void expire(Bucket bucket, long deadline) {
+    Timeout timeout = bucket.head;
+    while (timeout != null) {
+      Timeout next = timeout.next;
+      if (timeout.remainingRounds <= 0) {
+        bucket.remove(timeout);
+        if (timeout.deadline <= deadline) {
+          timeout.expire();
+        }
+      } else if (timeout.state.get() == Timeout.CANCELLED) {
+        bucket.remove(timeout);
+      } else {
+        timeout.remainingRounds--;
+      }
+      timeout = next;
+    }
+  }
+
+  /**
+   * Handle of a scheduled task.
+   *
+   * @author knorms
+   *
+   */
+  public final class Timeout {
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+    // the fields below are only touched by the worker
+    private long remainingRounds;
+    private Bucket bucket;
+    private Timeout prev;
+    private Timeout next;
+
+    private Timeout(Runnable task, long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Cancel the task if it hasn't run yet.
+     *
+     * @return true if this call cancelled the task.
+     */
+    public boolean cancel() {
+      if (!state.compareAndSet(WAITING, CANCELLED)) {
+        return false;
+      }
+      pending.decrementAndGet();
+      cancellations.add(this);
+      return true;
+    }
+
+    /**
+     * @return true if the task was cancelled
+     */
+    public boolean isCancelled() {
+      return state.get() == CANCELLED;
+    }
+
+    /**
+     * @return true if the task has run or is running
+     */
+    public boolean isExpired() {
+      return state.get() == EXPIRED;
+    }
+
+    private void expire() {
+      if (!state.compareAndSet(WAITING, EXPIRED)) {
+        return;
+      }
+      pending.decrementAndGet();
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // one failing task must not take the wheel down with it
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Doubly linked list of the timeouts hashed to one slot of the wheel.
+   */
+  private static final class Bucket {
+    private Timeout head;
+    private Timeout tail;
+
+    void add(Timeout timeout) {
+      timeout.bucket = this;
+      if (head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+
+    void remove(Timeout timeout) {
+      if (timeout.bucket != this) {
+        return;
+      }
+      if (timeout.prev != null) {
+        timeout.prev.next = timeout.next;
+      } else {
+        head = timeout.next;
+      }
+      if (timeout.next != null) {
+        timeout.next.prev = timeout.prev;
+      } else {
+        tail = timeout.prev;
+      }
+      timeout.prev = null;
+      timeout.next = null;
+      timeout.bucket = null;
+    }
+  }
+
+}
@@ -0,0 +1,403 @@
+package websockets;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import board.Location;
+import game.Move;
+import poweractions.PowerAction;
+import websockets.ChessWebSocket.MessageType;
+import websockets.SquareUpdate.EntityTypes;
+
+/**
+ * BinaryProtocol packs GAME_UPDATE traffic into a few bytes per square instead
+ * of verbose JSON objects. Clients opt in when connecting (/play?protocol=
+ * binary); everyone else keeps receiving JSON. See REST-api.txt for the
+ * layout.
+ *
+ * @author knorms
+ *
+ */
+public final class BinaryProtocol {
+  /**
+   * Query parameter used to request a protocol at connect.
+   */
+  public static final String PARAMETER = "protocol";
+
+  /**
+   * Value of the protocol parameter selecting the binary protocol.
+   */
+  public static final String BINARY = "binary";
+
+  static final int FLAG_MOVE = 0x04;
+  static final int FLAG_PROMPT = 0x08;
+  static final int FLAG_CLOCK = 0x10;
+  static final int ACTION_MASK = 0x03;
+
+  static final int MOVE_FRAME_LENGTH = 12;
+
+  private static final int SQUARE_MASK = 0x3F;
+  private static final int STATE_SHIFT = 6;
+  private static final int COLOR_BIT = 0x80;
+  private static final int INVULNERABLE_BIT = 0x08;
+  private static final int PIECE_MASK = 0x07;
+  private static final int RARITY_SHIFT = 6;
+  private static final int ID1_SHIFT = 3;
+  private static final int ID_MASK = 0x07;
+  private static final int MAX_UPDATES = 0xFF;
+
+  private static final Set<Session> BINARY_SESSIONS =
+      Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+  private BinaryProtocol() {
+  }
+
+  /**
+   * Check the upgrade request of a newly connected session and remember
+   * whether it asked for the binary protocol.
+   *
+   * @param session
+   *          Session that just connected.
+   * @return true if session will receive binary GAME_UPDATE frames.
+   */
+  public static boolean negotiate(Session session) {
+    Map<String, List<String>> params =
+        session.getUpgradeRequest().getParameterMap();
+    List<String> requested = params == null ? null : params.get(PARAMETER);
+    if (requested != null && requested.contains(BINARY)) {
+      BINARY_SESSIONS.add(session);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check whether a session negotiated the binary protocol.
+   *
+   * @param session
+   *          Session.
+   * @return true if session receives binary GAME_UPDATE frames.
+   */
+  public static boolean isBinary(Session session) {
+    return !BINARY_SESSIONS.isEmpty() && BINARY_SESSIONS.contains(session);
+  }
+
+  /**
+   * Forget a session's protocol when it closes.
+   *
+   * @param session
+   *          Session that closed.
+   */
+  public static void release(Session session) {
+    BINARY_SESSIONS.remove(session);
+  }
+
+  /**
+   * Pack a list of square updates: one count byte followed by two bytes per
+   * square.
+   *
+   * @param updates
+   *          Square updates.
+   * @return packed bytes.
+   */
+  public static byte[] encodeSquares(List<SquareUpdate> updates) {
+    int count = Math.min(updates.size(), MAX_UPDATES);
+    byte[] out = new byte[1 + 2 * count];
+    out[0] = (byte) count;
+    int i = 1;
+    for (int k = 0; k < count; k++) {
+      SquareUpdate u = updates.get(k);
+      out[i++] = (byte) (u.getState() << STATE_SHIFT | u.getSquare());
+      out[i++] = (byte) packValue(u);
+    }
+    return out;
+  }
+
+  /**
+   * Build a complete GAME_UPDATE frame around already packed squares.
+   *
+   * @param squares
+   *          Output of encodeSquares.
+   * @param seq
+   *          Sequence number of the update within its game.
+   * @param whiteMillis
+   *          White's remaining time in milliseconds, or -1 to leave the clocks
+   *          out.
+   * @param blackMillis
+   *          Black's remaining time in milliseconds.
+   * @param action
+   *          What the recipient has to do next.
+   * @param move
+   *          Move to show the recipient, or null.
+   * @param options
+   *          Power actions to prompt the recipient with, or null.
+   * @return frame ready to send.
+   */
+  public static ByteBuffer encodeGameUpdate(byte[] squares, int seq,
+      int whiteMillis, int blackMillis, int action, Move move,
+      List<PowerAction> options) {
+    boolean prompt = options != null && options.size() == 2;
+    boolean clock = whiteMillis >= 0;
+    int flags = action & ACTION_MASK;
+    int length = 2 + Integer.BYTES + squares.length;
+    if (clock) {
+      flags |= FLAG_CLOCK;
+      length += 2 * Integer.BYTES;
+    }
+    if (move != null) {
+      flags |= FLAG_MOVE;
+      length += 2;
+    }
+    if (prompt) {
+      flags |= FLAG_PROMPT;
+      length += 1;
+    }
+
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    buf.put((byte) MessageType.GAME_UPDATE.ordinal());
+    buf.put((byte) flags);
+    buf.putInt(seq);
+    if (clock) {
+      buf.putInt(whiteMillis);
+      buf.putInt(blackMillis);
+    }
+    if (move != null) {
+      buf.put((byte) squareOf(move.getStart()));
+      buf.put((byte) squareOf(move.getEnd()));
+    }
+    if (prompt) {
+      PowerAction first = options.get(0);
+      buf.put((byte) (first.getRarity().ordinal() << RARITY_SHIFT
+          | (first.getId() & ID_MASK) << ID1_SHIFT
+          | (options.get(1).getId() & ID_MASK)));
+    }
+    buf.put(squares);
+    buf.flip();
+    return buf;
+  }
+
+  /**
+   * Decode a GAME_UPDATE frame.
+   *
+   * @param buf
+   *          Frame bytes, positioned at the message type.
+   * @return decoded update.
+   * @throws IllegalArgumentException
+   *           If the frame is not a well formed GAME_UPDATE.
+   */
+  public static Decoded decodeGameUpdate(ByteBuffer buf) {
+    try {
+      int type = buf.get();
+      if (type != MessageType.GAME_UPDATE.ordinal()) {
+        throw new IllegalArgumentException(
+            "ERROR: frame is not a GAME_UPDATE.");
+      }
+      int flags = buf.get() & 0xFF;
+      Decoded decoded = new Decoded(flags & ACTION_MASK, buf.getInt());
+      if ((flags & FLAG_CLOCK) != 0) {
+        decoded.whiteMillis = buf.getInt();
+        decoded.blackMillis = buf.getInt();
+      }
+      if ((flags & FLAG_MOVE) != 0) {
+        Location from = locationOf(buf.get());
+        Location to = locationOf(buf.get());
+        decoded.move = new Move(from, to);
+      }
+      if ((flags & FLAG_PROMPT) != 0) {
+        int prompt = buf.get() & 0xFF;
+        decoded.rarity = prompt >>> RARITY_SHIFT;
+        decoded.id1 = prompt >>> ID1_SHIFT & ID_MASK;
+        decoded.id2 = prompt & ID_MASK;
+      }
+      decoded.updates = decodeSquares(buf);
+      return decoded;
+    } catch (java.nio.BufferUnderflowException e) {
+      throw new IllegalArgumentException("ERROR: truncated GAME_UPDATE.");
+    }
+  }
+
+  /**
+   * Decode a list of packed square updates.
+   *
+   * @param buf
+   *          Bytes positioned at the count byte.
+   * @return list of square updates.
+   */
+  public static List<SquareUpdate> decodeSquares(ByteBuffer buf) {
+    int count = buf.get() & 0xFF;
+    List<SquareUpdate> updates = new ArrayList<>(count);
+    for (int k = 0; k < count; k++) {
+      int a = buf.get() & 0xFF;
+      int b = buf.get() & 0xFF;
+      int square = a & SQUARE_MASK;
+      EntityTypes state = SquareUpdate.stateOf(a >>> STATE_SHIFT);
+      int value = b;
+      boolean white = false;
+      if (state == EntityTypes.PIECE) {
+        white = (b & COLOR_BIT) != 0;
+        value = b & PIECE_MASK;
+        if ((b & INVULNERABLE_BIT) != 0) {
+          value += SquareUpdate.INVULNERABLE_OFFSET;
+        }
+      }
+      updates.add(new SquareUpdate(square >>> 3, square & 7, state, value,
+          white));
+    }
+    return updates;
+  }
+
+  /**
+   * Encode a MOVE player action (what a binary client sends).
+   *
+   * @param gameId
+   *          Game id.
+   * @param playerId
+   *          Player id.
+   * @param move
+   *          Move to make.
+   * @return 12 byte frame.
+   */
+  public static ByteBuffer encodeMove(int gameId, int playerId, Move move) {
+    ByteBuffer buf = ByteBuffer.allocate(MOVE_FRAME_LENGTH);
+    buf.put((byte) MessageType.PLAYER_ACTION.ordinal());
+    buf.put((byte) ChessWebSocket.Action.MOVE.ordinal());
+    buf.putInt(gameId);
+    buf.putInt(playerId);
+    buf.put((byte) squareOf(move.getStart()));
+    buf.put((byte) squareOf(move.getEnd()));
+    buf.flip();
+    return buf;
+  }
+
+  /**
+   * Get the square index (row * 8 + col) of a location.
+   *
+   * @param loc
+   *          Location.
+   * @return square index from 0 to 63.
+   */
+  static int squareOf(Location loc) {
+    return loc.getRow() << 3 | loc.getCol();
+  }
+
+  /**
+   * Get the location of a square index.
+   *
+   * @param square
+   *          Square index from 0 to 63.
+   * @return Location.
+   */
+  static Location locationOf(int square) {
+    return new Location((square & SQUARE_MASK) >>> 3, square & 7);
+  }
+
+  private static int packValue(SquareUpdate u) {
+    if (u.getState() != EntityTypes.PIECE.ordinal()) {
+      return u.getValue();
+    }
+    int value = u.getValue();
+    int packed = 0;
+    if (value >= SquareUpdate.INVULNERABLE_OFFSET) {
+      value -= SquareUpdate.INVULNERABLE_OFFSET;
+      packed |= INVULNERABLE_BIT;
+    }
+    if (u.isWhite()) {
+      packed |= COLOR_BIT;
+    }
+    return packed | value;
+  }
+
+  /**
+   * A decoded binary GAME_UPDATE.
+   *
+   * @author knorms
+   *
+   */
+  public static final class Decoded {
+    private final int action;
+    private final int seq;
+    private int whiteMillis = -1;
+    private int blackMillis = -1;
+    private Move move;
+    private int rarity = -1;
+    private int id1 = -1;
+    private int id2 = -1;
+    private List<SquareUpdate> updates;
+
+    private Decoded(int action, int seq) {
+      this.action = action;
+      this.seq = seq;
+    }
+
+    /**
+     * @return the sequence number
+     */
+    public int getSeq() {
+      return seq;
+    }
+
+    /**
+     * @return white's remaining time in milliseconds or -1 if none was sent
+     */
+    public int getWhiteMillis() {
+      return whiteMillis;
+    }
+
+    /**
+     * @return black's remaining time in milliseconds or -1 if none was sent
+     */
+    public int getBlackMillis() {
+      return blackMillis;
+    }
+
+    /**
+     * @return the action
+     */
+    public int getAction() {
+      return action;
+    }
+
+    /**
+     * @return the move or null if none was sent
+     */
+    public Move getMove() {
+      return move;
+    }
+
+    /**
+     * @return the rarity of the power prompt or -1 if none was sent
+     */
+    public int getRarity() {
+      return rarity;
+    }
+
+    /**
+     * @return the id of the first power option or -1 if none was sent
+     */
+    public int getId1() {
+      return id1;
+    }
+
+    /**
+     * @return the id of the second power option or -1 if none was sent
+     */
+    public int getId2() {
+      return id2;
+    }
+
+    /**
+     * @return the square updates
+     */
+    public List<SquareUpdate> getUpdates() {
+      return updates;
+    }
+  }
+
+}
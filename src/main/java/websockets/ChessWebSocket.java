@@ -1,15 +1,24 @@
 package websockets;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
@@ -17,27 +26,33 @@ import org.eclipse.jetty.websocket.api.annotations.WebSocket;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
 import board.Board.EmptySpace;
 import board.BoardObject;
 import board.IllegalMoveException;
 import board.Location;
+import cluster.HashRing;
 import game.Color;
 import game.Game;
 import game.Game.GameState;
 import game.Game.TimeControl;
+import game.GameClock;
+import game.GameSnapshot;
 import game.Move;
-import pieces.Bishop;
-import pieces.King;
-import pieces.Knight;
+import leaderboard.Leaderboards;
+import metrics.LatencyHistogram;
+import metrics.MetricsRegistry;
+import metrics.TurnTracer;
 import pieces.Piece;
-import pieces.Queen;
-import pieces.Rook;
 import players.GuiPlayer;
 import players.Player;
+import storage.GameHistory;
+import storage.GameJournal;
+import storage.GameRecorder;
+import storage.GameRecorder.Recording;
 import poweractions.Armageddon;
 import poweractions.PieceMover;
 import poweractions.PowerAction;
@@ -47,6 +62,14 @@ import powerups.Invulnerability;
 import powerups.PowerObject;
 import powerups.PowerObject.Rarity;
 import powerups.PowerUp;
+import timeutils.HashedTimingWheel;
+import timeutils.HashedTimingWheel.Timeout;
+import websockets.GameReaper.Phase;
+import websockets.InboundMessage.Field;
+import websockets.RateLimiter.Verdict;
+import websockets.ResumeTokens.Binding;
+import websockets.SavedGame.SavedPlayer;
+import websockets.TokenBucket.Limit;
 
 /**
  * WebSocket allows server to communicate with client during games.
@@ -59,16 +82,146 @@ public class ChessWebSocket {
   private static final Gson GSON = new Gson();
   private static final Queue<Session> SESSIONS = new ConcurrentLinkedQueue<>();
 
-  private static int nextGameId = 0;
-  private static int nextPlayerId = 0;
+  // games are also created by the matchmaker's thread
+  private static final AtomicInteger NEXT_GAME_ID = new AtomicInteger();
+  private static final AtomicInteger NEXT_PLAYER_ID = new AtomicInteger();
 
-  private static final Map<Integer, Game> GAME_ID_MAP = new HashMap<>();
+  // in a cluster, this node only creates games the ring places on it, so ids
+  // are unique across nodes and the router can find a game from its id
+  private static volatile HashRing ring = null;
+  private static volatile String self = null;
+
+  // the grace, clock and reaper threads touch these too
+  private static final Map<Integer, Game> GAME_ID_MAP =
+      new ConcurrentHashMap<>();
   private static final Multimap<Integer, Player> GAME_PLAYER_MAP =
-      HashMultimap.create();
+      Multimaps.synchronizedSetMultimap(HashMultimap.create());
   private static final Map<Integer, Session> PLAYER_SESSION_MAP =
-      new HashMap<>();
-  private static final Map<Integer, Boolean> PLAYER_DRAW_MAP = new HashMap<>();
-  private static final Map<Session, Integer> SESSION_GAME_MAP = new HashMap<>();
+      new ConcurrentHashMap<>();
+  private static final Map<Integer, Boolean> PLAYER_DRAW_MAP =
+      new ConcurrentHashMap<>();
+  private static final Map<Session, Integer> SESSION_GAME_MAP =
+      new ConcurrentHashMap<>();
+  private static final Map<Session, Integer> SESSION_PLAYER_MAP =
+      new ConcurrentHashMap<>();
+  private static final Map<Integer, GameChannel> GAME_CHANNEL_MAP =
+      new ConcurrentHashMap<>();
+  private static final ResumeTokens RESUME_TOKENS = new ResumeTokens();
+
+  // every game's flag check lives on one wheel; a tick bounds how late a flag
+  // is noticed
+  private static final long CLOCK_TICK_MILLIS = 100;
+  private static final HashedTimingWheel CLOCKS =
+      new HashedTimingWheel("clock-wheel", CLOCK_TICK_MILLIS, 1024);
+  private static final Map<Integer, Timeout> FLAG_TIMEOUTS =
+      new ConcurrentHashMap<>();
+
+  private static final long REAPER_SWEEP_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final GameReaper REAPER =
+      new GameReaper(ChessWebSocket::phaseOf, ChessWebSocket::reap);
+
+  // rough retained size of a game for the reaper's accounting: board, pieces
+  // and power state, then per move of history and per buffered square update
+  private static final long GAME_BASE_BYTES = 24 * 1024;
+  private static final long MOVE_BYTES = 64;
+  private static final long SQUARE_UPDATE_BYTES = 48;
+
+  static {
+    REAPER.start(REAPER_SWEEP_MILLIS);
+  }
+
+  // frames are checked against these before they are parsed
+  private static final int MAX_FRAME_CHARS = 4096;
+  private static final RateLimiter<Session> LIMITER = new RateLimiter<>(
+      new Limit(10, 5), new Limit(400, 200), new Limit(20, 1),
+      System::nanoTime);
+
+  // SPAWN and GIVE are only for testing powers by hand
+  private static volatile boolean debug = false;
+
+  // set while the games are handed over to another server; a game is not
+  // changed once it has been written out
+  private static volatile boolean draining = false;
+  // reason a game's record here ends with once another server has it
+  private static final String HANDED_OVER = "HANDED_OVER";
+  // ids of the games written out, until they have been taken over
+  private static final Queue<Integer> EXPORTED = new ConcurrentLinkedQueue<>();
+
+  // games are recorded from when both players are in until they end
+  private static volatile GameRecorder recorder = null;
+  private static final Map<Integer, Recording> RECORDINGS =
+      new ConcurrentHashMap<>();
+  // wins of the recorded games are counted here as they end
+  private static volatile Leaderboards leaderboards = null;
+
+  // every change to the games created from now on is logged here
+  private static volatile GameJournal journal = null;
+
+  static {
+    LIMITER.setLimit(MessageType.PLAYER_ACTION, new Limit(20, 10));
+    LIMITER.setLimit(MessageType.CREATE_GAME, new Limit(5, 0.5));
+    LIMITER.setLimit(MessageType.JOIN_GAME, new Limit(5, 0.5));
+    LIMITER.setLimit(MessageType.REQUEST_DRAW, new Limit(3, 0.5));
+    LIMITER.setLimit(MessageType.GAME_OVER, new Limit(3, 0.5));
+    LIMITER.setLimit(MessageType.RESYNC, new Limit(5, 2));
+    LIMITER.setLimit(MessageType.RESUME, new Limit(5, 1));
+    LIMITER.setLimit(MessageType.WATCH, new Limit(5, 1));
+    LIMITER.setLimit(MessageType.SPAWN, new Limit(5, 2));
+    LIMITER.setLimit(MessageType.GIVE, new Limit(5, 2));
+  }
+
+  // recording never locks or allocates, so these stay on in production
+  private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+  private static final String LATENCY = "chess_message_duration_seconds";
+  private static final LatencyHistogram[] TYPE_LATENCY =
+      new LatencyHistogram[MessageType.values().length];
+  private static final LatencyHistogram[] ACTION_LATENCY =
+      new LatencyHistogram[Action.values().length];
+  private static final LongAdder ILLEGAL_ACTIONS = METRICS.counter(
+      "chess_illegal_actions_total", "ILLEGAL_ACTION responses sent.");
+  private static final LongAdder ERRORS = METRICS.counter(
+      "chess_errors_total", "ERROR responses sent.");
+
+  static {
+    String help = "Time to decode and handle a /play message, including "
+        + "waiting for its game.";
+    for (MessageType type : MessageType.values()) {
+      if (type == MessageType.PLAYER_ACTION) {
+        for (Action action : Action.values()) {
+          ACTION_LATENCY[action.ordinal()] = METRICS.histogram(LATENCY, help,
+              "type", type.name(), "action", action.name());
+        }
+      } else if (MessageDecoder.isInbound(type)) {
+        TYPE_LATENCY[type.ordinal()] = METRICS.histogram(LATENCY, help,
+            "type", type.name(), "action", "");
+      }
+    }
+    METRICS.gauge("chess_games", "Games in memory.", GAME_ID_MAP::size);
+    METRICS.gauge("chess_sessions", "Open /play connections.",
+        SESSIONS::size);
+    METRICS.gauge("chess_clock_timeouts", "Flag checks on the clock wheel.",
+        CLOCKS::pending);
+    METRICS.counter("chess_frames_dropped_total",
+        "Frames dropped by the rate limiter.", LIMITER::getDropped);
+    METRICS.counter("chess_sessions_disconnected_total",
+        "Sessions closed for flooding.", LIMITER::getDisconnected);
+    for (Phase phase : Phase.values()) {
+      METRICS.counter("chess_games_reaped_total",
+          "Idle games evicted by the reaper.",
+          () -> REAPER.getReclaimed(phase), "phase", phase.name());
+    }
+    METRICS.counter("chess_reaped_bytes_total",
+        "Estimated bytes freed by evicting idle games.",
+        REAPER::getBytesReclaimed);
+  }
+
+  // messages whose content never changes are encoded once up front
+  private static final OutboundFrame ERROR =
+      typeOnlyFrame(MessageType.ERROR);
+  private static final OutboundFrame ILLEGAL_ACTION =
+      typeOnlyFrame(MessageType.ILLEGAL_ACTION);
+  private static final OutboundFrame DRAW_REQUEST =
+      typeOnlyFrame(MessageType.REQUEST_DRAW);
 
   /**
    * Enumerates allowable websocket message types.
@@ -76,9 +229,10 @@ public class ChessWebSocket {
    * @author dwoods
    *
    */
-  private enum MessageType {
+  enum MessageType {
     CREATE_GAME, JOIN_GAME, GAME_OVER, REQUEST_DRAW, PLAYER_ACTION, GAME_UPDATE,
-    ILLEGAL_ACTION, ERROR, SPAWN, GIVE
+    ILLEGAL_ACTION, ERROR, SPAWN, GIVE, RESYNC, KEYFRAME, RESUME, WATCH,
+    REDIRECT
   }
 
   /**
@@ -87,7 +241,7 @@ public class ChessWebSocket {
    * @author dwoods
    *
    */
-  private enum Action {
+  enum Action {
     NONE, MOVE, SELECT_POWER
   }
 
@@ -97,8 +251,8 @@ public class ChessWebSocket {
    * @author dwoods
    *
    */
-  private enum GameEndReason {
-    MATE, RESIGNATION, TIME, DRAW_AGREED
+  enum GameEndReason {
+    MATE, RESIGNATION, TIME, DRAW_AGREED, ABANDONED
   }
 
   /**
@@ -111,27 +265,6 @@ public class ChessWebSocket {
     WIN, LOSS, DRAW
   }
 
-  /**
-   * Enumerates types of entities that can be interacted with (on board and
-   * off).
-   *
-   * @author dwoods
-   *
-   */
-  private enum EntityTypes {
-    NOTHING, PIECE, POWER, OTHER
-  }
-
-  /**
-   * Enumerates the types of chess pieces.
-   *
-   * @author dwoods
-   *
-   */
-  private enum PieceIds {
-    KING, QUEEN, ROOK, BISHOP, KNIGHT, PAWN
-  }
-
   /**
    * Enumerates common powers.
    *
@@ -163,13 +296,16 @@ public class ChessWebSocket {
   }
 
   /**
-   * Enumerates all other entities that could appear on the board.
-   *
-   * @author knorms
+   * Create a frame for a message consisting of only its type.
    *
+   * @param type
+   *          Message type.
+   * @return OutboundFrame with only the type field.
    */
-  private enum OtherEntities {
-    BLACK_HOLE
+  private static OutboundFrame typeOnlyFrame(MessageType type) {
+    JsonObject message = new JsonObject();
+    message.addProperty("type", type.ordinal());
+    return new OutboundFrame(message);
   }
 
   /**
@@ -183,10 +319,13 @@ public class ChessWebSocket {
   @OnWebSocketConnect
   public void connected(Session session) throws IOException {
     SESSIONS.add(session);
+    LIMITER.open(session, addressOf(session));
+    BinaryProtocol.negotiate(session);
   }
 
   /**
-   * Remove session from the queue.
+   * Remove session from the queue. If the session belonged to a player, their
+   * seat is kept for a grace window so they can resume with their token.
    *
    * @param session
    *          Session to be removed.
@@ -198,19 +337,214 @@ public class ChessWebSocket {
   @OnWebSocketClose
   public void closed(Session session, int statusCode, String reason) {
     SESSIONS.remove(session);
-    try {
-      int gameId = SESSION_GAME_MAP.get(session);
+    LIMITER.close(session);
+    BinaryProtocol.release(session);
+    Integer gameId = SESSION_GAME_MAP.remove(session);
+    Integer playerId = SESSION_PLAYER_MAP.remove(session);
+    if (gameId == null) {
+      return;
+    }
+    if (playerId == null) {
+      // a spectator
+      GameChannel channel = GAME_CHANNEL_MAP.get(gameId);
+      if (channel != null) {
+        channel.unwatch(session);
+      }
+      return;
+    }
 
-      // if only one player ever joined game, them remove game
-      if (GAME_PLAYER_MAP.get(gameId).size() == 1) {
-        Game game = GAME_ID_MAP.remove(gameId);
-        GAME_PLAYER_MAP.removeAll(game);
-        SESSION_GAME_MAP.remove(session);
-        HomeWebSocket.gameRemoved(gameId);
+    PLAYER_SESSION_MAP.remove(playerId, session);
+    if (!draining) {
+      // the player resumes on the server the game moved to
+      RESUME_TOKENS.startGrace(playerId, () -> abandon(gameId, playerId));
+    }
+  }
+
+  /**
+   * Called when a disconnected player did not resume within the grace window.
+   * The game ends; an opponent, if any, wins.
+   *
+   * @param gameId
+   *          Game of the player.
+   * @param playerId
+   *          Player that left.
+   */
+  private static void abandon(int gameId, int playerId) {
+    Game game = GAME_ID_MAP.get(gameId);
+    if (game == null) {
+      return;
+    }
+    synchronized (game) {
+      if (PLAYER_SESSION_MAP.containsKey(playerId)) {
+        return;
+      }
+
+      int otherId = getOtherId(gameId, playerId);
+      if (otherId != -1) {
+        OutboundFrame gameOver = createGameOverFrame(GameEndReason.ABANDONED);
+        try {
+          gameOver.sendTo(PLAYER_SESSION_MAP.get(otherId), "result",
+              GameResult.WIN.ordinal());
+        } catch (IOException e) {
+          // the other player will find out when they resume
+        }
+        gameEnded(gameId, gameOver, playerId, GameResult.LOSS,
+            GameEndReason.ABANDONED);
+      }
+      removeGame(gameId);
+    }
+  }
+
+  /**
+   * Record the result of a game that ended and tell its spectators, once its
+   * players have been told. Spectators see the result from white's side.
+   *
+   * @param gameId
+   *          Game that ended.
+   * @param gameOver
+   *          GAME_OVER frame without a result.
+   * @param playerId
+   *          A player of the game.
+   * @param result
+   *          That player's result.
+   * @param reason
+   *          Why the game ended.
+   */
+  private static void gameEnded(int gameId, OutboundFrame gameOver,
+      int playerId, GameResult result, GameEndReason reason) {
+    GameResult whiteResult = result;
+    for (Player player : GAME_PLAYER_MAP.get(gameId)) {
+      if (player.getId() == playerId && player.getColor() != Color.WHITE
+          && result != GameResult.DRAW) {
+        whiteResult = result == GameResult.WIN ? GameResult.LOSS
+            : GameResult.WIN;
+      }
+    }
+
+    Recording recording = RECORDINGS.remove(gameId);
+    GameRecorder gameRecorder = recorder;
+    if (recording != null && gameRecorder != null) {
+      String score = whiteResult == GameResult.DRAW ? "1/2-1/2"
+          : whiteResult == GameResult.WIN ? "1-0" : "0-1";
+      gameRecorder.finish(recording, score, reason.name());
+      Leaderboards boards = leaderboards;
+      if (boards != null) {
+        boards.finished(recording.getTimeControl(), recording.getWhite(),
+            recording.getBlack(), score);
       }
-    } catch (NullPointerException e) {
-      // pass
     }
+    // a finished game is not brought back after a crash
+    GameJournal gameJournal = journal;
+    if (gameJournal != null) {
+      gameJournal.ended(gameId);
+    }
+
+    GameChannel channel = GAME_CHANNEL_MAP.get(gameId);
+    if (channel != null && channel.spectatorCount() > 0) {
+      channel.sendToSpectators(
+          gameOver.with("result", whiteResult.ordinal()));
+    }
+  }
+
+  /**
+   * Forget a game and everything kept for it and its players: take it out of
+   * the lobby, stop its clock, revoke its players' resume tokens and detach
+   * their sessions, which stay open.
+   *
+   * @param gameId
+   *          Game to remove.
+   */
+  private static void removeGame(int gameId) {
+    HomeWebSocket.gameRemoved(gameId);
+    REAPER.forget(gameId);
+    GAME_ID_MAP.remove(gameId);
+    GAME_CHANNEL_MAP.remove(gameId);
+    Timeout flag = FLAG_TIMEOUTS.remove(gameId);
+    if (flag != null) {
+      flag.cancel();
+    }
+    Recording recording = RECORDINGS.remove(gameId);
+    GameRecorder gameRecorder = recorder;
+    if (recording != null && gameRecorder != null) {
+      // evicted or left before it had a result
+      gameRecorder.finish(recording, "*", null);
+    }
+    GameJournal gameJournal = journal;
+    if (gameJournal != null) {
+      gameJournal.ended(gameId);
+    }
+    for (Player player : GAME_PLAYER_MAP.removeAll(gameId)) {
+      int playerId = player.getId();
+      RESUME_TOKENS.revoke(playerId);
+      PLAYER_DRAW_MAP.remove(playerId);
+      Session session = PLAYER_SESSION_MAP.remove(playerId);
+      if (session != null) {
+        // closing the socket later must not start a grace window
+        SESSION_PLAYER_MAP.remove(session, playerId);
+        SESSION_GAME_MAP.remove(session, gameId);
+      }
+    }
+  }
+
+  /**
+   * Get the phase of a game for the reaper.
+   *
+   * @param gameId
+   *          Game id.
+   * @return phase or null if there is no such game.
+   */
+  private static Phase phaseOf(int gameId) {
+    Game game = GAME_ID_MAP.get(gameId);
+    if (game == null) {
+      return null;
+    } else if (game.getGameOverStatus()
+        || game.getGameState() == GameState.GAME_OVER) {
+      return Phase.OVER;
+    }
+    return GAME_PLAYER_MAP.get(gameId).size() < 2 ? Phase.WAITING
+        : Phase.PLAYING;
+  }
+
+  /**
+   * Evict a game the reaper found idle.
+   *
+   * @param gameId
+   *          Game id.
+   * @return estimated bytes freed, or -1 if the game was already gone.
+   */
+  private static long reap(int gameId) {
+    Game game = GAME_ID_MAP.get(gameId);
+    if (game == null) {
+      return -1;
+    }
+    synchronized (game) {
+      GameChannel channel = GAME_CHANNEL_MAP.get(gameId);
+      long bytes = GAME_BASE_BYTES + MOVE_BYTES * game.getHistory().size();
+      if (channel != null) {
+        bytes += SQUARE_UPDATE_BYTES * channel.bufferedSquares();
+      }
+      removeGame(gameId);
+      return bytes;
+    }
+  }
+
+  /**
+   * Set how long games in a phase may stay idle before they are evicted.
+   *
+   * @param phase
+   *          Phase of the game.
+   * @param ttlMillis
+   *          Time-to-live in milliseconds.
+   */
+  public static void setGameTtl(Phase phase, long ttlMillis) {
+    REAPER.setTtl(phase, ttlMillis);
+  }
+
+  /**
+   * @return the reaper of idle games, for its counters
+   */
+  public static GameReaper getReaper() {
+    return REAPER;
   }
 
   /**
@@ -226,12 +560,93 @@ public class ChessWebSocket {
    */
   @OnWebSocketMessage
   public void message(Session session, String message) throws IOException {
-    JsonObject received = GSON.fromJson(message, JsonObject.class);
+    // the client sends empty frames to keep the connection alive
+    if (message.isEmpty()) {
+      if (LIMITER.checkKeepAlive(session) == Verdict.DISCONNECT) {
+        disconnect(session);
+      }
+      return;
+    }
+
+    boolean oversized = message.length() > MAX_FRAME_CHARS;
+    MessageType peeked = oversized ? null : MessageDecoder.peekType(message);
+    Verdict verdict = LIMITER.check(session, peeked);
+    if (verdict == Verdict.DISCONNECT) {
+      disconnect(session);
+      return;
+    } else if (verdict == Verdict.DROP) {
+      return;
+    }
+
+    long start = System.nanoTime();
+    InboundMessage received;
+    try {
+      if (oversized) {
+        throw new MalformedMessageException("ERROR: frame too long.");
+      }
+      received = MessageDecoder.decode(message);
+    } catch (MalformedMessageException e) {
+      sendError(session);
+      return;
+    }
+    // the frame was charged to the type it seemed to have
+    if (received.getType() != peeked) {
+      sendError(session);
+      return;
+    }
+
+    // a game is touched by one message (or clock) at a time
+    Game game = received.has(Field.GAME_ID)
+        ? GAME_ID_MAP.get(received.getGameId()) : null;
+    try {
+      if (game == null) {
+        if (draining) {
+          redirect(session, null);
+        } else {
+          dispatch(session, received);
+        }
+      } else {
+        REAPER.touch(received.getGameId());
+        synchronized (game) {
+          if (draining) {
+            redirect(session, null);
+          } else {
+            dispatch(session, received);
+          }
+        }
+      }
+    } finally {
+      latencyOf(received).recordSince(start);
+    }
+  }
 
-    int typeIndex = received.get("type").getAsInt();
-    MessageType messageType = MessageType.values()[typeIndex];
+  /**
+   * Get the histogram timing a kind of message.
+   *
+   * @param received
+   *          Decoded message.
+   * @return histogram of its type, or of its action for player actions.
+   */
+  private static LatencyHistogram latencyOf(InboundMessage received) {
+    if (received.getType() == MessageType.PLAYER_ACTION) {
+      return ACTION_LATENCY[received.getAction().ordinal()];
+    }
+    return TYPE_LATENCY[received.getType().ordinal()];
+  }
 
-    switch (messageType) {
+  /**
+   * Hand a decoded message to its handler.
+   *
+   * @param session
+   *          Session that sent message.
+   * @param received
+   *          Message recieved.
+   * @throws IOException
+   *           In case the response doesn't get sent properly.
+   */
+  private void dispatch(Session session, InboundMessage received)
+      throws IOException {
+    switch (received.getType()) {
       case CREATE_GAME:
         createGame(session, received);
         break;
@@ -245,12 +660,10 @@ public class ChessWebSocket {
         break;
 
       case PLAYER_ACTION:
-        int actionIndex = received.get("action").getAsInt();
-        Action action = Action.values()[actionIndex];
-
-        switch (action) {
+        switch (received.getAction()) {
           case MOVE:
-            makeMove(session, received);
+            makeMove(session, received.getGameId(), received.getPlayerId(),
+                received.getMove());
             break;
           case SELECT_POWER:
             powerSelect(session, received);
@@ -266,11 +679,31 @@ public class ChessWebSocket {
         break;
 
       case SPAWN:
-        spawn(session, received);
+        if (debug) {
+          spawn(session, received);
+        } else {
+          sendError(session);
+        }
         break;
 
       case GIVE:
-        give(session, received);
+        if (debug) {
+          give(session, received);
+        } else {
+          sendError(session);
+        }
+        break;
+
+      case RESYNC:
+        resync(session, received);
+        break;
+
+      case RESUME:
+        resume(session, received);
+        break;
+
+      case WATCH:
+        watch(session, received);
         break;
 
       default:
@@ -279,6 +712,65 @@ public class ChessWebSocket {
     }
   }
 
+  /**
+   * Respond to binary frames sent by clients that negotiated the binary
+   * protocol. Only MOVE player actions are sent in binary; everything else
+   * still arrives as JSON.
+   *
+   * @param session
+   *          Session that sent message.
+   * @param buf
+   *          Frame payload.
+   * @param offset
+   *          Offset of the frame in buf.
+   * @param length
+   *          Length of the frame.
+   * @throws IOException
+   *           In case the response doesn't get sent properly.
+   */
+  @OnWebSocketMessage
+  public void message(Session session, byte[] buf, int offset, int length)
+      throws IOException {
+    Verdict verdict = LIMITER.check(session, MessageType.PLAYER_ACTION);
+    if (verdict == Verdict.DISCONNECT) {
+      disconnect(session);
+      return;
+    } else if (verdict == Verdict.DROP) {
+      return;
+    }
+
+    long start = System.nanoTime();
+    ByteBuffer frame = ByteBuffer.wrap(buf, offset, length);
+    if (length != BinaryProtocol.MOVE_FRAME_LENGTH
+        || frame.get() != MessageType.PLAYER_ACTION.ordinal()
+        || frame.get() != Action.MOVE.ordinal()) {
+      sendError(session);
+      return;
+    }
+
+    int gameId = frame.getInt();
+    int playerId = frame.getInt();
+    Move move = new Move(BinaryProtocol.locationOf(frame.get()),
+        BinaryProtocol.locationOf(frame.get()));
+    Game game = GAME_ID_MAP.get(gameId);
+    if (game == null) {
+      sendError(session);
+      return;
+    }
+    REAPER.touch(gameId);
+    try {
+      synchronized (game) {
+        if (draining) {
+          redirect(session, null);
+        } else {
+          makeMove(session, gameId, playerId, move);
+        }
+      }
+    } finally {
+      ACTION_LATENCY[Action.MOVE.ordinal()].recordSince(start);
+    }
+  }
+
   /**
    * Respond to message to intentionally spawn a PowerObject box at a specified
    * location.
@@ -286,41 +778,33 @@ public class ChessWebSocket {
    * @param session
    *          Session.
    * @param received
-   *          Information recieved.
+   *          Message recieved.
    * @throws IOException
    *           In case the response JsonObject doesn't get sent properly.
    */
-  private void spawn(Session session, JsonObject received) throws IOException {
+  private void spawn(Session session, InboundMessage received) throws IOException {
     try {
-      int gameId = received.get("gameId").getAsInt();
-      int row = received.get("row").getAsInt();
-      int col = received.get("col").getAsInt();
-      int rarityIndex = received.get("rarity").getAsInt();
+      int gameId = received.getGameId();
+      int rarityIndex = received.getRarity();
 
       PowerObject powerObj = PowerObject.ofRarity(Rarity.values()[rarityIndex]);
-      Location loc = new Location(row, col);
+      Location loc = new Location(received.getRow(), received.getCol());
       Game game = GAME_ID_MAP.get(gameId);
       game.spawnPowerObject(loc, powerObj);
 
-      JsonArray updates = new JsonArray();
-      updates.add(createPowerObjectUpdate(loc, powerObj));
-
-      JsonObject response = new JsonObject();
-      response.addProperty("type", MessageType.GAME_UPDATE.ordinal());
-      response.add("updates", updates);
+      GameUpdate updates = new GameUpdate();
+      updates.add(SquareUpdate.powerObject(loc, powerObj));
+      GAME_CHANNEL_MAP.get(gameId).publish(updates, null, game);
 
       Collection<Player> playerCollection = GAME_PLAYER_MAP.get(gameId);
       Session sesh;
       for (Player player : playerCollection) {
         sesh = PLAYER_SESSION_MAP.get(player.getId());
         if (game.getActivePlayer() == player) {
-          response.remove("action");
-          response.addProperty("action", Action.MOVE.ordinal());
+          updates.sendTo(sesh, Action.MOVE);
         } else {
-          response.remove("action");
-          response.addProperty("action", Action.NONE.ordinal());
+          updates.sendTo(sesh, Action.NONE);
         }
-        sesh.getRemote().sendString(GSON.toJson(response));
       }
 
     } catch (IllegalArgumentException | IndexOutOfBoundsException
@@ -337,22 +821,19 @@ public class ChessWebSocket {
    * @param session
    *          Session.
    * @param received
-   *          Information recieved.
+   *          Message recieved.
    * @throws IOException
    *           In case the response JsonObject doesn't get sent properly.
    */
-  private void give(Session session, JsonObject received) throws IOException {
+  private void give(Session session, InboundMessage received) throws IOException {
     try {
-      int gameId = received.get("gameId").getAsInt();
-      int id1 = received.get("id1").getAsInt();
-      int id2 = received.get("id2").getAsInt();
-      int rarityIndex = received.get("rarity").getAsInt();
+      int gameId = received.getGameId();
+      int id1 = received.getId1();
+      int id2 = received.getId2();
+      int rarityIndex = received.getRarity();
       Rarity rarity = Rarity.values()[rarityIndex];
 
-      JsonObject locObject = received.get("whereCaptured").getAsJsonObject();
-      int row = locObject.get("row").getAsInt();
-      int col = locObject.get("col").getAsInt();
-      Location whereCaptured = new Location(row, col);
+      Location whereCaptured = received.getWhereCaptured();
       Game game = GAME_ID_MAP.get(gameId);
       assert game.getActivePlayer().getColor() == game.getPieceAt(whereCaptured)
           .getColor();
@@ -390,25 +871,17 @@ public class ChessWebSocket {
       game.addActionOption(action2);
       game.setGameState(GameState.WAITING_FOR_POWERUP_CHOICE);
 
-      JsonObject response = received;
-      received.remove("type");
-      received.addProperty("type", MessageType.GAME_UPDATE.ordinal());
-      received.add("updates", new JsonArray());
-
+      GameUpdate prompt = GAME_CHANNEL_MAP.get(gameId)
+          .publish(new GameUpdate(), null, game);
       Collection<Player> playerCollection = GAME_PLAYER_MAP.get(gameId);
       Session sesh;
       for (Player player : playerCollection) {
         sesh = PLAYER_SESSION_MAP.get(player.getId());
         if (game.getActivePlayer() == player) {
-          response.remove("action");
-          response.addProperty("action", Action.SELECT_POWER.ordinal());
-          sesh.getRemote().sendString(GSON.toJson(response));
+          prompt.sendTo(sesh, Action.SELECT_POWER, null,
+              game.getActionOptions());
         } else {
-          JsonObject otherResponse = new JsonObject();
-          otherResponse.addProperty("type", MessageType.GAME_UPDATE.ordinal());
-          otherResponse.add("updates", new JsonArray());
-          otherResponse.addProperty("action", Action.NONE.ordinal());
-          sesh.getRemote().sendString(GSON.toJson(otherResponse));
+          prompt.sendTo(sesh, Action.NONE);
         }
       }
 
@@ -422,33 +895,47 @@ public class ChessWebSocket {
 
   /**
    * Called when server receives a GAME_OVER message. Server will inform both
-   * players that the game is over and why (e.g. time, forfeit).
+   * players that the game is over and why. Clients may only resign: a claim
+   * that a clock ran out is checked against the server's clock, and any other
+   * reason is refused.
    *
    * @param session
    *          The session of the player requesting a draw.
    * @param received
-   *          The JsonObject sent by session.
+   *          The message sent by session.
    * @throws IOException
    *           In case the response message couldn't be sent back properly.
    */
-  private void gameOver(Session session, JsonObject received)
+  private void gameOver(Session session, InboundMessage received)
       throws IOException {
-    int playerId = received.get("playerId").getAsInt();
-    int gameId = received.get("gameId").getAsInt();
-    int reason = received.get("reason").getAsInt();
+    int playerId = received.getPlayerId();
+    int gameId = received.getGameId();
+    int reason = received.getReason();
+    if (PLAYER_SESSION_MAP.get(playerId) != session) {
+      sendError(session);
+      return;
+    }
+
+    if (reason == GameEndReason.TIME.ordinal()) {
+      checkFlag(gameId);
+      return;
+    } else if (reason != GameEndReason.RESIGNATION.ordinal()) {
+      sendIllegalAction(session);
+      return;
+    }
 
     // If other player id exists, then update them too
     int otherId = getOtherId(gameId, playerId);
     if (otherId != -1) {
       Session otherSession = PLAYER_SESSION_MAP.get(otherId);
-      JsonObject response =
-          createGameOverUpdate(GameEndReason.values()[reason], GameResult.WIN,
-              gameId);
-      otherSession.getRemote().sendString(GSON.toJson(response));
+      OutboundFrame gameOver =
+          createGameOverFrame(GameEndReason.values()[reason]);
+      gameOver.sendTo(otherSession, "result", GameResult.WIN.ordinal());
+      gameEnded(gameId, gameOver, otherId, GameResult.WIN,
+          GameEndReason.RESIGNATION);
     }
 
-    GAME_PLAYER_MAP.removeAll(gameId);
-    GAME_ID_MAP.remove(gameId);
+    removeGame(gameId);
 
   }
 
@@ -460,14 +947,19 @@ public class ChessWebSocket {
    * @param session
    *          The session of the player requesting a draw.
    * @param received
-   *          The JsonObject sent by session.
+   *          The message sent by session.
    * @throws IOException
    *           In case the response message couldn't be sent back properly.
    */
-  private void requestDraw(Session session, JsonObject received)
+  private void requestDraw(Session session, InboundMessage received)
       throws IOException {
-    int playerId = received.get("playerId").getAsInt();
-    int gameId = received.get("gameId").getAsInt();
+    int playerId = received.getPlayerId();
+    int gameId = received.getGameId();
+    Game game = GAME_ID_MAP.get(gameId);
+    if (game == null || PLAYER_SESSION_MAP.get(playerId) != session) {
+      sendError(session);
+      return;
+    }
     int otherId = getOtherId(gameId, playerId);
 
     // If other player id does not exist. Return an illegal action message.
@@ -481,16 +973,16 @@ public class ChessWebSocket {
     Session otherSession = PLAYER_SESSION_MAP.get(otherId);
     // If the other player is awaiting a draw message, end game. Otherwise a
     if (otherDraw) {
-      JsonObject response =
-          createGameOverUpdate(GameEndReason.DRAW_AGREED, GameResult.DRAW,
-              gameId);
-
-      session.getRemote().sendString(GSON.toJson(response));
-      otherSession.getRemote().sendString(GSON.toJson(response));
+      stopClock(gameId);
+      // kept until the reaper's time for finished games runs out
+      game.setGameState(GameState.GAME_OVER);
+      OutboundFrame frame = createGameOverFrame(GameEndReason.DRAW_AGREED);
+      frame.sendTo(session, "result", GameResult.DRAW.ordinal());
+      frame.sendTo(otherSession, "result", GameResult.DRAW.ordinal());
+      gameEnded(gameId, frame, playerId, GameResult.DRAW,
+          GameEndReason.DRAW_AGREED);
     } else {
-      JsonObject response = new JsonObject();
-      response.addProperty("type", MessageType.REQUEST_DRAW.ordinal());
-      otherSession.getRemote().sendString(GSON.toJson(response));
+      DRAW_REQUEST.sendTo(otherSession);
     }
   }
 
@@ -502,20 +994,34 @@ public class ChessWebSocket {
    * @param session
    *          The session of the player requesting a draw.
    * @param received
-   *          The JsonObject sent by session.
+   *          The message sent by session.
    * @throws IOException
    *           In case the response message couldn't be sent back properly.
    */
-  private void powerSelect(Session session, JsonObject received)
+  private void powerSelect(Session session, InboundMessage received)
       throws IOException {
-    boolean selection = received.get("selection").getAsBoolean();
-    int gameId = received.get("gameId").getAsInt();
-    int playerId = received.get("playerId").getAsInt();
+    boolean selection = received.getSelection();
+    int gameId = received.getGameId();
+    int playerId = received.getPlayerId();
     Game game = GAME_ID_MAP.get(gameId);
+    if (game == null || PLAYER_SESSION_MAP.get(playerId) != session) {
+      sendError(session);
+      return;
+    }
+    // only the player who captured the box chooses, and only while choosing
+    // (a follow-up that was refused may be sent again)
+    Player active = game.getActivePlayer();
+    GameState state = game.getGameState();
+    if (active == null || active.getId() != playerId
+        || state != GameState.WAITING_FOR_POWERUP_CHOICE
+            && state != GameState.WAITING_FOR_POWERUP_EXEC) {
+      sendIllegalAction(session);
+      return;
+    }
 
     List<PowerAction> actionOptions = game.getActionOptions();
     int index = selection ? 0 : 1;
-    if (actionOptions.size() == 0) {
+    if (index >= actionOptions.size()) {
       sendError(session);
       return;
     }
@@ -528,7 +1034,7 @@ public class ChessWebSocket {
     Collection<BoardObject> preLoc = null, preStart = null, preEnd = null;
 
     game.setGameState(GameState.WAITING_FOR_POWERUP_EXEC);
-    if (!received.has("followUp") && selected.inputFormat() != null) {
+    if (!received.hasFollowUp() && selected.inputFormat() != null) {
       sendError(session);
       return;
     }
@@ -536,19 +1042,14 @@ public class ChessWebSocket {
     Object input = null;
     Move move = null;
 
-    if (received.has("followUp")) {
-      JsonObject followUp = received.get("followUp").getAsJsonObject();
-      if (followUp.has("row")) {
-        int row = followUp.get("row").getAsInt();
-        int col = followUp.get("col").getAsInt();
-        input = new Location(row, col);
-        preLoc = game.getObjsAt((Location) input);
-      } else if (followUp.has("from")) {
-        move = getMove(followUp);
-        input = move.getEnd();
-        preStart = game.getObjsAt(move.getStart());
-        preEnd = game.getObjsAt(move.getEnd());
-      }
+    if (received.getFollowUpLocation() != null) {
+      input = received.getFollowUpLocation();
+      preLoc = game.getObjsAt((Location) input);
+    } else if (received.getFollowUpMove() != null) {
+      move = received.getFollowUpMove();
+      input = move.getEnd();
+      preStart = game.getObjsAt(move.getStart());
+      preEnd = game.getObjsAt(move.getEnd());
     }
 
     // if input not valid, return ILLEGAL_ACTION
@@ -561,7 +1062,7 @@ public class ChessWebSocket {
     game.executePowerAction(input);
     game.setGameState(GameState.WAITING_FOR_MOVE);
 
-    JsonArray updates = new JsonArray();
+    GameUpdate updates = new GameUpdate();
     // Check where captured
     updates.addAll(getDifference(whereCaptured, preWhereCaptured, game));
 
@@ -586,12 +1087,12 @@ public class ChessWebSocket {
       // update invulnerability at king locs
       for (Location loc : ((Armageddon) selected).getKingLocations()) {
         Piece p = game.getPieceAt(loc);
-        updates.add(createInvulnerableUpdate(loc, p));
+        updates.add(SquareUpdate.invulnerable(loc, p));
       }
 
       // update pawn locs have nothing
       for (Location loc : ((Armageddon) selected).getPawnLocations()) {
-        updates.add(createEmptyUpdate(loc));
+        updates.add(SquareUpdate.empty(loc));
       }
 
       // If Rewind, check game history
@@ -603,11 +1104,11 @@ public class ChessWebSocket {
       // if rewind was actually executed, end will be empty
       if (game.isEmpty(end)) {
         // update that former end loc is empty
-        updates.add(createEmptyUpdate(end));
+        updates.add(SquareUpdate.empty(end));
 
         // update that piece is back at former start loc
         Piece p = game.getPieceAt(start);
-        updates.add(createPieceUpdate(start, p));
+        updates.add(SquareUpdate.piece(start, p));
 
       }
 
@@ -617,54 +1118,40 @@ public class ChessWebSocket {
       Piece p = game.getPieceAt(loc);
       if (loc != null && p != null) {
         // update that endloc now has a piece
-        updates.add(createPieceUpdate(loc, p));
+        updates.add(SquareUpdate.piece(loc, p));
       }
     }
 
-    JsonObject response = new JsonObject();
-    response.addProperty("type", MessageType.GAME_UPDATE.ordinal());
-    response.add("updates", updates);
+    runClock(gameId, game);
+    GAME_CHANNEL_MAP.get(gameId).publish(updates, null, game);
 
+    // update active player
     List<PowerAction> actions = game.getActionOptions();
     if (actions.isEmpty()) {
-      response.addProperty("action", Action.NONE.ordinal());
+      updates.sendTo(session, Action.NONE);
     } else {
-      response.addProperty("action", Action.SELECT_POWER.ordinal());
-      PowerAction action1 = actions.get(0);
-      response.addProperty("rarity", action1.getRarity().ordinal());
-      response.addProperty("id1", action1.getId());
-      PowerAction action2 = actions.get(1);
-      response.addProperty("id2", action2.getId());
+      updates.sendTo(session, Action.SELECT_POWER, null, actions);
     }
 
-    // update active player
-    session.getRemote().sendString(GSON.toJson(response));
-
     // If other player id exists, then update them too
     int otherId = getOtherId(gameId, playerId);
     if (otherId != -1) {
       Session otherSession = PLAYER_SESSION_MAP.get(otherId);
-      response.remove("action");
       if (actions.isEmpty()) {
-        response.addProperty("action", Action.MOVE.ordinal());
+        updates.sendTo(otherSession, Action.MOVE);
       } else {
-        response.addProperty("action", Action.NONE.ordinal());
-        response.remove("rarity");
-        response.remove("id1");
-        response.remove("id2");
+        updates.sendTo(otherSession, Action.NONE);
       }
-      otherSession.getRemote().sendString(GSON.toJson(response));
     }
 
     if (game.getGameOverStatus()) {
-      response =
-          createGameOverUpdate(GameEndReason.MATE, GameResult.WIN, gameId);
-      session.getRemote().sendString(GSON.toJson(response));
+      OutboundFrame gameOver = createGameOverFrame(GameEndReason.MATE);
+      gameOver.sendTo(session, "result", GameResult.WIN.ordinal());
 
-      response.remove("result");
-      response.addProperty("result", GameResult.LOSS.ordinal());
       Session otherSession = PLAYER_SESSION_MAP.get(otherId);
-      otherSession.getRemote().sendString(GSON.toJson(response));
+      gameOver.sendTo(otherSession, "result", GameResult.LOSS.ordinal());
+      gameEnded(gameId, gameOver, playerId, GameResult.WIN,
+          GameEndReason.MATE);
     }
   }
 
@@ -674,26 +1161,62 @@ public class ChessWebSocket {
    * player as to the changed board state.
    *
    * @param session
-   *          The session of the player requesting a draw.
-   * @param received
-   *          The JsonObject sent by session.
+   *          The session of the player making the move.
+   * @param gameId
+   *          Id of the game.
+   * @param playerId
+   *          Id of the moving player.
+   * @param move
+   *          Move to make.
    * @throws IOException
    *           In case the response message couldn't be sent back properly.
    */
-  private void makeMove(Session session, JsonObject received)
+  private void makeMove(Session session, int gameId, int playerId, Move move)
       throws IOException {
-    JsonObject moveJson = received.get("move").getAsJsonObject();
-    Move move = getMove(moveJson);
-
-    int gameId = received.get("gameId").getAsInt();
-    int playerId = received.get("playerId").getAsInt();
     Game game = GAME_ID_MAP.get(gameId);
+    if (game == null || game.getActivePlayer() == null
+        || PLAYER_SESSION_MAP.get(playerId) != session) {
+      sendError(session);
+      return;
+    }
     Player player = game.getActivePlayer();
     player.setMove(move);
 
+    TurnTracer.getDefault().begin(gameId);
+    try {
+      playTurn(session, gameId, playerId, game, player, move);
+      TurnTracer.end();
+    } finally {
+      // a turn that threw isn't timed; once it has ended this does nothing
+      TurnTracer.discard();
+    }
+  }
+
+  /**
+   * Play a turn of makeMove and send its updates, marking its phases on the
+   * turn being traced.
+   *
+   * @param session
+   *          The session of the player making the move.
+   * @param gameId
+   *          Id of the game.
+   * @param playerId
+   *          Id of the moving player.
+   * @param game
+   *          The game, locked.
+   * @param player
+   *          The active player, with the move set.
+   * @param move
+   *          Move to make.
+   * @throws IOException
+   *           In case the response message couldn't be sent back properly.
+   */
+  private void playTurn(Session session, int gameId, int playerId, Game game,
+      Player player, Move move) throws IOException {
     try {
       game.turn();
     } catch (IllegalMoveException e) {
+      TurnTracer.discard();
       // If illegal move, send back an illegal action to session owner
       sendIllegalAction(session);
       return;
@@ -704,22 +1227,22 @@ public class ChessWebSocket {
 
     // updates is a list of all changes in the board state after the turn gets
     // executed (not counting the move itself).
-    JsonArray updates = new JsonArray();
+    GameUpdate updates = new GameUpdate();
 
     List<Location> castling = game.getCastling();
     // If the player just castled, add that to updates.
     if (castling.size() == 2) {
       Location loc1 = castling.get(0);
-      updates.add(createEmptyUpdate(loc1));
+      updates.add(SquareUpdate.empty(loc1));
 
       Location loc2 = castling.get(1);
       Piece p = game.getPieceAt(loc2);
-      updates.add(createPieceUpdate(loc2, p));
+      updates.add(SquareUpdate.piece(loc2, p));
     }
 
     Location enPassant = game.getEnPassant();
     if (enPassant != null) {
-      updates.add(createEmptyUpdate(enPassant));
+      updates.add(SquareUpdate.empty(enPassant));
     }
     // If there are any power ups to update (any that ran out after executing
     // this turn)
@@ -728,12 +1251,12 @@ public class ChessWebSocket {
 
       // If the powerup was a blackhole
       if (power instanceof BlackHole) {
-        updates.add(createEmptyUpdate(loc));
+        updates.add(SquareUpdate.empty(loc));
 
         // If its invulnerability
       } else if (power instanceof Invulnerability) {
         Piece p = game.getPieceAt(loc);
-        updates.add(createPieceUpdate(loc, p));
+        updates.add(SquareUpdate.piece(loc, p));
       }
 
     }
@@ -742,7 +1265,7 @@ public class ChessWebSocket {
     // If a power up was spawned, add the power up and its location to update
     for (Location loc : addedPowerUp.keySet()) {
       PowerObject powerObj = addedPowerUp.get(loc);
-      updates.add(createPowerObjectUpdate(loc, powerObj));
+      updates.add(SquareUpdate.powerObject(loc, powerObj));
     }
 
     /*
@@ -752,109 +1275,203 @@ public class ChessWebSocket {
     if (game.getGameState() == GameState.WAITING_FOR_PROMOTE) {
       Location loc = game.executePromotionToQueen();
       Piece p = game.getPieceAt(loc);
-      updates.add(createPieceUpdate(loc, p));
+      updates.add(SquareUpdate.piece(loc, p));
     }
 
-    JsonObject response = new JsonObject();
-    response.addProperty("type", MessageType.GAME_UPDATE.ordinal());
-    response.add("updates", updates);
-
-    // send valid message back
-    JsonObject otherResponse = new JsonObject();
-    otherResponse.addProperty("type", MessageType.GAME_UPDATE.ordinal());
-    otherResponse.add("move", moveJson);
-    otherResponse.add("updates", updates);
+    // the updates are shared by both players and encoded once; each player's
+    // own fields are added when sending
+    TurnTracer.mark(TurnTracer.Phase.BUILD_UPDATES);
+    runClock(gameId, game);
+    GAME_CHANNEL_MAP.get(gameId).publish(updates, move, game);
+    TurnTracer.mark(TurnTracer.Phase.PUBLISH);
     List<PowerAction> actions = game.getActionOptions();
 
-    // If the move captured a power up, request a power up selection;
-    if (!actions.isEmpty()) {
-      response.addProperty("action", Action.SELECT_POWER.ordinal());
-      otherResponse.addProperty("action", Action.NONE.ordinal());
-      PowerAction action1 = actions.get(0);
-      response.addProperty("rarity", action1.getRarity().ordinal());
-      response.addProperty("id1", action1.getId());
-      PowerAction action2 = actions.get(1);
-      response.addProperty("id2", action2.getId());
-
-      // Otherwise, tell the session owner that their turn is over and tell the
-      // other player
-      // that their turn has started
-    } else {
-      response.addProperty("action", Action.NONE.ordinal());
-      otherResponse.addProperty("action", Action.MOVE.ordinal());
-    }
-
+    OutboundFrame gameOver = null;
     if (game.getGameOverStatus()) {
-      response = new JsonObject();
-      response.addProperty("type", MessageType.GAME_OVER.ordinal());
-      response.addProperty("reason", GameEndReason.MATE.ordinal());
-      response.addProperty("result", GameResult.WIN.ordinal());
-
-      session.getRemote().sendString(GSON.toJson(response));
+      gameOver = createGameOverFrame(GameEndReason.MATE);
+      gameOver.sendTo(session, "result", GameResult.WIN.ordinal());
+      gameEnded(gameId, gameOver, player.getId(), GameResult.WIN,
+          GameEndReason.MATE);
+    } else if (!actions.isEmpty()) {
+      // If the move captured a power up, request a power up selection;
+      updates.sendTo(session, Action.SELECT_POWER, null, actions);
+    } else {
+      // Otherwise, tell the session owner that their turn is over and tell the
+      // other player that their turn has started
+      updates.sendTo(session, Action.NONE);
     }
 
-    session.getRemote().sendString(GSON.toJson(response));
     Collection<Player> playerList = GAME_PLAYER_MAP.get(gameId);
     Session otherSession;
     for (Player p : playerList) {
       if (p.getId() != playerId) {
         otherSession = PLAYER_SESSION_MAP.get(p.getId());
-        otherSession.getRemote().sendString(GSON.toJson(otherResponse));
+        updates.sendTo(otherSession,
+            actions.isEmpty() ? Action.MOVE : Action.NONE, move, null);
 
-        if (game.getGameOverStatus()) {
-          response.remove("result");
-          response.addProperty("result", GameResult.LOSS.ordinal());
-          otherSession.getRemote().sendString(GSON.toJson(response));
+        if (gameOver != null) {
+          gameOver.sendTo(otherSession, "result", GameResult.LOSS.ordinal());
         }
-        return;
+        break;
       }
     }
+    TurnTracer.mark(TurnTracer.Phase.SEND);
   }
 
   /**
-   * Returns the integer value id of the given piece. (NOTE: this is different
-   * than the rank of the piece used in game).
+   * Called when a client noticed a gap in the sequence numbers of its
+   * GAME_UPDATEs. Replies with a RESYNC holding every square changed since
+   * the last update the client applied, or with a KEYFRAME of the whole board
+   * if those updates are no longer buffered.
    *
-   * @param p
-   *          The piece to get the id of.
-   * @return The integer id of the piece.
+   * @param session
+   *          The session of the player that fell behind.
+   * @param received
+   *          The message sent by session.
+   * @throws IOException
+   *           In case the response message couldn't be sent back properly.
    */
-  private int getPieceValue(Piece p) {
-    if (p instanceof King) {
-      return PieceIds.KING.ordinal();
-    } else if (p instanceof Queen) {
-      return PieceIds.QUEEN.ordinal();
-    } else if (p instanceof Bishop) {
-      return PieceIds.BISHOP.ordinal();
-    } else if (p instanceof Rook) {
-      return PieceIds.ROOK.ordinal();
-    } else if (p instanceof Knight) {
-      return PieceIds.KNIGHT.ordinal();
-    } else {
-      return PieceIds.PAWN.ordinal();
+  private void resync(Session session, InboundMessage received)
+      throws IOException {
+    int gameId = received.getGameId();
+    int playerId = received.getPlayerId();
+    Game game = GAME_ID_MAP.get(gameId);
+    GameChannel channel = GAME_CHANNEL_MAP.get(gameId);
+    if (game == null || channel == null
+        || PLAYER_SESSION_MAP.get(playerId) != session) {
+      sendError(session);
+      return;
     }
+
+    sendReplay(session, channel.resync(received.getSeq(), game), game,
+        playerId);
   }
 
   /**
-   * Reads a move from the given JsonObject and returns the move.
+   * Send a RESYNC or KEYFRAME along with what the player has to do next.
    *
-   * @param moveJson
-   *          JsonObject containing the a "from" and "to" JsonObject, each with
-   *          their own "row" and "col" ints.
-   * @return A move, starting from from.row and from.col and ending at to.row
-   *         and to.col.
+   * @param session
+   *          Session of the player.
+   * @param reply
+   *          RESYNC or KEYFRAME update.
+   * @param game
+   *          Game of the player.
+   * @param playerId
+   *          Id of the player.
+   * @throws IOException
+   *           In case the reply couldn't be sent properly.
    */
-  private Move getMove(JsonObject moveJson) {
-    JsonObject from = moveJson.get("from").getAsJsonObject();
-    JsonObject to = moveJson.get("to").getAsJsonObject();
-    int fromRow = from.get("row").getAsInt();
-    int fromCol = from.get("col").getAsInt();
-    int toRow = to.get("row").getAsInt();
-    int toCol = to.get("col").getAsInt();
-    Location startLocation = new Location(fromRow, fromCol);
-    Location endLocation = new Location(toRow, toCol);
-    Move move = new Move(startLocation, endLocation);
-    return move;
+  private void sendReplay(Session session, GameUpdate reply, Game game,
+      int playerId) throws IOException {
+    Player active = game.getActivePlayer();
+    List<PowerAction> actions = game.getActionOptions();
+    if (active == null || active.getId() != playerId) {
+      reply.sendTo(session, Action.NONE);
+    } else if (actions.isEmpty()) {
+      reply.sendTo(session, Action.MOVE);
+    } else {
+      reply.sendTo(session, Action.SELECT_POWER, null, actions);
+    }
+  }
+
+  /**
+   * Called when a client reconnects and presents the token it was given at
+   * CREATE_GAME or JOIN_GAME. The new session is attached to the existing
+   * player, the player's game details are sent back, and the updates it
+   * missed are replayed.
+   *
+   * @param session
+   *          The new session of the player.
+   * @param received
+   *          The message sent by session.
+   * @throws IOException
+   *           In case the response message couldn't be sent back properly.
+   */
+  private void resume(Session session, InboundMessage received)
+      throws IOException {
+    Binding binding = RESUME_TOKENS.lookup(received.getToken());
+    Game game = binding == null ? null : GAME_ID_MAP.get(binding.getGameId());
+    if (game == null) {
+      sendError(session);
+      return;
+    }
+    int gameId = binding.getGameId();
+    int playerId = binding.getPlayerId();
+
+    JsonObject response = new JsonObject();
+    synchronized (game) {
+      RESUME_TOKENS.endGrace(playerId);
+      Session old = PLAYER_SESSION_MAP.put(playerId, session);
+      if (old != null && old != session) {
+        // the old connection is stale; make sure closing it starts no grace
+        SESSION_PLAYER_MAP.remove(old);
+        SESSION_GAME_MAP.remove(old);
+        old.close();
+      }
+      SESSION_PLAYER_MAP.put(session, playerId);
+      SESSION_GAME_MAP.put(session, gameId);
+      if (PLAYER_SESSION_MAP.containsKey(getOtherId(gameId, playerId))) {
+        // a matched game starts once both players have arrived
+        runClock(gameId, game);
+      }
+
+      response.addProperty("type", MessageType.RESUME.ordinal());
+      response.addProperty("gameId", gameId);
+      response.addProperty("playerId", playerId);
+      response.addProperty("timeControl", game.getTimeControl().ordinal());
+      for (Player player : GAME_PLAYER_MAP.get(gameId)) {
+        if (player.getId() == playerId) {
+          response.addProperty("color", player.getColor() == Color.WHITE);
+        } else {
+          response.addProperty("name", player.getName());
+        }
+      }
+    }
+
+    OutboundFrame.send(session, GSON.toJson(response));
+    sendReplay(session, GAME_CHANNEL_MAP.get(gameId)
+        .resync(received.getSeq(), game), game, playerId);
+  }
+
+  /**
+   * Called when a client asks to watch a game. The spectator is told who is
+   * playing, then receives a KEYFRAME of the board followed by every update of
+   * the game.
+   *
+   * @param session
+   *          The session of the spectator.
+   * @param received
+   *          The message sent by session.
+   * @throws IOException
+   *           In case the response message couldn't be sent back properly.
+   */
+  private void watch(Session session, InboundMessage received)
+      throws IOException {
+    int gameId = received.getGameId();
+    Game game = GAME_ID_MAP.get(gameId);
+    GameChannel channel = GAME_CHANNEL_MAP.get(gameId);
+    if (game == null || channel == null
+        || SESSION_PLAYER_MAP.containsKey(session)) {
+      sendError(session);
+      return;
+    }
+
+    JsonObject response = new JsonObject();
+    response.addProperty("type", MessageType.WATCH.ordinal());
+    response.addProperty("gameId", gameId);
+    response.addProperty("timeControl", game.getTimeControl().ordinal());
+    for (Player player : GAME_PLAYER_MAP.get(gameId)) {
+      response.addProperty(player.getColor() == Color.WHITE ? "white" : "black",
+          player.getName());
+    }
+    OutboundFrame.send(session, GSON.toJson(response));
+
+    Integer watching = SESSION_GAME_MAP.put(session, gameId);
+    if (watching != null && watching != gameId
+        && GAME_CHANNEL_MAP.containsKey(watching)) {
+      GAME_CHANNEL_MAP.get(watching).unwatch(session);
+    }
+    channel.watch(session, game);
   }
 
   /**
@@ -865,56 +1482,120 @@ public class ChessWebSocket {
    * @param session
    *          The session of the client creating the game,
    * @param received
-   *          The JsonObject sent by session.
+   *          The message sent by session.
    * @throws IOException
    *           In case the response JsonObject doesn't get sent properly.
    */
-  private void createGame(Session session, JsonObject received)
+  private void createGame(Session session, InboundMessage received)
       throws IOException {
     Game game = new Game();
-    int gameId = nextGameId;
-    nextGameId++;
-    GAME_ID_MAP.put(gameId, game);
-    SESSION_GAME_MAP.put(session, gameId);
-
-    boolean isPublic = received.get("public").getAsBoolean();
+    int gameId = nextGameId();
+    boolean isPublic = received.isPublic();
     game.setPublic(isPublic);
 
-    int timeControlIndex = received.get("timeControl").getAsInt();
+    int timeControlIndex = received.getTimeControl();
     game.setTimeControl(TimeControl.values()[timeControlIndex]);
 
-    boolean colorBool = received.get("color").getAsBoolean();
+    boolean colorBool = received.getColor();
     Color playerColor = Color.BLACK;
     if (colorBool) {
       playerColor = Color.WHITE;
     }
-    String name = received.get("name").getAsString();
-    int playerId = nextPlayerId;
+    String name = received.getName();
+    int playerId = NEXT_PLAYER_ID.getAndIncrement();
     GuiPlayer player = new GuiPlayer(playerColor, playerId, name);
 
-    nextPlayerId++;
-    PLAYER_SESSION_MAP.put(playerId, session);
+    JsonObject response = new JsonObject();
+    // registered, then logged, under the lock: a checkpoint either finds the
+    // game and waits for it, or starts before its STARTED in the journal
+    synchronized (game) {
+      GAME_ID_MAP.put(gameId, game);
+      GAME_CHANNEL_MAP.put(gameId,
+          new GameChannel(new GameClock(game.getTimeControl())));
+      startJournal(gameId, game);
+      SESSION_GAME_MAP.put(session, gameId);
+      REAPER.touch(gameId);
 
-    PLAYER_DRAW_MAP.put(playerId, false);
+      PLAYER_SESSION_MAP.put(playerId, session);
+      SESSION_PLAYER_MAP.put(session, playerId);
 
-    List<Integer> playerList = new ArrayList<>();
-    playerList.add(playerId);
-    GAME_PLAYER_MAP.put(gameId, player);
+      PLAYER_DRAW_MAP.put(playerId, false);
 
-    game.addPlayer(player);
+      List<Integer> playerList = new ArrayList<>();
+      playerList.add(playerId);
+      GAME_PLAYER_MAP.put(gameId, player);
 
-    JsonObject response = new JsonObject();
-    response.addProperty("type", MessageType.CREATE_GAME.ordinal());
-    response.addProperty("gameId", gameId);
-    response.addProperty("playerId", playerId);
+      game.addPlayer(player);
+
+      response.addProperty("type", MessageType.CREATE_GAME.ordinal());
+      response.addProperty("gameId", gameId);
+      response.addProperty("playerId", playerId);
+      response.addProperty("token", issueToken(gameId, player));
+    }
 
-    session.getRemote().sendString(GSON.toJson(response));
+    OutboundFrame.send(session, GSON.toJson(response));
 
     if (game.isPublic()) {
-      JsonObject gameUpdate = createGameUpdate(gameId);
-      gameUpdate.addProperty("gameId", gameId);
-      HomeWebSocket.gameAdded(gameUpdate);
+      HomeWebSocket.gameAdded(gameId, game.getTimeControl(), name,
+          playerColor);
+    }
+  }
+
+  /**
+   * Creates a private game for two players the matchmaker paired, with
+   * colors assigned at random. Neither player has a session on /play yet:
+   * each is sent a token and attaches by resuming with it. A player who
+   * doesn't arrive within the resume grace window abandons the game. The
+   * clock starts when both have arrived.
+   *
+   * @param timeControl
+   *          Time control of the game.
+   * @param name1
+   *          Name of the first player.
+   * @param name2
+   *          Name of the second player.
+   * @return for each player in the order given, the game details they need:
+   *         {gameId, playerId, color, name (of the opponent), timeControl,
+   *         token}.
+   */
+  public static JsonObject[] createMatch(TimeControl timeControl,
+      String name1, String name2) {
+    boolean firstIsWhite = ThreadLocalRandom.current().nextBoolean();
+    String[] names = {name1, name2};
+    Color[] colors = firstIsWhite ? new Color[] {Color.WHITE, Color.BLACK}
+        : new Color[] {Color.BLACK, Color.WHITE};
+
+    Game game = new Game();
+    game.setPublic(false);
+    game.setTimeControl(timeControl);
+    int gameId = nextGameId();
+    JsonObject[] details = new JsonObject[2];
+    synchronized (game) {
+      // logged once registered, as in createGame, so no checkpoint misses it
+      GAME_ID_MAP.put(gameId, game);
+      GAME_CHANNEL_MAP.put(gameId,
+          new GameChannel(new GameClock(timeControl)));
+      startJournal(gameId, game);
+      for (int i = 0; i < 2; i++) {
+        int playerId = NEXT_PLAYER_ID.getAndIncrement();
+        GuiPlayer player = new GuiPlayer(colors[i], playerId, names[i]);
+        GAME_PLAYER_MAP.put(gameId, player);
+        PLAYER_DRAW_MAP.put(playerId, false);
+        game.addPlayer(player);
+
+        details[i] = new JsonObject();
+        details[i].addProperty("gameId", gameId);
+        details[i].addProperty("playerId", playerId);
+        details[i].addProperty("color", colors[i] == Color.WHITE);
+        details[i].addProperty("name", names[1 - i]);
+        details[i].addProperty("timeControl", timeControl.ordinal());
+        details[i].addProperty("token", issueToken(gameId, player));
+        RESUME_TOKENS.startGrace(playerId, () -> abandon(gameId, playerId));
+      }
+      startRecording(gameId, game);
+      REAPER.touch(gameId);
     }
+    return details;
   }
 
   /**
@@ -925,15 +1606,14 @@ public class ChessWebSocket {
    * @param session
    *          Session of the client trying to join the game.
    * @param received
-   *          JsonObject send by session.
+   *          The message sent by session.
    * @throws IOException
    *           If the response JsonObject fails to send properly.
    */
-  private void addPlayer(Session session, JsonObject received)
+  private void addPlayer(Session session, InboundMessage received)
       throws IOException {
-    int playerId = nextPlayerId;
-    nextPlayerId++;
-    int gameId = received.get("gameId").getAsInt();
+    int playerId = NEXT_PLAYER_ID.getAndIncrement();
+    int gameId = received.getGameId();
     Color playerColor;
     try {
       Game game = GAME_ID_MAP.get(gameId);
@@ -944,7 +1624,7 @@ public class ChessWebSocket {
         sendError(session);
         return;
       }
-      String name = received.get("name").getAsString();
+      String name = received.getName();
       GuiPlayer player = new GuiPlayer(playerColor, playerId, name);
 
       String existingPlayerName;
@@ -960,7 +1640,7 @@ public class ChessWebSocket {
         responseToOther.addProperty("name", name);
         Session otherSession = PLAYER_SESSION_MAP.get(existingPlayer.getId());
         existingPlayerName = existingPlayer.getName();
-        otherSession.getRemote().sendString(GSON.toJson(responseToOther));
+        new OutboundFrame(responseToOther).sendTo(otherSession);
 
       } else {
         sendIllegalAction(session);
@@ -968,9 +1648,13 @@ public class ChessWebSocket {
       }
 
       PLAYER_SESSION_MAP.put(playerId, session);
+      SESSION_PLAYER_MAP.put(session, playerId);
+      SESSION_GAME_MAP.put(session, gameId);
       PLAYER_DRAW_MAP.put(playerId, false);
 
       game.addPlayer(player);
+      startRecording(gameId, game);
+      runClock(gameId, game);
 
       JsonObject response = new JsonObject();
       response.addProperty("type", MessageType.JOIN_GAME.ordinal());
@@ -982,7 +1666,8 @@ public class ChessWebSocket {
       response.addProperty("color", colorBool);
       response.addProperty("name", existingPlayerName);
       response.addProperty("timeControl", game.getTimeControl().ordinal());
-      session.getRemote().sendString(GSON.toJson(response));
+      response.addProperty("token", issueToken(gameId, player));
+      OutboundFrame.send(session, GSON.toJson(response));
 
       if (game.isPublic()) {
         HomeWebSocket.gameRemoved(gameId);
@@ -994,6 +1679,681 @@ public class ChessWebSocket {
 
   }
 
+  /**
+   * Hand a game's clock to the player now to move and reschedule its flag
+   * check, or stop it if the game is over. Clocks only run once both players
+   * have joined. Called with the game locked, before the update that changed
+   * the turn is published, so the update carries the new times.
+   *
+   * @param gameId
+   *          Game id.
+   * @param game
+   *          Game.
+   */
+  private static void runClock(int gameId, Game game) {
+    if (game.getGameOverStatus()
+        || game.getGameState() == GameState.GAME_OVER) {
+      stopClock(gameId);
+      return;
+    }
+    GameChannel channel = GAME_CHANNEL_MAP.get(gameId);
+    if (channel == null || channel.getClock() == null
+        || GAME_PLAYER_MAP.get(gameId).size() < 2) {
+      return;
+    }
+    GameClock clock = channel.getClock();
+    clock.runFor(game.getActivePlayer().getColor());
+    scheduleFlag(gameId, clock.remaining(clock.getRunning()));
+  }
+
+  /**
+   * Stop a game's clock and forget its flag check.
+   *
+   * @param gameId
+   *          Game id.
+   */
+  private static void stopClock(int gameId) {
+    Timeout flag = FLAG_TIMEOUTS.remove(gameId);
+    if (flag != null) {
+      flag.cancel();
+    }
+    GameChannel channel = GAME_CHANNEL_MAP.get(gameId);
+    if (channel != null && channel.getClock() != null) {
+      channel.getClock().stop();
+    }
+  }
+
+  /**
+   * Schedule the flag check of a game, replacing the previous one.
+   *
+   * @param gameId
+   *          Game id.
+   * @param delayMillis
+   *          Time left on the running clock.
+   */
+  private static void scheduleFlag(int gameId, long delayMillis) {
+    Timeout old = FLAG_TIMEOUTS.put(gameId,
+        CLOCKS.schedule(() -> checkFlag(gameId), delayMillis,
+            TimeUnit.MILLISECONDS));
+    if (old != null) {
+      old.cancel();
+    }
+  }
+
+  /**
+   * Check whether the running clock of a game has run out and if so end the
+   * game on time. Runs on the clock wheel, so nothing here waits on a client.
+   *
+   * @param gameId
+   *          Game id.
+   */
+  private static void checkFlag(int gameId) {
+    Game game = GAME_ID_MAP.get(gameId);
+    GameChannel channel = GAME_CHANNEL_MAP.get(gameId);
+    if (game == null || channel == null || channel.getClock() == null) {
+      return;
+    }
+    synchronized (game) {
+      GameClock clock = channel.getClock();
+      Color flagged = clock.getRunning();
+      if (flagged == null) {
+        return;
+      }
+      long left = clock.remaining(flagged);
+      if (left > 0) {
+        // an increment was added since this check was scheduled
+        scheduleFlag(gameId, left);
+        return;
+      }
+      clock.stop();
+
+      OutboundFrame gameOver = createGameOverFrame(GameEndReason.TIME);
+      int loserId = -1;
+      for (Player player : GAME_PLAYER_MAP.get(gameId)) {
+        GameResult result = GameResult.WIN;
+        if (player.getColor() == flagged) {
+          result = GameResult.LOSS;
+          loserId = player.getId();
+        }
+        gameOver.sendAsyncTo(PLAYER_SESSION_MAP.get(player.getId()), "result",
+            result.ordinal());
+      }
+      gameEnded(gameId, gameOver, loserId, GameResult.LOSS,
+          GameEndReason.TIME);
+      removeGame(gameId);
+    }
+  }
+
+  /**
+   * Get the address a session connected from, for per-address rate limits.
+   *
+   * @param session
+   *          Session.
+   * @return remote host address.
+   */
+  private static String addressOf(Session session) {
+    if (ring != null) {
+      String forwarded =
+          session.getUpgradeRequest().getHeader(PlayRouter.FORWARDED_FOR);
+      if (forwarded != null) {
+        return forwarded;
+      }
+    }
+    InetSocketAddress remote = session.getRemoteAddress();
+    if (remote == null) {
+      return "unknown";
+    }
+    return remote.getAddress() == null ? remote.getHostString()
+        : remote.getAddress().getHostAddress();
+  }
+
+  /**
+   * Cut off a session that kept flooding after being throttled. Its player,
+   * if any, gets the usual grace window.
+   *
+   * @param session
+   *          Session to close.
+   */
+  private static void disconnect(Session session) {
+    session.close(StatusCode.POLICY_VIOLATION, "Rate limit exceeded");
+  }
+
+  /**
+   * Set the rate limit of a message type for each session.
+   *
+   * @param type
+   *          Name of the message type, e.g. PLAYER_ACTION.
+   * @param limit
+   *          Limit written as burst:perSecond.
+   * @throws IllegalArgumentException
+   *           If the type or limit can't be read.
+   */
+  public static void setRateLimit(String type, String limit) {
+    LIMITER.setLimit(MessageType.valueOf(type.trim().toUpperCase()),
+        Limit.parse(limit));
+  }
+
+  /**
+   * Set the rate limit shared by all sessions from one address.
+   *
+   * @param limit
+   *          Limit written as burst:perSecond.
+   * @throws IllegalArgumentException
+   *           If the limit can't be read.
+   */
+  public static void setAddressRateLimit(String limit) {
+    LIMITER.setAddressLimit(Limit.parse(limit));
+  }
+
+  /**
+   * Make this server one node of a cluster behind a router. From now on it
+   * only creates games whose ids the ring places on it, and it takes the
+   * client address of a session from the router's X-Forwarded-For header, so
+   * nodes must only be reachable through the router.
+   *
+   * @param nodes
+   *          Ring of every node in the cluster.
+   * @param name
+   *          Name of this node on the ring.
+   * @throws IllegalArgumentException
+   *           If the ring doesn't contain this node.
+   */
+  public static void setCluster(HashRing nodes, String name) {
+    if (!nodes.contains(name)) {
+      throw new IllegalArgumentException(
+          "ERROR: node " + name + " is not one of " + nodes.getNodes() + ".");
+    }
+    self = name;
+    ring = nodes;
+  }
+
+  /**
+   * Take the next game id this node may use.
+   *
+   * @return a game id owned by this node.
+   */
+  private static int nextGameId() {
+    HashRing nodes = ring;
+    while (true) {
+      int gameId = NEXT_GAME_ID.getAndIncrement();
+      if (nodes == null || self.equals(nodes.owner(gameId))) {
+        return gameId;
+      }
+    }
+  }
+
+  /**
+   * Stop changing games and write out every game still being played: the
+   * game itself, its players with their names, tokens and draw offers, the
+   * time left on its clock and the sequence number of its last update. From
+   * here on every message is answered with a REDIRECT. Each game is written
+   * under its lock, so one in the middle of a move is written after it. The
+   * games stay in the journal until handedOver is called.
+   *
+   * @param out
+   *          Output to write to.
+   * @return number of games written.
+   * @throws IOException
+   *           If the output fails.
+   */
+  public static int exportGames(DataOutput out) throws IOException {
+    draining = true;
+    int count = 0;
+    for (Map.Entry<Integer, Game> entry : GAME_ID_MAP.entrySet()) {
+      int gameId = entry.getKey();
+      Game game = entry.getValue();
+      synchronized (game) {
+        GameChannel channel = GAME_CHANNEL_MAP.get(gameId);
+        if (channel == null || game.getGameOverStatus()
+            || game.getGameState() == GameState.GAME_OVER) {
+          continue;
+        }
+        // the clock stops while the game is away; its flag check goes too
+        Timeout flag = FLAG_TIMEOUTS.remove(gameId);
+        if (flag != null) {
+          flag.cancel();
+        }
+        out.writeBoolean(true);
+        writeGame(gameId, game, channel, out);
+        EXPORTED.add(gameId);
+      }
+      count++;
+    }
+    out.writeBoolean(false);
+    return count;
+  }
+
+  /**
+   * Log that the games written by exportGames were taken over, so they don't
+   * come back from the journal as well. Call only once they are safe
+   * elsewhere; if they aren't, they stay in the journal and come back after
+   * a restart. Games taken over by another server are recorded there from
+   * now on, so their records here are finished as handed over.
+   *
+   * @param elsewhere
+   *          Whether another server took the games, rather than a file
+   *          this server restores them from.
+   */
+  public static void handedOver(boolean elsewhere) {
+    GameJournal gameJournal = journal;
+    GameRecorder gameRecorder = recorder;
+    for (Integer gameId = EXPORTED.poll(); gameId != null;
+        gameId = EXPORTED.poll()) {
+      Recording recording = elsewhere ? RECORDINGS.remove(gameId) : null;
+      if (recording != null && gameRecorder != null) {
+        gameRecorder.finish(recording, "*", HANDED_OVER);
+      }
+      // it goes on elsewhere, so it must not come back from the journal
+      if (gameJournal != null) {
+        gameJournal.ended(gameId);
+      }
+    }
+  }
+
+  /**
+   * Write a game with everything needed to go on playing it elsewhere.
+   * Called with the game locked.
+   *
+   * @param gameId
+   *          Game id.
+   * @param game
+   *          Game.
+   * @param channel
+   *          Channel of the game.
+   * @param out
+   *          Output to write to.
+   * @throws IOException
+   *           If the output fails.
+   */
+  private static void writeGame(int gameId, Game game, GameChannel channel,
+      DataOutput out) throws IOException {
+    out.writeInt(gameId);
+    GameSnapshot.write(game, out);
+    out.writeInt(channel.getSeq());
+    GameClock clock = channel.getClock();
+    out.writeBoolean(clock != null);
+    if (clock != null) {
+      out.writeLong(clock.remaining(Color.WHITE));
+      out.writeLong(clock.remaining(Color.BLACK));
+    }
+    List<Player> players = new ArrayList<>(GAME_PLAYER_MAP.get(gameId));
+    out.writeByte(players.size());
+    for (Player player : players) {
+      String token = RESUME_TOKENS.tokenOf(player.getId());
+      out.writeByte(player.getColor().ordinal());
+      out.writeUTF(player.getName() == null ? "" : player.getName());
+      out.writeUTF(token == null ? "" : token);
+      out.writeBoolean(PLAYER_DRAW_MAP.getOrDefault(player.getId(), false));
+      out.writeByte(selectedAction(game, player));
+    }
+    Recording recording = RECORDINGS.get(gameId);
+    out.writeLong(recording == null ? 0 : recording.getId());
+    if (recording != null) {
+      recording.getHistory().write(out);
+    }
+  }
+
+  /**
+   * Read a game written by writeGame.
+   *
+   * @param in
+   *          Input to read from.
+   * @return the game, not registered yet.
+   * @throws IOException
+   *           If the input fails.
+   */
+  static SavedGame readGame(DataInput in) throws IOException {
+    int exportedId = in.readInt();
+    Game game = GameSnapshot.read(in);
+    int seq = in.readInt();
+    GameClock clock = null;
+    if (in.readBoolean()) {
+      clock = new GameClock(game.getTimeControl());
+      clock.setRemaining(in.readLong(), in.readLong());
+    }
+    SavedGame saved = new SavedGame(exportedId, game, seq, clock);
+    int players = in.readUnsignedByte();
+    for (int i = 0; i < players; i++) {
+      saved.addPlayer(new SavedPlayer(Color.values()[in.readUnsignedByte()],
+          in.readUTF(), in.readUTF(), in.readBoolean(), in.readByte()));
+    }
+    long recordId = in.readLong();
+    if (recordId > 0) {
+      saved.setRecord(recordId, GameHistory.read(in));
+    }
+    return saved;
+  }
+
+  /**
+   * Write every game still being played, each with the position in the
+   * journal its changes from then on are logged at. The games go on while
+   * they are written.
+   *
+   * @param gameJournal
+   *          Journal the games are logged to.
+   * @param out
+   *          Output to write to.
+   * @return number of games written.
+   * @throws IOException
+   *           If the output fails.
+   */
+  static int checkpointGames(GameJournal gameJournal, DataOutput out)
+      throws IOException {
+    int count = 0;
+    for (Map.Entry<Integer, Game> entry : GAME_ID_MAP.entrySet()) {
+      int gameId = entry.getKey();
+      Game game = entry.getValue();
+      synchronized (game) {
+        GameChannel channel = GAME_CHANNEL_MAP.get(gameId);
+        if (channel == null || game.getGameOverStatus()
+            || game.getGameState() == GameState.GAME_OVER) {
+          continue;
+        }
+        // the game's changes are logged with it locked, so every one before
+        // this position is in the snapshot and every one after is not
+        out.writeBoolean(true);
+        out.writeLong(gameJournal.getLog().end());
+        writeGame(gameId, game, channel, out);
+      }
+      count++;
+    }
+    out.writeBoolean(false);
+    return count;
+  }
+
+  /**
+   * Find which of a game's power options a player has selected.
+   *
+   * @return index of the option, or -1 if none is selected.
+   */
+  private static int selectedAction(Game game, Player player) {
+    try {
+      return game.getActionOptions().indexOf(player.getAction());
+    } catch (IllegalStateException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Take over games written by exportGames on this or another server.
+   * Players get new ids but keep their tokens; none of them is connected yet,
+   * so each has the usual grace window to resume, and a game's clock starts
+   * again once both of its players are back. A game keeps its id unless
+   * another game here has it or, in a cluster, the ring places it on another
+   * node.
+   *
+   * @param in
+   *          Input to read from.
+   * @param recordedHere
+   *          Whether the games were recorded in this server's database, so
+   *          their recordings go on.
+   * @return number of games taken over.
+   * @throws IOException
+   *           If the input fails or is not an export.
+   */
+  public static int importGames(DataInput in, boolean recordedHere)
+      throws IOException {
+    int count = 0;
+    while (in.readBoolean()) {
+      register(readGame(in), recordedHere);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Start hosting a saved game. Its players get new ids and the usual grace
+   * window to resume with their tokens. Changes to it are logged from now
+   * on if there is a journal. Its recording goes on under its id if it was
+   * recorded here, or under a new one with what was recorded of it so far.
+   *
+   * @param saved
+   *          Game read by readGame or rebuilt from the journal.
+   * @param recordedHere
+   *          Whether the game was recorded in this server's database.
+   * @return id of the game here.
+   */
+  static int register(SavedGame saved, boolean recordedHere) {
+    Game game = saved.getGame();
+    synchronized (game) {
+      int gameId = claimGameId(saved.getId(), game);
+      GAME_CHANNEL_MAP.put(gameId,
+          new GameChannel(saved.getClock(), saved.getSeq()));
+      List<SavedPlayer> players = saved.getPlayers();
+      for (SavedPlayer saver : players) {
+        int playerId = NEXT_PLAYER_ID.getAndIncrement();
+        GuiPlayer player =
+            new GuiPlayer(saver.getColor(), playerId, saver.getName());
+        int selected = saver.getSelected();
+        if (selected >= 0 && selected < game.getActionOptions().size()) {
+          player.setAction(game.getActionOptions().get(selected));
+        }
+        game.addPlayer(player);
+        GAME_PLAYER_MAP.put(gameId, player);
+        PLAYER_DRAW_MAP.put(playerId, saver.getDrawOffered());
+        if (!saver.getToken().isEmpty()) {
+          RESUME_TOKENS.adopt(saver.getToken(), gameId, playerId);
+        }
+        RESUME_TOKENS.startGrace(playerId, () -> abandon(gameId, playerId));
+        if (players.size() == 1 && game.isPublic()) {
+          HomeWebSocket.gameAdded(gameId, game.getTimeControl(),
+              saver.getName(), saver.getColor());
+        }
+      }
+      GameJournal gameJournal = journal;
+      if (gameJournal != null) {
+        game.addListener(gameJournal.listener(gameId, game));
+      }
+      if (saved.getHistory() != null) {
+        // a game from another server is recorded here from its history
+        startRecording(gameId, game, recordedHere ? saved.getRecordId() : 0,
+            saved.getHistory());
+      }
+      REAPER.touch(gameId);
+      return gameId;
+    }
+  }
+
+  /**
+   * Register an imported game under its old id if this node may have it, or
+   * under a new one.
+   *
+   * @return the game's id here.
+   */
+  private static int claimGameId(int exportedId, Game game) {
+    HashRing nodes = ring;
+    if ((nodes == null || self.equals(nodes.owner(exportedId)))
+        && GAME_ID_MAP.putIfAbsent(exportedId, game) == null) {
+      // games created here later must not reuse it
+      NEXT_GAME_ID.accumulateAndGet(exportedId + 1, Math::max);
+      return exportedId;
+    }
+    int gameId = nextGameId();
+    GAME_ID_MAP.put(gameId, game);
+    return gameId;
+  }
+
+  /**
+   * Tell every client to reconnect, to url or to this address, and close
+   * their connections. Players resume their games with their tokens and
+   * spectators watch again. Call after exportGames, once the games have
+   * been taken over and handedOver has been called.
+   *
+   * @param url
+   *          URL of /play on the server the games moved to, or null if they
+   *          come back here, e.g. after a restart.
+   */
+  public static void redirectAll(String url) {
+    for (Session session : SESSIONS) {
+      if (session.isOpen()) {
+        redirect(session, url);
+        session.close(StatusCode.SHUTDOWN, "Moved");
+      }
+    }
+  }
+
+  /**
+   * Send a REDIRECT, ignoring clients that are gone.
+   *
+   * @param session
+   *          Session of the client.
+   * @param url
+   *          Where to reconnect, or null for here.
+   */
+  private static void redirect(Session session, String url) {
+    JsonObject message = new JsonObject();
+    message.addProperty("type", MessageType.REDIRECT.ordinal());
+    if (url != null) {
+      message.addProperty("url", url);
+    }
+    try {
+      OutboundFrame.send(session, GSON.toJson(message));
+    } catch (IOException e) {
+      // it reconnects when it sees the close
+    }
+  }
+
+  /**
+   * Record the games started from now on.
+   *
+   * @param gameRecorder
+   *          Recorder to write games to, or null to stop recording.
+   */
+  public static void setRecorder(GameRecorder gameRecorder) {
+    recorder = gameRecorder;
+  }
+
+  /**
+   * Count the wins of the recorded games that end from now on.
+   *
+   * @param boards
+   *          Leaderboards to count them on, or null to stop counting.
+   */
+  public static void setLeaderboards(Leaderboards boards) {
+    leaderboards = boards;
+  }
+
+  /**
+   * Log the changes of the games created from now on.
+   *
+   * @param gameJournal
+   *          Journal to log to, or null to stop logging.
+   */
+  public static void setJournal(GameJournal gameJournal) {
+    journal = gameJournal;
+  }
+
+  /**
+   * Start logging a new game's changes. Call with the game locked and
+   * already in GAME_ID_MAP and GAME_CHANNEL_MAP, so a checkpoint written
+   * meanwhile either has the game or starts before its STARTED event.
+   *
+   * @param gameId
+   *          Game id.
+   * @param game
+   *          Game, locked.
+   */
+  private static void startJournal(int gameId, Game game) {
+    GameJournal gameJournal = journal;
+    if (gameJournal != null) {
+      game.addListener(gameJournal.started(gameId, game));
+    }
+  }
+
+  /**
+   * Issue a resume token to a player who joined a game, and log that they
+   * joined.
+   *
+   * @param gameId
+   *          Game id.
+   * @param player
+   *          Player.
+   * @return the token.
+   */
+  private static String issueToken(int gameId, Player player) {
+    String token = RESUME_TOKENS.issue(gameId, player.getId());
+    GameJournal gameJournal = journal;
+    if (gameJournal != null) {
+      gameJournal.joined(gameId, player.getColor(), player.getName(), token);
+    }
+    return token;
+  }
+
+  /**
+   * Start recording a game once both its players are in.
+   *
+   * @param gameId
+   *          Game id.
+   * @param game
+   *          Game, locked or not yet visible to other threads.
+   */
+  private static void startRecording(int gameId, Game game) {
+    startRecording(gameId, game, 0, null);
+  }
+
+  /**
+   * Start recording a game, or go on recording it, and log which id it is
+   * recorded under so a recovered game goes on with it.
+   *
+   * @param gameId
+   *          Game id.
+   * @param game
+   *          Game, locked or not yet visible to other threads.
+   * @param recordId
+   *          Id it was recorded here under, or 0 to start a new record.
+   * @param history
+   *          What was recorded of it, here or elsewhere, or null.
+   */
+  private static void startRecording(int gameId, Game game, long recordId,
+      GameHistory history) {
+    GameRecorder gameRecorder = recorder;
+    if (gameRecorder == null) {
+      return;
+    }
+    String white = null;
+    String black = null;
+    for (Player player : GAME_PLAYER_MAP.get(gameId)) {
+      if (player.getColor() == Color.WHITE) {
+        white = player.getName();
+      } else {
+        black = player.getName();
+      }
+    }
+    Recording recording;
+    if (recordId > 0) {
+      recording = gameRecorder.resume(recordId, game.getTimeControl(), white,
+          black, history);
+    } else if (history != null) {
+      recording =
+          gameRecorder.adopt(game.getTimeControl(), white, black, history);
+    } else {
+      recording = gameRecorder.start(game.getTimeControl(), white, black);
+    }
+    game.addListener(recording);
+    RECORDINGS.put(gameId, recording);
+    GameJournal gameJournal = journal;
+    if (gameJournal != null) {
+      gameJournal.recorded(gameId, recording.getId());
+    }
+  }
+
+  /**
+   * Turn the SPAWN and GIVE debugging messages on or off.
+   *
+   * @param enabled
+   *          Whether clients may spawn power boxes and give powers.
+   */
+  public static void setDebug(boolean enabled) {
+    debug = enabled;
+  }
+
+  /**
+   * @return the rate limiter, for its counters
+   */
+  public static RateLimiter<Session> getRateLimiter() {
+    return LIMITER;
+  }
+
   /**
    * Send ERROR message to session owner if an error occured.
    *
@@ -1003,9 +2363,8 @@ public class ChessWebSocket {
    *           If the response JsonObject fails to send properly.
    */
   private void sendError(Session session) throws IOException {
-    JsonObject response = new JsonObject();
-    response.addProperty("type", MessageType.ERROR.ordinal());
-    session.getRemote().sendString(GSON.toJson(response));
+    ERRORS.increment();
+    ERROR.sendTo(session);
   }
 
   /**
@@ -1017,9 +2376,8 @@ public class ChessWebSocket {
    *           If the response JsonObject fails to send properly.
    */
   private void sendIllegalAction(Session session) throws IOException {
-    JsonObject response = new JsonObject();
-    response.addProperty("type", MessageType.ILLEGAL_ACTION.ordinal());
-    session.getRemote().sendString(GSON.toJson(response));
+    ILLEGAL_ACTIONS.increment();
+    ILLEGAL_ACTION.sendTo(session);
   }
 
   /**
@@ -1031,7 +2389,7 @@ public class ChessWebSocket {
    *          ID of first player.
    * @return ID of other player or -1 if no other player in game.
    */
-  private int getOtherId(int gameId, int playerId) {
+  private static int getOtherId(int gameId, int playerId) {
     int otherId = -1;
     try {
       Collection<Player> playerList = GAME_PLAYER_MAP.get(gameId);
@@ -1048,7 +2406,7 @@ public class ChessWebSocket {
 
   /**
    * Get the pre-post difference between objects on a board location and return
-   * a JsonArray representing all the changes.
+   * a list of all the changes.
    *
    * @param loc
    *          Location to check differences at.
@@ -1056,11 +2414,12 @@ public class ChessWebSocket {
    *          Objects on space before power action execution.
    * @param game
    *          Game that was modified by power action.
-   * @return JsonArray representing all changes at specified location.
+   * @return List of SquareUpdates representing all changes at specified
+   *         location.
    */
-  private JsonArray getDifference(Location loc, Collection<BoardObject> preObjs,
-      Game game) {
-    JsonArray updates = new JsonArray();
+  private List<SquareUpdate> getDifference(Location loc,
+      Collection<BoardObject> preObjs, Game game) {
+    List<SquareUpdate> updates = new ArrayList<>();
 
     Collection<BoardObject> postObjs = game.getObjsAt(loc);
     postObjs.removeIf(obj -> obj instanceof EmptySpace);
@@ -1068,190 +2427,51 @@ public class ChessWebSocket {
 
     // if there was something and now there's nothing
     if (postObjs.isEmpty() && !preObjs.isEmpty()) {
-      updates.add(createEmptyUpdate(loc));
+      updates.add(SquareUpdate.empty(loc));
     }
 
     postObjs.removeAll(preObjs);
 
     // if there are new objects on location, add difference updates
     for (BoardObject obj : postObjs) {
-      JsonObject updatePart = new JsonObject();
+      SquareUpdate updatePart = null;
 
       // if added piece to loc
       if (obj instanceof Piece) {
         Piece p = ((Piece) obj);
-        updatePart = createPieceUpdate(loc, p);
+        updatePart = SquareUpdate.piece(loc, p);
 
         // if added blackhole to loc
       } else if (obj instanceof BlackHole) {
-        updatePart = createBlackHoleUpdate(loc);
+        updatePart = SquareUpdate.blackHole(loc);
 
         // if added invulnerability to loc
       } else if (obj instanceof Invulnerability) {
         Piece p = game.getPieceAt(loc);
-        updatePart = createInvulnerableUpdate(loc, p);
+        updatePart = SquareUpdate.invulnerable(loc, p);
       }
 
-      updates.add(updatePart);
+      if (updatePart != null) {
+        updates.add(updatePart);
+      }
     }
 
     return updates;
   }
 
   /**
-   * Create a JsonObject representing a PieceUpdate at specified location to be
-   * placed in a GAME_UPDATE message.
-   *
-   * @param loc
-   *          Location that changed.
-   * @param p
-   *          Piece that was added.
-   * @return JsonObject with PieceUpdate.
-   */
-  private JsonObject createPieceUpdate(Location loc, Piece p) {
-    JsonObject updatePart = new JsonObject();
-    if (p == null) {
-      return updatePart;
-    }
-    updatePart.addProperty("row", loc.getRow());
-    updatePart.addProperty("col", loc.getCol());
-    updatePart.addProperty("state", EntityTypes.PIECE.ordinal());
-    updatePart.addProperty("color", p.getColor() == Color.WHITE);
-    updatePart.addProperty("piece", getPieceValue(p));
-    return updatePart;
-  }
-
-  /**
-   * Create a JsonObject representing a Invulnerability Update (it's a piece
-   * update where the piece ID has 6 added to it) at specified location to be
-   * placed in a GAME_UPDATE message.
-   *
-   * @param loc
-   *          Location that changed.
-   * @param p
-   *          Piece with invulnerability.
-   * @return JsonObject with Invulnerability Update.
-   */
-  private JsonObject createInvulnerableUpdate(Location loc, Piece p) {
-    JsonObject updatePart = createPieceUpdate(loc, p);
-    updatePart.remove("piece");
-    updatePart.addProperty("piece", getPieceValue(p) + 6);
-    return updatePart;
-  }
-
-  /**
-   * Create a JsonObject representing a Black Hole added at specified location
-   * to be placed in a GAME_UPDATE message.
-   *
-   * @param loc
-   *          Location that changed.
-   * @return JsonObject with Black Hole Update.
-   */
-  private JsonObject createBlackHoleUpdate(Location loc) {
-    JsonObject updatePart = new JsonObject();
-    updatePart.addProperty("row", loc.getRow());
-    updatePart.addProperty("col", loc.getCol());
-    updatePart.addProperty("state", EntityTypes.OTHER.ordinal());
-    updatePart.addProperty("other", OtherEntities.BLACK_HOLE.ordinal());
-    return updatePart;
-  }
-
-  /**
-   * Create a JsonObject representing a Power Object spawn at specified location
-   * to be placed in a GAME_UPDATE message.
-   *
-   * @param loc
-   *          Location that changed.
-   * @param power
-   *          PowerObject that spawned.
-   * @return JsonObject with on-board Power Object.
-   */
-  public JsonObject createPowerObjectUpdate(Location loc, PowerObject power) {
-    JsonObject updatePart = new JsonObject();
-    updatePart.addProperty("row", loc.getRow());
-    updatePart.addProperty("col", loc.getCol());
-    updatePart.addProperty("state", EntityTypes.POWER.ordinal());
-    updatePart.addProperty("rarity", power.getRarity().ordinal());
-    return updatePart;
-  }
-
-  /**
-   * Create a JsonObject representing an empty-space update (i.e. used to have
-   * some object that has been removed) at specified location to be placed in a
-   * GAME_UPDATE message.
-   *
-   * @param loc
-   *          Location that changed.
-   * @return JsonObject empty-space update.
-   */
-  private JsonObject createEmptyUpdate(Location loc) {
-    JsonObject updatePart = new JsonObject();
-    updatePart.addProperty("row", loc.getRow());
-    updatePart.addProperty("col", loc.getCol());
-    updatePart.addProperty("state", EntityTypes.NOTHING.ordinal());
-    return updatePart;
-  }
-
-  /**
-   * Create a JsonObject representing an Game Over Update.
+   * Create a frame representing a Game Over Update. The result (win, lose,
+   * draw) differs per player and is appended when the frame is sent.
    *
    * @param reason
    *          Reason the game ended (e.g. draw, resign).
-   * @param result
-   *          Result of game ending (win, lose, draw).
-   * @return JsonObject with Game Over Update.
+   * @return OutboundFrame with Game Over Update.
    */
-  private JsonObject createGameOverUpdate(GameEndReason reason,
-      GameResult result, int gameId) {
+  private static OutboundFrame createGameOverFrame(GameEndReason reason) {
     JsonObject response = new JsonObject();
     response.addProperty("type", MessageType.GAME_OVER.ordinal());
     response.addProperty("reason", reason.ordinal());
-    response.addProperty("result", result.ordinal());
-    return response;
-  }
-
-  /**
-   * Create a JsonArray of all public games including gameId, timeControl, and
-   * opponent Name and Color.
-   *
-   * @return return JsonArray with all public games and their details.
-   * @throws IOException
-   *           In case the response JsonObject doesn't get sent properly.
-   */
-  public static JsonObject getPublicGames() throws IOException {
-    JsonObject response = new JsonObject();
-    Game g;
-    for (int gameId : GAME_ID_MAP.keySet()) {
-      g = GAME_ID_MAP.get(gameId);
-      if (g.isPublic()) {
-        if (GAME_PLAYER_MAP.get(gameId).size() == 1) {
-          response.add(String.valueOf(gameId), createGameUpdate(gameId));
-        }
-      }
-    }
-    return response;
-  }
-
-  /**
-   * Create a JsonObject representing a Game Update (includes timecontrol, name
-   * and color of existing opponent).
-   *
-   * @param gameId
-   *          Game Id to create update of.
-   * @return JsonObject representing Game Update.
-   */
-  public static JsonObject createGameUpdate(int gameId) {
-    Game game = GAME_ID_MAP.get(gameId);
-    JsonObject gameUpdate = new JsonObject();
-    gameUpdate.addProperty("timeControl", game.getTimeControl().ordinal());
-
-    Collection<Player> playerCollection = GAME_PLAYER_MAP.get(gameId);
-    for (Player player : playerCollection) {
-      gameUpdate.addProperty("name", player.getName());
-      gameUpdate.addProperty("color", player.getColor().ordinal());
-    }
-
-    return gameUpdate;
+    return new OutboundFrame(response);
   }
 
 }
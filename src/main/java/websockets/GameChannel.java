@@ -0,0 +1,362 @@
+package websockets;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import board.Board;
+import board.Location;
+import game.Color;
+import game.Game;
+import game.GameClock;
+import game.Move;
+import pieces.Piece;
+import powerups.BlackHole;
+import powerups.Invulnerability;
+import powerups.PowerObject;
+import powerups.PowerUp;
+import websockets.ChessWebSocket.Action;
+import websockets.ChessWebSocket.MessageType;
+
+/**
+ * GameChannel numbers the GAME_UPDATEs of one game and remembers the most
+ * recent ones in a bounded ring buffer. A client that notices a gap in the
+ * sequence numbers asks for everything after the last update it applied; if
+ * that has already fallen out of the buffer it gets a KEYFRAME with the whole
+ * board instead. Either way it is repaired in one round trip.
+ *
+ * Every update the channel stamps also carries the time left on both of the
+ * game's clocks, so clients display the server's clock rather than their own.
+ *
+ * The channel also holds the game's spectators. Each published update is
+ * encoded once for all of them and sent from a shared executor, so the players
+ * never wait on the watchers. Work for one game runs in order on at most one
+ * executor thread at a time.
+ *
+ * @author knorms
+ *
+ */
+public final class GameChannel {
+  /**
+   * Number of updates kept per game.
+   */
+  static final int CAPACITY = 64;
+
+  private static final ExecutorService FANOUT = Executors.newFixedThreadPool(
+      Math.max(2, Runtime.getRuntime().availableProcessors() / 2),
+      new ThreadFactoryBuilder().setNameFormat("spectator-fanout-%d")
+          .setDaemon(true).build());
+
+  private final GameClock clock;
+  private final List<List<SquareUpdate>> history = new ArrayList<>(CAPACITY);
+  // sequence number of the last published update; 0 is the starting position
+  private int seq = 0;
+  // updates after this one are buffered
+  private final int first;
+
+  private final Set<Session> spectators = ConcurrentHashMap.newKeySet();
+  private final Queue<Runnable> fanout = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean draining = new AtomicBoolean();
+
+  /**
+   * Construct a channel for a game in its starting position whose updates
+   * carry no clocks.
+   */
+  public GameChannel() {
+    this(null);
+  }
+
+  /**
+   * Construct a channel for a game in its starting position.
+   *
+   * @param clock
+   *          Clock of the game, or null.
+   */
+  public GameChannel(GameClock clock) {
+    this(clock, 0);
+  }
+
+  /**
+   * Construct a channel continuing from an update published elsewhere, e.g.
+   * for a game moved from another server. Nothing before it is buffered, so
+   * clients that are behind get a KEYFRAME.
+   *
+   * @param clock
+   *          Clock of the game, or null if it is untimed.
+   * @param seq
+   *          Sequence number of the last update published.
+   */
+  public GameChannel(GameClock clock, int seq) {
+    this.clock = clock;
+    this.seq = seq;
+    this.first = seq;
+    for (int i = 0; i < CAPACITY; i++) {
+      history.add(null);
+    }
+  }
+
+  /**
+   * Stamp an update with the next sequence number and remember it.
+   *
+   * @param update
+   *          Update about to be sent.
+   * @param move
+   *          Move the update accompanies, or null. Recipients apply the move
+   *          themselves (by animation or locally), so its squares are not part
+   *          of the update but must be part of a replay.
+   * @param game
+   *          Game after the update was applied.
+   * @return the stamped update.
+   */
+  public synchronized GameUpdate publish(GameUpdate update, Move move,
+      Game game) {
+    List<SquareUpdate> delta = new ArrayList<>(update.getUpdates().size() + 2);
+    if (move != null) {
+      delta.add(SquareUpdate.empty(move.getStart()));
+      Piece moved = game.getPieceAt(move.getEnd());
+      delta.add(moved == null ? SquareUpdate.empty(move.getEnd())
+          : SquareUpdate.piece(move.getEnd(), moved));
+    }
+    delta.addAll(update.getUpdates());
+
+    seq++;
+    history.set(seq % CAPACITY, delta);
+    update.setSeq(seq);
+    stampClock(update);
+    if (!spectators.isEmpty()) {
+      fanOut(() -> sendToSpectators(update, move));
+    }
+    return update;
+  }
+
+  /**
+   * Add a spectator. It is sent a KEYFRAME of the current board, followed by
+   * every update published from then on.
+   *
+   * @param session
+   *          Session of the spectator.
+   * @param game
+   *          Game of the channel.
+   */
+  public synchronized void watch(Session session, Game game) {
+    GameUpdate keyframe = keyframe(game);
+    spectators.add(session);
+    fanOut(() -> send(session,
+        keyframe.jsonText(Action.NONE, null, null), null));
+  }
+
+  /**
+   * Remove a spectator.
+   *
+   * @param session
+   *          Session of the spectator.
+   */
+  public void unwatch(Session session) {
+    spectators.remove(session);
+  }
+
+  /**
+   * @return the number of spectators
+   */
+  public int spectatorCount() {
+    return spectators.size();
+  }
+
+  /**
+   * Send an already encoded message, e.g. GAME_OVER, to every spectator after
+   * the updates published before it.
+   *
+   * @param text
+   *          Encoded JSON message.
+   */
+  public void sendToSpectators(String text) {
+    if (!spectators.isEmpty()) {
+      fanOut(() -> spectators.forEach(session -> send(session, text, null)));
+    }
+  }
+
+  /**
+   * Send an update to every spectator, encoding it at most once per protocol.
+   */
+  private void sendToSpectators(GameUpdate update, Move move) {
+    String text = null;
+    ByteBuffer bytes = null;
+    for (Session session : spectators) {
+      if (BinaryProtocol.isBinary(session)) {
+        if (bytes == null) {
+          bytes = update.binaryFrame(Action.NONE, move, null);
+        }
+        send(session, null, bytes.duplicate());
+      } else {
+        if (text == null) {
+          text = update.jsonText(Action.NONE, move, null);
+        }
+        send(session, text, null);
+      }
+    }
+  }
+
+  /**
+   * Queue a send without blocking on the spectator, in turn with the
+   * blocking sends to its session; spectators that have gone away, or whose
+   * connection fails to write, are dropped.
+   */
+  private void send(Session session, String text, ByteBuffer bytes) {
+    if (!session.isOpen()) {
+      spectators.remove(session);
+      return;
+    }
+    WriteCallback dropIfFailed = new WriteCallback() {
+      @Override
+      public void writeFailed(Throwable cause) {
+        spectators.remove(session);
+      }
+
+      @Override
+      public void writeSuccess() {
+      }
+    };
+    try {
+      if (bytes == null) {
+        OutboundFrame.sendAsync(session, text, dropIfFailed);
+      } else {
+        OutboundFrame.sendAsync(session, bytes, dropIfFailed);
+      }
+    } catch (RuntimeException e) {
+      // only this update is lost unless the session closed under it
+      if (!session.isOpen()) {
+        spectators.remove(session);
+      }
+    }
+  }
+
+  /**
+   * Run a task on the shared executor after every task queued before it for
+   * this game.
+   */
+  private void fanOut(Runnable task) {
+    fanout.add(task);
+    if (draining.compareAndSet(false, true)) {
+      FANOUT.execute(this::drain);
+    }
+  }
+
+  private void drain() {
+    Runnable task;
+    while ((task = fanout.poll()) != null) {
+      task.run();
+    }
+    draining.set(false);
+    // a task may have been queued after the last poll but before the reset
+    if (!fanout.isEmpty() && draining.compareAndSet(false, true)) {
+      FANOUT.execute(this::drain);
+    }
+  }
+
+  /**
+   * @return the sequence number of the last published update
+   */
+  public synchronized int getSeq() {
+    return seq;
+  }
+
+  /**
+   * Build the reply to a client whose last applied update was since: a RESYNC
+   * with every square changed after it, or a KEYFRAME if the buffer no longer
+   * reaches back that far.
+   *
+   * @param since
+   *          Last sequence number the client applied.
+   * @param game
+   *          Game of the channel.
+   * @return RESYNC or KEYFRAME update carrying the current sequence number.
+   */
+  public synchronized GameUpdate resync(int since, Game game) {
+    if (since < first || since > seq || seq - since > CAPACITY) {
+      return keyframe(game);
+    }
+    GameUpdate reply = new GameUpdate(MessageType.RESYNC);
+    for (int s = since + 1; s <= seq; s++) {
+      reply.addAll(history.get(s % CAPACITY));
+    }
+    reply.setSince(since);
+    reply.setSeq(seq);
+    stampClock(reply);
+    return reply;
+  }
+
+  /**
+   * Build a KEYFRAME describing every occupied square of the board. Clients
+   * clear their board before applying it.
+   *
+   * @param game
+   *          Game of the channel.
+   * @return KEYFRAME update carrying the current sequence number.
+   */
+  public synchronized GameUpdate keyframe(Game game) {
+    GameUpdate keyframe = new GameUpdate(MessageType.KEYFRAME);
+    Board board = game.getBoard();
+    for (Location loc : board.getLocationSet()) {
+      keyframe.add(squareOf(board, loc));
+    }
+    keyframe.setSeq(seq);
+    stampClock(keyframe);
+    return keyframe;
+  }
+
+  /**
+   * @return the number of square updates held in the ring buffer
+   */
+  public synchronized int bufferedSquares() {
+    int count = 0;
+    for (List<SquareUpdate> delta : history) {
+      if (delta != null) {
+        count += delta.size();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the clock of the game, or null if it has none
+   */
+  public GameClock getClock() {
+    return clock;
+  }
+
+  private void stampClock(GameUpdate update) {
+    if (clock != null) {
+      update.setClock(clock.remaining(Color.WHITE),
+          clock.remaining(Color.BLACK));
+    }
+  }
+
+  /**
+   * Describe what a client should show on a square, or null if it is empty.
+   */
+  static SquareUpdate squareOf(Board board, Location loc) {
+    Piece p = board.getPieceAt(loc);
+    PowerUp power = board.getPowerUpAt(loc);
+    if (p != null) {
+      return power instanceof Invulnerability
+          ? SquareUpdate.invulnerable(loc, p) : SquareUpdate.piece(loc, p);
+    } else if (power instanceof BlackHole) {
+      return SquareUpdate.blackHole(loc);
+    }
+    PowerObject box = board.getPowerObjectAt(loc);
+    return box == null ? null : SquareUpdate.powerObject(loc, box);
+  }
+
+}
@@ -0,0 +1,213 @@
+package websockets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+
+/**
+ * GameMigration moves the games of a server that is shutting down to where
+ * they can go on: another running server, or a file the next process on this
+ * address restores at startup. Either way the games are written out first,
+ * then every client is sent a REDIRECT and disconnected, and players resume
+ * with the tokens they already hold. Nothing is written per move, so a drain
+ * only pauses the games for as long as it takes to write them and for the
+ * clients to reconnect, typically well under a second.
+ *
+ * A peer only takes games from a server that presents the shared secret it
+ * was started with. It records the games it takes from then on, with what
+ * was recorded of them so far; their records here end as handed over.
+ *
+ * @author knorms
+ *
+ */
+public final class GameMigration {
+  /**
+   * Header carrying the shared secret with a handover.
+   */
+  public static final String SECRET_HEADER = "X-Migration-Secret";
+
+  private static final int MAGIC = 0x43484732;
+  private static final int TIMEOUT_MILLIS = 10000;
+
+  private GameMigration() {
+  }
+
+  /**
+   * Write every game still being played; see ChessWebSocket.exportGames.
+   *
+   * @return the games, ready for restore.
+   * @throws IOException
+   *           If a game can't be written.
+   */
+  public static byte[] export() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      ChessWebSocket.exportGames(out);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Take over games written by export on another server.
+   *
+   * @param exported
+   *          The games.
+   * @return number of games taken over.
+   * @throws IOException
+   *           If the bytes are not an export.
+   */
+  public static int restore(byte[] exported) throws IOException {
+    return restore(exported, false);
+  }
+
+  private static int restore(byte[] exported, boolean recordedHere)
+      throws IOException {
+    DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(exported));
+    if (exported.length < Integer.BYTES || in.readInt() != MAGIC) {
+      throw new IOException("ERROR: not an export of games.");
+    }
+    return ChessWebSocket.importGames(in, recordedHere);
+  }
+
+  /**
+   * Take over the games in a file written by a drain, then delete it so a
+   * later restart doesn't bring them back. A missing file is no error.
+   *
+   * @param file
+   *          File of games.
+   * @return number of games taken over.
+   * @throws IOException
+   *           If the file can't be read or is not an export.
+   */
+  public static int restore(Path file) throws IOException {
+    if (!Files.exists(file)) {
+      return 0;
+    }
+    // written by this server, so its recordings go on
+    int count = restore(Files.readAllBytes(file), true);
+    Files.delete(file);
+    return count;
+  }
+
+  /**
+   * Hand every game over and redirect the clients, e.g. from a shutdown
+   * hook, before the journal is closed. Games go to peer if one is given
+   * and takes them, otherwise to file. If neither works the players are told
+   * nothing until their connections drop, and the games are only kept if
+   * there is a journal to bring them back from.
+   *
+   * @param peer
+   *          host:port of a server started with the same secret, or null.
+   * @param secret
+   *          Secret shared with peer.
+   * @param file
+   *          File to write the games to, or null.
+   */
+  public static void drain(String peer, String secret, Path file) {
+    long start = System.nanoTime();
+    byte[] exported;
+    try {
+      exported = export();
+    } catch (IOException e) {
+      System.err.println("ERROR: could not write games: " + e.getMessage());
+      return;
+    }
+
+    String url = null;
+    boolean kept = false;
+    if (peer != null) {
+      try {
+        System.out.println(
+            "handed " + send(peer, secret, exported) + " games to " + peer);
+        url = "ws://" + peer + "/play";
+        kept = true;
+      } catch (IOException e) {
+        System.err.println("ERROR: " + peer + " did not take the games: "
+            + e.getMessage());
+      }
+    }
+    if (!kept && file != null) {
+      try {
+        Path written = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(written, exported);
+        Files.move(written, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("wrote games to " + file);
+        kept = true;
+      } catch (IOException e) {
+        System.err.println("ERROR: could not write " + file + ": "
+            + e.getMessage());
+      }
+    }
+    if (kept) {
+      ChessWebSocket.handedOver(url != null);
+      ChessWebSocket.redirectAll(url);
+      System.out.printf("drained %d bytes in %d ms%n", exported.length,
+          (System.nanoTime() - start) / 1000000);
+    }
+  }
+
+  /**
+   * POST games to a peer's /migrate.
+   *
+   * @return the number of games the peer took.
+   */
+  private static int send(String peer, String secret, byte[] exported)
+      throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(
+        "http://" + peer + "/migrate").openConnection();
+    connection.setConnectTimeout(TIMEOUT_MILLIS);
+    connection.setReadTimeout(TIMEOUT_MILLIS);
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(exported.length);
+    connection.setRequestProperty("Content-Type", "application/octet-stream");
+    connection.setRequestProperty(SECRET_HEADER, secret);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(exported);
+    }
+    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+      throw new IOException("status " + connection.getResponseCode());
+    }
+    try (InputStream in = connection.getInputStream()) {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buf = new byte[64];
+      for (int n = in.read(buf); n > 0; n = in.read(buf)) {
+        body.write(buf, 0, n);
+      }
+      return Integer.parseInt(
+          new String(body.toByteArray(), StandardCharsets.UTF_8).trim());
+    } catch (NumberFormatException e) {
+      throw new IOException("unexpected answer", e);
+    }
+  }
+
+  /**
+   * Check the secret presented with a handover.
+   *
+   * @param presented
+   *          Value of the secret header, or null.
+   * @param secret
+   *          Secret this server was started with.
+   * @return true if they match.
+   */
+  public static boolean authorized(String presented, String secret) {
+    return presented != null && MessageDigest.isEqual(
+        presented.getBytes(StandardCharsets.UTF_8),
+        secret.getBytes(StandardCharsets.UTF_8));
+  }
+
+}
@@ -0,0 +1,220 @@
+package websockets;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * GameReaper remembers when each game last saw activity and periodically
+ * evicts games that have been idle longer than the time-to-live of the phase
+ * they are in: waiting for an opponent, being played, or over. It counts what
+ * it reclaimed so memory held by games stays observable.
+ *
+ * The reaper knows nothing about how games are stored; it asks for a game's
+ * phase and hands games back to be evicted.
+ *
+ * @author knorms
+ *
+ */
+public final class GameReaper {
+  /**
+   * Default idle time before a game nobody joined is evicted.
+   */
+  public static final long DEFAULT_WAITING_TTL_MILLIS =
+      TimeUnit.MINUTES.toMillis(30);
+
+  /**
+   * Default idle time before a game in progress is evicted. Clocks end any
+   * game with an absent player much sooner; this is a backstop.
+   */
+  public static final long DEFAULT_PLAYING_TTL_MILLIS =
+      TimeUnit.HOURS.toMillis(3);
+
+  /**
+   * Default time a finished game is kept so its players can still look at
+   * (and resync) the final position.
+   */
+  public static final long DEFAULT_OVER_TTL_MILLIS =
+      TimeUnit.MINUTES.toMillis(5);
+
+  /**
+   * Phases of a game with their own time-to-live.
+   *
+   * @author knorms
+   *
+   */
+  public enum Phase {
+    WAITING, PLAYING, OVER
+  }
+
+  private final Map<Integer, Long> lastActivity = new ConcurrentHashMap<>();
+  private final Map<Phase, Long> ttls = new ConcurrentHashMap<>();
+  private final Map<Phase, LongAdder> reclaimed = new EnumMap<>(Phase.class);
+  private final LongAdder bytesReclaimed = new LongAdder();
+  private final Function<Integer, Phase> phaseOf;
+  private final ToLongFunction<Integer> evict;
+  private final LongSupplier now;
+  private ScheduledExecutorService timer;
+
+  /**
+   * Construct a reaper with the default time-to-lives.
+   *
+   * @param phaseOf
+   *          Gets the phase of a game, or null if the game no longer exists.
+   * @param evict
+   *          Evicts a game and returns an estimate of the bytes that freed, or
+   *          -1 if the game was already gone.
+   */
+  public GameReaper(Function<Integer, Phase> phaseOf,
+      ToLongFunction<Integer> evict) {
+    this(phaseOf, evict, System::currentTimeMillis);
+  }
+
+  /**
+   * Construct a reaper reading time from a custom source.
+   *
+   * @param phaseOf
+   *          Gets the phase of a game, or null if the game no longer exists.
+   * @param evict
+   *          Evicts a game and returns an estimate of the bytes that freed, or
+   *          -1 if the game was already gone.
+   * @param now
+   *          Source of the current time in milliseconds.
+   */
+  public GameReaper(Function<Integer, Phase> phaseOf,
+      ToLongFunction<Integer> evict, LongSupplier now) {
+    this.phaseOf = phaseOf;
+    this.evict = evict;
+    this.now = now;
+    ttls.put(Phase.WAITING, DEFAULT_WAITING_TTL_MILLIS);
+    ttls.put(Phase.PLAYING, DEFAULT_PLAYING_TTL_MILLIS);
+    ttls.put(Phase.OVER, DEFAULT_OVER_TTL_MILLIS);
+    for (Phase phase : Phase.values()) {
+      reclaimed.put(phase, new LongAdder());
+    }
+  }
+
+  /**
+   * Start sweeping at a fixed interval.
+   *
+   * @param periodMillis
+   *          Interval between sweeps, in milliseconds.
+   */
+  public synchronized void start(long periodMillis) {
+    if (timer != null) {
+      return;
+    }
+    timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("game-reaper").setDaemon(true)
+            .build());
+    timer.scheduleWithFixedDelay(this::sweep, periodMillis, periodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Set how long a game in a phase may stay idle.
+   *
+   * @param phase
+   *          Phase.
+   * @param ttlMillis
+   *          Time-to-live in milliseconds.
+   */
+  public void setTtl(Phase phase, long ttlMillis) {
+    if (ttlMillis <= 0) {
+      throw new IllegalArgumentException("ERROR: ttl must be positive.");
+    }
+    ttls.put(phase, ttlMillis);
+  }
+
+  /**
+   * Record activity in a game, starting to track it if it is new.
+   *
+   * @param gameId
+   *          Game id.
+   */
+  public void touch(int gameId) {
+    lastActivity.put(gameId, now.getAsLong());
+  }
+
+  /**
+   * Stop tracking a game that was removed some other way.
+   *
+   * @param gameId
+   *          Game id.
+   */
+  public void forget(int gameId) {
+    lastActivity.remove(gameId);
+  }
+
+  /**
+   * Evict every game idle past the time-to-live of its phase.
+   *
+   * @return the number of games evicted.
+   */
+  public int sweep() {
+    long time = now.getAsLong();
+    int count = 0;
+    Iterator<Map.Entry<Integer, Long>> it = lastActivity.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Integer, Long> entry = it.next();
+      // a game that fails must neither stop this sweep nor, by throwing out
+      // of the timer's task, every sweep after it
+      try {
+        Phase phase = phaseOf.apply(entry.getKey());
+        if (phase == null) {
+          it.remove();
+        } else if (time - entry.getValue() >= ttls.get(phase)) {
+          // only drop the entry if the game wasn't touched in the meantime
+          if (lastActivity.remove(entry.getKey(), entry.getValue())) {
+            long bytes = evict.applyAsLong(entry.getKey());
+            if (bytes >= 0) {
+              reclaimed.get(phase).increment();
+              bytesReclaimed.add(bytes);
+              count++;
+            }
+          }
+        }
+      } catch (RuntimeException e) {
+        System.err.println("ERROR: could not sweep game " + entry.getKey()
+            + ": " + e);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of games currently tracked
+   */
+  public int tracked() {
+    return lastActivity.size();
+  }
+
+  /**
+   * Get the number of games evicted so far in a phase.
+   *
+   * @param phase
+   *          Phase.
+   * @return games evicted.
+   */
+  public long getReclaimed(Phase phase) {
+    return reclaimed.get(phase).sum();
+  }
+
+  /**
+   * @return the estimated bytes freed by evictions so far
+   */
+  public long getBytesReclaimed() {
+    return bytesReclaimed.sum();
+  }
+
+}
@@ -0,0 +1,435 @@
+package websockets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import board.IllegalMoveException;
+import board.Location;
+import game.Color;
+import game.Game;
+import game.Game.TimeControl;
+import game.GameClock;
+import game.GameListener;
+import game.Move;
+import pieces.Bishop;
+import pieces.Knight;
+import pieces.Piece;
+import pieces.Queen;
+import pieces.Rook;
+import poweractions.PieceMover;
+import poweractions.PowerAction;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+import storage.EventLog;
+import storage.GameHistory;
+import storage.GameJournal;
+import websockets.SavedGame.SavedPlayer;
+
+/**
+ * GameRecovery brings the games back after a crash. Every so often all games
+ * are written to a checkpoint next to the journal, each with the position in
+ * the journal its later changes start at; the segments before the checkpoint
+ * are then deleted. At startup the games are read from the latest checkpoint
+ * and the journal since is replayed on them, each game on its own in
+ * parallel, logged random outcomes included, so they come back as they were
+ * at the crash. Players resume with the tokens they hold, and a recorded
+ * game goes on being recorded under its id.
+ *
+ * Clocks come back as they were at the checkpoint.
+ *
+ * @author knorms
+ *
+ */
+public final class GameRecovery {
+  private static final int MAGIC = 0x43484b32;
+  private static final String PREFIX = "checkpoint-";
+  private static final String SUFFIX = ".bin";
+
+  private GameRecovery() {
+  }
+
+  /**
+   * Write every game to a new checkpoint in dir, then delete the older
+   * checkpoints and the segments of the journal the new one covers.
+   *
+   * @param gameJournal
+   *          Journal the games are logged to.
+   * @param dir
+   *          Directory of the journal.
+   * @return number of games written.
+   * @throws IOException
+   *           If the checkpoint can't be written.
+   */
+  public static int checkpoint(GameJournal gameJournal, Path dir)
+      throws IOException {
+    EventLog log = gameJournal.getLog();
+    long start = log.end();
+    Path file = dir.resolve(String.format("%s%020d%s", PREFIX, start, SUFFIX));
+    Path written = file.resolveSibling(file.getFileName() + ".tmp");
+    int count;
+    try (FileOutputStream stream = new FileOutputStream(written.toFile());
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(stream))) {
+      out.writeInt(MAGIC);
+      out.writeLong(start);
+      count = ChessWebSocket.checkpointGames(gameJournal, out);
+      out.flush();
+      stream.getChannel().force(true);
+    }
+    Files.move(written, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    for (Path old : checkpoints(dir).headMap(start).values()) {
+      Files.delete(old);
+    }
+    log.deleteBefore(start);
+    return count;
+  }
+
+  /**
+   * Write a checkpoint every period from now on, on a background thread.
+   *
+   * @param gameJournal
+   *          Journal the games are logged to.
+   * @param dir
+   *          Directory of the journal.
+   * @param periodMillis
+   *          Time between checkpoints.
+   * @return the scheduler, to shut down.
+   */
+  public static ScheduledExecutorService schedule(GameJournal gameJournal,
+      Path dir, long periodMillis) {
+    ScheduledExecutorService scheduler =
+        Executors.newSingleThreadScheduledExecutor(runnable -> {
+          Thread thread = new Thread(runnable, "checkpoint");
+          thread.setDaemon(true);
+          return thread;
+        });
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        checkpoint(gameJournal, dir);
+      } catch (IOException | RuntimeException e) {
+        System.err.println("ERROR: checkpoint failed: " + e.getMessage());
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    return scheduler;
+  }
+
+  /**
+   * Bring back the games of the journal in dir and host them here. Call
+   * before taking connections, with the journal already set so the games go
+   * on being logged, then write a checkpoint.
+   *
+   * @param dir
+   *          Directory of the journal.
+   * @return number of games brought back.
+   * @throws IOException
+   *           If the checkpoint or journal can't be read.
+   */
+  public static int recover(Path dir) throws IOException {
+    long start = System.nanoTime();
+    Collection<SavedGame> games = replay(dir);
+    long replayed = System.nanoTime();
+    for (SavedGame saved : games) {
+      ChessWebSocket.register(saved, true);
+    }
+    System.out.printf("recovered %d games in %d ms (replay %d ms)%n",
+        games.size(), (System.nanoTime() - start) / 1000000,
+        (replayed - start) / 1000000);
+    return games.size();
+  }
+
+  /**
+   * Rebuild the games of the journal in dir from the latest checkpoint and
+   * the journal since, without hosting them.
+   *
+   * @param dir
+   *          Directory of the journal.
+   * @return the games still being played at the end of the journal.
+   * @throws IOException
+   *           If the checkpoint or journal can't be read.
+   */
+  static Collection<SavedGame> replay(Path dir) throws IOException {
+    Map<Integer, Replayer> replayers = new HashMap<>();
+    long from = 0;
+    Map.Entry<Long, Path> latest = checkpoints(dir).lastEntry();
+    if (latest != null) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+          Files.newInputStream(latest.getValue())))) {
+        if (in.readInt() != MAGIC) {
+          throw new IOException("ERROR: not a checkpoint: " + latest);
+        }
+        from = in.readLong();
+        while (in.readBoolean()) {
+          long position = in.readLong();
+          SavedGame saved = ChessWebSocket.readGame(in);
+          replayers.put(saved.getId(), new Replayer(saved, position));
+        }
+      }
+    }
+
+    // group the events by game, in order, skipping those a game's snapshot
+    // already has
+    EventLog.read(dir, from, (position, record) -> {
+      int gameId = GameJournal.gameIdOf(record);
+      Replayer replayer =
+          replayers.computeIfAbsent(gameId, id -> new Replayer(null, 0));
+      if (position >= replayer.from) {
+        byte[] bytes = new byte[record.remaining()];
+        record.get(bytes);
+        replayer.events.add(bytes);
+      }
+    });
+
+    AtomicInteger failed = new AtomicInteger();
+    List<SavedGame> games = replayers.values().parallelStream()
+        .map(replayer -> {
+          try {
+            return replayer.replay();
+          } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            return null;
+          }
+        }).filter(Objects::nonNull).collect(Collectors.toList());
+    if (failed.get() > 0) {
+      System.err.println("ERROR: could not replay " + failed + " games.");
+    }
+    return games;
+  }
+
+  private static TreeMap<Long, Path> checkpoints(Path dir) throws IOException {
+    TreeMap<Long, Path> checkpoints = new TreeMap<>();
+    if (!Files.isDirectory(dir)) {
+      return checkpoints;
+    }
+    try (DirectoryStream<Path> files =
+        Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        checkpoints.put(Long.parseLong(name.substring(PREFIX.length(),
+            name.length() - SUFFIX.length())), file);
+      }
+    }
+    return checkpoints;
+  }
+
+  private static Location locationOf(int square) {
+    return square < 0 ? null : new Location(square / 8, square % 8);
+  }
+
+  /**
+   * Replays the events of one game on its snapshot, or on a new game from
+   * its STARTED event.
+   */
+  private static final class Replayer implements GameJournal.Handler {
+    private SavedGame saved;
+    private final long from;
+    private final List<byte[]> events = new ArrayList<>();
+    private Tracker tracker;
+
+    private Replayer(SavedGame saved, long from) {
+      this.saved = saved;
+      this.from = from;
+    }
+
+    /**
+     * Apply the events.
+     *
+     * @return the game, or null if it ended.
+     */
+    private SavedGame replay() {
+      if (saved != null) {
+        saved.getGame().setReplaying(true);
+        if (saved.getHistory() != null) {
+          track(saved.getHistory());
+        }
+      }
+      for (byte[] event : events) {
+        GameJournal.dispatch(ByteBuffer.wrap(event), this);
+      }
+      if (saved != null) {
+        saved.getGame().setReplaying(false);
+      }
+      if (tracker != null) {
+        tracker.history = null;
+      }
+      return saved;
+    }
+
+    /**
+     * Keep a recorded game's history up to date with the events replayed.
+     */
+    private void track(GameHistory history) {
+      tracker = new Tracker();
+      tracker.history = history;
+      saved.getGame().addListener(tracker);
+    }
+
+    private Game game() {
+      if (saved == null) {
+        throw new IllegalStateException("ERROR: event before the game.");
+      }
+      return saved.getGame();
+    }
+
+    @Override
+    public void started(int gameId, int timeControl, boolean isPublic) {
+      Game game = new Game();
+      game.setReplaying(true);
+      game.setPublic(isPublic);
+      GameClock clock = null;
+      if (timeControl >= 0) {
+        game.setTimeControl(TimeControl.values()[timeControl]);
+        clock = new GameClock(game.getTimeControl());
+      }
+      saved = new SavedGame(gameId, game, 0, clock);
+    }
+
+    @Override
+    public void joined(int gameId, Color color, String name, String token) {
+      if (saved != null) {
+        saved.addPlayer(new SavedPlayer(color, name, token, false, -1));
+      }
+    }
+
+    @Override
+    public void moved(int gameId, int from, int to) {
+      Game game = game();
+      game.getActivePlayer().setMove(
+          new Move(locationOf(from), locationOf(to)));
+      try {
+        game.turn();
+      } catch (IllegalMoveException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void promoted(int gameId, int square, int kind) {
+      Game game = game();
+      Color color = game.getActivePlayer().getColor();
+      Piece piece;
+      if (kind == GameJournal.ROOK) {
+        piece = new Rook(color);
+      } else if (kind == GameJournal.BISHOP) {
+        piece = new Bishop(color);
+      } else if (kind == GameJournal.KNIGHT) {
+        piece = new Knight(color);
+      } else {
+        piece = new Queen(color);
+      }
+      game.getActivePlayer().setPromotion(piece);
+      game.executePromotion(locationOf(square));
+    }
+
+    @Override
+    public void spawned(int gameId, int square, int rarity, int next) {
+      Game game = game();
+      game.spawnPowerObject(locationOf(square),
+          PowerObject.ofRarity(Rarity.values()[rarity]));
+      game.setTilNextPowerUp(next);
+    }
+
+    @Override
+    public void offered(int gameId, int rarity, int[] ids, int captured) {
+      Game game = game();
+      List<PowerAction> options = game.getActionOptions();
+      options.clear();
+      for (int id : ids) {
+        options.add(PowerAction.ofId(Rarity.values()[rarity], id, game,
+            locationOf(captured)));
+      }
+    }
+
+    @Override
+    public void powerUsed(int gameId, int rarity, int id, int input,
+        int movedTo) {
+      Game game = game();
+      PowerAction action = null;
+      for (PowerAction option : game.getActionOptions()) {
+        if (option.getRarity().ordinal() == rarity && option.getId() == id) {
+          action = option;
+        }
+      }
+      if (action == null) {
+        throw new IllegalStateException("ERROR: power was not offered.");
+      }
+      if (action instanceof PieceMover && movedTo >= 0) {
+        ((PieceMover) action).setEndLocation(locationOf(movedTo));
+      }
+      game.getActivePlayer().setAction(action);
+      game.executePowerAction(locationOf(input));
+    }
+
+    @Override
+    public void ended(int gameId) {
+      saved = null;
+    }
+
+    @Override
+    public void recorded(int gameId, long recordId) {
+      game();
+      GameHistory history = new GameHistory();
+      saved.setRecord(recordId, history);
+      track(history);
+    }
+  }
+
+  /**
+   * Feeds a history while a game's events are replayed. It is cleared once
+   * they are, since from then on the game's recording feeds the history.
+   */
+  private static final class Tracker implements GameListener {
+    private GameHistory history;
+
+    @Override
+    public void moved(Move move) {
+      if (history != null) {
+        history.moved(move);
+      }
+    }
+
+    @Override
+    public void promoted(Location loc, Piece piece) {
+      if (history != null) {
+        history.promoted(loc, piece);
+      }
+    }
+
+    @Override
+    public void spawned(Location loc, PowerObject powerObject) {
+      if (history != null) {
+        history.spawned(loc, powerObject);
+      }
+    }
+
+    @Override
+    public void powerUsed(PowerAction action, Location input) {
+      if (history != null) {
+        history.powerUsed(action, input);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,252 @@
+package websockets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.Objects;
+
+import board.Board;
+import board.IllegalMoveException;
+import board.Location;
+import game.Game;
+import game.Move;
+import powerups.PowerObject.Rarity;
+import storage.GameArchive;
+import storage.GameArchive.Keyframe;
+import storage.GameRecord;
+import storage.GameRecordReader;
+import storage.GameReplay;
+import websockets.ChessWebSocket.Action;
+import websockets.ChessWebSocket.MessageType;
+
+/**
+ * GameReplayStream streams a finished game from the archive as the messages
+ * a client already renders: a KEYFRAME of the board at the ply asked for,
+ * then a GAME_UPDATE for each move, power box and power after it holding the
+ * squares it changed, one JSON message a line. Each update is made as the
+ * record is read and replayed, so the first goes out before the rest of the
+ * game has been replayed.
+ *
+ * Seeking starts from the game's last keyframe at or before the ply, so at
+ * most GameRecorder.KEYFRAME_PLIES - 1 moves are replayed before the first
+ * message. Games recorded before keyframes were are replayed from the start.
+ *
+ * The seq of a message is the number of moves made once it is applied.
+ *
+ * @author knorms
+ *
+ */
+public final class GameReplayStream {
+  private static final int SQUARES = Board.SIZE * Board.SIZE;
+  private static final int FLUSH_EVERY = 32;
+
+  private final byte[] record;
+  private final Keyframe keyframe;
+  private final int fromPly;
+
+  private GameReplayStream(byte[] record, Keyframe keyframe, int fromPly) {
+    this.record = record;
+    this.keyframe = keyframe;
+    this.fromPly = fromPly;
+  }
+
+  /**
+   * Read what is needed to stream a finished game: its record and its last
+   * keyframe before the ply asked for.
+   *
+   * @param archive
+   *          Archive of the game.
+   * @param id
+   *          Id of the game.
+   * @param fromPly
+   *          Number of moves made in the first message's position; past the
+   *          end of the game, the position it ended in.
+   * @return the stream, or null if there is no finished game of that id.
+   * @throws SQLException
+   *           If the archive can't be read.
+   */
+  public static GameReplayStream open(GameArchive archive, long id,
+      int fromPly) throws SQLException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    try {
+      if (archive.export(id, id + 1, record) == 0) {
+        return null;
+      }
+    } catch (IOException e) {
+      // nothing to fail writing to memory
+      throw new UncheckedIOException(e);
+    }
+    return new GameReplayStream(record.toByteArray(),
+        fromPly > 0 ? archive.keyframe(id, fromPly) : null, fromPly);
+  }
+
+  /**
+   * Stream the game.
+   *
+   * @param out
+   *          Writer to stream to; it is flushed, not closed.
+   * @throws IOException
+   *           If out fails.
+   */
+  public void writeTo(Writer out) throws IOException {
+    Streamer streamer = new Streamer(keyframe, fromPly, out);
+    try {
+      new GameRecordReader(new ByteArrayInputStream(record)).next(streamer);
+      streamer.ended();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    out.flush();
+  }
+
+  /**
+   * Replays a record from a keyframe, sending what changed on the board
+   * once it reaches the ply asked for. A game that can't be replayed is
+   * streamed as far as it got.
+   */
+  private static final class Streamer implements GameRecordReader.Handler {
+    private final Keyframe keyframe;
+    private final int fromPly;
+    private final Writer out;
+    private final SquareUpdate[] shown = new SquareUpdate[SQUARES];
+    private Game game;
+    private int ply = 0;
+    private int lastMoved = -1;
+    private boolean streaming = false;
+    private int sent = 0;
+
+    private Streamer(Keyframe keyframe, int fromPly, Writer out) {
+      this.keyframe = keyframe;
+      this.fromPly = fromPly;
+      this.out = out;
+    }
+
+    @Override
+    public void game(GameRecord record) {
+      try {
+        game = keyframe == null ? GameReplay.newGame(record)
+            : GameReplay.fromKeyframe(keyframe, record);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public void moved(int from, int to, int promotion) {
+      int at = ply++;
+      if (game == null || keyframe != null && at < keyframe.getPly()) {
+        lastMoved = to;
+        return;
+      }
+      if (!streaming && at >= fromPly) {
+        sendKeyframe(at);
+      }
+      try {
+        GameReplay.move(game, from, to, promotion);
+      } catch (IllegalMoveException | RuntimeException e) {
+        game = null;
+        return;
+      }
+      lastMoved = to;
+      if (streaming) {
+        sendChanges(new Move(GameReplay.locationOf(from),
+            GameReplay.locationOf(to)));
+      }
+    }
+
+    @Override
+    public void spawned(int square, Rarity rarity) {
+      if (skipped()) {
+        return;
+      }
+      try {
+        GameReplay.spawn(game, square, rarity);
+      } catch (RuntimeException e) {
+        game = null;
+        return;
+      }
+      if (streaming) {
+        sendChanges(null);
+      }
+    }
+
+    @Override
+    public void powerUsed(Rarity rarity, int id, int input, int movedTo) {
+      if (skipped()) {
+        return;
+      }
+      try {
+        GameReplay.power(game, rarity, id, input, movedTo, lastMoved);
+      } catch (RuntimeException e) {
+        game = null;
+        return;
+      }
+      if (streaming) {
+        sendChanges(null);
+      }
+    }
+
+    /**
+     * The record ended; if it ended before the ply asked for, send the
+     * position it ended in.
+     */
+    private void ended() {
+      if (game != null && !streaming) {
+        sendKeyframe(ply);
+      }
+    }
+
+    /**
+     * @return whether a box or power is already part of the keyframe, or
+     *         the game can't be replayed.
+     */
+    private boolean skipped() {
+      return game == null || keyframe != null && ply <= keyframe.getPly();
+    }
+
+    private void sendKeyframe(int at) {
+      GameUpdate update = new GameUpdate(MessageType.KEYFRAME);
+      Board board = game.getBoard();
+      for (int square = 0; square < SQUARES; square++) {
+        shown[square] = GameChannel.squareOf(board,
+            GameReplay.locationOf(square));
+        update.add(shown[square]);
+      }
+      update.setSeq(at);
+      write(update.jsonText(Action.NONE, null, null));
+      streaming = true;
+    }
+
+    private void sendChanges(Move move) {
+      GameUpdate update = new GameUpdate();
+      Board board = game.getBoard();
+      for (int square = 0; square < SQUARES; square++) {
+        Location loc = GameReplay.locationOf(square);
+        SquareUpdate now = GameChannel.squareOf(board, loc);
+        if (!Objects.equals(now, shown[square])) {
+          update.add(now == null ? SquareUpdate.empty(loc) : now);
+          shown[square] = now;
+        }
+      }
+      update.setSeq(ply);
+      write(update.jsonText(Action.NONE, move, null));
+    }
+
+    private void write(String message) {
+      try {
+        out.write(message);
+        out.write('\n');
+        // chunks of a few messages, the first on its own
+        if (sent++ % FLUSH_EVERY == 0) {
+          out.flush();
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+}
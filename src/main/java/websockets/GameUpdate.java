@@ -0,0 +1,323 @@
+package websockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.eclipse.jetty.websocket.api.Session;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import board.Location;
+import game.Move;
+import poweractions.PowerAction;
+import websockets.ChessWebSocket.Action;
+import websockets.ChessWebSocket.MessageType;
+
+/**
+ * GameUpdate collects the square updates caused by one action and sends them
+ * to each recipient in the protocol that recipient negotiated. The shared part
+ * of the message is encoded at most once per protocol; what differs between
+ * recipients (action, move, power prompt) is added when sending. The same
+ * class renders the KEYFRAME and RESYNC replies used to repair a client that
+ * missed updates; those are always sent as JSON.
+ *
+ * @author knorms
+ *
+ */
+public final class GameUpdate {
+  private final MessageType type;
+  private final List<SquareUpdate> updates = new ArrayList<>();
+  private int seq = -1;
+  private int since = -1;
+  private long whiteMillis = -1;
+  private long blackMillis = -1;
+  private OutboundFrame jsonFrame;
+  private byte[] binarySquares;
+
+  /**
+   * Construct an empty GAME_UPDATE.
+   */
+  public GameUpdate() {
+    this(MessageType.GAME_UPDATE);
+  }
+
+  /**
+   * Construct an empty update of a given message type.
+   *
+   * @param type
+   *          GAME_UPDATE, KEYFRAME or RESYNC.
+   */
+  GameUpdate(MessageType type) {
+    this.type = type;
+  }
+
+  /**
+   * Add a square update; null updates (e.g. a piece update for a square
+   * without a piece) are ignored.
+   *
+   * @param update
+   *          Square update to add.
+   */
+  public void add(SquareUpdate update) {
+    if (update != null) {
+      updates.add(update);
+    }
+  }
+
+  /**
+   * Add several square updates.
+   *
+   * @param more
+   *          Square updates to add.
+   */
+  public void addAll(Collection<SquareUpdate> more) {
+    more.forEach(this::add);
+  }
+
+  /**
+   * @return the square updates
+   */
+  public List<SquareUpdate> getUpdates() {
+    return updates;
+  }
+
+  /**
+   * @return the message type
+   */
+  MessageType getType() {
+    return type;
+  }
+
+  /**
+   * @return the sequence number, or -1 if the update was never published
+   */
+  public int getSeq() {
+    return seq;
+  }
+
+  /**
+   * Stamp the update with its sequence number. Must happen before the update
+   * is first sent.
+   *
+   * @param seq
+   *          Sequence number within the game.
+   */
+  void setSeq(int seq) {
+    assert jsonFrame == null && binarySquares == null;
+    this.seq = seq;
+  }
+
+  /**
+   * Set the sequence number a RESYNC reply brings the client up from.
+   *
+   * @param since
+   *          Last sequence number the client had applied.
+   */
+  void setSince(int since) {
+    this.since = since;
+  }
+
+  /**
+   * Stamp the update with the time left on both clocks. Must happen before the
+   * update is first sent.
+   *
+   * @param whiteMillis
+   *          White's remaining time in milliseconds.
+   * @param blackMillis
+   *          Black's remaining time in milliseconds.
+   */
+  void setClock(long whiteMillis, long blackMillis) {
+    assert jsonFrame == null && binarySquares == null;
+    this.whiteMillis = Math.max(0, whiteMillis);
+    this.blackMillis = Math.max(0, blackMillis);
+  }
+
+  /**
+   * @return white's remaining time when the update was stamped, or -1
+   */
+  public long getWhiteMillis() {
+    return whiteMillis;
+  }
+
+  /**
+   * @return black's remaining time when the update was stamped, or -1
+   */
+  public long getBlackMillis() {
+    return blackMillis;
+  }
+
+  /**
+   * Send the update to a session telling it what to do next.
+   *
+   * @param session
+   *          Session to send to.
+   * @param action
+   *          Action the recipient has to take next.
+   * @throws IOException
+   *           If the update fails to send.
+   */
+  public void sendTo(Session session, Action action) throws IOException {
+    sendTo(session, action, null, null);
+  }
+
+  /**
+   * Send the update to a session.
+   *
+   * @param session
+   *          Session to send to.
+   * @param action
+   *          Action the recipient has to take next.
+   * @param move
+   *          Move the recipient should animate, or null.
+   * @param options
+   *          Power actions the recipient must choose from, or null.
+   * @throws IOException
+   *           If the update fails to send.
+   */
+  public void sendTo(Session session, Action action, Move move,
+      List<PowerAction> options) throws IOException {
+    if (session == null || !session.isOpen()) {
+      // a disconnected player catches up through RESUME
+      return;
+    }
+    if (type == MessageType.GAME_UPDATE && BinaryProtocol.isBinary(session)) {
+      OutboundFrame.send(session, binaryFrame(action, move, options));
+    } else {
+      OutboundFrame.send(session, jsonText(action, move, options));
+    }
+  }
+
+  /**
+   * Encode the update as JSON text for a recipient.
+   *
+   * @param action
+   *          Action the recipient has to take next.
+   * @param move
+   *          Move the recipient should animate, or null.
+   * @param options
+   *          Power actions the recipient must choose from, or null.
+   * @return encoded JSON text.
+   */
+  String jsonText(Action action, Move move, List<PowerAction> options) {
+    if (move == null && options == null) {
+      return jsonFrame().with("action", action.ordinal());
+    }
+    return jsonFrame().with(jsonFields(action, move, options));
+  }
+
+  /**
+   * Encode the update as a binary GAME_UPDATE frame for a recipient.
+   *
+   * @param action
+   *          Action the recipient has to take next.
+   * @param move
+   *          Move the recipient should animate, or null.
+   * @param options
+   *          Power actions the recipient must choose from, or null.
+   * @return frame ready to send.
+   */
+  ByteBuffer binaryFrame(Action action, Move move,
+      List<PowerAction> options) {
+    return BinaryProtocol.encodeGameUpdate(binarySquares(), seq,
+        (int) whiteMillis, (int) blackMillis, action.ordinal(), move, options);
+  }
+
+  /**
+   * Get the JSON frame shared by all recipients (type, sequence numbers,
+   * clocks and updates). Spectators are sent to from another thread, so
+   * building the shared encodings is synchronized.
+   *
+   * @return encoded frame.
+   */
+  synchronized OutboundFrame jsonFrame() {
+    if (jsonFrame == null) {
+      JsonArray array = new JsonArray();
+      for (SquareUpdate update : updates) {
+        array.add(update.toJson());
+      }
+      JsonObject response = new JsonObject();
+      response.addProperty("type", type.ordinal());
+      if (seq >= 0) {
+        response.addProperty("seq", seq);
+      }
+      if (since >= 0) {
+        response.addProperty("since", since);
+      }
+      if (whiteMillis >= 0) {
+        JsonObject clock = new JsonObject();
+        clock.addProperty("white", whiteMillis);
+        clock.addProperty("black", blackMillis);
+        response.add("clock", clock);
+      }
+      response.add("updates", array);
+      jsonFrame = new OutboundFrame(response);
+    }
+    return jsonFrame;
+  }
+
+  /**
+   * Get the packed squares shared by all binary recipients.
+   *
+   * @return packed bytes.
+   */
+  synchronized byte[] binarySquares() {
+    if (binarySquares == null) {
+      binarySquares = BinaryProtocol.encodeSquares(updates);
+    }
+    return binarySquares;
+  }
+
+  /**
+   * Create the per-recipient JSON fields of a GAME_UPDATE.
+   *
+   * @param action
+   *          Action the recipient has to take next.
+   * @param move
+   *          Move the recipient should animate, or null.
+   * @param options
+   *          Power actions the recipient must choose from, or null.
+   * @return JsonObject with the recipient's fields.
+   */
+  static JsonObject jsonFields(Action action, Move move,
+      List<PowerAction> options) {
+    JsonObject fields = new JsonObject();
+    if (move != null) {
+      fields.add("move", moveToJson(move));
+    }
+    fields.addProperty("action", action.ordinal());
+    if (options != null && options.size() == 2) {
+      PowerAction action1 = options.get(0);
+      fields.addProperty("rarity", action1.getRarity().ordinal());
+      fields.addProperty("id1", action1.getId());
+      PowerAction action2 = options.get(1);
+      fields.addProperty("id2", action2.getId());
+    }
+    return fields;
+  }
+
+  /**
+   * Render a move as {from: {row, col}, to: {row, col}}.
+   *
+   * @param move
+   *          Move to render.
+   * @return JsonObject representing the move.
+   */
+  static JsonObject moveToJson(Move move) {
+    JsonObject moveJson = new JsonObject();
+    moveJson.add("from", locationToJson(move.getStart()));
+    moveJson.add("to", locationToJson(move.getEnd()));
+    return moveJson;
+  }
+
+  private static JsonObject locationToJson(Location loc) {
+    JsonObject json = new JsonObject();
+    json.addProperty("row", loc.getRow());
+    json.addProperty("col", loc.getCol());
+    return json;
+  }
+
+}
@@ -0,0 +1,365 @@
+package websockets;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import cluster.HashRing;
+import game.Color;
+import game.Game.TimeControl;
+import metrics.MetricsRegistry;
+import websockets.HomeWebSocket.MessageType;
+
+/**
+ * HomeRouter serves /home for a cluster behind the router. Its lobby is the
+ * union of the nodes' lobbies: it follows each node's /home like a client
+ * does, paging through the open games once and then applying every batch of
+ * changes, and serves pages and batches to home clients from the merged copy.
+ * Game ids are unique across the cluster, so the lobbies merge without
+ * clashes. A SEEK goes to the node the ring places its time control on, so
+ * everybody seeking one time control waits in the same matchmaker, and its
+ * MATCHED answer is passed back.
+ *
+ * @author knorms
+ *
+ */
+@WebSocket
+public class HomeRouter {
+  private static final Queue<Session> SESSIONS = new ConcurrentLinkedQueue<>();
+  private static final Gson GSON = new Gson();
+  private static final long RECONNECT_MILLIS = 1000;
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  private static final Lobby LOBBY = new Lobby(HomeRouter::broadcast);
+  private static final Map<Session, Map<String, Session>> SEEKS =
+      new ConcurrentHashMap<>();
+  private static final ScheduledExecutorService RECONNECTS =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("lobby-feed").setDaemon(true).build());
+  private static volatile HashRing ring = null;
+
+  static {
+    MetricsRegistry metrics = MetricsRegistry.getDefault();
+    metrics.gauge("chess_home_sessions", "Open /home connections.",
+        SESSIONS::size);
+    metrics.gauge("chess_open_games", "Open public games in the lobby.",
+        LOBBY::size);
+  }
+
+  /**
+   * Set the nodes of the cluster and start following their lobbies. Call
+   * after PlayRouter.setNodes, whose client is shared.
+   *
+   * @param nodes
+   *          Ring of the nodes, named host:port.
+   */
+  public static synchronized void setNodes(HashRing nodes) {
+    if (ring != null) {
+      return;
+    }
+    ring = nodes;
+    LOBBY.start(HomeWebSocket.BATCH_MILLIS);
+    List<LobbyFeed> feeds = new ArrayList<>();
+    for (String node : nodes.getNodes()) {
+      LobbyFeed feed = new LobbyFeed(node);
+      feeds.add(feed);
+      feed.connect();
+    }
+    // a quiet lobby would otherwise let the nodes time the feeds out
+    RECONNECTS.scheduleAtFixedRate(() -> feeds.forEach(LobbyFeed::keepAlive),
+        KEEP_ALIVE_SECONDS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * On connect, send the first page of open games across the cluster.
+   *
+   * @param session
+   *          Session that just connected.
+   */
+  @OnWebSocketConnect
+  public void connected(Session session) {
+    SESSIONS.add(session);
+    OutboundFrame.sendAsync(session, LOBBY.firstPage());
+  }
+
+  /**
+   * Forget the session and withdraw any seek it made.
+   *
+   * @param session
+   *          Session to be removed.
+   * @param statusCode
+   *          Code indicating why session was closed.
+   * @param reason
+   *          Reason session was closed.
+   */
+  @OnWebSocketClose
+  public void closed(Session session, int statusCode, String reason) {
+    SESSIONS.remove(session);
+    Map<String, Session> links = SEEKS.remove(session);
+    if (links != null) {
+      synchronized (links) {
+        links.values().forEach(Session::close);
+      }
+    }
+  }
+
+  /**
+   * Answer a LIST_GAMES from the merged lobby; pass a SEEK on to the node of
+   * its time control and a CANCEL_SEEK to every node sought on. Requests
+   * have the format HomeWebSocket documents.
+   *
+   * @param session
+   *          Session that sent message.
+   * @param message
+   *          Message recieved.
+   */
+  @OnWebSocketMessage
+  public void message(Session session, String message) {
+    if (message.isEmpty()) {
+      forward(session, null, message);
+      return;
+    }
+    try {
+      JsonObject received = GSON.fromJson(message, JsonObject.class);
+      if (received == null || !received.has("type")) {
+        return;
+      }
+
+      TimeControl timeControl = null;
+      if (received.has("timeControl")) {
+        timeControl =
+            TimeControl.values()[received.get("timeControl").getAsInt()];
+      }
+      switch (MessageType.values()[received.get("type").getAsInt()]) {
+        case LIST_GAMES:
+          int after =
+              received.has("after") ? received.get("after").getAsInt() : -1;
+          int limit = received.has("limit") ? received.get("limit").getAsInt()
+              : Lobby.DEFAULT_PAGE;
+          OutboundFrame.sendAsync(session,
+              LOBBY.page(timeControl, after, limit));
+          break;
+        case SEEK:
+          if (timeControl != null) {
+            forward(session, ring.owner(timeControl.ordinal()), message);
+          }
+          break;
+        case CANCEL_SEEK:
+          forward(session, null, message);
+          break;
+        default:
+          break;
+      }
+    } catch (JsonParseException | IllegalStateException
+        | UnsupportedOperationException | NumberFormatException
+        | IndexOutOfBoundsException e) {
+      // malformed requests are ignored
+    }
+  }
+
+  /**
+   * Send a message over a client's link to a node, opening it if need be, or
+   * to every node it has a link to.
+   *
+   * @param node
+   *          Node to send to, or null for every linked node.
+   */
+  private static void forward(Session session, String node, String message) {
+    Map<String, Session> links = SEEKS.get(session);
+    if (node == null && links == null) {
+      return;
+    } else if (links == null) {
+      links = SEEKS.computeIfAbsent(session, s -> new HashMap<>());
+    }
+    synchronized (links) {
+      if (node == null) {
+        for (Session link : links.values()) {
+          if (link.isOpen()) {
+            PlayRouter.relay(link, message);
+          }
+        }
+        return;
+      }
+      Session link = links.get(node);
+      if (link == null || !link.isOpen()) {
+        link = PlayRouter.connect(node, "/home", new SeekLink(session),
+            PlayRouter.addressOf(session));
+        if (link == null) {
+          return;
+        }
+        links.put(node, link);
+      }
+      PlayRouter.relay(link, message);
+    }
+  }
+
+  /**
+   * Send a batch of lobby changes to every client on the homepage without
+   * waiting for slow clients.
+   */
+  private static void broadcast(String batch) {
+    SESSIONS.forEach(session -> {
+      if (session.isOpen()) {
+        try {
+          OutboundFrame.sendAsync(session, batch);
+        } catch (RuntimeException e) {
+          // closing; it is forgotten when the close arrives
+        }
+      }
+    });
+  }
+
+  /**
+   * A client's connection to the /home of the node it seeks on. The node
+   * also sends it the node's lobby, which the router already has; only the
+   * answers to the seek are passed on.
+   */
+  @WebSocket
+  public static final class SeekLink {
+    // the lobby builds its messages by hand with the type first
+    private static final String[] LOBBY_PREFIXES = {
+        "{\"type\":" + MessageType.ALL_GAMES.ordinal() + ",",
+        "{\"type\":" + MessageType.GAMES_CHANGED.ordinal() + ","};
+
+    private final Session client;
+
+    SeekLink(Session client) {
+      this.client = client;
+    }
+
+    /**
+     * Pass a MATCHED message on to the client.
+     *
+     * @param text
+     *          Text of the message.
+     */
+    @OnWebSocketMessage
+    public void message(String text) {
+      for (String prefix : LOBBY_PREFIXES) {
+        if (text.startsWith(prefix)) {
+          return;
+        }
+      }
+      if (client.isOpen()) {
+        OutboundFrame.sendAsync(client, text);
+      }
+    }
+  }
+
+  /**
+   * Follows one node's lobby into the merged one, and reconnects if the node
+   * goes away, withdrawing its games in the meantime.
+   */
+  @WebSocket
+  public static final class LobbyFeed {
+    private final String node;
+    private final Set<Integer> games = ConcurrentHashMap.newKeySet();
+    private volatile Session session;
+
+    LobbyFeed(String node) {
+      this.node = node;
+    }
+
+    void connect() {
+      session = PlayRouter.connect(node, "/home", this, null);
+      if (session == null) {
+        RECONNECTS.schedule(this::connect, RECONNECT_MILLIS,
+            TimeUnit.MILLISECONDS);
+      }
+    }
+
+    void keepAlive() {
+      Session open = session;
+      if (open != null && open.isOpen()) {
+        PlayRouter.relay(open, "");
+      }
+    }
+
+    /**
+     * Apply a page of games, asking for the next if there is one, or a batch
+     * of changes.
+     *
+     * @param session
+     *          Session to the node.
+     * @param text
+     *          Text of the message.
+     */
+    @OnWebSocketMessage
+    public void message(Session session, String text) {
+      JsonObject received = GSON.fromJson(text, JsonObject.class);
+      int type = received.get("type").getAsInt();
+      if (type == MessageType.ALL_GAMES.ordinal()) {
+        open(received.getAsJsonObject("games"));
+        if (received.has("next")) {
+          JsonObject request = new JsonObject();
+          request.addProperty("type", MessageType.LIST_GAMES.ordinal());
+          request.addProperty("after", received.get("next").getAsInt());
+          request.addProperty("limit", Lobby.MAX_PAGE);
+          PlayRouter.relay(session, GSON.toJson(request));
+        }
+      } else if (type == MessageType.GAMES_CHANGED.ordinal()) {
+        open(received.getAsJsonObject("added"));
+        for (JsonElement removed : received.getAsJsonArray("removed")) {
+          games.remove(removed.getAsInt());
+          LOBBY.close(removed.getAsInt());
+        }
+      }
+    }
+
+    /**
+     * Withdraw the node's games and try to reconnect.
+     *
+     * @param statusCode
+     *          Close code.
+     * @param reason
+     *          Close reason.
+     */
+    @OnWebSocketClose
+    public void closed(int statusCode, String reason) {
+      for (Integer gameId : games) {
+        LOBBY.close(gameId);
+      }
+      games.clear();
+      RECONNECTS.schedule(this::connect, RECONNECT_MILLIS,
+          TimeUnit.MILLISECONDS);
+    }
+
+    private void open(JsonObject entries) {
+      for (Map.Entry<String, JsonElement> entry : entries.entrySet()) {
+        int gameId = Integer.parseInt(entry.getKey());
+        JsonObject game = entry.getValue().getAsJsonObject();
+        if (!game.has("name") || game.get("name").isJsonNull()) {
+          // a game of a player without a name has no entry to show
+          continue;
+        }
+        games.add(gameId);
+        LOBBY.open(gameId,
+            TimeControl.values()[game.get("timeControl").getAsInt()],
+            game.get("name").getAsString(),
+            Color.values()[game.get("color").getAsInt()],
+            game.has("rating") ? game.get("rating").getAsInt() : 0);
+      }
+    }
+  }
+
+}
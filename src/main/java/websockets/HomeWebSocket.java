@@ -1,16 +1,23 @@
 package websockets;
 
-import java.io.IOException;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+import game.Color;
+import game.Game.TimeControl;
+import metrics.MetricsRegistry;
+import storage.RatingBook;
+import websockets.Matchmaker.Seeker;
 
 /**
  * HomeWebSocket allows server to communicate with clients on home page.
@@ -23,35 +30,64 @@ public class HomeWebSocket {
   private static final Queue<Session> SESSIONS = new ConcurrentLinkedQueue<>();
   private static final Gson GSON = new Gson();
 
+  /**
+   * Interval at which lobby changes are broadcast, in milliseconds.
+   */
+  static final long BATCH_MILLIS = 250;
+
+  /**
+   * Interval at which waiting players are paired, in milliseconds.
+   */
+  static final long MATCH_MILLIS = 1000;
+
+  private static final Lobby LOBBY = new Lobby(HomeWebSocket::broadcast);
+  private static final Matchmaker<Session> MATCHMAKER =
+      new Matchmaker<>(HomeWebSocket::matched);
+  private static volatile RatingBook ratings = null;
+
+  static {
+    LOBBY.start(BATCH_MILLIS);
+    MATCHMAKER.start(MATCH_MILLIS);
+
+    MetricsRegistry metrics = MetricsRegistry.getDefault();
+    metrics.gauge("chess_home_sessions", "Open /home connections.",
+        SESSIONS::size);
+    metrics.gauge("chess_open_games", "Open public games in the lobby.",
+        LOBBY::size);
+    metrics.gauge("chess_seeking_players", "Players waiting to be paired.",
+        MATCHMAKER::waiting);
+  }
+
   /**
    * Enumerates types of messages server sends to clients on the homepage.
+   * ADD_GAME and REMOVE_GAME are no longer sent; lobby changes arrive batched
+   * in GAMES_CHANGED. SEEK and CANCEL_SEEK are sent by clients looking for an
+   * opponent, who are answered with MATCHED.
    *
    * @author knorms
    *
    */
   public enum MessageType {
-    ALL_GAMES, ADD_GAME, REMOVE_GAME
+    ALL_GAMES, ADD_GAME, REMOVE_GAME, GAMES_CHANGED, LIST_GAMES, SEEK,
+    CANCEL_SEEK, MATCHED
   }
 
   /**
-   * On connect, add session to the queue.
+   * On connect, add session to the queue and send it the first page of open
+   * games. Everything is sent to a home session without waiting, so the
+   * lobby's batches never collide with a reply.
    *
    * @param session
    *          Session that just connected.
-   * @throws IOException
-   *           If session cannot be added to the queue.
    */
   @OnWebSocketConnect
-  public void connected(Session session) throws IOException {
+  public void connected(Session session) {
     SESSIONS.add(session);
-    JsonObject response = new JsonObject();
-    response.add("games", ChessWebSocket.getPublicGames());
-    response.addProperty("type", MessageType.ALL_GAMES.ordinal());
-    session.getRemote().sendString(GSON.toJson(response));
+    OutboundFrame.sendAsync(session, LOBBY.firstPage());
   }
 
   /**
-   * Remove session from the queue.
+   * Remove session from the queue and stop looking for an opponent for it.
    *
    * @param session
    *          Session to be removed.
@@ -63,44 +99,164 @@ public class HomeWebSocket {
   @OnWebSocketClose
   public void closed(Session session, int statusCode, String reason) {
     SESSIONS.remove(session);
+    MATCHMAKER.cancel(session);
   }
 
   /**
-   * Update all clients on homepage that public game was added.
+   * Respond to a LIST_GAMES request for a page of open games: {type,
+   * timeControl (optional), after (optional), limit (optional)}; a SEEK for an
+   * opponent: {type, timeControl, name, rating (optional)}; or a CANCEL_SEEK.
+   * With a rating book the rating a client sends is ignored.
    *
-   * @param gameUpdate
-   *          Game Add Update to send.
+   * @param session
+   *          Session that sent message.
+   * @param message
+   *          Message recieved.
    */
-  public static void gameAdded(JsonObject gameUpdate) {
-    gameUpdate.addProperty("type", MessageType.ADD_GAME.ordinal());
+  @OnWebSocketMessage
+  public void message(Session session, String message) {
+    if (message.isEmpty()) {
+      return;
+    }
+    try {
+      JsonObject received = GSON.fromJson(message, JsonObject.class);
+      if (received == null || !received.has("type")) {
+        return;
+      }
 
-    String toSend = GSON.toJson(gameUpdate);
-    SESSIONS.forEach(session -> {
-      try {
-        session.getRemote().sendString(toSend);
-      } catch (IOException e) {
-        e.printStackTrace();
+      TimeControl timeControl = null;
+      if (received.has("timeControl")) {
+        timeControl =
+            TimeControl.values()[received.get("timeControl").getAsInt()];
       }
-    });
+      switch (MessageType.values()[received.get("type").getAsInt()]) {
+        case LIST_GAMES:
+          int after =
+              received.has("after") ? received.get("after").getAsInt() : -1;
+          int limit = received.has("limit") ? received.get("limit").getAsInt()
+              : Lobby.DEFAULT_PAGE;
+          OutboundFrame.sendAsync(session,
+              LOBBY.page(timeControl, after, limit));
+          break;
+        case SEEK:
+          if (timeControl == null || !received.has("name")) {
+            return;
+          }
+          String name = received.get("name").getAsString();
+          RatingBook book = ratings;
+          int rating;
+          if (book != null) {
+            rating = book.rating(name, timeControl).rounded();
+          } else {
+            rating = received.has("rating") ? received.get("rating").getAsInt()
+                : Matchmaker.DEFAULT_RATING;
+          }
+          MATCHMAKER.seek(session, name, rating, timeControl);
+          break;
+        case CANCEL_SEEK:
+          MATCHMAKER.cancel(session);
+          break;
+        default:
+          break;
+      }
+    } catch (JsonParseException | IllegalStateException
+        | UnsupportedOperationException | NumberFormatException
+        | IndexOutOfBoundsException e) {
+      // malformed requests are ignored
+    }
+  }
+
+  /**
+   * Add a public game to the lobby; home clients hear of it in the next
+   * batch.
+   *
+   * @param gameId
+   *          Id of the game.
+   * @param timeControl
+   *          Time control of the game.
+   * @param name
+   *          Name of the player waiting for an opponent.
+   * @param color
+   *          Color of the waiting player.
+   */
+  public static void gameAdded(int gameId, TimeControl timeControl,
+      String name, Color color) {
+    RatingBook book = ratings;
+    LOBBY.open(gameId, timeControl, name, color,
+        book == null ? 0 : book.rating(name, timeControl).rounded());
+  }
+
+  /**
+   * Pair seekers and list open games by the ratings of a rating book rather
+   * than the ratings clients send.
+   *
+   * @param book
+   *          Ratings of the players, or null to trust the clients again.
+   */
+  public static void setRatings(RatingBook book) {
+    ratings = book;
   }
 
   /**
-   * Update all clients on homepage that public game was removed.
+   * Remove a game from the lobby; home clients hear of it in the next batch.
    *
    * @param gameId
    *          ID of game the now has two players
    */
   public static void gameRemoved(int gameId) {
-    JsonObject gameUpdate = new JsonObject();
-    gameUpdate.addProperty("type", MessageType.REMOVE_GAME.ordinal());
-    gameUpdate.addProperty("gameId", gameId);
+    LOBBY.close(gameId);
+  }
+
+  /**
+   * Create a game for two paired players and send each of them a MATCHED
+   * message with what they need to resume into it: {type, gameId, playerId,
+   * color, name (of the opponent), timeControl, token}. If one of them has
+   * left the home page, the other is put back in the queue.
+   */
+  private static void matched(Seeker<Session> first, Seeker<Session> second) {
+    if (!first.getKey().isOpen() || !second.getKey().isOpen()) {
+      requeue(first);
+      requeue(second);
+      return;
+    }
+    JsonObject[] details = ChessWebSocket.createMatch(first.getTimeControl(),
+        first.getName(), second.getName());
+    details[0].addProperty("type", MessageType.MATCHED.ordinal());
+    details[1].addProperty("type", MessageType.MATCHED.ordinal());
+    send(first.getKey(), GSON.toJson(details[0]));
+    send(second.getKey(), GSON.toJson(details[1]));
+  }
+
+  /**
+   * Send without waiting, ignoring a client that closed since it was checked.
+   */
+  private static void send(Session session, String text) {
+    try {
+      OutboundFrame.sendAsync(session, text);
+    } catch (RuntimeException e) {
+      // closing; the game is abandoned once its grace window runs out
+    }
+  }
+
+  private static void requeue(Seeker<Session> seeker) {
+    if (seeker.getKey().isOpen()) {
+      MATCHMAKER.seek(seeker.getKey(), seeker.getName(), seeker.getRating(),
+          seeker.getTimeControl());
+    }
+  }
 
-    String toSend = GSON.toJson(gameUpdate);
+  /**
+   * Send a batch of lobby changes to every client on the homepage without
+   * waiting for slow clients.
+   */
+  private static void broadcast(String batch) {
     SESSIONS.forEach(session -> {
-      try {
-        session.getRemote().sendString(toSend);
-      } catch (IOException e) {
-        e.printStackTrace();
+      if (session.isOpen()) {
+        try {
+          OutboundFrame.sendAsync(session, batch);
+        } catch (RuntimeException e) {
+          // closing; it is forgotten when the close arrives
+        }
       }
     });
   }
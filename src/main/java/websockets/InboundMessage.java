@@ -0,0 +1,331 @@
+package websockets;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import board.Location;
+import game.Move;
+import websockets.ChessWebSocket.Action;
+import websockets.ChessWebSocket.MessageType;
+
+/**
+ * InboundMessage is the typed form of a message received on /play. It is
+ * filled in directly by MessageDecoder while streaming over the frame, so no
+ * intermediate JSON tree is built.
+ *
+ * @author knorms
+ *
+ */
+public final class InboundMessage {
+  private final Set<Field> present = EnumSet.noneOf(Field.class);
+
+  private MessageType type;
+  private int gameId;
+  private int playerId;
+  private Action action;
+  private String name;
+  private boolean color;
+  private int timeControl;
+  private boolean isPublic;
+  private int reason;
+  private boolean selection;
+  private Move move;
+  private Location followUpLocation;
+  private Move followUpMove;
+  private int row;
+  private int col;
+  private int rarity;
+  private int id1;
+  private int id2;
+  private Location whereCaptured;
+  private int seq;
+  private String token;
+
+  /**
+   * Enumerates the fields a client may send, keyed by their JSON names.
+   *
+   * @author knorms
+   *
+   */
+  enum Field {
+    TYPE("type"), GAME_ID("gameId"), PLAYER_ID("playerId"), ACTION("action"),
+    NAME("name"), COLOR("color"), TIME_CONTROL("timeControl"),
+    PUBLIC("public"), REASON("reason"), SELECTION("selection"), MOVE("move"),
+    FOLLOW_UP("followUp"), ROW("row"), COL("col"), RARITY("rarity"),
+    ID1("id1"), ID2("id2"), WHERE_CAPTURED("whereCaptured"),
+    SEQ("seq"), TOKEN("token");
+
+    private final String key;
+
+    Field(String key) {
+      this.key = key;
+    }
+
+    /**
+     * @return the JSON name of the field
+     */
+    String key() {
+      return key;
+    }
+  }
+
+  /**
+   * Check whether a field was present in the message.
+   *
+   * @param field
+   *          Field to check.
+   * @return true if the client sent the field.
+   */
+  boolean has(Field field) {
+    return present.contains(field);
+  }
+
+  /**
+   * Mark a field as present.
+   *
+   * @param field
+   *          Field that was read.
+   */
+  void mark(Field field) {
+    present.add(field);
+  }
+
+  /**
+   * @return the message type
+   */
+  public MessageType getType() {
+    return type;
+  }
+
+  void setType(MessageType type) {
+    this.type = type;
+  }
+
+  /**
+   * @return the gameId
+   */
+  public int getGameId() {
+    return gameId;
+  }
+
+  void setGameId(int gameId) {
+    this.gameId = gameId;
+  }
+
+  /**
+   * @return the playerId
+   */
+  public int getPlayerId() {
+    return playerId;
+  }
+
+  void setPlayerId(int playerId) {
+    this.playerId = playerId;
+  }
+
+  /**
+   * @return the player action, or NONE if none was sent
+   */
+  public Action getAction() {
+    return action == null ? Action.NONE : action;
+  }
+
+  void setAction(Action action) {
+    this.action = action;
+  }
+
+  /**
+   * @return the player name
+   */
+  public String getName() {
+    return name;
+  }
+
+  void setName(String name) {
+    this.name = name;
+  }
+
+  /**
+   * @return the color (true for white)
+   */
+  public boolean getColor() {
+    return color;
+  }
+
+  void setColor(boolean color) {
+    this.color = color;
+  }
+
+  /**
+   * @return the time control index
+   */
+  public int getTimeControl() {
+    return timeControl;
+  }
+
+  void setTimeControl(int timeControl) {
+    this.timeControl = timeControl;
+  }
+
+  /**
+   * @return whether the game should be public
+   */
+  public boolean isPublic() {
+    return isPublic;
+  }
+
+  void setPublic(boolean pub) {
+    this.isPublic = pub;
+  }
+
+  /**
+   * @return the game end reason index
+   */
+  public int getReason() {
+    return reason;
+  }
+
+  void setReason(int reason) {
+    this.reason = reason;
+  }
+
+  /**
+   * @return the power selection (true for the first option)
+   */
+  public boolean getSelection() {
+    return selection;
+  }
+
+  void setSelection(boolean selection) {
+    this.selection = selection;
+  }
+
+  /**
+   * @return the move
+   */
+  public Move getMove() {
+    return move;
+  }
+
+  void setMove(Move move) {
+    this.move = move;
+  }
+
+  /**
+   * @return the follow up square, or null if the follow up was not a square
+   */
+  public Location getFollowUpLocation() {
+    return followUpLocation;
+  }
+
+  void setFollowUpLocation(Location followUpLocation) {
+    this.followUpLocation = followUpLocation;
+  }
+
+  /**
+   * @return the follow up move, or null if the follow up was not a move
+   */
+  public Move getFollowUpMove() {
+    return followUpMove;
+  }
+
+  void setFollowUpMove(Move followUpMove) {
+    this.followUpMove = followUpMove;
+  }
+
+  /**
+   * @return whether a follow up was sent
+   */
+  public boolean hasFollowUp() {
+    return followUpLocation != null || followUpMove != null;
+  }
+
+  /**
+   * @return the row
+   */
+  public int getRow() {
+    return row;
+  }
+
+  void setRow(int row) {
+    this.row = row;
+  }
+
+  /**
+   * @return the col
+   */
+  public int getCol() {
+    return col;
+  }
+
+  void setCol(int col) {
+    this.col = col;
+  }
+
+  /**
+   * @return the rarity index
+   */
+  public int getRarity() {
+    return rarity;
+  }
+
+  void setRarity(int rarity) {
+    this.rarity = rarity;
+  }
+
+  /**
+   * @return the id of the first power
+   */
+  public int getId1() {
+    return id1;
+  }
+
+  void setId1(int id1) {
+    this.id1 = id1;
+  }
+
+  /**
+   * @return the id of the second power
+   */
+  public int getId2() {
+    return id2;
+  }
+
+  void setId2(int id2) {
+    this.id2 = id2;
+  }
+
+  /**
+   * @return the location where a power was captured
+   */
+  public Location getWhereCaptured() {
+    return whereCaptured;
+  }
+
+  void setWhereCaptured(Location whereCaptured) {
+    this.whereCaptured = whereCaptured;
+  }
+
+  /**
+   * @return the last sequence number the client applied
+   */
+  public int getSeq() {
+    return seq;
+  }
+
+  void setSeq(int seq) {
+    this.seq = seq;
+  }
+
+  /**
+   * @return the resume token
+   */
+  public String getToken() {
+    return token;
+  }
+
+  void setToken(String token) {
+    this.token = token;
+  }
+
+}
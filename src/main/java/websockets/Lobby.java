@@ -0,0 +1,276 @@
+package websockets;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import game.Color;
+import game.Game.TimeControl;
+import websockets.HomeWebSocket.MessageType;
+
+/**
+ * Lobby indexes the open public games (created but not yet joined) by time
+ * control, so the home page never scans every game on the server. Each entry
+ * is serialized once when the game opens; pages are assembled from those
+ * fragments and the first page is cached until the lobby changes. Opens and
+ * closes are not pushed one by one but collected and broadcast together at a
+ * fixed interval, with a game that opened and closed within the same interval
+ * never sent at all.
+ *
+ * @author knorms
+ *
+ */
+public final class Lobby {
+  /**
+   * Entries per page when a client doesn't ask for a size.
+   */
+  public static final int DEFAULT_PAGE = 50;
+
+  /**
+   * Largest page a client can ask for.
+   */
+  public static final int MAX_PAGE = 200;
+
+  private static final Gson GSON = new Gson();
+
+  private final NavigableMap<Integer, String> all =
+      new ConcurrentSkipListMap<>();
+  private final Map<TimeControl, NavigableMap<Integer, String>> byTimeControl =
+      new EnumMap<>(TimeControl.class);
+  // sizes of the indexes, which a skip list can only count by walking it
+  private final AtomicInteger allCount = new AtomicInteger();
+  private final Map<TimeControl, AtomicInteger> counts =
+      new EnumMap<>(TimeControl.class);
+  private final Consumer<String> broadcast;
+
+  // pending batch: game id -> entry fragment (opened) or null (closed)
+  private Map<Integer, String> pending = new LinkedHashMap<>();
+  private volatile String firstPage;
+  private ScheduledExecutorService timer;
+
+  /**
+   * Construct an empty lobby.
+   *
+   * @param broadcast
+   *          Sends an encoded batch of lobby changes to every home session.
+   */
+  public Lobby(Consumer<String> broadcast) {
+    this.broadcast = broadcast;
+    for (TimeControl tc : TimeControl.values()) {
+      byTimeControl.put(tc, new ConcurrentSkipListMap<>());
+      counts.put(tc, new AtomicInteger());
+    }
+  }
+
+  /**
+   * Start broadcasting batched changes at a fixed interval.
+   *
+   * @param periodMillis
+   *          Interval between batches, in milliseconds.
+   */
+  public synchronized void start(long periodMillis) {
+    if (timer != null) {
+      return;
+    }
+    timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("lobby-batch").setDaemon(true)
+            .build());
+    timer.scheduleAtFixedRate(this::flush, periodMillis, periodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Add a game to the lobby.
+   *
+   * @param gameId
+   *          Id of the game.
+   * @param timeControl
+   *          Time control of the game.
+   * @param name
+   *          Name of the player waiting for an opponent.
+   * @param color
+   *          Color of the waiting player.
+   */
+  public void open(int gameId, TimeControl timeControl, String name,
+      Color color) {
+    open(gameId, timeControl, name, color, 0);
+  }
+
+  /**
+   * Add a game to the lobby with the rating of the waiting player.
+   *
+   * @param gameId
+   *          Id of the game.
+   * @param timeControl
+   *          Time control of the game.
+   * @param name
+   *          Name of the player waiting for an opponent.
+   * @param color
+   *          Color of the waiting player.
+   * @param rating
+   *          Their rating in the time control, or 0 to list none.
+   */
+  public void open(int gameId, TimeControl timeControl, String name,
+      Color color, int rating) {
+    JsonObject entry = new JsonObject();
+    entry.addProperty("timeControl", timeControl.ordinal());
+    entry.addProperty("name", name);
+    entry.addProperty("color", color.ordinal());
+    if (rating != 0) {
+      entry.addProperty("rating", rating);
+    }
+    String fragment = "\"" + gameId + "\":" + GSON.toJson(entry);
+
+    synchronized (this) {
+      if (all.put(gameId, fragment) == null) {
+        allCount.incrementAndGet();
+      }
+      if (byTimeControl.get(timeControl).put(gameId, fragment) == null) {
+        counts.get(timeControl).incrementAndGet();
+      }
+      pending.put(gameId, fragment);
+      firstPage = null;
+    }
+  }
+
+  /**
+   * Remove a game from the lobby (it was joined, abandoned or ended). Games
+   * that are not in the lobby are ignored.
+   *
+   * @param gameId
+   *          Id of the game.
+   */
+  public synchronized void close(int gameId) {
+    if (all.remove(gameId) == null) {
+      return;
+    }
+    allCount.decrementAndGet();
+    for (TimeControl tc : TimeControl.values()) {
+      if (byTimeControl.get(tc).remove(gameId) != null) {
+        counts.get(tc).decrementAndGet();
+      }
+    }
+    if (pending.get(gameId) != null) {
+      // opened and closed within one batch: nobody needs to hear of it
+      pending.remove(gameId);
+    } else {
+      pending.put(gameId, null);
+    }
+    firstPage = null;
+  }
+
+  /**
+   * @return the number of open games
+   */
+  public int size() {
+    return allCount.get();
+  }
+
+  /**
+   * Get the ALL_GAMES message for the first page of all time controls. The
+   * text is cached until the lobby changes.
+   *
+   * @return encoded message.
+   */
+  public String firstPage() {
+    String page = firstPage;
+    if (page == null) {
+      // built under the lock so a concurrent change can't be cached over
+      synchronized (this) {
+        if (firstPage == null) {
+          firstPage = page(null, -1, DEFAULT_PAGE);
+        }
+        page = firstPage;
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Get an ALL_GAMES message with a page of open games in order of game id.
+   *
+   * @param timeControl
+   *          Only list games with this time control, or null for all.
+   * @param after
+   *          Only list games with an id greater than this (the "next" value
+   *          of the previous page), or -1 to start at the beginning.
+   * @param limit
+   *          Maximum number of games to list.
+   * @return encoded message; it contains "next" if there are more games.
+   */
+  public String page(TimeControl timeControl, int after, int limit) {
+    NavigableMap<Integer, String> index =
+        timeControl == null ? all : byTimeControl.get(timeControl);
+    int total = timeControl == null ? allCount.get()
+        : counts.get(timeControl).get();
+    int size = Math.max(1, Math.min(limit, MAX_PAGE));
+    StringBuilder sb = new StringBuilder(64 + 64 * size);
+    sb.append("{\"type\":").append(MessageType.ALL_GAMES.ordinal())
+        .append(",\"total\":").append(total).append(",\"games\":{");
+
+    Iterator<Map.Entry<Integer, String>> it =
+        index.tailMap(after, false).entrySet().iterator();
+    int count = 0;
+    int last = after;
+    while (it.hasNext() && count < size) {
+      Map.Entry<Integer, String> entry = it.next();
+      if (count > 0) {
+        sb.append(',');
+      }
+      sb.append(entry.getValue());
+      last = entry.getKey();
+      count++;
+    }
+    sb.append('}');
+    if (it.hasNext()) {
+      sb.append(",\"next\":").append(last);
+    }
+    return sb.append('}').toString();
+  }
+
+  /**
+   * Broadcast the changes since the last batch, if there are any, as one
+   * GAMES_CHANGED message: {type, added: {id: entry, ...}, removed: [id, ...]}.
+   */
+  public void flush() {
+    Map<Integer, String> batch;
+    synchronized (this) {
+      if (pending.isEmpty()) {
+        return;
+      }
+      batch = pending;
+      pending = new LinkedHashMap<>();
+    }
+
+    StringBuilder added = new StringBuilder();
+    StringBuilder removed = new StringBuilder();
+    for (Map.Entry<Integer, String> change : batch.entrySet()) {
+      StringBuilder list = change.getValue() == null ? removed : added;
+      if (list.length() > 0) {
+        list.append(',');
+      }
+      list.append(change.getValue() == null ? change.getKey().toString()
+          : change.getValue());
+    }
+    try {
+      broadcast.accept("{\"type\":" + MessageType.GAMES_CHANGED.ordinal()
+          + ",\"added\":{" + added + "},\"removed\":[" + removed + "]}");
+    } catch (RuntimeException e) {
+      // thrown out of the timer it would cancel every batch after this one
+      System.err.println("ERROR: lobby batch not sent: " + e.getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,24 @@
+package websockets;
+
+/**
+ * Thrown when a message received from a client is not valid JSON or is
+ * missing or has invalid values for the fields its type requires.
+ *
+ * @author knorms
+ *
+ */
+public final class MalformedMessageException extends Exception {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructs a MalformedMessageException with the specified detail message.
+   *
+   * @param message
+   *          the detail message.
+   */
+  public MalformedMessageException(String message) {
+    super(message);
+  }
+
+}
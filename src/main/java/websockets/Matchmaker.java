@@ -0,0 +1,323 @@
+package websockets;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import game.Game.TimeControl;
+
+/**
+ * Matchmaker pairs players who asked for an opponent with a given time
+ * control. Waiting players sit in per time control queues bucketed by rating,
+ * so the closest waiting opponent is found by walking out from the player's
+ * bucket in a sorted map rather than by a scan. Each player accepts
+ * opponents within a rating window that widens the longer they wait. Pairing
+ * runs in batches at a fixed interval, oldest seeker first.
+ *
+ * @author knorms
+ *
+ * @param <K>
+ *          Type identifying a waiting player, e.g. their session.
+ */
+public final class Matchmaker<K> {
+  /**
+   * Rating assumed for players who don't send one.
+   */
+  public static final int DEFAULT_RATING = 1500;
+
+  static final int BUCKET_WIDTH = 50;
+  static final int INITIAL_WINDOW = 100;
+  static final int WINDOW_GROWTH_PER_SECOND = 20;
+  static final int MAX_WINDOW = 1000;
+
+  // time control -> rating bucket -> players in the bucket, oldest first
+  private final Map<TimeControl, NavigableMap<Integer, Deque<Seeker<K>>>>
+      queues = new EnumMap<>(TimeControl.class);
+  // every waiting player, oldest first
+  private final Map<K, Seeker<K>> waiting = new LinkedHashMap<>();
+  private final BiConsumer<Seeker<K>, Seeker<K>> onMatch;
+  private final LongSupplier now;
+  private ScheduledExecutorService timer;
+
+  /**
+   * Construct an empty matchmaker.
+   *
+   * @param onMatch
+   *          Called, outside of any lock, with each pair of players matched.
+   */
+  public Matchmaker(BiConsumer<Seeker<K>, Seeker<K>> onMatch) {
+    this(onMatch, System::currentTimeMillis);
+  }
+
+  /**
+   * Construct an empty matchmaker reading time from a custom source.
+   *
+   * @param onMatch
+   *          Called, outside of any lock, with each pair of players matched.
+   * @param now
+   *          Source of the current time in milliseconds.
+   */
+  public Matchmaker(BiConsumer<Seeker<K>, Seeker<K>> onMatch,
+      LongSupplier now) {
+    this.onMatch = onMatch;
+    this.now = now;
+    for (TimeControl tc : TimeControl.values()) {
+      queues.put(tc, new TreeMap<>());
+    }
+  }
+
+  /**
+   * Start pairing at a fixed interval.
+   *
+   * @param periodMillis
+   *          Interval between pairing batches, in milliseconds.
+   */
+  public synchronized void start(long periodMillis) {
+    if (timer != null) {
+      return;
+    }
+    timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("matchmaker").setDaemon(true)
+            .build());
+    timer.scheduleWithFixedDelay(this::tick, periodMillis, periodMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Queue a player looking for an opponent. A player already waiting is moved
+   * to the new time control and rating, and their wait starts over.
+   *
+   * @param key
+   *          Identifies the player.
+   * @param name
+   *          Name of the player.
+   * @param rating
+   *          Rating of the player.
+   * @param timeControl
+   *          Time control the player wants to play.
+   */
+  public synchronized void seek(K key, String name, int rating,
+      TimeControl timeControl) {
+    cancel(key);
+    Seeker<K> seeker =
+        new Seeker<>(key, name, rating, timeControl, now.getAsLong());
+    waiting.put(key, seeker);
+    queues.get(timeControl)
+        .computeIfAbsent(bucketOf(rating), b -> new ArrayDeque<>())
+        .add(seeker);
+  }
+
+  /**
+   * Stop looking for an opponent for a player. Players not waiting are
+   * ignored.
+   *
+   * @param key
+   *          Identifies the player.
+   */
+  public synchronized void cancel(K key) {
+    Seeker<K> seeker = waiting.remove(key);
+    if (seeker != null) {
+      unqueue(seeker);
+    }
+  }
+
+  /**
+   * @return the number of players waiting
+   */
+  public synchronized int waiting() {
+    return waiting.size();
+  }
+
+  /**
+   * Pair every waiting player that has an acceptable opponent, oldest first.
+   *
+   * @return the number of pairs made.
+   */
+  public int tick() {
+    List<Seeker<K>> pairs = new ArrayList<>();
+    synchronized (this) {
+      long time = now.getAsLong();
+      for (Seeker<K> seeker : waiting.values()) {
+        if (seeker.paired) {
+          continue;
+        }
+        Seeker<K> opponent = closest(seeker, time);
+        if (opponent != null) {
+          unqueue(seeker);
+          unqueue(opponent);
+          seeker.paired = true;
+          opponent.paired = true;
+          pairs.add(seeker);
+          pairs.add(opponent);
+        }
+      }
+      waiting.values().removeIf(seeker -> seeker.paired);
+    }
+    for (int i = 0; i < pairs.size(); i += 2) {
+      // one pair failing must not lose the rest, nor, by throwing out of
+      // the timer's task, stop matching
+      try {
+        onMatch.accept(pairs.get(i), pairs.get(i + 1));
+      } catch (RuntimeException e) {
+        System.err.println("ERROR: could not start a match: " + e);
+      }
+    }
+    return pairs.size() / 2;
+  }
+
+  /**
+   * Find the waiting player closest in rating to a seeker whose window and the
+   * seeker's window both allow the pairing. The seeker's own bucket is
+   * examined, then the buckets on each side outward, as long as a bucket
+   * could hold someone inside the seeker's window and closer than the best
+   * found so far.
+   */
+  private Seeker<K> closest(Seeker<K> seeker, long time) {
+    NavigableMap<Integer, Deque<Seeker<K>>> queue =
+        queues.get(seeker.timeControl);
+    int window = seeker.window(time);
+    int bucket = bucketOf(seeker.rating);
+    Seeker<K> best = closest(seeker, queue.get(bucket), null, time);
+    Map.Entry<Integer, Deque<Seeker<K>>> above = queue.higherEntry(bucket);
+    while (above != null && closer(above.getKey() * BUCKET_WIDTH
+        - seeker.rating, window, seeker, best)) {
+      best = closest(seeker, above.getValue(), best, time);
+      above = queue.higherEntry(above.getKey());
+    }
+    Map.Entry<Integer, Deque<Seeker<K>>> below = queue.lowerEntry(bucket);
+    while (below != null && closer(seeker.rating
+        - ((below.getKey() + 1) * BUCKET_WIDTH - 1), window, seeker, best)) {
+      best = closest(seeker, below.getValue(), best, time);
+      below = queue.lowerEntry(below.getKey());
+    }
+    return best;
+  }
+
+  /**
+   * @return whether a bucket whose nearest rating is gap away from the
+   *         seeker's may hold an acceptable opponent closer than best.
+   */
+  private static <K> boolean closer(int gap, int window, Seeker<K> seeker,
+      Seeker<K> best) {
+    return gap <= window
+        && (best == null || gap < Math.abs(best.rating - seeker.rating));
+  }
+
+  /**
+   * Find a closer acceptable opponent than best in one bucket, if any.
+   */
+  private Seeker<K> closest(Seeker<K> seeker, Deque<Seeker<K>> bucket,
+      Seeker<K> best, long time) {
+    if (bucket == null) {
+      return best;
+    }
+    for (Seeker<K> candidate : bucket) {
+      int diff = Math.abs(candidate.rating - seeker.rating);
+      if (candidate != seeker && diff <= seeker.window(time)
+          && diff <= candidate.window(time)
+          && (best == null || diff < Math.abs(best.rating - seeker.rating))) {
+        best = candidate;
+      }
+    }
+    return best;
+  }
+
+  private void unqueue(Seeker<K> seeker) {
+    NavigableMap<Integer, Deque<Seeker<K>>> queue =
+        queues.get(seeker.timeControl);
+    int bucket = bucketOf(seeker.rating);
+    Deque<Seeker<K>> players = queue.get(bucket);
+    if (players != null) {
+      players.remove(seeker);
+      if (players.isEmpty()) {
+        queue.remove(bucket);
+      }
+    }
+  }
+
+  private static int bucketOf(int rating) {
+    return Math.floorDiv(rating, BUCKET_WIDTH);
+  }
+
+  /**
+   * A player waiting for an opponent.
+   *
+   * @author knorms
+   *
+   * @param <K>
+   *          Type identifying the player.
+   */
+  public static final class Seeker<K> {
+    private final K key;
+    private final String name;
+    private final int rating;
+    private final TimeControl timeControl;
+    private final long since;
+    private boolean paired = false;
+
+    private Seeker(K key, String name, int rating, TimeControl timeControl,
+        long since) {
+      this.key = key;
+      this.name = name;
+      this.rating = rating;
+      this.timeControl = timeControl;
+      this.since = since;
+    }
+
+    /**
+     * Get the widest rating difference this player accepts, which grows with
+     * the time they have waited.
+     *
+     * @param now
+     *          Current time in milliseconds.
+     * @return rating window.
+     */
+    int window(long now) {
+      long waited = TimeUnit.MILLISECONDS.toSeconds(now - since);
+      return (int) Math.min(MAX_WINDOW,
+          INITIAL_WINDOW + WINDOW_GROWTH_PER_SECOND * waited);
+    }
+
+    /**
+     * @return the key identifying the player
+     */
+    public K getKey() {
+      return key;
+    }
+
+    /**
+     * @return the name
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the rating
+     */
+    public int getRating() {
+      return rating;
+    }
+
+    /**
+     * @return the time control
+     */
+    public TimeControl getTimeControl() {
+      return timeControl;
+    }
+  }
+
+}
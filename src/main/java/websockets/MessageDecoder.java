@@ -0,0 +1,404 @@
+package websockets;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import board.Board;
+import board.Location;
+import game.Game.TimeControl;
+import game.Move;
+import powerups.PowerObject.Rarity;
+import websockets.ChessWebSocket.Action;
+import websockets.ChessWebSocket.GameEndReason;
+import websockets.ChessWebSocket.MessageType;
+import websockets.InboundMessage.Field;
+
+/**
+ * MessageDecoder streams over an inbound /play frame with a JsonReader and
+ * fills in an InboundMessage, validating the fields each message type
+ * requires. Unknown fields are skipped without being parsed into a tree.
+ *
+ * @author knorms
+ *
+ */
+public final class MessageDecoder {
+  private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+  private static final Action[] ACTIONS = Action.values();
+  private static final int REASONS = GameEndReason.values().length;
+  private static final int RARITIES = Rarity.values().length;
+  private static final int TIME_CONTROLS = TimeControl.values().length;
+
+  private static final Map<String, Field> FIELDS = new HashMap<>();
+  private static final Map<MessageType, Set<Field>> REQUIRED =
+      new EnumMap<>(MessageType.class);
+  private static final Map<Action, Set<Field>> ACTION_REQUIRED =
+      new EnumMap<>(Action.class);
+
+  static {
+    for (Field field : Field.values()) {
+      FIELDS.put(field.key(), field);
+    }
+
+    register(MessageType.CREATE_GAME, Field.NAME, Field.COLOR,
+        Field.TIME_CONTROL, Field.PUBLIC);
+    register(MessageType.JOIN_GAME, Field.GAME_ID, Field.NAME);
+    register(MessageType.GAME_OVER, Field.GAME_ID, Field.PLAYER_ID,
+        Field.REASON);
+    register(MessageType.REQUEST_DRAW, Field.GAME_ID, Field.PLAYER_ID);
+    register(MessageType.PLAYER_ACTION, Field.GAME_ID, Field.PLAYER_ID,
+        Field.ACTION);
+    register(MessageType.SPAWN, Field.GAME_ID, Field.ROW, Field.COL,
+        Field.RARITY);
+    register(MessageType.GIVE, Field.GAME_ID, Field.ID1, Field.ID2,
+        Field.RARITY, Field.WHERE_CAPTURED);
+    register(MessageType.RESYNC, Field.GAME_ID, Field.PLAYER_ID, Field.SEQ);
+    register(MessageType.RESUME, Field.TOKEN, Field.SEQ);
+    register(MessageType.WATCH, Field.GAME_ID);
+
+    ACTION_REQUIRED.put(Action.NONE, EnumSet.noneOf(Field.class));
+    ACTION_REQUIRED.put(Action.MOVE, EnumSet.of(Field.MOVE));
+    ACTION_REQUIRED.put(Action.SELECT_POWER, EnumSet.of(Field.SELECTION));
+  }
+
+  private MessageDecoder() {
+  }
+
+  /**
+   * Register a message type clients may send along with the fields it
+   * requires.
+   *
+   * @param type
+   *          Message type.
+   * @param required
+   *          Fields the message must contain.
+   */
+  private static void register(MessageType type, Field... required) {
+    Set<Field> fields = EnumSet.of(Field.TYPE);
+    for (Field field : required) {
+      fields.add(field);
+    }
+    REQUIRED.put(type, fields);
+  }
+
+  /**
+   * Tell whether clients may send a message type.
+   *
+   * @param type
+   *          Message type.
+   * @return true if the type is decoded from clients.
+   */
+  static boolean isInbound(MessageType type) {
+    return REQUIRED.containsKey(type);
+  }
+
+  /**
+   * Find the message type of a frame without decoding it, for decisions that
+   * have to be cheaper than parsing, such as rate limiting. The result is only
+   * a hint: callers must check that the decoded type agrees.
+   *
+   * @param frame
+   *          Text of the frame.
+   * @return the type named by the first "type" key, or null if there is none
+   *         or it is out of range.
+   */
+  public static MessageType peekType(String frame) {
+    int n = frame.length();
+    int i = -1;
+    // a "type" not followed by a colon is a value, not the key
+    do {
+      i = frame.indexOf("\"type\"", i + 1);
+      if (i < 0) {
+        return null;
+      }
+    } while (!isKey(frame, i + 6));
+    i = frame.indexOf(':', i + 6) + 1;
+    while (i < n && (frame.charAt(i) == '"'
+        || Character.isWhitespace(frame.charAt(i)))) {
+      i++;
+    }
+    int value = 0;
+    int digits = 0;
+    for (; i < n && digits < 3; i++, digits++) {
+      char c = frame.charAt(i);
+      if (c < '0' || c > '9') {
+        break;
+      }
+      value = value * 10 + c - '0';
+    }
+    return digits == 0 || value >= MESSAGE_TYPES.length ? null
+        : MESSAGE_TYPES[value];
+  }
+
+  private static boolean isKey(String frame, int i) {
+    int n = frame.length();
+    while (i < n && Character.isWhitespace(frame.charAt(i))) {
+      i++;
+    }
+    return i < n && frame.charAt(i) == ':';
+  }
+
+  /**
+   * Decode and validate a frame.
+   *
+   * @param frame
+   *          Text of the frame.
+   * @return the typed message.
+   * @throws MalformedMessageException
+   *           If the frame is not a JSON object, has a value of the wrong
+   *           type or out of range, or is missing a required field.
+   */
+  public static InboundMessage decode(String frame)
+      throws MalformedMessageException {
+    InboundMessage msg = new InboundMessage();
+    JsonReader reader = new JsonReader(new StringReader(frame));
+    reader.setLenient(true);
+    try {
+      reader.beginObject();
+      while (reader.hasNext()) {
+        Field field = FIELDS.get(reader.nextName());
+        if (field == null) {
+          reader.skipValue();
+        } else if (reader.peek() == JsonToken.NULL) {
+          reader.nextNull();
+        } else {
+          read(reader, field, msg);
+          msg.mark(field);
+        }
+      }
+      reader.endObject();
+    } catch (IOException | IllegalStateException | NumberFormatException e) {
+      throw new MalformedMessageException(
+          "ERROR: malformed message: " + e.getMessage());
+    } catch (IllegalArgumentException e) {
+      throw new MalformedMessageException(e.getMessage());
+    }
+    validate(msg);
+    return msg;
+  }
+
+  private static void validate(InboundMessage msg)
+      throws MalformedMessageException {
+    if (!msg.has(Field.TYPE)) {
+      throw new MalformedMessageException("ERROR: message has no type.");
+    }
+    Set<Field> required = REQUIRED.get(msg.getType());
+    if (required == null) {
+      throw new MalformedMessageException(String.format(
+          "ERROR: clients cannot send %s messages.", msg.getType()));
+    }
+    checkPresent(msg, required);
+    if (msg.getType() == MessageType.PLAYER_ACTION) {
+      checkPresent(msg, ACTION_REQUIRED.get(msg.getAction()));
+    }
+  }
+
+  private static void checkPresent(InboundMessage msg, Set<Field> required)
+      throws MalformedMessageException {
+    for (Field field : required) {
+      if (!msg.has(field)) {
+        throw new MalformedMessageException(
+            String.format("ERROR: %s message is missing field '%s'.",
+                msg.getType(), field.key()));
+      }
+    }
+  }
+
+  private static void read(JsonReader reader, Field field, InboundMessage msg)
+      throws IOException, MalformedMessageException {
+    switch (field) {
+      case TYPE:
+        msg.setType(MESSAGE_TYPES[readIndex(reader, field,
+            MESSAGE_TYPES.length)]);
+        break;
+      case GAME_ID:
+        msg.setGameId(reader.nextInt());
+        break;
+      case PLAYER_ID:
+        msg.setPlayerId(reader.nextInt());
+        break;
+      case ACTION:
+        msg.setAction(ACTIONS[readIndex(reader, field, ACTIONS.length)]);
+        break;
+      case NAME:
+        msg.setName(reader.nextString());
+        break;
+      case COLOR:
+        msg.setColor(readBoolean(reader));
+        break;
+      case TIME_CONTROL:
+        msg.setTimeControl(readIndex(reader, field, TIME_CONTROLS));
+        break;
+      case PUBLIC:
+        msg.setPublic(readBoolean(reader));
+        break;
+      case REASON:
+        msg.setReason(readIndex(reader, field, REASONS));
+        break;
+      case SELECTION:
+        msg.setSelection(readBoolean(reader));
+        break;
+      case MOVE:
+        msg.setMove(readMove(reader));
+        break;
+      case FOLLOW_UP:
+        readFollowUp(reader, msg);
+        break;
+      case ROW:
+        msg.setRow(reader.nextInt());
+        break;
+      case COL:
+        msg.setCol(reader.nextInt());
+        break;
+      case RARITY:
+        msg.setRarity(readIndex(reader, field, RARITIES));
+        break;
+      case ID1:
+        msg.setId1(reader.nextInt());
+        break;
+      case ID2:
+        msg.setId2(reader.nextInt());
+        break;
+      case WHERE_CAPTURED:
+        msg.setWhereCaptured(readLocation(reader));
+        break;
+      case SEQ:
+        msg.setSeq(reader.nextInt());
+        break;
+      case TOKEN:
+        msg.setToken(reader.nextString());
+        break;
+      default:
+        reader.skipValue();
+        break;
+    }
+  }
+
+  private static int readIndex(JsonReader reader, Field field, int bound)
+      throws IOException, MalformedMessageException {
+    int index = reader.nextInt();
+    if (index < 0 || index >= bound) {
+      throw new MalformedMessageException(String.format(
+          "ERROR: '%s' must be between 0 and %d.", field.key(), bound - 1));
+    }
+    return index;
+  }
+
+  /**
+   * Read a boolean the way Gson's getAsBoolean would, so clients that send
+   * "true" as a string keep working.
+   */
+  private static boolean readBoolean(JsonReader reader) throws IOException {
+    if (reader.peek() == JsonToken.BOOLEAN) {
+      return reader.nextBoolean();
+    }
+    return Boolean.parseBoolean(reader.nextString());
+  }
+
+  private static Location readLocation(JsonReader reader)
+      throws IOException, MalformedMessageException {
+    int row = -1;
+    int col = -1;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "row":
+          row = reader.nextInt();
+          break;
+        case "col":
+          col = reader.nextInt();
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+    reader.endObject();
+    return toLocation(row, col);
+  }
+
+  private static Move readMove(JsonReader reader)
+      throws IOException, MalformedMessageException {
+    Location from = null;
+    Location to = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "from":
+          from = readLocation(reader);
+          break;
+        case "to":
+          to = readLocation(reader);
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+    reader.endObject();
+    if (from == null || to == null) {
+      throw new MalformedMessageException(
+          "ERROR: move must have 'from' and 'to'.");
+    }
+    return new Move(from, to);
+  }
+
+  /**
+   * Read a follow up, which is either a square {row, col} or a move
+   * {from, to}.
+   */
+  private static void readFollowUp(JsonReader reader, InboundMessage msg)
+      throws IOException, MalformedMessageException {
+    int row = -1;
+    int col = -1;
+    Location from = null;
+    Location to = null;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      switch (reader.nextName()) {
+        case "row":
+          row = reader.nextInt();
+          break;
+        case "col":
+          col = reader.nextInt();
+          break;
+        case "from":
+          from = readLocation(reader);
+          break;
+        case "to":
+          to = readLocation(reader);
+          break;
+        default:
+          reader.skipValue();
+          break;
+      }
+    }
+    reader.endObject();
+
+    if (from != null && to != null) {
+      msg.setFollowUpMove(new Move(from, to));
+    } else if (row != -1 || col != -1) {
+      msg.setFollowUpLocation(toLocation(row, col));
+    } else {
+      throw new MalformedMessageException(
+          "ERROR: followUp must be a square or a move.");
+    }
+  }
+
+  private static Location toLocation(int row, int col)
+      throws MalformedMessageException {
+    if (row < 0 || row >= Board.SIZE || col < 0 || col >= Board.SIZE) {
+      throw new MalformedMessageException(String.format(
+          "ERROR: illegal board location (%d, %d).", row, col));
+    }
+    return new Location(row, col);
+  }
+
+}
@@ -0,0 +1,270 @@
+package websockets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * OutboundFrame is a message that has been serialized exactly once and can be
+ * sent to any number of sessions. Fields that differ between recipients (e.g.
+ * action) are appended to the pre-encoded body as a small templated suffix
+ * rather than re-serializing the whole message.
+ *
+ * @author knorms
+ *
+ */
+public final class OutboundFrame {
+  private static final Gson GSON = new Gson();
+
+  private final String encoded;
+  private final String prefix;
+
+  // one-entry cache so that many recipients sharing a suffix (e.g. every
+  // spectator gets action NONE) share the same string
+  private String cachedKey;
+  private int cachedValue;
+  private String cachedText;
+
+  /**
+   * Construct a frame from a message, serializing it once.
+   *
+   * @param message
+   *          Message to encode.
+   */
+  public OutboundFrame(JsonObject message) {
+    this(GSON.toJson(message));
+  }
+
+  /**
+   * Construct a frame from already encoded JSON object text.
+   *
+   * @param encoded
+   *          JSON text of an object (must end with a closing brace).
+   */
+  public OutboundFrame(String encoded) {
+    this.encoded = encoded;
+    String body = encoded.substring(0, encoded.length() - 1);
+    if (body.trim().equals("{")) {
+      this.prefix = body;
+    } else {
+      this.prefix = body + ",";
+    }
+  }
+
+  /**
+   * Get the encoded message with no per-recipient fields.
+   *
+   * @return encoded JSON text.
+   */
+  public String encoded() {
+    return encoded;
+  }
+
+  /**
+   * Get the encoded message with one extra integer field appended.
+   *
+   * @param key
+   *          Name of the per-recipient field.
+   * @param value
+   *          Value of the per-recipient field.
+   * @return encoded JSON text.
+   */
+  public synchronized String with(String key, int value) {
+    if (cachedText != null && cachedValue == value && cachedKey.equals(key)) {
+      return cachedText;
+    }
+    cachedKey = key;
+    cachedValue = value;
+    cachedText = new StringBuilder(prefix.length() + key.length() + 8)
+        .append(prefix).append('"').append(key).append("\":").append(value)
+        .append('}').toString();
+    return cachedText;
+  }
+
+  /**
+   * Get the encoded message with the fields of a small object appended. Only
+   * the extra fields are serialized.
+   *
+   * @param fields
+   *          Per-recipient fields to append.
+   * @return encoded JSON text.
+   */
+  public String with(JsonObject fields) {
+    if (fields.size() == 0) {
+      return encoded;
+    }
+    String extra = GSON.toJson(fields);
+    return prefix + extra.substring(1);
+  }
+
+  /**
+   * Send the frame, without per-recipient fields, to a session. Sessions that
+   * are gone (null or closed) are skipped.
+   *
+   * @param session
+   *          Session to send to.
+   * @throws IOException
+   *           If the frame fails to send.
+   */
+  public void sendTo(Session session) throws IOException {
+    if (session == null || !session.isOpen()) {
+      return;
+    }
+    send(session, encoded);
+  }
+
+  /**
+   * Send the frame with one extra integer field to a session.
+   *
+   * @param session
+   *          Session to send to.
+   * @param key
+   *          Name of the per-recipient field.
+   * @param value
+   *          Value of the per-recipient field.
+   * @throws IOException
+   *           If the frame fails to send.
+   */
+  public void sendTo(Session session, String key, int value)
+      throws IOException {
+    if (session == null || !session.isOpen()) {
+      return;
+    }
+    send(session, with(key, value));
+  }
+
+  /**
+   * Queue the frame with one extra integer field to a session without waiting
+   * for it to be written. Used from timer threads that must not block on a
+   * slow client.
+   *
+   * @param session
+   *          Session to send to.
+   * @param key
+   *          Name of the per-recipient field.
+   * @param value
+   *          Value of the per-recipient field.
+   */
+  public void sendAsyncTo(Session session, String key, int value) {
+    if (session == null || !session.isOpen()) {
+      return;
+    }
+    sendAsync(session, with(key, value));
+  }
+
+  /**
+   * Send text to a session and wait for it to be written. Jetty refuses a
+   * blocking send while another thread's blocking send to the same session is
+   * still being written, which happens whenever a reply to one player races a
+   * message from the opponent's thread, so these are taken in turn.
+   *
+   * @param session
+   *          Open session to send to.
+   * @param text
+   *          Text to send.
+   * @throws IOException
+   *           If the text fails to send.
+   */
+  static void send(Session session, String text) throws IOException {
+    RemoteEndpoint remote = session.getRemote();
+    synchronized (remote) {
+      remote.sendString(text);
+    }
+  }
+
+  /**
+   * Queue text to a session without waiting for it to be written. Jetty also
+   * refuses an async send while a blocking send to the session is being
+   * written, so this waits its turn with the blocking sends, though not for
+   * its own text to be written. Sessions that only ever get these never
+   * wait at all.
+   *
+   * @param session
+   *          Open session to send to.
+   * @param text
+   *          Text to send.
+   */
+  static void sendAsync(Session session, String text) {
+    RemoteEndpoint remote = session.getRemote();
+    synchronized (remote) {
+      remote.sendStringByFuture(text);
+    }
+  }
+
+  /**
+   * Queue bytes to a session without waiting, as sendAsync does for text.
+   *
+   * @param session
+   *          Open session to send to.
+   * @param bytes
+   *          Bytes to send.
+   */
+  static void sendAsync(Session session, ByteBuffer bytes) {
+    RemoteEndpoint remote = session.getRemote();
+    synchronized (remote) {
+      remote.sendBytesByFuture(bytes);
+    }
+  }
+
+  /**
+   * Queue text to a session without waiting, as sendAsync does, and hear
+   * whether it was written.
+   *
+   * @param session
+   *          Open session to send to.
+   * @param text
+   *          Text to send.
+   * @param callback
+   *          Told once the text is written or fails to be.
+   */
+  static void sendAsync(Session session, String text, WriteCallback callback) {
+    RemoteEndpoint remote = session.getRemote();
+    synchronized (remote) {
+      remote.sendString(text, callback);
+    }
+  }
+
+  /**
+   * Queue bytes to a session without waiting, as sendAsync does, and hear
+   * whether they were written.
+   *
+   * @param session
+   *          Open session to send to.
+   * @param bytes
+   *          Bytes to send.
+   * @param callback
+   *          Told once the bytes are written or fail to be.
+   */
+  static void sendAsync(Session session, ByteBuffer bytes,
+      WriteCallback callback) {
+    RemoteEndpoint remote = session.getRemote();
+    synchronized (remote) {
+      remote.sendBytes(bytes, callback);
+    }
+  }
+
+  /**
+   * Send bytes to a session and wait for them to be written, in turn with
+   * other blocking sends to it.
+   *
+   * @param session
+   *          Open session to send to.
+   * @param bytes
+   *          Bytes to send.
+   * @throws IOException
+   *           If the bytes fail to send.
+   */
+  static void send(Session session, ByteBuffer bytes) throws IOException {
+    RemoteEndpoint remote = session.getRemote();
+    synchronized (remote) {
+      remote.sendBytes(bytes);
+    }
+  }
+
+}
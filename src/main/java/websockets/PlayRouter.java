@@ -0,0 +1,478 @@
+package websockets;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import cluster.HashRing;
+import metrics.MetricsRegistry;
+import websockets.ChessWebSocket.MessageType;
+
+/**
+ * PlayRouter stands in front of a cluster of game servers and forwards /play
+ * traffic to the node holding each game. A game lives on the node the ring
+ * places its id on, so every message naming a game, and every RESUME whose
+ * token starts with one, goes to that node; CREATE_GAME goes to a node the
+ * client is already connected to, or to the next node in turn. Each client
+ * gets its own connection to each node it talks to, so the nodes see
+ * ordinary sessions, and everything a node sends back is passed through
+ * untouched. The client's address is passed on in X-Forwarded-For for the
+ * nodes' rate limits.
+ *
+ * @author knorms
+ *
+ */
+@WebSocket
+public class PlayRouter {
+  /**
+   * Header carrying the address a routed client connected from.
+   */
+  static final String FORWARDED_FOR = "X-Forwarded-For";
+
+  private static final long CONNECT_TIMEOUT_SECONDS = 10;
+
+  private static final WebSocketClient CLIENT = new WebSocketClient();
+  private static final Map<Session, Route> ROUTES = new ConcurrentHashMap<>();
+  private static final AtomicInteger NEXT_NODE = new AtomicInteger();
+  private static volatile HashRing ring = null;
+
+  private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+  private static final LongAdder TO_NODES = METRICS.counter(
+      "chess_router_frames_total", "Frames forwarded by the router.",
+      "direction", "to_node");
+  private static final LongAdder TO_CLIENTS = METRICS.counter(
+      "chess_router_frames_total", "Frames forwarded by the router.",
+      "direction", "to_client");
+  private static final LongAdder UNROUTABLE = METRICS.counter(
+      "chess_router_unroutable_total",
+      "Frames answered with ERROR because no node could be found for them.");
+  private static final AtomicInteger UPSTREAMS = new AtomicInteger();
+
+  static {
+    METRICS.gauge("chess_router_sessions", "Client connections to /play.",
+        ROUTES::size);
+    METRICS.gauge("chess_router_upstreams", "Connections from the router to "
+        + "nodes on behalf of clients.", UPSTREAMS::get);
+  }
+
+  private static final OutboundFrame ERROR =
+      new OutboundFrame("{\"type\":" + MessageType.ERROR.ordinal() + "}");
+
+  /**
+   * Set the nodes of the cluster and start the client that connects to them.
+   * Call before the router takes connections.
+   *
+   * @param nodes
+   *          Ring of the nodes, named host:port.
+   * @throws IllegalStateException
+   *           If the client can't be started.
+   */
+  public static synchronized void setNodes(HashRing nodes) {
+    ring = nodes;
+    if (!CLIENT.isStarted()) {
+      try {
+        CLIENT.start();
+      } catch (Exception e) {
+        throw new IllegalStateException(
+            "ERROR: could not start the router's client.", e);
+      }
+    }
+  }
+
+  /**
+   * @return the client connecting the router to nodes
+   */
+  static WebSocketClient getClient() {
+    return CLIENT;
+  }
+
+  /**
+   * Start routing a client's connection.
+   *
+   * @param session
+   *          Session that just connected.
+   */
+  @OnWebSocketConnect
+  public void connected(Session session) {
+    ROUTES.put(session, new Route(session));
+  }
+
+  /**
+   * Close the client's connections to the nodes. The nodes see the player's
+   * socket drop and keep their seat for the resume grace window.
+   *
+   * @param session
+   *          Session that closed.
+   * @param statusCode
+   *          Code indicating why session was closed.
+   * @param reason
+   *          Reason session was closed.
+   */
+  @OnWebSocketClose
+  public void closed(Session session, int statusCode, String reason) {
+    Route route = ROUTES.remove(session);
+    if (route != null) {
+      route.close();
+    }
+  }
+
+  /**
+   * Forward a text frame to the node of the game it names. Keep-alives go to
+   * every node the client is connected to, so none of them times out.
+   *
+   * @param session
+   *          Session that sent the frame.
+   * @param message
+   *          Text of the frame.
+   * @throws IOException
+   *           If an ERROR fails to send.
+   */
+  @OnWebSocketMessage
+  public void message(Session session, String message) throws IOException {
+    Route route = ROUTES.get(session);
+    if (route == null) {
+      return;
+    }
+    if (message.isEmpty()) {
+      route.keepAlive();
+      return;
+    }
+
+    String node;
+    try {
+      node = nodeOf(MessageDecoder.decode(message), route);
+    } catch (MalformedMessageException e) {
+      node = null;
+    }
+    Session upstream = node == null ? null : route.upstream(node);
+    if (upstream == null) {
+      UNROUTABLE.increment();
+      ERROR.sendTo(session);
+      return;
+    }
+    relay(upstream, message);
+    TO_NODES.increment();
+  }
+
+  /**
+   * Forward a binary MOVE frame to the node of its game.
+   *
+   * @param session
+   *          Session that sent the frame.
+   * @param buf
+   *          Buffer holding the frame.
+   * @param offset
+   *          Offset of the frame in buf.
+   * @param length
+   *          Length of the frame.
+   * @throws IOException
+   *           If an ERROR fails to send.
+   */
+  @OnWebSocketMessage
+  public void message(Session session, byte[] buf, int offset, int length)
+      throws IOException {
+    Route route = ROUTES.get(session);
+    if (route == null) {
+      return;
+    }
+    // the game id follows the type and action bytes
+    Session upstream = length != BinaryProtocol.MOVE_FRAME_LENGTH ? null
+        : route.upstream(ring.owner(ByteBuffer.wrap(buf).getInt(offset + 2)));
+    if (upstream == null) {
+      UNROUTABLE.increment();
+      ERROR.sendTo(session);
+      return;
+    }
+    relay(upstream, copy(buf, offset, length));
+    TO_NODES.increment();
+  }
+
+  /**
+   * Find the node a message should go to.
+   *
+   * @return name of the node, or null if the message can't be routed.
+   */
+  private static String nodeOf(InboundMessage received, Route route) {
+    if (received.getType() == MessageType.CREATE_GAME) {
+      String connected = route.anyNode();
+      if (connected != null) {
+        return connected;
+      }
+      List<String> nodes = ring.getNodes();
+      return nodes.get(
+          Math.floorMod(NEXT_NODE.getAndIncrement(), nodes.size()));
+    } else if (received.has(InboundMessage.Field.GAME_ID)) {
+      return ring.owner(received.getGameId());
+    } else if (received.getType() == MessageType.RESUME) {
+      int gameId = ResumeTokens.gameOf(received.getToken());
+      return gameId < 0 ? null : ring.owner(gameId);
+    }
+    return null;
+  }
+
+  /**
+   * Copy a frame out of a buffer Jetty reuses once the handler returns, for
+   * sending on without waiting.
+   */
+  /**
+   * Pass text on without waiting. Replies to the client are sent on its
+   * thread while frames from its nodes are passed on theirs, so this goes
+   * through OutboundFrame, in turn with the blocking sends. A session that
+   * is closing is ignored; its close is handled when it arrives.
+   *
+   * @param session
+   *          Session to send to.
+   * @param text
+   *          Text to send.
+   */
+  static void relay(Session session, String text) {
+    try {
+      OutboundFrame.sendAsync(session, text);
+    } catch (RuntimeException e) {
+      // closing
+    }
+  }
+
+  /**
+   * Pass bytes on without waiting, as relay does text.
+   *
+   * @param session
+   *          Session to send to.
+   * @param bytes
+   *          Bytes to send.
+   */
+  static void relay(Session session, ByteBuffer bytes) {
+    try {
+      OutboundFrame.sendAsync(session, bytes);
+    } catch (RuntimeException e) {
+      // closing
+    }
+  }
+
+  private static ByteBuffer copy(byte[] buf, int offset, int length) {
+    byte[] frame = new byte[length];
+    System.arraycopy(buf, offset, frame, 0, length);
+    return ByteBuffer.wrap(frame);
+  }
+
+  /**
+   * Get the address a session connected from.
+   *
+   * @param session
+   *          Session.
+   * @return remote host address.
+   */
+  static String addressOf(Session session) {
+    InetSocketAddress remote = session.getRemoteAddress();
+    if (remote == null) {
+      return "unknown";
+    }
+    return remote.getAddress() == null ? remote.getHostString()
+        : remote.getAddress().getHostAddress();
+  }
+
+  /**
+   * Open a connection to a node.
+   *
+   * @param node
+   *          Node named host:port.
+   * @param path
+   *          Path and query to connect to, e.g. "/play?protocol=binary".
+   * @param endpoint
+   *          Annotated endpoint receiving the node's messages.
+   * @param address
+   *          Address of the client the connection is for, or null.
+   * @return the session, or null if the node can't be reached.
+   */
+  static Session connect(String node, String path, Object endpoint,
+      String address) {
+    ClientUpgradeRequest request = new ClientUpgradeRequest();
+    if (address != null) {
+      request.setHeader(FORWARDED_FOR, address);
+    }
+    try {
+      return CLIENT.connect(endpoint, URI.create("ws://" + node + path),
+          request).get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * The connections a client has through the router, one per node.
+   */
+  private static final class Route {
+    private final Session client;
+    private final String path;
+    private final String address;
+    private final Map<String, Session> upstreams = new HashMap<>();
+    private boolean closed = false;
+
+    Route(Session client) {
+      this.client = client;
+      // the node negotiates the protocol from the same query
+      String query = client.getUpgradeRequest().getRequestURI().getRawQuery();
+      this.path = query == null ? "/play" : "/play?" + query;
+      this.address = addressOf(client);
+    }
+
+    /**
+     * Get the connection to a node, opening it if need be.
+     *
+     * @return the open session, or null if the node can't be reached.
+     */
+    synchronized Session upstream(String node) {
+      if (closed) {
+        return null;
+      }
+      Session upstream = upstreams.get(node);
+      if (upstream != null && upstream.isOpen()) {
+        return upstream;
+      } else if (upstream != null) {
+        upstreams.remove(node);
+        UPSTREAMS.decrementAndGet();
+      }
+      upstream = connect(node, path, new Upstream(this), address);
+      if (upstream != null) {
+        upstreams.put(node, upstream);
+        UPSTREAMS.incrementAndGet();
+      }
+      return upstream;
+    }
+
+    /**
+     * @return a node the client is connected to, or null if none
+     */
+    synchronized String anyNode() {
+      for (Map.Entry<String, Session> upstream : upstreams.entrySet()) {
+        if (upstream.getValue().isOpen()) {
+          return upstream.getKey();
+        }
+      }
+      return null;
+    }
+
+    synchronized void keepAlive() {
+      for (Session upstream : upstreams.values()) {
+        if (upstream.isOpen()) {
+          relay(upstream, "");
+        }
+      }
+    }
+
+    void close() {
+      List<Session> open;
+      synchronized (this) {
+        closed = true;
+        open = new ArrayList<>(upstreams.values());
+        UPSTREAMS.addAndGet(-upstreams.size());
+        upstreams.clear();
+      }
+      for (Session upstream : open) {
+        upstream.close();
+      }
+    }
+
+    /**
+     * A node dropped the client, e.g. for flooding or because it stopped;
+     * the client is dropped too so it reconnects and resumes.
+     */
+    void lost(Session upstream, int statusCode, String reason) {
+      synchronized (this) {
+        if (closed || !upstreams.containsValue(upstream)) {
+          return;
+        }
+      }
+      client.close(statusCode == StatusCode.NORMAL ? StatusCode.SHUTDOWN
+          : statusCode, reason);
+    }
+  }
+
+  /**
+   * Receives what one node sends a client and passes it on.
+   */
+  @WebSocket
+  public static final class Upstream {
+    private final Route route;
+    private volatile Session session;
+
+    Upstream(Route route) {
+      this.route = route;
+    }
+
+    /**
+     * Remember the session to the node.
+     *
+     * @param opened
+     *          Session of the connection.
+     */
+    @OnWebSocketConnect
+    public void connected(Session opened) {
+      session = opened;
+    }
+
+    /**
+     * Pass a text frame on to the client.
+     *
+     * @param text
+     *          Text of the frame.
+     */
+    @OnWebSocketMessage
+    public void message(String text) {
+      if (route.client.isOpen()) {
+        relay(route.client, text);
+        TO_CLIENTS.increment();
+      }
+    }
+
+    /**
+     * Pass a binary frame on to the client.
+     *
+     * @param buf
+     *          Buffer holding the frame.
+     * @param offset
+     *          Offset of the frame in buf.
+     * @param length
+     *          Length of the frame.
+     */
+    @OnWebSocketMessage
+    public void message(byte[] buf, int offset, int length) {
+      if (route.client.isOpen()) {
+        relay(route.client, copy(buf, offset, length));
+        TO_CLIENTS.increment();
+      }
+    }
+
+    /**
+     * Drop the client if the node closed the connection.
+     *
+     * @param statusCode
+     *          Close code.
+     * @param reason
+     *          Close reason.
+     */
+    @OnWebSocketClose
+    public void closed(int statusCode, String reason) {
+      route.lost(session, statusCode, reason);
+    }
+  }
+
+}
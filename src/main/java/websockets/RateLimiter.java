@@ -0,0 +1,236 @@
+package websockets;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import websockets.ChessWebSocket.MessageType;
+import websockets.TokenBucket.Limit;
+
+/**
+ * RateLimiter decides whether a frame from a client is handled, dropped or
+ * gets the client disconnected, before any work is spent parsing it. Every
+ * session has a token bucket per message type, and every remote address has
+ * one bucket shared by all its sessions. A frame is handled only if both have
+ * a token. Dropped frames count as strikes against the session; a session that
+ * keeps sending after being throttled runs out of strikes and is cut off.
+ *
+ * A changed limit only applies to buckets created after the change.
+ *
+ * @author knorms
+ *
+ * @param <K>
+ *          Type identifying a session.
+ */
+public final class RateLimiter<K> {
+  /**
+   * What to do with a frame.
+   *
+   * @author knorms
+   *
+   */
+  public enum Verdict {
+    ALLOW, DROP, DISCONNECT
+  }
+
+  private final Map<MessageType, Limit> limits =
+      new ConcurrentHashMap<>();
+  private final Limit otherLimit;
+  private volatile Limit addressLimit;
+  private final Limit strikeLimit;
+  private final Map<K, SessionBuckets> sessions = new ConcurrentHashMap<>();
+  private final Map<String, AddressBucket> addresses =
+      new ConcurrentHashMap<>();
+  private final LongSupplier nanos;
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder disconnected = new LongAdder();
+
+  /**
+   * Construct a limiter.
+   *
+   * @param otherLimit
+   *          Limit for message types without their own limit, keep-alive
+   *          frames and frames whose type can't be told.
+   * @param addressLimit
+   *          Limit shared by all sessions from one address.
+   * @param strikeLimit
+   *          How many frames a session may have dropped in a burst, and how
+   *          fast it is forgiven, before it is disconnected.
+   * @param nanos
+   *          Source of the current time in nanoseconds.
+   */
+  public RateLimiter(Limit otherLimit, Limit addressLimit, Limit strikeLimit,
+      LongSupplier nanos) {
+    this.otherLimit = otherLimit;
+    this.addressLimit = addressLimit;
+    this.strikeLimit = strikeLimit;
+    this.nanos = nanos;
+  }
+
+  /**
+   * Set the limit of a message type.
+   *
+   * @param type
+   *          Message type.
+   * @param limit
+   *          Per session limit.
+   */
+  public void setLimit(MessageType type, Limit limit) {
+    limits.put(type, limit);
+  }
+
+  /**
+   * Set the limit shared by all sessions from one address.
+   *
+   * @param limit
+   *          Per address limit.
+   */
+  public void setAddressLimit(Limit limit) {
+    addressLimit = limit;
+  }
+
+  /**
+   * Start limiting a session.
+   *
+   * @param key
+   *          Identifies the session.
+   * @param address
+   *          Remote address of the session.
+   */
+  public void open(K key, String address) {
+    long now = nanos.getAsLong();
+    AddressBucket shared = addresses.compute(address, (a, bucket) -> {
+      AddressBucket b =
+          bucket == null ? new AddressBucket(addressLimit, now) : bucket;
+      b.sessions++;
+      return b;
+    });
+    sessions.put(key, new SessionBuckets(address, shared, now));
+  }
+
+  /**
+   * Stop limiting a session.
+   *
+   * @param key
+   *          Identifies the session.
+   */
+  public void close(K key) {
+    SessionBuckets buckets = sessions.remove(key);
+    if (buckets != null) {
+      addresses.computeIfPresent(buckets.address,
+          (a, bucket) -> --bucket.sessions == 0 ? null : bucket);
+    }
+  }
+
+  /**
+   * Check a frame.
+   *
+   * @param key
+   *          Identifies the session that sent it.
+   * @param type
+   *          Type of the frame, or null if it couldn't be told.
+   * @return what to do with the frame; sessions never opened are always
+   *         allowed.
+   */
+  public Verdict check(K key, MessageType type) {
+    SessionBuckets buckets = sessions.get(key);
+    if (buckets == null) {
+      return Verdict.ALLOW;
+    }
+    long now = nanos.getAsLong();
+    if (buckets.of(type, now).tryTake(now)
+        && buckets.shared.bucket.tryTake(now)) {
+      return Verdict.ALLOW;
+    }
+    return strike(buckets, now);
+  }
+
+  /**
+   * Check a keep-alive frame. These count against the session only, since
+   * every client sends them steadily.
+   *
+   * @param key
+   *          Identifies the session that sent it.
+   * @return what to do with the frame.
+   */
+  public Verdict checkKeepAlive(K key) {
+    SessionBuckets buckets = sessions.get(key);
+    if (buckets == null) {
+      return Verdict.ALLOW;
+    }
+    long now = nanos.getAsLong();
+    return buckets.of(null, now).tryTake(now) ? Verdict.ALLOW
+        : strike(buckets, now);
+  }
+
+  private Verdict strike(SessionBuckets buckets, long now) {
+    dropped.increment();
+    if (buckets.strikes.tryTake(now)) {
+      return Verdict.DROP;
+    }
+    disconnected.increment();
+    return Verdict.DISCONNECT;
+  }
+
+  /**
+   * @return the number of frames dropped so far
+   */
+  public long getDropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * @return the number of sessions disconnected so far
+   */
+  public long getDisconnected() {
+    return disconnected.sum();
+  }
+
+  /**
+   * The buckets of one session.
+   */
+  private final class SessionBuckets {
+    private final String address;
+    private final AddressBucket shared;
+    private final TokenBucket strikes;
+    private final Map<MessageType, TokenBucket> byType =
+        new EnumMap<>(MessageType.class);
+    private final TokenBucket other;
+
+    SessionBuckets(String address, AddressBucket shared, long now) {
+      this.address = address;
+      this.shared = shared;
+      this.strikes = new TokenBucket(strikeLimit, now);
+      this.other = new TokenBucket(otherLimit, now);
+    }
+
+    synchronized TokenBucket of(MessageType type, long now) {
+      if (type == null) {
+        return other;
+      }
+      TokenBucket bucket = byType.get(type);
+      if (bucket == null) {
+        Limit limit = limits.get(type);
+        bucket = limit == null ? other : new TokenBucket(limit, now);
+        byType.put(type, bucket);
+      }
+      return bucket;
+    }
+  }
+
+  /**
+   * The bucket shared by the sessions of one address, with a count of those
+   * sessions so it can be dropped with the last of them.
+   */
+  private static final class AddressBucket {
+    private final TokenBucket bucket;
+    private int sessions = 0;
+
+    AddressBucket(Limit limit, long now) {
+      this.bucket = new TokenBucket(limit, now);
+    }
+  }
+
+}
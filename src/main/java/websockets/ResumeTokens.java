@@ -0,0 +1,224 @@
+package websockets;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * ResumeTokens hands each player a secret reconnect token when they create or
+ * join a game, and keeps a player's seat for a grace window after their
+ * socket drops. A client that reconnects within the window presents its token
+ * to be re-attached to its existing player instead of joining as a new one.
+ *
+ * @author knorms
+ *
+ */
+public final class ResumeTokens {
+  /**
+   * Default time a disconnected player's seat is kept.
+   */
+  public static final long DEFAULT_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+  private static final int TOKEN_BYTES = 18;
+
+  private final SecureRandom random = new SecureRandom();
+  private final Base64.Encoder encoder = Base64.getUrlEncoder();
+  private final Map<String, Binding> bindings = new ConcurrentHashMap<>();
+  private final Map<Integer, String> tokens = new ConcurrentHashMap<>();
+  private final Map<Integer, ScheduledFuture<?>> graces =
+      new ConcurrentHashMap<>();
+  private final ScheduledExecutorService timer;
+  private final long graceMillis;
+
+  /**
+   * Construct with the default grace window.
+   */
+  public ResumeTokens() {
+    this(DEFAULT_GRACE_MILLIS);
+  }
+
+  /**
+   * Construct with a custom grace window.
+   *
+   * @param graceMillis
+   *          Time a disconnected player's seat is kept, in milliseconds.
+   */
+  public ResumeTokens(long graceMillis) {
+    this.graceMillis = graceMillis;
+    this.timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("resume-grace")
+            .setDaemon(true).build());
+  }
+
+  /**
+   * Issue a token for a player, replacing any earlier token they had. The
+   * token starts with the game id and a dot so a router can tell which node
+   * to send a RESUME to; the rest is secret.
+   *
+   * @param gameId
+   *          Game the player belongs to.
+   * @param playerId
+   *          Player id.
+   * @return the token to send to the player's client.
+   */
+  public String issue(int gameId, int playerId) {
+    byte[] bytes = new byte[TOKEN_BYTES];
+    random.nextBytes(bytes);
+    String token = gameId + "." + encoder.encodeToString(bytes);
+    bindings.put(token, new Binding(gameId, playerId));
+    String old = tokens.put(playerId, token);
+    if (old != null) {
+      bindings.remove(old);
+    }
+    return token;
+  }
+
+  /**
+   * Bind a token issued elsewhere, e.g. by the server a game moved from, so
+   * the player can resume with the token their client already holds.
+   *
+   * @param token
+   *          Token the player was issued.
+   * @param gameId
+   *          Game the player belongs to here.
+   * @param playerId
+   *          Player id here.
+   */
+  public void adopt(String token, int gameId, int playerId) {
+    bindings.put(token, new Binding(gameId, playerId));
+    String old = tokens.put(playerId, token);
+    if (old != null && !old.equals(token)) {
+      bindings.remove(old);
+    }
+  }
+
+  /**
+   * Get the token a player was issued.
+   *
+   * @param playerId
+   *          Player id.
+   * @return the token, or null if the player has none.
+   */
+  public String tokenOf(int playerId) {
+    return tokens.get(playerId);
+  }
+
+  /**
+   * Look up the player a token belongs to.
+   *
+   * @param token
+   *          Token presented by a client.
+   * @return the binding or null if the token is unknown or was revoked.
+   */
+  public Binding lookup(String token) {
+    return token == null ? null : bindings.get(token);
+  }
+
+  /**
+   * Read the game id a token was issued for without looking it up.
+   *
+   * @param token
+   *          Token presented by a client.
+   * @return the game id, or -1 if the token doesn't start with one.
+   */
+  public static int gameOf(String token) {
+    int dot = token == null ? -1 : token.indexOf('.');
+    if (dot <= 0) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(token.substring(0, dot));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Forget a player's token and any pending grace timer, e.g. when their game
+   * ends.
+   *
+   * @param playerId
+   *          Player id.
+   */
+  public void revoke(int playerId) {
+    String token = tokens.remove(playerId);
+    if (token != null) {
+      bindings.remove(token);
+    }
+    endGrace(playerId);
+  }
+
+  /**
+   * Start the grace window of a player whose socket dropped.
+   *
+   * @param playerId
+   *          Player id.
+   * @param onExpiry
+   *          Run if the player has not resumed when the window closes.
+   */
+  public void startGrace(int playerId, Runnable onExpiry) {
+    ScheduledFuture<?> expiry = timer.schedule(() -> {
+      if (graces.remove(playerId) != null) {
+        onExpiry.run();
+      }
+    }, graceMillis, TimeUnit.MILLISECONDS);
+    ScheduledFuture<?> old = graces.put(playerId, expiry);
+    if (old != null) {
+      old.cancel(false);
+    }
+  }
+
+  /**
+   * End a player's grace window because they resumed.
+   *
+   * @param playerId
+   *          Player id.
+   * @return true if the player was within a grace window.
+   */
+  public boolean endGrace(int playerId) {
+    ScheduledFuture<?> expiry = graces.remove(playerId);
+    if (expiry == null) {
+      return false;
+    }
+    expiry.cancel(false);
+    return true;
+  }
+
+  /**
+   * The game and player a token was issued for.
+   *
+   * @author knorms
+   *
+   */
+  public static final class Binding {
+    private final int gameId;
+    private final int playerId;
+
+    private Binding(int gameId, int playerId) {
+      this.gameId = gameId;
+      this.playerId = playerId;
+    }
+
+    /**
+     * @return the gameId
+     */
+    public int getGameId() {
+      return gameId;
+    }
+
+    /**
+     * @return the playerId
+     */
+    public int getPlayerId() {
+      return playerId;
+    }
+  }
+
+}
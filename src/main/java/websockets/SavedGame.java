@@ -0,0 +1,157 @@
+package websockets;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import game.Color;
+import game.Game;
+import game.GameClock;
+import players.GuiPlayer;
+import storage.GameHistory;
+
+/**
+ * A game read back from an export or a checkpoint, or rebuilt from the
+ * event log, that is not being played here yet. Its players are kept as
+ * written; they get ids when the game is registered. Until then the game has
+ * stand-in players so it can be replayed.
+ *
+ * @author knorms
+ *
+ */
+final class SavedGame {
+  private final int id;
+  private final Game game;
+  private final int seq;
+  private final GameClock clock;
+  private final List<SavedPlayer> players = new ArrayList<>();
+  private long recordId = 0;
+  private GameHistory history;
+
+  /**
+   * A player of a saved game.
+   */
+  static final class SavedPlayer {
+    private final Color color;
+    private final String name;
+    private final String token;
+    private final boolean drawOffered;
+    private final int selected;
+
+    /**
+     * @param color
+     *          Color of the player.
+     * @param name
+     *          Name of the player.
+     * @param token
+     *          Token the player resumes with, or empty.
+     * @param drawOffered
+     *          Whether the player offered a draw.
+     * @param selected
+     *          Index of the power option the player selected, or -1.
+     */
+    SavedPlayer(Color color, String name, String token, boolean drawOffered,
+        int selected) {
+      this.color = color;
+      this.name = name;
+      this.token = token;
+      this.drawOffered = drawOffered;
+      this.selected = selected;
+    }
+
+    Color getColor() {
+      return color;
+    }
+
+    String getName() {
+      return name;
+    }
+
+    String getToken() {
+      return token;
+    }
+
+    boolean getDrawOffered() {
+      return drawOffered;
+    }
+
+    int getSelected() {
+      return selected;
+    }
+  }
+
+  /**
+   * @param id
+   *          Id the game had.
+   * @param game
+   *          The game.
+   * @param seq
+   *          Sequence number of its last update.
+   * @param clock
+   *          Its clock, or null if it is untimed.
+   */
+  SavedGame(int id, Game game, int seq, GameClock clock) {
+    this.id = id;
+    this.game = game;
+    this.seq = seq;
+    this.clock = clock;
+  }
+
+  /**
+   * Add a player, and a stand-in for them to the game.
+   *
+   * @param player
+   *          Player.
+   */
+  void addPlayer(SavedPlayer player) {
+    players.add(player);
+    game.addPlayer(new GuiPlayer(player.getColor(), -1, player.getName()));
+  }
+
+  int getId() {
+    return id;
+  }
+
+  Game getGame() {
+    return game;
+  }
+
+  int getSeq() {
+    return seq;
+  }
+
+  GameClock getClock() {
+    return clock;
+  }
+
+  List<SavedPlayer> getPlayers() {
+    return players;
+  }
+
+  /**
+   * Set how the game was being recorded.
+   *
+   * @param id
+   *          Id of the game in the database.
+   * @param recorded
+   *          What had been recorded of it.
+   */
+  void setRecord(long id, GameHistory recorded) {
+    recordId = id;
+    history = recorded;
+  }
+
+  /**
+   * @return id of the game in the database, or 0 if it wasn't recorded.
+   */
+  long getRecordId() {
+    return recordId;
+  }
+
+  /**
+   * @return what had been recorded of the game, or null if it wasn't.
+   */
+  GameHistory getHistory() {
+    return history;
+  }
+
+}
@@ -0,0 +1,284 @@
+package websockets;
+
+import com.google.gson.JsonObject;
+
+import board.Location;
+import game.Color;
+import pieces.Bishop;
+import pieces.King;
+import pieces.Knight;
+import pieces.Piece;
+import pieces.Queen;
+import pieces.Rook;
+import powerups.PowerObject;
+
+/**
+ * SquareUpdate represents the new state of a single board square inside a
+ * GAME_UPDATE message. It can be rendered either as JSON or packed into bytes
+ * for the binary protocol.
+ *
+ * @author knorms
+ *
+ */
+public final class SquareUpdate {
+  static final int INVULNERABLE_OFFSET = 6;
+
+  private final int row;
+  private final int col;
+  private final EntityTypes state;
+  private final int value;
+  private final boolean white;
+
+  /**
+   * Enumerates types of entities that can be interacted with (on board and
+   * off).
+   *
+   * @author dwoods
+   *
+   */
+  enum EntityTypes {
+    NOTHING, PIECE, POWER, OTHER
+  }
+
+  /**
+   * Enumerates the types of chess pieces.
+   *
+   * @author dwoods
+   *
+   */
+  enum PieceIds {
+    KING, QUEEN, ROOK, BISHOP, KNIGHT, PAWN
+  }
+
+  /**
+   * Enumerates all other entities that could appear on the board.
+   *
+   * @author knorms
+   *
+   */
+  enum OtherEntities {
+    BLACK_HOLE
+  }
+
+  private static final EntityTypes[] STATES = EntityTypes.values();
+
+  /**
+   * Construct a square update.
+   *
+   * @param row
+   *          Row of square.
+   * @param col
+   *          Column of square.
+   * @param state
+   *          What now occupies the square.
+   * @param value
+   *          Piece id (plus 6 if invulnerable), rarity, or other entity id,
+   *          depending on state.
+   * @param white
+   *          Whether a piece on the square is white.
+   */
+  SquareUpdate(int row, int col, EntityTypes state, int value,
+      boolean white) {
+    this.row = row;
+    this.col = col;
+    this.state = state;
+    this.value = value;
+    this.white = white;
+  }
+
+  /**
+   * Create an update representing a piece at specified location.
+   *
+   * @param loc
+   *          Location that changed.
+   * @param p
+   *          Piece that was added.
+   * @return SquareUpdate or null if there is no piece.
+   */
+  public static SquareUpdate piece(Location loc, Piece p) {
+    if (p == null) {
+      return null;
+    }
+    return new SquareUpdate(loc.getRow(), loc.getCol(), EntityTypes.PIECE,
+        pieceId(p), p.getColor() == Color.WHITE);
+  }
+
+  /**
+   * Create an Invulnerability Update (it's a piece update where the piece ID
+   * has 6 added to it) at specified location.
+   *
+   * @param loc
+   *          Location that changed.
+   * @param p
+   *          Piece with invulnerability.
+   * @return SquareUpdate or null if there is no piece.
+   */
+  public static SquareUpdate invulnerable(Location loc, Piece p) {
+    if (p == null) {
+      return null;
+    }
+    return new SquareUpdate(loc.getRow(), loc.getCol(), EntityTypes.PIECE,
+        pieceId(p) + INVULNERABLE_OFFSET, p.getColor() == Color.WHITE);
+  }
+
+  /**
+   * Create an update representing a Black Hole added at specified location.
+   *
+   * @param loc
+   *          Location that changed.
+   * @return SquareUpdate with Black Hole.
+   */
+  public static SquareUpdate blackHole(Location loc) {
+    return new SquareUpdate(loc.getRow(), loc.getCol(), EntityTypes.OTHER,
+        OtherEntities.BLACK_HOLE.ordinal(), false);
+  }
+
+  /**
+   * Create an update representing a Power Object spawn at specified location.
+   *
+   * @param loc
+   *          Location that changed.
+   * @param power
+   *          PowerObject that spawned.
+   * @return SquareUpdate with on-board Power Object.
+   */
+  public static SquareUpdate powerObject(Location loc, PowerObject power) {
+    return new SquareUpdate(loc.getRow(), loc.getCol(), EntityTypes.POWER,
+        power.getRarity().ordinal(), false);
+  }
+
+  /**
+   * Create an empty-space update (i.e. used to have some object that has been
+   * removed) at specified location.
+   *
+   * @param loc
+   *          Location that changed.
+   * @return SquareUpdate with nothing on the square.
+   */
+  public static SquareUpdate empty(Location loc) {
+    return new SquareUpdate(loc.getRow(), loc.getCol(), EntityTypes.NOTHING, 0,
+        false);
+  }
+
+  /**
+   * Returns the integer value id of the given piece. (NOTE: this is different
+   * than the rank of the piece used in game).
+   *
+   * @param p
+   *          The piece to get the id of.
+   * @return The integer id of the piece.
+   */
+  static int pieceId(Piece p) {
+    if (p instanceof King) {
+      return PieceIds.KING.ordinal();
+    } else if (p instanceof Queen) {
+      return PieceIds.QUEEN.ordinal();
+    } else if (p instanceof Bishop) {
+      return PieceIds.BISHOP.ordinal();
+    } else if (p instanceof Rook) {
+      return PieceIds.ROOK.ordinal();
+    } else if (p instanceof Knight) {
+      return PieceIds.KNIGHT.ordinal();
+    } else {
+      return PieceIds.PAWN.ordinal();
+    }
+  }
+
+  /**
+   * Look up an entity type by its wire ordinal.
+   *
+   * @param ordinal
+   *          Ordinal of entity type.
+   * @return EntityTypes value.
+   */
+  static EntityTypes stateOf(int ordinal) {
+    return STATES[ordinal];
+  }
+
+  /**
+   * @return the row
+   */
+  public int getRow() {
+    return row;
+  }
+
+  /**
+   * @return the col
+   */
+  public int getCol() {
+    return col;
+  }
+
+  /**
+   * @return the square index (row * 8 + col)
+   */
+  public int getSquare() {
+    return (row << 3) | col;
+  }
+
+  /**
+   * @return the ordinal of what now occupies the square
+   */
+  public int getState() {
+    return state.ordinal();
+  }
+
+  /**
+   * @return piece id, rarity or other entity id, depending on state
+   */
+  public int getValue() {
+    return value;
+  }
+
+  /**
+   * @return whether the piece on the square is white
+   */
+  public boolean isWhite() {
+    return white;
+  }
+
+  /**
+   * Render the update as it appears in the JSON protocol.
+   *
+   * @return JsonObject with row, col, state and state-specific fields.
+   */
+  public JsonObject toJson() {
+    JsonObject updatePart = new JsonObject();
+    updatePart.addProperty("row", row);
+    updatePart.addProperty("col", col);
+    updatePart.addProperty("state", state.ordinal());
+    switch (state) {
+      case PIECE:
+        updatePart.addProperty("color", white);
+        updatePart.addProperty("piece", value);
+        break;
+      case POWER:
+        updatePart.addProperty("rarity", value);
+        break;
+      case OTHER:
+        updatePart.addProperty("other", value);
+        break;
+      case NOTHING:
+      default:
+        break;
+    }
+    return updatePart;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof SquareUpdate)) {
+      return false;
+    }
+    SquareUpdate other = (SquareUpdate) obj;
+    return row == other.row && col == other.col && state == other.state
+        && value == other.value && white == other.white;
+  }
+
+  @Override
+  public int hashCode() {
+    return ((getSquare() * 31 + state.ordinal()) * 31 + value) * 2
+        + (white ? 1 : 0);
+  }
+
+}
@@ -0,0 +1,113 @@
+package websockets;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TokenBucket allows bursts of up to a fixed number of events and refills
+ * at a steady rate. Each allowed event takes one token.
+ *
+ * @author knorms
+ *
+ */
+public final class TokenBucket {
+  private final double capacity;
+  private final double tokensPerNano;
+  private double tokens;
+  private long last;
+
+  /**
+   * Construct a full bucket.
+   *
+   * @param limit
+   *          Burst size and refill rate.
+   * @param now
+   *          Current time in nanoseconds.
+   */
+  public TokenBucket(Limit limit, long now) {
+    this.capacity = limit.getBurst();
+    this.tokensPerNano = limit.getPerSecond() / TimeUnit.SECONDS.toNanos(1);
+    this.tokens = capacity;
+    this.last = now;
+  }
+
+  /**
+   * Take a token if there is one.
+   *
+   * @param now
+   *          Current time in nanoseconds.
+   * @return true if a token was taken.
+   */
+  public synchronized boolean tryTake(long now) {
+    if (now > last) {
+      tokens = Math.min(capacity, tokens + (now - last) * tokensPerNano);
+      last = now;
+    }
+    if (tokens < 1) {
+      return false;
+    }
+    tokens--;
+    return true;
+  }
+
+  /**
+   * Burst size and refill rate of a bucket.
+   *
+   * @author knorms
+   *
+   */
+  public static final class Limit {
+    private final int burst;
+    private final double perSecond;
+
+    /**
+     * Construct a limit.
+     *
+     * @param burst
+     *          Most events allowed at once.
+     * @param perSecond
+     *          Events allowed per second in the long run.
+     */
+    public Limit(int burst, double perSecond) {
+      if (burst < 1 || perSecond <= 0) {
+        throw new IllegalArgumentException(
+            "ERROR: burst and rate must be positive.");
+      }
+      this.burst = burst;
+      this.perSecond = perSecond;
+    }
+
+    /**
+     * Parse a limit written as burst:perSecond, e.g. 20:10.
+     *
+     * @param text
+     *          Limit to parse.
+     * @return the limit.
+     * @throws IllegalArgumentException
+     *           If text is not of that form.
+     */
+    public static Limit parse(String text) {
+      String[] parts = text.split(":");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException(
+            "ERROR: limit must be burst:perSecond.");
+      }
+      return new Limit(Integer.parseInt(parts[0].trim()),
+          Double.parseDouble(parts[1].trim()));
+    }
+
+    /**
+     * @return the burst size
+     */
+    public int getBurst() {
+      return burst;
+    }
+
+    /**
+     * @return the refill rate per second
+     */
+    public double getPerSecond() {
+      return perSecond;
+    }
+  }
+
+}
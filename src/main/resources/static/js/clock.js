@@ -24,11 +24,9 @@ class Timer {
                 this._theirTime = Math.max(0, this.moveStartTimeLeft + this.moveStartTime - this._getTime());
                 this._display(PLAYER.OPPONENT);
             } else {
-                this._myTime = this.moveStartTimeLeft + this.moveStartTime - this._getTime();
+                // the server's clock is authoritative and ends the game on time
+                this._myTime = Math.max(0, this.moveStartTimeLeft + this.moveStartTime - this._getTime());
                 this._display(PLAYER.PLAYER);
-                if (this._myTime <= 0) {
-                    connection.lose(GAME_END_CAUSE.TIME);
-                }
             }
         }, 25);
     }
@@ -52,6 +50,16 @@ class Timer {
         }
     }
 
+    // Replaces both times (seconds) with the server's, as of now
+    sync(myTime, theirTime) {
+        this._myTime = myTime;
+        this._theirTime = theirTime;
+        this.moveStartTime = this._getTime();
+        this.moveStartTimeLeft = this.myMove ? myTime : theirTime;
+        this._display(PLAYER.PLAYER);
+        this._display(PLAYER.OPPONENT);
+    }
+
     increment(player) {
         if (player) {
             this._myTime += this._increment;
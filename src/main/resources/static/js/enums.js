@@ -8,7 +8,12 @@ MESSAGE = {
     ILLEGAL_ACTION: 6,
     ERROR: 7,
     SPAWN: 8,
-    GIVE: 9
+    GIVE: 9,
+    RESYNC: 10,
+    KEYFRAME: 11,
+    RESUME: 12,
+    WATCH: 13,
+    REDIRECT: 14
 }
 
 ACTION = {
@@ -33,7 +38,8 @@ GAME_END_CAUSE = {
     MATE: 0,
     RESIGNATION: 1,
     TIME: 2,
-    DRAW_AGREED: 3
+    DRAW_AGREED: 3,
+    ABANDONED: 4
 }
 
 GAME_RESULT = {
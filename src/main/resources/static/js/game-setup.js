@@ -21,8 +21,17 @@ $(document).ready(() => {
         if (color === "Random") color = (Math.random() > 0.5);
         game = new Game(color, time);
         connection.socket.onopen = () => connection.createGame(color, name, time, privacy);
+    } else if (watch = getUrlVar("watch")) {
+        connection.socket.onopen = () => connection.watch(watch);
     } else if (id = getUrlVar("id")) {
-        connection.socket.onopen = () => connection.joinGame(id, name);
+        const token = sessionStorage.getItem("token" + id);
+        if (token) {
+            // reloaded page of a game we are already in
+            connection.token = token;
+            connection.socket.onopen = () => connection.resume(-1);
+        } else {
+            connection.socket.onopen = () => connection.joinGame(id, name);
+        }
     } else {
         window.location = "home.html";
     }
@@ -1,12 +1,15 @@
 class Game {
-    constructor(color, timeControl) {
+    // drawPieces: false if the pieces will come from the server instead
+    constructor(color, timeControl, drawPieces = true) {
         this.color = color;
         this.timer = new Timer(Timer.TIME_CONTROL[timeControl]);
         this.power1 = null;
         this.power2 = null;
         this.selected = null;
         color ? this._action = ACTION.MOVE : this._action = ACTION.NONE;
-        setTimeout(() => UI.drawPieces(), 10);
+        if (drawPieces) {
+            setTimeout(() => UI.drawPieces(), 10);
+        }
     }
 
     get action() {
@@ -28,6 +31,20 @@ class Game {
         this.selected = null;
     }
 
+    // Sets both clocks to the server's times (in ms), if the message had them
+    syncClock(clock) {
+        if (clock === undefined) {
+            return;
+        }
+        const white = clock.white / 1000;
+        const black = clock.black / 1000;
+        if (this.color) {
+            this.timer.sync(white, black);
+        } else {
+            this.timer.sync(black, white);
+        }
+    }
+
     // Prompts the user to select between two powers
     powerPrompt(power1, power2) {
         UI.showPowers(power1.image, power2.image);
@@ -54,6 +71,15 @@ class Game {
         this.selected.activateFollowUp(followUpObject);
     }
 
+    // Turns this into a spectator's view: no moves, no draw or resign,
+    // results told from white's side
+    spectate() {
+        this.spectating = true;
+        this._action = ACTION.NONE;
+        $("#draw").attr("hidden", "true");
+        $("#resign").attr("hidden", "true");
+    }
+
     start() {
         startEndSound.play();
         this.timer.start(this.color);
@@ -74,8 +100,8 @@ class Game {
         $("#gameOver").removeAttr("hidden");
         let resultMsg, reasonMsg;
         switch (result) {
-            case GAME_RESULT.WIN: resultMsg = "You won"; break;
-            case GAME_RESULT.LOSS: resultMsg = "You lost"; break;
+            case GAME_RESULT.WIN: resultMsg = this.spectating ? "White won" : "You won"; break;
+            case GAME_RESULT.LOSS: resultMsg = this.spectating ? "Black won" : "You lost"; break;
             case GAME_RESULT.DRAW: resultMsg = "Game drawn"; break;
         }
         switch (reason) {
@@ -83,6 +109,7 @@ class Game {
             case GAME_END_CAUSE.RESIGNATION: reasonMsg = " by resignation"; break;
             case GAME_END_CAUSE.TIME: reasonMsg = " on time"; break;
             case GAME_END_CAUSE.DRAW_AGREED: reasonMsg = " by agreement"; break;
+            case GAME_END_CAUSE.ABANDONED: reasonMsg = " by abandonment"; break;
         }
         $("#gameOverMessage").html(resultMsg + reasonMsg);
     }
@@ -13,6 +13,9 @@ function removeGame(gameId) {
 }
 
 function addGame(gameId, game, gameList) {
+    if ($(`#${gameId}`).length > 0) {
+        return;
+    }
     gameList.append(
         `<tr id="${gameId}">
             <td>${game.name}</td>
@@ -23,7 +23,23 @@ class Connection {
                 this.connectionError("Unexpected or unrecognized message type: " + message.type);
                 break;
             case MESSAGE.ALL_GAMES:
+                // games come in pages ordered by id; next is set while there
+                // are more to load
+                this.next = message.next;
                 render(message.games);
+                $("#moreGames").attr("hidden", this.next === undefined ? "true" : null);
+                break;
+            case MESSAGE.GAMES_CHANGED:
+                for (let i = 0; i < message.removed.length; i++) {
+                    removeGame(message.removed[i]);
+                }
+                // new games have the highest ids, so they belong after the
+                // pages not loaded yet
+                if (this.next === undefined) {
+                    for (let gameId in message.added) {
+                        addGame(gameId, message.added[gameId], $("#right"));
+                    }
+                }
                 break;
             case MESSAGE.ADD_GAME:
                 addGame(
@@ -34,10 +50,39 @@ class Connection {
             case MESSAGE.REMOVE_GAME:
                 removeGame(message.gameId);
                 break;
+            case MESSAGE.MATCHED:
+                // the game page resumes into the game with the token
+                sessionStorage.setItem("token" + message.gameId, message.token);
+                delete sessionStorage.create;
+                window.location = `game.html?id=${message.gameId}`;
+                break;
           }
       }
   }
 
+    // Asks for the page of games after the last one shown
+    moreGames() {
+        this.socket.send(JSON.stringify({
+            type: MESSAGE.LIST_GAMES,
+            after: this.next
+        }));
+    }
+
+    // Asks to be paired with an opponent of similar rating
+    seek(timeControl, name) {
+        this.socket.send(JSON.stringify({
+            type: MESSAGE.SEEK,
+            timeControl: timeControl,
+            name: name
+        }));
+    }
+
+    cancelSeek() {
+        this.socket.send(JSON.stringify({
+            type: MESSAGE.CANCEL_SEEK
+        }));
+    }
+
     // message: String
     // Displays the error banner and logs the error to the console
     connectionError(message) {
@@ -50,5 +95,10 @@ class Connection {
 MESSAGE = {
     ALL_GAMES: 0,
     ADD_GAME: 1,
-    REMOVE_GAME: 2
+    REMOVE_GAME: 2,
+    GAMES_CHANGED: 3,
+    LIST_GAMES: 4,
+    SEEK: 5,
+    CANCEL_SEEK: 6,
+    MATCHED: 7
 }
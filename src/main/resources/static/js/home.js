@@ -1,4 +1,5 @@
 let games;
+let seeking = false;
 
 $(document).ready(() => {
 
@@ -13,6 +14,17 @@ $(document).ready(() => {
         $("#welcome").html(`Welcome, ${localStorage.name}!`);
     });
     $("#signIn").submit(event => event.preventDefault());
+    $("#moreGames").click(() => connection.moreGames());
+    $("#seek").click(() => {
+        if (seeking) {
+            connection.cancelSeek();
+            $("#seek").html("Find opponent");
+        } else {
+            connection.seek(Number($("input[name=time]:checked").val()), localStorage.name);
+            $("#seek").html("Searching... (cancel)");
+        }
+        seeking = !seeking;
+    });
 })
 
 function joinGame(event) {
@@ -1,6 +1,9 @@
 class Connection {
     constructor(url) {
         this.url = url;
+        // sequence number of the last game update applied to the board
+        this.seq = 0;
+        this.resyncing = false;
         try {
             this.socket = new WebSocket(url);
             this._setup();
@@ -20,6 +23,11 @@ class Connection {
             this.connectionError(event);
         }
 
+        this.socket.onclose = () => {
+            clearInterval(this.ping);
+            this._reconnect();
+        }
+
         this.socket.onmessage = event => {
             $("#error").attr("hidden", "true");
             const message = JSON.parse(event.data);
@@ -34,6 +42,7 @@ class Connection {
                 $("#inviteLink").html("sako.localtunnel.me/game.html?id=" + message.gameId);
                 this.GAME_ID = message.gameId;
                 this.PLAYER_ID = message.playerId;
+                this._saveToken(message.token);
                 break;
             case MESSAGE.JOIN_GAME:
                 $("#darkVeil").attr("hidden", "true");
@@ -41,20 +50,37 @@ class Connection {
                 $("#opponentName").html(message.name);
                 if (message.playerId !== undefined) {
                     this.PLAYER_ID = message.playerId;
+                    this._saveToken(message.token);
                     game = new Game(message.color, message.timeControl);
                 }
                 game.start();
                 break;
             case MESSAGE.GAME_OVER:
+                this._saveToken(undefined);
                 game.gameOver(message.result, message.reason);
                 break;
+            case MESSAGE.RESUME:
+                this.GAME_ID = message.gameId;
+                this.PLAYER_ID = message.playerId;
+                // after a page reload the board is drawn by the KEYFRAME
+                // that follows
+                if (game === undefined) {
+                    game = new Game(message.color, message.timeControl, false);
+                    if (message.name !== undefined) {
+                        $("#opponentName").html(message.name);
+                        game.start();
+                    }
+                }
+                if (message.name !== undefined) {
+                    $("#darkVeil").attr("hidden", "true");
+                    $("#invite").attr("hidden", "true");
+                }
+                break;
             case MESSAGE.REQUEST_DRAW:
                 drawSound.play();
                 $("#drawOffered").removeAttr("hidden");
                 break;
             case MESSAGE.GAME_UPDATE:
-                let moveDelay;
-                game.action = message.action;
                 if (moving !== null) {
                     game.lastMoved = moving.toSquare;
                     UI.clear(moving.toSquare);
@@ -62,6 +88,18 @@ class Connection {
                     moving = null;
                     moveSound.play();
                 }
+                // a missed update leaves the board wrong; ask for what was
+                // missed and drop updates until the reply arrives
+                if (this.resyncing) {
+                    break;
+                }
+                if (message.seq !== this.seq + 1) {
+                    this.resync();
+                    break;
+                }
+                this.seq = message.seq;
+                game.action = message.action;
+                game.syncClock(message.clock);
                 if (message.move !== undefined) {
                     UI.move(new Move(
                         new Square(message.move.from.row, message.move.from.col),
@@ -78,6 +116,58 @@ class Connection {
                     )
                 }
                 break;
+            case MESSAGE.RESYNC:
+                if (message.since !== this.seq) {
+                    this.resync();
+                    break;
+                }
+                this.resyncing = false;
+                this.seq = message.seq;
+                game.action = message.action;
+                game.syncClock(message.clock);
+                UI.updates(message.updates);
+                UI.clearPowers();
+                if (message.action === ACTION.SELECT_POWER) {
+                    game.powerPrompt(
+                        POWER_OBJECT[message.rarity][message.id1],
+                        POWER_OBJECT[message.rarity][message.id2]
+                    )
+                }
+                break;
+            case MESSAGE.KEYFRAME:
+                this.resyncing = false;
+                this.seq = message.seq;
+                game.action = message.action;
+                game.syncClock(message.clock);
+                $("#board img").remove();
+                UI.updates(message.updates);
+                UI.clearPowers();
+                if (message.action === ACTION.SELECT_POWER) {
+                    game.powerPrompt(
+                        POWER_OBJECT[message.rarity][message.id1],
+                        POWER_OBJECT[message.rarity][message.id2]
+                    )
+                }
+                break;
+            case MESSAGE.WATCH:
+                this.GAME_ID = message.gameId;
+                if (game === undefined) {
+                    game = new Game(COLOR.WHITE, message.timeControl, false);
+                    game.spectate();
+                }
+                $("#playerName").html(message.white);
+                $("#opponentName").html(message.black);
+                $("#darkVeil").attr("hidden", "true");
+                $("#invite").attr("hidden", "true");
+                break;
+            case MESSAGE.REDIRECT:
+                // the server is going away; the close that follows makes us
+                // reconnect, to the server the game moved to if there is one
+                if (message.url !== undefined) {
+                    this.url = message.url;
+                }
+                this.redirected = true;
+                break;
             case MESSAGE.ILLEGAL_ACTION:
                 if (moving !== null) {
                     UI.teleport(moving.piece, moving.startSquare);
@@ -93,6 +183,76 @@ class Connection {
         console.log(message);
     }
 
+    // Remembers the token used to resume this game after a disconnect or a
+    // page reload
+    _saveToken(token) {
+        this.token = token;
+        if (token === undefined) {
+            sessionStorage.removeItem("token" + this.GAME_ID);
+        } else {
+            sessionStorage.setItem("token" + this.GAME_ID, token);
+        }
+    }
+
+    // Opens a new socket and resumes the game; the server keeps our seat for
+    // a while after the old socket dropped
+    _reconnect() {
+        // spectators only follow a game that moved
+        const spectating = this.PLAYER_ID === undefined && this.redirected
+            && this.GAME_ID !== undefined;
+        if (this.token === undefined && !spectating) {
+            return;
+        }
+        setTimeout(() => {
+            this.socket = new WebSocket(this.url);
+            this._setup();
+            this.socket.onopen = () => {
+                this.ping = setInterval(() => {
+                    this.socket.send("");
+                }, 300);
+                if (spectating) {
+                    this.watch(this.GAME_ID);
+                } else {
+                    this.resume(this.seq);
+                }
+            }
+        }, 1000);
+    }
+
+    // seq: last update applied, or -1 to get the whole board
+    resume(seq) {
+        this.socket.send(JSON.stringify({
+            type: MESSAGE.RESUME,
+            token: this.token,
+            seq: seq
+        }));
+    }
+
+    // Watches a game as a spectator
+    watch(id) {
+        this.GAME_ID = id;
+        this.socket.send(JSON.stringify({
+            gameId: id,
+            type: MESSAGE.WATCH
+        }));
+    }
+
+    // Asks the server for every update after the last one applied
+    resync() {
+        this.resyncing = true;
+        if (this.PLAYER_ID === undefined) {
+            // spectators start over from a fresh keyframe
+            this.watch(this.GAME_ID);
+            return;
+        }
+        this.socket.send(JSON.stringify({
+            gameId: this.GAME_ID,
+            playerId: this.PLAYER_ID,
+            type: MESSAGE.RESYNC,
+            seq: this.seq
+        }));
+    }
+
     createGame(color, name, timeControl, isPublic) {
         this.socket.send(JSON.stringify({
             type: MESSAGE.CREATE_GAME,
@@ -147,8 +307,8 @@ class Connection {
         this.socket.send(JSON.stringify(message));
     }
 
-    // When a player resigns or loses on time
-    // reason: RESIGNATION (1) / TIME (2)
+    // When a player resigns
+    // reason: RESIGNATION (1); the server alone decides a loss on time
     lose(reason) {
         this.socket.send(JSON.stringify({
             gameId: this.GAME_ID,
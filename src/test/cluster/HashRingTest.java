@@ -0,0 +1,77 @@
+package cluster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Test HashRing.
+ *
+ * @author knorms
+ *
+ */
+public class HashRingTest {
+  private static final int KEYS = 100000;
+
+  /**
+   * Test that the nodes share the keys about evenly.
+   */
+  @Test
+  public void balanceTest() {
+    HashRing ring = HashRing.parse("a:1,b:2,c:3,d:4");
+    Map<String, Integer> shares = new HashMap<>();
+    for (int key = 0; key < KEYS; key++) {
+      shares.merge(ring.owner(key), 1, Integer::sum);
+    }
+    assertEquals(4, shares.size());
+    for (int share : shares.values()) {
+      assertTrue(Math.abs(share - KEYS / 4) < KEYS / 4 * 0.2);
+    }
+  }
+
+  /**
+   * Test that removing a node only moves the keys it owned, and that the
+   * order nodes are listed in doesn't matter.
+   */
+  @Test
+  public void consistencyTest() {
+    HashRing four = HashRing.parse("a:1,b:2,c:3,d:4");
+    HashRing shuffled = new HashRing(Arrays.asList("c:3", "a:1", "d:4", "b:2"));
+    HashRing three = HashRing.parse("a:1,b:2,c:3");
+    for (int key = 0; key < KEYS; key++) {
+      assertEquals(four.owner(key), shuffled.owner(key));
+      if (!four.owner(key).equals("d:4")) {
+        assertEquals(four.owner(key), three.owner(key));
+      }
+    }
+  }
+
+  /**
+   * Test a single node and the node list.
+   */
+  @Test
+  public void nodesTest() {
+    HashRing one = HashRing.parse(" localhost:4601 ,");
+    assertEquals("localhost:4601", one.owner(-5));
+    assertEquals("localhost:4601", one.owner(Integer.MAX_VALUE));
+    assertTrue(one.contains("localhost:4601"));
+    assertFalse(one.contains("localhost:4602"));
+    assertEquals(Arrays.asList("a:1", "b:2"),
+        HashRing.parse("b:2,a:1").getNodes());
+  }
+
+  /**
+   * Test that a node can't be listed twice.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void duplicateTest() {
+    HashRing.parse("a:1,b:2,a:1");
+  }
+
+}
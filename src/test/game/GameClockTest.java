@@ -0,0 +1,68 @@
+package game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import game.Game.TimeControl;
+
+/**
+ * Test the server's chess clock against a fake time source.
+ *
+ * @author knorms
+ *
+ */
+public class GameClockTest {
+
+  /**
+   * Test that only the running clock counts down and that the increment is
+   * added when the turn passes.
+   */
+  @Test
+  public void incrementTest() {
+    AtomicLong now = new AtomicLong(1_000);
+    GameClock clock = new GameClock(TimeControl.QUICK, now::get);
+    assertNull(clock.getRunning());
+    assertEquals(300_000, clock.remaining(Color.WHITE));
+
+    clock.runFor(Color.WHITE);
+    now.addAndGet(10_000);
+    assertEquals(290_000, clock.remaining(Color.WHITE));
+    assertEquals(300_000, clock.remaining(Color.BLACK));
+
+    // the same color again (e.g. choosing a power) doesn't punch the clock
+    clock.runFor(Color.WHITE);
+    assertEquals(290_000, clock.remaining(Color.WHITE));
+
+    clock.runFor(Color.BLACK);
+    assertEquals(295_000, clock.remaining(Color.WHITE));
+    now.addAndGet(3_000);
+    assertEquals(297_000, clock.remaining(Color.BLACK));
+
+    clock.stop();
+    now.addAndGet(60_000);
+    assertEquals(297_000, clock.remaining(Color.BLACK));
+    assertNull(clock.getRunning());
+  }
+
+  /**
+   * Test that a clock is flagged exactly when its time runs out.
+   */
+  @Test
+  public void flagTest() {
+    AtomicLong now = new AtomicLong();
+    GameClock clock = new GameClock(TimeControl.QUICK, now::get);
+    clock.runFor(Color.WHITE);
+    now.set(299_999);
+    assertFalse(clock.isFlagged());
+    now.set(300_000);
+    assertTrue(clock.isFlagged());
+    assertEquals(0, clock.remaining(Color.WHITE));
+  }
+
+}
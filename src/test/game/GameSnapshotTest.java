@@ -0,0 +1,109 @@
+package game;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import board.Location;
+import game.Game.GameState;
+import game.Game.TimeControl;
+import poweractions.PowerAction;
+import powerups.BlackHole;
+import powerups.Invulnerability;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+import repl.ChessReplUtils;
+
+/**
+ * Test writing games out and reading them back.
+ *
+ * @author knorms
+ *
+ */
+public class GameSnapshotTest {
+
+  private static Game roundTrip(Game game) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    GameSnapshot.write(game, new DataOutputStream(bytes));
+    return GameSnapshot.read(new DataInputStream(
+        new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  /**
+   * Test that a game in progress comes back with the same board, powers,
+   * history and turn.
+   */
+  @Test
+  public void roundTripTest() throws IOException {
+    Game game = new Game();
+    game.setTimeControl(TimeControl.STANDARD);
+    game.setPublic(true);
+    game.executeMove(new Move(new Location(1, 4), new Location(3, 4)));
+    game.executeMove(new Move(new Location(6, 3), new Location(4, 3)));
+    game.spawnPowerObject(new Location(4, 4),
+        PowerObject.ofRarity(Rarity.RARE));
+    game.addPowerUp(new Location(0, 4), new Invulnerability(3));
+    game.addPowerUp(new Location(5, 0), new BlackHole(2));
+    game.addActionOption(
+        PowerAction.ofId(Rarity.COMMON, 3, game, new Location(3, 4)));
+    game.addActionOption(
+        PowerAction.ofId(Rarity.COMMON, 4, game, new Location(3, 4)));
+    game.setGameState(GameState.WAITING_FOR_POWERUP_CHOICE);
+    game.setTilNextPowerUp(3);
+
+    Game copy = roundTrip(game);
+    assertEquals(ChessReplUtils.getBoardString(game.getBoard()),
+        ChessReplUtils.getBoardString(copy.getBoard()));
+    assertEquals(game.getBoard().getLocationSet(),
+        copy.getBoard().getLocationSet());
+    assertEquals(game.whiteToMove(), copy.whiteToMove());
+    assertEquals(GameState.WAITING_FOR_POWERUP_CHOICE, copy.getGameState());
+    assertEquals(TimeControl.STANDARD, copy.getTimeControl());
+    assertTrue(copy.isPublic());
+    assertEquals(3, copy.getTilNextPowerUp());
+    assertEquals(game.getHistory(), copy.getHistory());
+
+    assertEquals(3, copy.getOnBoardPowers().get(new Location(0, 4))
+        .getTurnsRemaining());
+    assertTrue(copy.getOnBoardPowers()
+        .get(new Location(5, 0)) instanceof BlackHole);
+    assertEquals(Rarity.RARE,
+        copy.getBoard().getPowerObjectAt(new Location(4, 4)).getRarity());
+
+    List<PowerAction> actions = copy.getActionOptions();
+    assertEquals(2, actions.size());
+    assertEquals(3, actions.get(0).getId());
+    assertEquals(4, actions.get(1).getId());
+    assertEquals(new Location(3, 4), actions.get(1).getWhereCaptured());
+    assertEquals(copy, actions.get(0).getGame());
+  }
+
+  /**
+   * Test that pieces remember whether they moved, which castling and the
+   * pawns' double step depend on.
+   */
+  @Test
+  public void movedTest() throws IOException {
+    Game game = new Game();
+    game.executeMove(new Move(new Location(1, 0), new Location(2, 0)));
+    game.executeMove(new Move(new Location(2, 0), new Location(1, 0)));
+
+    Game copy = roundTrip(game);
+    assertTrue(copy.getPieceAt(new Location(1, 0)).getMoved());
+    assertFalse(copy.getPieceAt(new Location(1, 1)).getMoved());
+    assertFalse(copy.validMove(
+        new Move(new Location(1, 0), new Location(3, 0))));
+    assertTrue(copy.validMove(
+        new Move(new Location(1, 1), new Location(3, 1))));
+  }
+
+}
@@ -0,0 +1,189 @@
+package leaderboard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import game.Game.TimeControl;
+import leaderboard.Leaderboard.Entry;
+import leaderboard.Leaderboards.Kind;
+import storage.GameArchive;
+import storage.GameRecorder;
+import storage.Rating;
+import storage.RatingBook;
+
+/**
+ * Test ranking players on leaderboards.
+ *
+ * @author knorms
+ *
+ */
+public class LeaderboardTest {
+
+  /**
+   * The names of players by rank, as sorting them all gives.
+   */
+  private static List<String> sorted(Map<String, Long> scores) {
+    List<String> names = new ArrayList<>(scores.keySet());
+    Collections.sort(names, (a, b) -> {
+      int byScore = Long.compare(scores.get(b), scores.get(a));
+      return byScore != 0 ? byScore : a.compareTo(b);
+    });
+    return names;
+  }
+
+  /**
+   * Test that ranks, players at ranks and pages match sorting the scores
+   * through random changes.
+   */
+  @Test
+  public void randomTest() {
+    Leaderboard board = new Leaderboard();
+    Map<String, Long> scores = new HashMap<>();
+    Random random = new Random(1);
+    for (int step = 0; step < 3000; step++) {
+      String name = "p" + random.nextInt(300);
+      int op = random.nextInt(10);
+      if (op == 0) {
+        assertEquals(scores.remove(name) != null, board.remove(name));
+      } else if (op < 4) {
+        long score = scores.getOrDefault(name, 0L) + 1;
+        assertEquals(score, board.add(name, 1));
+        scores.put(name, score);
+      } else {
+        long score = random.nextInt(40);
+        board.set(name, score);
+        scores.put(name, score);
+      }
+      if (step % 100 != 0) {
+        continue;
+      }
+      List<String> names = sorted(scores);
+      assertEquals(names.size(), board.size());
+      for (int i = 0; i < names.size(); i++) {
+        Entry entry = board.entry(names.get(i));
+        assertEquals(i + 1, entry.getRank());
+        assertEquals((long) scores.get(names.get(i)), entry.getScore());
+        assertEquals(names.get(i), board.at(i + 1).getName());
+      }
+      assertNull(board.at(names.size() + 1));
+
+      List<String> paged = new ArrayList<>();
+      List<Entry> page = board.entries(null, 7);
+      while (!page.isEmpty()) {
+        for (Entry entry : page) {
+          assertEquals(paged.size() + 1, entry.getRank());
+          paged.add(entry.getName());
+        }
+        page = board.entries(page.get(page.size() - 1).cursor(), 7);
+      }
+      assertEquals(names, paged);
+    }
+    assertNull(board.entry("nobody"));
+    assertFalse(board.remove("nobody"));
+  }
+
+  /**
+   * Test that the first page is only built again when a change reaches it,
+   * and that a cursor outlives the player it names moving.
+   */
+  @Test
+  public void firstPageTest() {
+    Leaderboard board = new Leaderboard();
+    for (int i = 0; i < 200; i++) {
+      board.set("p" + i, 1000 - i);
+    }
+    String first = board.firstPage();
+    assertSame(first, board.firstPage());
+    assertTrue(first.contains("\"next\":\"951:p49\""));
+    board.set("p150", 10);
+    board.add("p199", 5);
+    assertSame(first, board.firstPage());
+    board.set("p150", 999);
+    assertNotSame(first, board.firstPage());
+    // p1 also scores 999 and comes first by name
+    assertEquals(3, board.entry("p150").getRank());
+
+    // p49 drops after its page is read: the next page still starts with p50
+    List<Entry> top = board.entries(null, 50);
+    String cursor = top.get(49).cursor();
+    board.set("p49", 0);
+    assertEquals("p50", board.entries(cursor, 1).get(0).getName());
+    try {
+      board.entries("not a cursor", 1);
+      assertTrue(false);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test that the leaderboards are rebuilt from the recorded games and the
+   * ratings, and count games as they end.
+   */
+  @Test
+  public void loadTest() throws IOException, SQLException,
+      InterruptedException {
+    File file = File.createTempFile("games", ".db");
+    GameRecorder recorder = new GameRecorder(file.getPath());
+    try {
+      String[][] games = {{"alice", "bob", "1-0"}, {"bob", "alice", "0-1"},
+          {"carol", "alice", "1-0"}, {"bob", "carol", "1/2-1/2"}};
+      for (String[] game : games) {
+        recorder.finish(recorder.start(TimeControl.QUICK, game[0], game[1]),
+            game[2], "MATE");
+      }
+      recorder.finish(recorder.start(TimeControl.SLOW, "bob", "alice"), "1-0",
+          "MATE");
+      assertTrue(recorder.getStore().flush(5000));
+
+      Leaderboards boards;
+      try (GameArchive archive = new GameArchive(recorder.getStore())) {
+        RatingBook ratings = new RatingBook(recorder.getStore(),
+            TimeUnit.HOURS.toMillis(1));
+        boards = Leaderboards.load(archive, ratings);
+      }
+      Leaderboard quick = boards.get(Kind.WINS, TimeControl.QUICK);
+      assertEquals(2, quick.size());
+      assertEquals("alice", quick.at(1).getName());
+      assertEquals(2, quick.at(1).getScore());
+      assertEquals(1, boards.get(Kind.WINS, TimeControl.SLOW).size());
+
+      boards.finished(TimeControl.QUICK, "carol", "dave", "1-0");
+      boards.finished(TimeControl.QUICK, "carol", "dave", "1/2-1/2");
+      boards.finished(null, "carol", "dave", "1-0");
+      assertEquals(2, quick.entry("carol").getScore());
+      assertEquals(2, quick.entry("carol").getRank());
+
+      Map<String, Rating> rated = new HashMap<>();
+      rated.put("alice", new Rating(1620.4, 80, 0.06, 12, 0));
+      rated.put("bob", new Rating(1710, 80, 0.06, 12, 0));
+      boards.rated(TimeControl.QUICK, rated);
+      Leaderboard ratings = boards.get(Kind.RATING, TimeControl.QUICK);
+      assertEquals("bob", ratings.at(1).getName());
+      assertEquals(1620, ratings.entry("alice").getScore());
+    } finally {
+      recorder.close();
+      for (String suffix : new String[] {"", "-wal", "-shm"}) {
+        new File(file.getPath() + suffix).delete();
+      }
+    }
+  }
+
+}
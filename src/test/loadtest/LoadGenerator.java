@@ -0,0 +1,206 @@
+package loadtest;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Drives a locally started server with simulated clients: tables of two /play
+ * connections that play game after game of random moves, and /home
+ * connections that just listen to the lobby. Every few seconds it prints
+ * connection, game and move counts, the move rate, and percentiles of the
+ * move round trip, from sending a MOVE to receiving its GAME_UPDATE. Run with
+ * main; not a unit test.
+ *
+ * The server limits what one address may send, and every simulated client
+ * comes from the same one, so start it with the limits raised, e.g.
+ *
+ * <pre>
+ * --gui --address-rate-limit 1000000:1000000
+ *   --rate-limit CREATE_GAME=100:10 --rate-limit JOIN_GAME=100:10
+ * </pre>
+ *
+ * A think time under 100ms also needs a higher PLAYER_ACTION limit.
+ *
+ * @author knorms
+ *
+ */
+public final class LoadGenerator {
+  private static final long KEEP_ALIVE_SECONDS = 10;
+  private static final long CONNECT_TIMEOUT_SECONDS = 30;
+
+  private LoadGenerator() {
+  }
+
+  /**
+   * Run a load test.
+   *
+   * @param args
+   *          --host, --port, --games (tables), --home (lobby listeners),
+   *          --think-ms (average time per move), --duration (seconds),
+   *          --report (seconds between reports), --ramp-ms (pause between
+   *          opening tables) and --public (list games in the lobby).
+   * @throws Exception
+   *           If the client can't be started.
+   */
+  public static void main(String[] args) throws Exception {
+    OptionParser parser = new OptionParser();
+    parser.accepts("host").withRequiredArg().defaultsTo("localhost");
+    parser.accepts("port").withRequiredArg().ofType(Integer.class)
+        .defaultsTo(4567);
+    parser.accepts("games").withRequiredArg().ofType(Integer.class)
+        .defaultsTo(1000);
+    parser.accepts("home").withRequiredArg().ofType(Integer.class)
+        .defaultsTo(100);
+    parser.accepts("think-ms").withRequiredArg().ofType(Integer.class)
+        .defaultsTo(250);
+    parser.accepts("duration").withRequiredArg().ofType(Integer.class)
+        .defaultsTo(60);
+    parser.accepts("report").withRequiredArg().ofType(Integer.class)
+        .defaultsTo(5);
+    parser.accepts("ramp-ms").withRequiredArg().ofType(Integer.class)
+        .defaultsTo(2);
+    parser.accepts("public");
+    OptionSet options = parser.parse(args);
+
+    String base = "ws://" + options.valueOf("host") + ":"
+        + options.valueOf("port");
+    int games = (int) options.valueOf("games");
+    int home = (int) options.valueOf("home");
+    long thinkMillis = (int) options.valueOf("think-ms");
+    int rampMillis = (int) options.valueOf("ramp-ms");
+
+    LoadStats stats = new LoadStats();
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+        Runtime.getRuntime().availableProcessors(),
+        new ThreadFactoryBuilder().setNameFormat("load-%d").setDaemon(true)
+            .build());
+    WebSocketClient client = new WebSocketClient();
+    client.start();
+
+    List<HomeListener> listeners = new ArrayList<>();
+    for (int i = 0; i < home; i++) {
+      HomeListener listener = new HomeListener(stats);
+      if (connect(client, listener, URI.create(base + "/home"), stats)) {
+        listeners.add(listener);
+      }
+    }
+
+    List<Table> tables = new ArrayList<>();
+    for (int i = 0; i < games; i++) {
+      Table table = new Table(i, stats, scheduler, thinkMillis,
+          options.has("public"));
+      URI play = URI.create(base + "/play");
+      if (connect(client, table.getCreator(), play, stats)
+          && connect(client, table.getJoiner(), play, stats)) {
+        tables.add(table);
+        table.start();
+      }
+      if (rampMillis > 0) {
+        Thread.sleep(rampMillis);
+      }
+    }
+
+    scheduler.scheduleAtFixedRate(() -> {
+      for (Table table : tables) {
+        table.getCreator().keepAlive();
+        table.getJoiner().keepAlive();
+      }
+      for (HomeListener listener : listeners) {
+        listener.keepAlive();
+      }
+    }, KEEP_ALIVE_SECONDS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+
+    int reportSeconds = (int) options.valueOf("report");
+    scheduler.scheduleAtFixedRate(() -> System.out.println(stats.report()),
+        reportSeconds, reportSeconds, TimeUnit.SECONDS);
+
+    Thread.sleep(TimeUnit.SECONDS.toMillis((int) options.valueOf("duration")));
+    System.out.println("final: " + stats.report());
+    for (Table table : tables) {
+      table.getCreator().close();
+      table.getJoiner().close();
+    }
+    client.stop();
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Open a connection and wait for it.
+   *
+   * @return true if it opened.
+   */
+  private static boolean connect(WebSocketClient client, Object endpoint,
+      URI uri, LoadStats stats) {
+    try {
+      Future<Session> session = client.connect(endpoint, uri);
+      session.get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      return true;
+    } catch (Exception e) {
+      stats.connectFailures.increment();
+      return false;
+    }
+  }
+
+  /**
+   * A /home connection that counts the lobby messages it receives.
+   *
+   * @author knorms
+   *
+   */
+  @WebSocket
+  public static final class HomeListener {
+    private final LoadStats stats;
+    private volatile Session session;
+
+    HomeListener(LoadStats stats) {
+      this.stats = stats;
+    }
+
+    /**
+     * Record the connection.
+     *
+     * @param opened
+     *          Session of the connection.
+     */
+    @OnWebSocketConnect
+    public void connected(Session opened) {
+      session = opened;
+      stats.connected.increment();
+    }
+
+    /**
+     * Count a message.
+     *
+     * @param text
+     *          Text of the message.
+     */
+    @OnWebSocketMessage
+    public void message(String text) {
+      stats.homeMessages.increment();
+    }
+
+    void keepAlive() {
+      Session open = session;
+      if (open != null && open.isOpen()) {
+        open.getRemote().sendStringByFuture("");
+      }
+    }
+  }
+
+}
@@ -0,0 +1,61 @@
+package loadtest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import metrics.LatencyHistogram;
+
+/**
+ * Counters shared by every simulated client of a load run.
+ *
+ * @author knorms
+ *
+ */
+final class LoadStats {
+  final LongAdder connected = new LongAdder();
+  final LongAdder connectFailures = new LongAdder();
+  final LongAdder closed = new LongAdder();
+  final LongAdder gamesStarted = new LongAdder();
+  final LongAdder gamesFinished = new LongAdder();
+  final LongAdder moves = new LongAdder();
+  final LongAdder powerSelections = new LongAdder();
+  final LongAdder illegal = new LongAdder();
+  final LongAdder errors = new LongAdder();
+  final LongAdder resyncs = new LongAdder();
+  final LongAdder homeMessages = new LongAdder();
+  // from sending a MOVE to receiving its GAME_UPDATE
+  final LatencyHistogram moveRtt = new LatencyHistogram();
+
+  private long lastMoves = 0;
+  private long lastNanos = System.nanoTime();
+
+  /**
+   * Describe the run so far, with the move rate since the last report.
+   *
+   * @return one report line.
+   */
+  synchronized String report() {
+    long now = System.nanoTime();
+    long total = moves.sum();
+    double seconds = (now - lastNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    double rate = (total - lastMoves) / seconds;
+    lastMoves = total;
+    lastNanos = now;
+
+    LatencyHistogram.Snapshot rtt = moveRtt.snapshot();
+    return String.format("connected %d (failed %d, closed %d) | games %d "
+        + "started, %d finished | moves %d (%.0f/s), powers %d, illegal %d, "
+        + "errors %d, resyncs %d | home msgs %d | move rtt p50 %.2fms "
+        + "p99 %.2fms p999 %.2fms max %.2fms", connected.sum(),
+        connectFailures.sum(), closed.sum(), gamesStarted.sum(),
+        gamesFinished.sum(), total, rate, powerSelections.sum(),
+        illegal.sum(), errors.sum(), resyncs.sum(), homeMessages.sum(),
+        millis(rtt.valueAt(0.5)), millis(rtt.valueAt(0.99)),
+        millis(rtt.valueAt(0.999)), millis(rtt.getMax()));
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+}
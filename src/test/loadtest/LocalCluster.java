@@ -0,0 +1,105 @@
+package loadtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+
+/**
+ * Starts a cluster on this machine: several game server processes and a
+ * router in front of them, all on the classpath this runs with. Point a
+ * browser or LoadGenerator at the router's port. To see how throughput
+ * scales, run LoadGenerator with a short think time against clusters of 1,
+ * 2, 4... nodes and compare the move rates; each node is a separate JVM, so
+ * it scales with cores until the router or the load generator saturates.
+ * Arguments after "--" are passed to every node, e.g. raised rate limits for
+ * load tests (see LoadGenerator). Each process logs to a file in --logs.
+ * Run with main; stop with Ctrl-C, which stops the processes too.
+ *
+ * @author knorms
+ *
+ */
+public final class LocalCluster {
+  private LocalCluster() {
+  }
+
+  /**
+   * Start the cluster and wait until interrupted.
+   *
+   * @param args
+   *          --nodes (number of nodes), --port (router port; the nodes take
+   *          the ports after it), --logs (directory of the log files), then
+   *          -- and arguments for the nodes.
+   * @throws Exception
+   *           If a process can't be started.
+   */
+  public static void main(String[] args) throws Exception {
+    OptionParser parser = new OptionParser();
+    parser.accepts("nodes").withRequiredArg().ofType(Integer.class)
+        .defaultsTo(2);
+    parser.accepts("port").withRequiredArg().ofType(Integer.class)
+        .defaultsTo(4600);
+    parser.accepts("logs").withRequiredArg()
+        .defaultsTo(System.getProperty("java.io.tmpdir"));
+    OptionSet options = parser.parse(args);
+
+    int count = (int) options.valueOf("nodes");
+    int port = (int) options.valueOf("port");
+    File logs = new File(options.valueOf("logs").toString());
+    StringJoiner nodes = new StringJoiner(",");
+    for (int i = 1; i <= count; i++) {
+      nodes.add("localhost:" + (port + i));
+    }
+
+    List<Process> processes = new ArrayList<>();
+    Runtime.getRuntime().addShutdownHook(
+        new Thread(() -> processes.forEach(Process::destroy)));
+    for (int i = 1; i <= count; i++) {
+      List<String> command = javaCommand();
+      command.add("--gui");
+      command.add("--port");
+      command.add(Integer.toString(port + i));
+      command.add("--nodes");
+      command.add(nodes.toString());
+      for (Object arg : options.nonOptionArguments()) {
+        command.add(arg.toString());
+      }
+      processes.add(start(command, new File(logs, "node-" + (port + i)
+          + ".log")));
+    }
+    List<String> router = javaCommand();
+    router.add("--router");
+    router.add("--port");
+    router.add(Integer.toString(port));
+    router.add("--nodes");
+    router.add(nodes.toString());
+    processes.add(start(router, new File(logs, "router-" + port + ".log")));
+
+    System.out.println("router on port " + port + " in front of " + nodes
+        + "; logs in " + logs);
+    for (Process process : processes) {
+      process.waitFor();
+    }
+  }
+
+  private static List<String> javaCommand() {
+    List<String> command = new ArrayList<>();
+    command.add(new File(System.getProperty("java.home"), "bin/java")
+        .getPath());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("main.Main");
+    return command;
+  }
+
+  private static Process start(List<String> command, File log)
+      throws Exception {
+    // stdin stays open: the REPL exits the process when it is closed
+    return new ProcessBuilder(command).redirectErrorStream(true)
+        .redirectOutput(log).start();
+  }
+
+}
@@ -0,0 +1,233 @@
+package loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * MirrorBoard is a simulated client's copy of a game's board, kept only from
+ * what the server sends: the moves of GAME_UPDATEs and their square updates.
+ * It knows just enough chess to propose moves that are usually legal; the
+ * server stays the judge, and a client that gets ILLEGAL_ACTION simply tries
+ * another move or asks for a KEYFRAME.
+ *
+ * @author knorms
+ *
+ */
+final class MirrorBoard {
+  static final int SIZE = 8;
+
+  // square states and piece ids of REST-api.txt
+  static final int NOTHING = 0;
+  static final int PIECE = 1;
+  static final int POWER = 2;
+  static final int OTHER = 3;
+  static final int KING = 0;
+  static final int QUEEN = 1;
+  static final int ROOK = 2;
+  static final int BISHOP = 3;
+  static final int KNIGHT = 4;
+  static final int PAWN = 5;
+  private static final int INVULNERABLE = 6;
+
+  private static final int[][] KNIGHT_STEPS = {{1, 2}, {2, 1}, {2, -1},
+      {1, -2}, {-1, -2}, {-2, -1}, {-2, 1}, {-1, 2}};
+  private static final int[][] KING_STEPS = {{1, 0}, {1, 1}, {0, 1},
+      {-1, 1}, {-1, 0}, {-1, -1}, {0, -1}, {1, -1}};
+  private static final int[][] ROOK_STEPS = {{1, 0}, {0, 1}, {-1, 0},
+      {0, -1}};
+  private static final int[][] BISHOP_STEPS = {{1, 1}, {-1, 1}, {-1, -1},
+      {1, -1}};
+
+  private final int[] state = new int[SIZE * SIZE];
+  private final int[] piece = new int[SIZE * SIZE];
+  private final boolean[] white = new boolean[SIZE * SIZE];
+  private final List<int[]> candidates = new ArrayList<>();
+
+  /**
+   * Empty the board, e.g. before applying a KEYFRAME.
+   */
+  void clear() {
+    for (int i = 0; i < state.length; i++) {
+      state[i] = NOTHING;
+    }
+  }
+
+  /**
+   * Apply the square updates of a GAME_UPDATE, RESYNC or KEYFRAME.
+   *
+   * @param updates
+   *          Updates array; may be null.
+   */
+  void apply(JsonArray updates) {
+    if (updates == null) {
+      return;
+    }
+    for (JsonElement element : updates) {
+      JsonObject square = element.getAsJsonObject();
+      int i = index(square.get("row").getAsInt(), square.get("col").getAsInt());
+      state[i] = square.get("state").getAsInt();
+      if (state[i] == PIECE) {
+        piece[i] = square.get("piece").getAsInt();
+        white[i] = square.get("color").getAsBoolean();
+      }
+    }
+  }
+
+  /**
+   * Apply a move: whatever stood on the start square now stands on the end
+   * square. Castling rooks and pawns taken en passant arrive as square
+   * updates.
+   *
+   * @param move
+   *          Move as {fromRow, fromCol, toRow, toCol}.
+   */
+  void move(int[] move) {
+    int from = index(move[0], move[1]);
+    int to = index(move[2], move[3]);
+    state[to] = state[from];
+    piece[to] = piece[from];
+    white[to] = white[from];
+    state[from] = NOTHING;
+  }
+
+  /**
+   * Apply a move sent by the server.
+   *
+   * @param move
+   *          Move as {from: {row, col}, to: {row, col}}.
+   */
+  void move(JsonObject move) {
+    JsonObject from = move.getAsJsonObject("from");
+    JsonObject to = move.getAsJsonObject("to");
+    move(new int[] {from.get("row").getAsInt(), from.get("col").getAsInt(),
+        to.get("row").getAsInt(), to.get("col").getAsInt()});
+  }
+
+  /**
+   * Pick a random move for a color among those this board believes legal.
+   * There is no check in this game, so pseudo-legal moves are legal apart
+   * from what powers forbid; castling and en passant are never proposed.
+   *
+   * @param forWhite
+   *          Color to move.
+   * @param random
+   *          Source of randomness.
+   * @return move as {fromRow, fromCol, toRow, toCol}, or null if there is
+   *         none.
+   */
+  int[] randomMove(boolean forWhite, Random random) {
+    candidates.clear();
+    for (int row = 0; row < SIZE; row++) {
+      for (int col = 0; col < SIZE; col++) {
+        int i = index(row, col);
+        if (state[i] == PIECE && white[i] == forWhite) {
+          addMoves(row, col, piece[i] % INVULNERABLE, forWhite);
+        }
+      }
+    }
+    return candidates.isEmpty() ? null
+        : candidates.get(random.nextInt(candidates.size()));
+  }
+
+  /**
+   * @return the number of moves the last call to randomMove chose from
+   */
+  int candidateCount() {
+    return candidates.size();
+  }
+
+  private void addMoves(int row, int col, int id, boolean forWhite) {
+    switch (id) {
+      case PAWN:
+        addPawnMoves(row, col, forWhite);
+        break;
+      case KNIGHT:
+        addSteps(row, col, KNIGHT_STEPS, forWhite, false);
+        break;
+      case KING:
+        addSteps(row, col, KING_STEPS, forWhite, false);
+        break;
+      case ROOK:
+        addSteps(row, col, ROOK_STEPS, forWhite, true);
+        break;
+      case BISHOP:
+        addSteps(row, col, BISHOP_STEPS, forWhite, true);
+        break;
+      case QUEEN:
+        addSteps(row, col, ROOK_STEPS, forWhite, true);
+        addSteps(row, col, BISHOP_STEPS, forWhite, true);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void addSteps(int row, int col, int[][] steps, boolean forWhite,
+      boolean slide) {
+    for (int[] step : steps) {
+      int r = row + step[0];
+      int c = col + step[1];
+      while (onBoard(r, c)) {
+        int i = index(r, c);
+        if (state[i] == NOTHING || state[i] == POWER
+            || state[i] == PIECE && capturable(i, forWhite)) {
+          candidates.add(new int[] {row, col, r, c});
+        }
+        if (!slide || state[i] != NOTHING) {
+          break;
+        }
+        r += step[0];
+        c += step[1];
+      }
+    }
+  }
+
+  private void addPawnMoves(int row, int col, boolean forWhite) {
+    // white pawns move up the rows, from row 1
+    int direction = forWhite ? 1 : -1;
+    int home = forWhite ? 1 : SIZE - 2;
+    int r = row + direction;
+    if (!onBoard(r, col)) {
+      return;
+    }
+    if (passable(index(r, col))) {
+      candidates.add(new int[] {row, col, r, col});
+      int r2 = r + direction;
+      if (row == home && onBoard(r2, col) && state[index(r, col)] == NOTHING
+          && passable(index(r2, col))) {
+        candidates.add(new int[] {row, col, r2, col});
+      }
+    }
+    for (int c = col - 1; c <= col + 1; c += 2) {
+      if (onBoard(r, c)) {
+        int i = index(r, c);
+        if (state[i] == POWER
+            || state[i] == PIECE && capturable(i, forWhite)) {
+          candidates.add(new int[] {row, col, r, c});
+        }
+      }
+    }
+  }
+
+  private boolean passable(int i) {
+    return state[i] == NOTHING || state[i] == POWER;
+  }
+
+  private boolean capturable(int i, boolean byWhite) {
+    return white[i] != byWhite && piece[i] < INVULNERABLE;
+  }
+
+  private static boolean onBoard(int row, int col) {
+    return row >= 0 && row < SIZE && col >= 0 && col < SIZE;
+  }
+
+  private static int index(int row, int col) {
+    return row * SIZE + col;
+  }
+
+}
@@ -0,0 +1,97 @@
+package loadtest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Test the load generator's copy of the board.
+ *
+ * @author knorms
+ *
+ */
+public class MirrorBoardTest {
+  private static final int[] BACK_RANK = {MirrorBoard.ROOK,
+      MirrorBoard.KNIGHT, MirrorBoard.BISHOP, MirrorBoard.QUEEN,
+      MirrorBoard.KING, MirrorBoard.BISHOP, MirrorBoard.KNIGHT,
+      MirrorBoard.ROOK};
+
+  private static JsonObject square(int row, int col, int state) {
+    JsonObject square = new JsonObject();
+    square.addProperty("row", row);
+    square.addProperty("col", col);
+    square.addProperty("state", state);
+    return square;
+  }
+
+  private static JsonObject piece(int row, int col, int piece,
+      boolean white) {
+    JsonObject square = square(row, col, MirrorBoard.PIECE);
+    square.addProperty("piece", piece);
+    square.addProperty("color", white);
+    return square;
+  }
+
+  private static MirrorBoard startingBoard() {
+    JsonArray keyframe = new JsonArray();
+    for (int col = 0; col < MirrorBoard.SIZE; col++) {
+      keyframe.add(piece(0, col, BACK_RANK[col], true));
+      keyframe.add(piece(1, col, MirrorBoard.PAWN, true));
+      keyframe.add(piece(6, col, MirrorBoard.PAWN, false));
+      keyframe.add(piece(7, col, BACK_RANK[col], false));
+    }
+    MirrorBoard board = new MirrorBoard();
+    board.apply(keyframe);
+    return board;
+  }
+
+  /**
+   * Test that both sides have the 20 opening moves of chess.
+   */
+  @Test
+  public void openingMovesTest() {
+    MirrorBoard board = startingBoard();
+    board.randomMove(true, new Random(1));
+    assertEquals(20, board.candidateCount());
+    board.randomMove(false, new Random(1));
+    assertEquals(20, board.candidateCount());
+  }
+
+  /**
+   * Test that moves and square updates change what can be played.
+   */
+  @Test
+  public void updateTest() {
+    MirrorBoard board = startingBoard();
+    // 1. e4 opens the bishop and queen
+    board.move(new int[] {1, 4, 3, 4});
+    board.randomMove(true, new Random(1));
+    assertEquals(30, board.candidateCount());
+
+    // a power box on d3 can be taken by the d and c pawns and the bishop,
+    // but stops the d pawn's double step and the bishop's diagonal
+    JsonArray updates = new JsonArray();
+    updates.add(square(2, 3, MirrorBoard.POWER));
+    board.apply(updates);
+    board.randomMove(true, new Random(1));
+    assertEquals(27, board.candidateCount());
+
+    board.clear();
+    assertNull(board.randomMove(true, new Random(1)));
+    updates = new JsonArray();
+    updates.add(piece(0, 0, MirrorBoard.KING, true));
+    board.apply(updates);
+    board.randomMove(true, new Random(1));
+    assertEquals(3, board.candidateCount());
+    int[] move = board.randomMove(true, new Random(1));
+    assertArrayEquals(new int[] {0, 0}, new int[] {move[0], move[1]});
+  }
+
+}
@@ -0,0 +1,429 @@
+package loadtest;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * SimulatedPlayer is one /play connection of a load run. It speaks the
+ * protocol of REST-api.txt like the browser client does: it creates or joins
+ * a game, fetches a KEYFRAME to learn the board, then answers every turn with
+ * a random move and every captured power box with a random power, after a
+ * think time.
+ *
+ * @author knorms
+ *
+ */
+@WebSocket
+public final class SimulatedPlayer {
+  // message types, actions and enums of REST-api.txt
+  private static final int CREATE_GAME = 0;
+  private static final int JOIN_GAME = 1;
+  private static final int GAME_OVER = 2;
+  private static final int PLAYER_ACTION = 4;
+  private static final int GAME_UPDATE = 5;
+  private static final int ILLEGAL_ACTION = 6;
+  private static final int ERROR = 7;
+  private static final int RESYNC = 10;
+  private static final int KEYFRAME = 11;
+  private static final int MOVE = 1;
+  private static final int SELECT_POWER = 2;
+  private static final int RESIGNATION = 1;
+  private static final int QUICK = 0;
+
+  // illegal moves in a row before the board is fetched again, and fetches
+  // in a row without a legal move before giving up on the game
+  private static final int MAX_ILLEGAL_STREAK = 3;
+  private static final int MAX_RESYNC_STREAK = 2;
+
+  private static final Gson GSON = new Gson();
+
+  private final String name;
+  private final Table table;
+  private final boolean creator;
+  private final LoadStats stats;
+  private final ScheduledExecutorService scheduler;
+  private final long thinkMillis;
+  private final boolean publicGames;
+  private final MirrorBoard board = new MirrorBoard();
+  private final Random random = new Random();
+
+  private Session session;
+  // bumped for every game so moves scheduled for an old game are dropped
+  private int generation = 0;
+  private boolean playing = false;
+  private int gameId = -1;
+  private int playerId = -1;
+  private boolean white;
+  private int seq;
+  private boolean resyncing = false;
+  private int[] pendingMove;
+  private long sentAt;
+  private int pendingSelection = -1;
+  private int illegalStreak = 0;
+  private int resyncStreak = 0;
+
+  /**
+   * Construct a player.
+   *
+   * @param name
+   *          Name to play under.
+   * @param table
+   *          Table the player sits at.
+   * @param creator
+   *          Whether the player creates the table's games.
+   * @param stats
+   *          Counters of the run.
+   * @param scheduler
+   *          Runs delayed moves.
+   * @param thinkMillis
+   *          Average time to wait before each move, in milliseconds.
+   * @param publicGames
+   *          Whether created games are listed in the lobby.
+   */
+  SimulatedPlayer(String name, Table table, boolean creator, LoadStats stats,
+      ScheduledExecutorService scheduler, long thinkMillis,
+      boolean publicGames) {
+    this.name = name;
+    this.table = table;
+    this.creator = creator;
+    this.stats = stats;
+    this.scheduler = scheduler;
+    this.thinkMillis = thinkMillis;
+    this.publicGames = publicGames;
+  }
+
+  /**
+   * Record the connection.
+   *
+   * @param opened
+   *          Session of the connection.
+   */
+  @OnWebSocketConnect
+  public synchronized void connected(Session opened) {
+    session = opened;
+    stats.connected.increment();
+  }
+
+  /**
+   * Stop playing when the connection closes.
+   *
+   * @param statusCode
+   *          Close code.
+   * @param reason
+   *          Close reason.
+   */
+  @OnWebSocketClose
+  public synchronized void closed(int statusCode, String reason) {
+    session = null;
+    playing = false;
+    stats.closed.increment();
+  }
+
+  /**
+   * Create a new game.
+   */
+  synchronized void create() {
+    reset();
+    JsonObject request = new JsonObject();
+    request.addProperty("type", CREATE_GAME);
+    request.addProperty("name", name);
+    white = random.nextBoolean();
+    request.addProperty("color", white);
+    request.addProperty("timeControl", QUICK);
+    request.addProperty("public", publicGames);
+    send(request);
+  }
+
+  /**
+   * Join a game created by the other player of the table.
+   *
+   * @param id
+   *          Id of the game.
+   */
+  synchronized void join(int id) {
+    reset();
+    gameId = id;
+    JsonObject request = new JsonObject();
+    request.addProperty("type", JOIN_GAME);
+    request.addProperty("gameId", id);
+    request.addProperty("name", name);
+    send(request);
+  }
+
+  /**
+   * Send an empty frame so the server keeps the connection open.
+   */
+  synchronized void keepAlive() {
+    if (session != null && session.isOpen()) {
+      session.getRemote().sendStringByFuture("");
+    }
+  }
+
+  /**
+   * Close the connection.
+   */
+  synchronized void close() {
+    if (session != null) {
+      session.close();
+    }
+  }
+
+  /**
+   * Handle a message from the server.
+   *
+   * @param text
+   *          Text of the message.
+   */
+  @OnWebSocketMessage
+  public synchronized void message(String text) {
+    JsonObject received = GSON.fromJson(text, JsonObject.class);
+    switch (received.get("type").getAsInt()) {
+      case CREATE_GAME:
+        gameId = received.get("gameId").getAsInt();
+        playerId = received.get("playerId").getAsInt();
+        table.created(gameId);
+        break;
+
+      case JOIN_GAME:
+        if (received.has("playerId")) {
+          playerId = received.get("playerId").getAsInt();
+          white = received.get("color").getAsBoolean();
+        } else {
+          stats.gamesStarted.increment();
+        }
+        playing = true;
+        resync(-1);
+        break;
+
+      case KEYFRAME:
+        // a KEYFRAME is a RESYNC of the whole board
+        board.clear();
+        resynced(received);
+        break;
+
+      case RESYNC:
+        resynced(received);
+        break;
+
+      case GAME_UPDATE:
+        update(received);
+        break;
+
+      case ILLEGAL_ACTION:
+        stats.illegal.increment();
+        illegal();
+        break;
+
+      case ERROR:
+        stats.errors.increment();
+        if (pendingSelection >= 0) {
+          // powers needing a follow up are refused without one
+          refused();
+        } else if (playing) {
+          resync(-1);
+        }
+        break;
+
+      case GAME_OVER:
+        if (playing) {
+          finish();
+        }
+        break;
+
+      default:
+        break;
+    }
+  }
+
+  private void resynced(JsonObject received) {
+    resyncing = false;
+    seq = received.get("seq").getAsInt();
+    board.apply(received.getAsJsonArray("updates"));
+    act(received);
+  }
+
+  private void update(JsonObject received) {
+    if (!playing || resyncing) {
+      return;
+    }
+    int updateSeq =
+        received.has("seq") ? received.get("seq").getAsInt() : seq + 1;
+    if (updateSeq != seq + 1) {
+      resync(seq);
+      return;
+    }
+    seq = updateSeq;
+
+    if (pendingMove != null) {
+      stats.moveRtt.recordSince(sentAt);
+      stats.moves.increment();
+      board.move(pendingMove);
+      pendingMove = null;
+      illegalStreak = 0;
+      resyncStreak = 0;
+    }
+    if (pendingSelection >= 0) {
+      stats.powerSelections.increment();
+      pendingSelection = -1;
+    }
+    if (received.has("move")) {
+      board.move(received.getAsJsonObject("move"));
+    }
+    board.apply(received.getAsJsonArray("updates"));
+    act(received);
+  }
+
+  /**
+   * Do what the server says is next.
+   */
+  private void act(JsonObject received) {
+    if (!playing || !received.has("action")) {
+      return;
+    }
+    int action = received.get("action").getAsInt();
+    if (action == MOVE) {
+      int expected = generation;
+      long think = thinkMillis == 0 ? 0
+          : thinkMillis / 2 + (long) (random.nextDouble() * thinkMillis);
+      scheduler.schedule(() -> move(expected), think, TimeUnit.MILLISECONDS);
+    } else if (action == SELECT_POWER) {
+      selectPower(random.nextInt(2));
+    }
+  }
+
+  private synchronized void move(int expected) {
+    if (!playing || expected != generation || pendingMove != null
+        || resyncing) {
+      return;
+    }
+    int[] move = board.randomMove(white, random);
+    if (move == null) {
+      resign();
+      return;
+    }
+    JsonObject request = action(MOVE);
+    JsonObject from = new JsonObject();
+    from.addProperty("row", move[0]);
+    from.addProperty("col", move[1]);
+    JsonObject to = new JsonObject();
+    to.addProperty("row", move[2]);
+    to.addProperty("col", move[3]);
+    JsonObject moveJson = new JsonObject();
+    moveJson.add("from", from);
+    moveJson.add("to", to);
+    request.add("move", moveJson);
+    pendingMove = move;
+    sentAt = System.nanoTime();
+    send(request);
+  }
+
+  private void selectPower(int selection) {
+    JsonObject request = action(SELECT_POWER);
+    request.addProperty("selection", selection == 1);
+    pendingSelection = selection;
+    send(request);
+  }
+
+  private void illegal() {
+    if (pendingMove != null) {
+      pendingMove = null;
+      if (++illegalStreak < MAX_ILLEGAL_STREAK) {
+        move(generation);
+      } else if (resyncStreak < MAX_RESYNC_STREAK) {
+        // the board has probably drifted from the server's
+        resyncStreak++;
+        illegalStreak = 0;
+        resync(-1);
+      } else {
+        resign();
+      }
+    } else {
+      refused();
+    }
+  }
+
+  /**
+   * Try the other power once the first is refused, then give up the game.
+   */
+  private void refused() {
+    if (pendingSelection == 0) {
+      selectPower(1);
+    } else if (pendingSelection == 1) {
+      pendingSelection = -1;
+      resign();
+    }
+  }
+
+  private void resync(int since) {
+    resyncing = true;
+    pendingMove = null;
+    pendingSelection = -1;
+    stats.resyncs.increment();
+    JsonObject request = new JsonObject();
+    request.addProperty("type", RESYNC);
+    request.addProperty("gameId", gameId);
+    request.addProperty("playerId", playerId);
+    request.addProperty("seq", since);
+    send(request);
+  }
+
+  private void resign() {
+    JsonObject request = new JsonObject();
+    request.addProperty("type", GAME_OVER);
+    request.addProperty("gameId", gameId);
+    request.addProperty("playerId", playerId);
+    request.addProperty("reason", RESIGNATION);
+    send(request);
+    // only the opponent is told, so the game ends here for this player
+    finish();
+  }
+
+  private void finish() {
+    playing = false;
+    generation++;
+    if (creator) {
+      stats.gamesFinished.increment();
+      table.over();
+    }
+  }
+
+  private void reset() {
+    generation++;
+    playing = false;
+    gameId = -1;
+    playerId = -1;
+    seq = 0;
+    resyncing = false;
+    pendingMove = null;
+    pendingSelection = -1;
+    illegalStreak = 0;
+    resyncStreak = 0;
+    board.clear();
+  }
+
+  private JsonObject action(int action) {
+    JsonObject request = new JsonObject();
+    request.addProperty("type", PLAYER_ACTION);
+    request.addProperty("gameId", gameId);
+    request.addProperty("playerId", playerId);
+    request.addProperty("action", action);
+    return request;
+  }
+
+  private void send(JsonObject request) {
+    if (session != null && session.isOpen()) {
+      session.getRemote().sendStringByFuture(GSON.toJson(request));
+    }
+  }
+
+}
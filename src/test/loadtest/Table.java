@@ -0,0 +1,83 @@
+package loadtest;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Table is a pair of simulated players who play game after game against
+ * each other: one creates each game and the other joins it.
+ *
+ * @author knorms
+ *
+ */
+final class Table {
+  // pause between a game ending and the next one being created
+  private static final long RESTART_MILLIS = 500;
+
+  private final SimulatedPlayer creator;
+  private final SimulatedPlayer joiner;
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * Construct a table.
+   *
+   * @param number
+   *          Number of the table, for the players' names.
+   * @param stats
+   *          Counters of the run.
+   * @param scheduler
+   *          Runs delayed moves and restarts.
+   * @param thinkMillis
+   *          Average time to wait before each move, in milliseconds.
+   * @param publicGames
+   *          Whether created games are listed in the lobby.
+   */
+  Table(int number, LoadStats stats, ScheduledExecutorService scheduler,
+      long thinkMillis, boolean publicGames) {
+    this.scheduler = scheduler;
+    this.creator = new SimulatedPlayer("load" + number + "a", this, true,
+        stats, scheduler, thinkMillis, publicGames);
+    this.joiner = new SimulatedPlayer("load" + number + "b", this, false,
+        stats, scheduler, thinkMillis, publicGames);
+  }
+
+  /**
+   * @return the player who creates the games
+   */
+  SimulatedPlayer getCreator() {
+    return creator;
+  }
+
+  /**
+   * @return the player who joins the games
+   */
+  SimulatedPlayer getJoiner() {
+    return joiner;
+  }
+
+  /**
+   * Start the first game.
+   */
+  void start() {
+    creator.create();
+  }
+
+  /**
+   * Called when the server created a game, so the other player can join it.
+   *
+   * @param gameId
+   *          Id of the game.
+   */
+  void created(int gameId) {
+    joiner.join(gameId);
+  }
+
+  /**
+   * Called when a game ended, to start the next one.
+   */
+  void over() {
+    scheduler.schedule(creator::create, RESTART_MILLIS,
+        TimeUnit.MILLISECONDS);
+  }
+
+}
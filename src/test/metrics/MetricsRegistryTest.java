@@ -0,0 +1,100 @@
+package metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+/**
+ * Test latency histograms and their Prometheus text output.
+ *
+ * @author knorms
+ *
+ */
+public class MetricsRegistryTest {
+
+  /**
+   * Test that every value lands in a bucket whose bounds hold it, within 1/16
+   * of the value.
+   */
+  @Test
+  public void bucketBoundsTest() {
+    long[] values = {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789L,
+        (1L << 37) - 1};
+    for (long value : values) {
+      int bucket = LatencyHistogram.bucketOf(value);
+      long upper = LatencyHistogram.upperBoundOf(bucket);
+      assertTrue(value + " above its bucket", value <= upper);
+      assertTrue(value + " too coarse", upper - value <= value / 16);
+      if (bucket > 0) {
+        assertTrue(value + " below its bucket",
+            value > LatencyHistogram.upperBoundOf(bucket - 1));
+      }
+    }
+    assertEquals(LatencyHistogram.BUCKETS - 1,
+        LatencyHistogram.bucketOf(Long.MAX_VALUE));
+  }
+
+  /**
+   * Test quantiles, counts and maximum of a snapshot.
+   */
+  @Test
+  public void snapshotTest() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+    histogram.record(-5);
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+    assertEquals(1001, snapshot.getCount());
+    assertEquals(1000000, snapshot.getMax());
+    assertEquals(500500000L, snapshot.getSum());
+    long median = snapshot.valueAt(0.5);
+    assertTrue(median >= 500000 && median <= 500000 + 500000 / 16);
+    assertEquals(1000000, snapshot.valueAt(1));
+    assertEquals(1, snapshot.countAtOrBelow(0));
+    assertEquals(1001, snapshot.countAtOrBelow(Long.MAX_VALUE));
+  }
+
+  /**
+   * Test the text written for each kind of metric.
+   */
+  @Test
+  public void scrapeTest() {
+    MetricsRegistry registry = new MetricsRegistry();
+    LongAdder errors = registry.counter("errors_total", "Errors.");
+    registry.gauge("games", "Games.", () -> 7);
+    LatencyHistogram latency =
+        registry.histogram("latency_seconds", "Latency.", "type", "MO\"VE");
+    errors.add(3);
+    latency.record(2000000);
+
+    String text = registry.scrape();
+    assertTrue(text.contains("# HELP errors_total Errors.\n"
+        + "# TYPE errors_total counter\nerrors_total 3\n"));
+    assertTrue(text.contains("# TYPE games gauge\ngames 7\n"));
+    assertTrue(text.contains("# TYPE latency_seconds histogram\n"));
+    assertTrue(text.contains(
+        "latency_seconds_bucket{type=\"MO\\\"VE\",le=\"0.001\"} 0\n"));
+    assertTrue(text.contains(
+        "latency_seconds_bucket{type=\"MO\\\"VE\",le=\"0.0025\"} 1\n"));
+    assertTrue(text.contains(
+        "latency_seconds_bucket{type=\"MO\\\"VE\",le=\"+Inf\"} 1\n"));
+    assertTrue(text.contains("latency_seconds_sum{type=\"MO\\\"VE\"} 0.002\n"));
+    assertTrue(text.contains("latency_seconds_count{type=\"MO\\\"VE\"} 1\n"));
+  }
+
+  /**
+   * Test that a series can't be registered twice.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void duplicateTest() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.counter("errors_total", "Errors.", "type", "a");
+    registry.counter("errors_total", "Errors.", "type", "a");
+  }
+
+}
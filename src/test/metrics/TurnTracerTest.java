@@ -0,0 +1,90 @@
+package metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+import metrics.TurnTracer.Phase;
+
+/**
+ * Test that turns are broken down into phases and slow turns are logged.
+ *
+ * @author knorms
+ *
+ */
+public class TurnTracerTest {
+  private final AtomicLong nanos = new AtomicLong();
+  private final List<String> logged = new ArrayList<>();
+  private final MetricsRegistry registry = new MetricsRegistry();
+  private final TurnTracer tracer =
+      new TurnTracer(registry, logged::add, nanos::get);
+
+  private void advance(long millis) {
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /**
+   * Leave no trace running on the test thread.
+   */
+  @After
+  public void tearDown() {
+    TurnTracer.discard();
+  }
+
+  /**
+   * Test that each phase is charged the time since the previous mark and that
+   * slow turns are logged at most once a second.
+   */
+  @Test
+  public void slowTurnTest() {
+    tracer.setSlowThreshold(10);
+    tracer.begin(7);
+    advance(2);
+    TurnTracer.mark(Phase.VALIDATE);
+    advance(9);
+    TurnTracer.mark(Phase.SEND);
+    TurnTracer.end();
+
+    assertEquals(1, logged.size());
+    assertEquals("Slow turn in game 7: 11.0ms (VALIDATE 2.0ms, SEND 9.0ms)",
+        logged.get(0));
+    String text = registry.scrape();
+    assertTrue(text.contains("chess_turn_phase_duration_seconds_count"
+        + "{phase=\"VALIDATE\"} 1\n"));
+    assertTrue(text.contains("chess_turn_phase_duration_seconds_count"
+        + "{phase=\"SPAWN\"} 0\n"));
+    assertTrue(text.contains("chess_slow_turns_total 1\n"));
+
+    tracer.begin(7);
+    advance(20);
+    TurnTracer.mark(Phase.SEND);
+    TurnTracer.end();
+    assertEquals(1, logged.size());
+    assertTrue(registry.scrape().contains("chess_slow_turns_total 2\n"));
+  }
+
+  /**
+   * Test that marks outside a turn and discarded turns record nothing.
+   */
+  @Test
+  public void discardTest() {
+    TurnTracer.mark(Phase.VALIDATE);
+    tracer.begin(1);
+    advance(100);
+    TurnTracer.discard();
+    TurnTracer.mark(Phase.SEND);
+    TurnTracer.end();
+
+    assertTrue(logged.isEmpty());
+    assertTrue(registry.scrape()
+        .contains("chess_turn_duration_seconds_count 0\n"));
+  }
+
+}
@@ -0,0 +1,118 @@
+package storage;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures how fast recorded games are exported, gzipped, and how small
+ * they get. The games are streamed, so run it with a small heap (-Xmx64m)
+ * to see the export doesn't hold them. Run with main; not a unit test.
+ *
+ * Arguments: games (default 200000), moves per game (default 40).
+ *
+ * @author knorms
+ *
+ */
+public final class ArchiveExportBenchmark {
+
+  private ArchiveExportBenchmark() {
+  }
+
+  /**
+   * Counts what is written to it and throws it away.
+   */
+  private static final class CountingStream extends OutputStream {
+    private long count = 0;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *          games, moves per game; all optional.
+   * @throws Exception
+   *           If the database can't be written or read.
+   */
+  public static void main(String[] args) throws Exception {
+    int games = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int moves = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+    File file = File.createTempFile("archive", ".db");
+    try (SqliteStore store =
+        new SqliteStore(file.getPath(), GameRecorder.SCHEMA)) {
+      long start = System.nanoTime();
+      try (Connection connection = store.connect()) {
+        connection.setAutoCommit(false);
+        PreparedStatement game = connection.prepareStatement("INSERT INTO"
+            + " games VALUES (?, 'white', 'black', 'STANDARD', ?, ?, '1-0',"
+            + " 'CHECKMATE', ?)");
+        PreparedStatement move =
+            connection.prepareStatement("INSERT INTO moves VALUES (?, ?, ?,"
+                + " ?, NULL)");
+        PreparedStatement spawn = connection.prepareStatement(
+            "INSERT INTO spawns VALUES (?, ?, ?, 'RARE')");
+        for (int id = 1; id <= games; id++) {
+          game.setInt(1, id);
+          game.setLong(2, 1500000000000L + id * 1000L);
+          game.setLong(3, 1500000600000L + id * 1000L);
+          game.setInt(4, moves);
+          game.executeUpdate();
+          for (int ply = 0; ply < moves; ply++) {
+            move.setInt(1, id);
+            move.setInt(2, ply);
+            move.setInt(3, (id + ply) % 64);
+            move.setInt(4, (id * 7 + ply * 3) % 64);
+            move.addBatch();
+            if (ply % 10 == 5) {
+              spawn.setInt(1, id);
+              spawn.setInt(2, ply);
+              spawn.setInt(3, (id + ply * 5) % 64);
+              spawn.addBatch();
+            }
+          }
+          if (id % 1000 == 0) {
+            move.executeBatch();
+            spawn.executeBatch();
+          }
+        }
+        move.executeBatch();
+        spawn.executeBatch();
+        connection.commit();
+      }
+      System.out.printf("wrote %,d games of %d moves in %d ms, %.1f MB%n",
+          games, moves, (System.nanoTime() - start) / 1000000,
+          file.length() / 1e6);
+
+      CountingStream counted = new CountingStream();
+      start = System.nanoTime();
+      long exported;
+      try (GZIPOutputStream gzip = new GZIPOutputStream(counted, 1 << 16)) {
+        exported = new GameArchive(store).export(0, gzip);
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("exported %,d games in %.1f s = %,.0f games/s,"
+          + " %.1f MB gzipped (%.1f bytes a game), heap used %.0f MB%n",
+          exported, seconds, exported / seconds, counted.count / 1e6,
+          (double) counted.count / exported,
+          (Runtime.getRuntime().totalMemory()
+              - Runtime.getRuntime().freeMemory()) / 1e6);
+    } finally {
+      for (String suffix : new String[] {"", "-wal", "-shm"}) {
+        new File(file.getPath() + suffix).delete();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,181 @@
+package storage;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import game.Game.TimeControl;
+import storage.GameArchive.Filter;
+
+/**
+ * Measures the archive queries over a generated archive of many games:
+ * a player's last 50 games, the pages after, their profile with and without
+ * the cache, and the top winners of a month. A few players play most of the
+ * games, as on a real server. Run with main; not a unit test.
+ *
+ * Arguments: games (default 10000000), players (default 200000), database
+ * file (default a temporary one, deleted afterwards; an existing one is
+ * queried as is).
+ *
+ * @author knorms
+ *
+ */
+public final class ArchiveQueryBenchmark {
+  private static final int QUERIES = 2000;
+  private static final long MONTH = 30L * 24 * 3600 * 1000;
+
+  private ArchiveQueryBenchmark() {
+  }
+
+  /**
+   * Pick a player, the first ones far more often than the rest.
+   */
+  private static String player(Random random, int players) {
+    return "player" + (int) (players * Math.pow(random.nextDouble(), 3));
+  }
+
+  private static void generate(String path, int games, int players)
+      throws Exception {
+    String[] controls = new String[TimeControl.values().length + 1];
+    for (TimeControl control : TimeControl.values()) {
+      controls[control.ordinal()] = control.name();
+    }
+    String[] results = {"1-0", "0-1", "1/2-1/2", "1-0", "0-1", "*"};
+    Random random = new Random(1);
+    long start = System.nanoTime();
+    try (Connection connection =
+        DriverManager.getConnection("jdbc:sqlite:" + path)) {
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("PRAGMA journal_mode = WAL");
+        // the table alone; the indexes are built once it's filled
+        statement.execute(GameRecorder.SCHEMA[0]);
+      }
+      connection.setAutoCommit(false);
+      try (PreparedStatement insert = connection.prepareStatement(
+          "INSERT INTO games VALUES (?, ?, ?, ?, ?, ?, ?, 'MATE', 40)")) {
+        for (int id = 1; id <= games; id++) {
+          long started = 1500000000000L + id * 1000L;
+          insert.setInt(1, id);
+          insert.setString(2, player(random, players));
+          insert.setString(3, player(random, players));
+          insert.setString(4, controls[random.nextInt(controls.length)]);
+          insert.setLong(5, started);
+          insert.setLong(6, started + 600000);
+          insert.setString(7, results[random.nextInt(results.length)]);
+          insert.addBatch();
+          if (id % 10000 == 0) {
+            insert.executeBatch();
+          }
+          if (id % 1000000 == 0) {
+            connection.commit();
+          }
+        }
+        insert.executeBatch();
+        connection.commit();
+      }
+    }
+    System.out.printf("wrote %,d games in %d s%n", games,
+        (System.nanoTime() - start) / 1000000000);
+  }
+
+  private static void report(String name, long[] nanos) {
+    Arrays.sort(nanos);
+    System.out.printf("%-28s p50 %8.1f us  p99 %8.1f us  max %8.1f us%n",
+        name, nanos[nanos.length / 2] / 1e3,
+        nanos[nanos.length * 99 / 100] / 1e3, nanos[nanos.length - 1] / 1e3);
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *          games, players, database file; all optional.
+   * @throws Exception
+   *           If the database can't be written or read.
+   */
+  public static void main(String[] args) throws Exception {
+    int games = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+    int players = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+    boolean temporary = args.length < 3;
+    File file = temporary ? File.createTempFile("archive", ".db")
+        : new File(args[2]);
+    if (temporary || !file.exists()) {
+      generate(file.getPath(), games, players);
+    }
+
+    long start = System.nanoTime();
+    try (SqliteStore store = new SqliteStore(file.getPath(),
+        GameRecorder.SCHEMA);
+        GameArchive archive = new GameArchive(store);
+        GameArchive uncached = new GameArchive(store, 0, 0)) {
+      System.out.printf("indexed in %d s, %.0f MB%n",
+          (System.nanoTime() - start) / 1000000000, file.length() / 1e6);
+
+      Random random = new Random(2);
+      long[] first = new long[QUERIES];
+      long[] later = new long[QUERIES];
+      long[] filtered = new long[QUERIES];
+      long[] loaded = new long[QUERIES];
+      long[] cached = new long[QUERIES];
+      long rows = 0;
+      for (int i = 0; i < QUERIES; i++) {
+        String player = player(random, players);
+        long t = System.nanoTime();
+        List<GameRecord> page =
+            archive.games(player, new Filter(), Long.MAX_VALUE, 50);
+        first[i] = System.nanoTime() - t;
+        rows += page.size();
+        long before = page.isEmpty() ? Long.MAX_VALUE
+            : page.get(page.size() - 1).getId();
+        t = System.nanoTime();
+        for (int p = 0; p < 10 && !page.isEmpty(); p++) {
+          page = archive.games(player, new Filter(), before, 50);
+          if (!page.isEmpty()) {
+            before = page.get(page.size() - 1).getId();
+          }
+        }
+        later[i] = (System.nanoTime() - t) / 10;
+        t = System.nanoTime();
+        archive.games(player, new Filter().timeControl("QUICK")
+            .outcome(GameArchive.Outcome.WIN), Long.MAX_VALUE, 50);
+        filtered[i] = System.nanoTime() - t;
+        t = System.nanoTime();
+        uncached.profile(player);
+        loaded[i] = System.nanoTime() - t;
+        archive.profile(player);
+        t = System.nanoTime();
+        archive.profile(player);
+        cached[i] = System.nanoTime() - t;
+      }
+      System.out.printf("%,d queries each, %.1f games on a first page%n",
+          QUERIES, (double) rows / QUERIES);
+      report("last 50 games", first);
+      report("next page (of 10)", later);
+      report("last 50 quick wins", filtered);
+      report("profile from the database", loaded);
+      report("profile from the cache", cached);
+
+      long[] winners = new long[50];
+      long end = 1500000000000L + games * 1000L;
+      for (int i = 0; i < winners.length; i++) {
+        long since = end - MONTH * (1 + i % 3);
+        long t = System.nanoTime();
+        archive.topWinners("QUICK", since, since + MONTH, 20);
+        winners[i] = System.nanoTime() - t;
+      }
+      report("top 20 quick winners, month", winners);
+    } finally {
+      if (temporary) {
+        for (String suffix : new String[] {"", "-wal", "-shm"}) {
+          new File(file.getPath() + suffix).delete();
+        }
+      }
+    }
+  }
+
+}
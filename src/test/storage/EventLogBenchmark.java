@@ -0,0 +1,107 @@
+package storage;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import board.Location;
+import game.Game;
+import game.GameListener;
+import game.Move;
+import metrics.MetricsRegistry;
+
+/**
+ * Measures how many game events a second the journal takes from several
+ * threads at once, and how long its group-commit syncs take. Run with main;
+ * not a unit test.
+ *
+ * Arguments: threads (default 8), seconds (default 5), directory (default a
+ * temporary one, deleted afterwards).
+ *
+ * @author knorms
+ *
+ */
+public final class EventLogBenchmark {
+
+  private EventLogBenchmark() {
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *          threads, seconds, directory; all optional.
+   * @throws Exception
+   *           If the log can't be written.
+   */
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    boolean temporary = args.length < 3;
+    Path dir = temporary ? Files.createTempDirectory("events")
+        : Paths.get(args[2]);
+
+    LongAdder events = new LongAdder();
+    long start;
+    long elapsed;
+    long end;
+    try (GameJournal journal = new GameJournal(new EventLog(dir))) {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+      Thread[] workers = new Thread[threads];
+      for (int t = 0; t < threads; t++) {
+        int first = t * 1000;
+        workers[t] = new Thread(() -> {
+          GameListener[] games = new GameListener[100];
+          for (int g = 0; g < games.length; g++) {
+            games[g] = journal.started(first + g, new Game());
+          }
+          Move[] moves = new Move[64];
+          for (int i = 0; i < moves.length; i++) {
+            moves[i] = new Move(new Location(i / 8, i % 8),
+                new Location(7 - i / 8, 7 - i % 8));
+          }
+          long n = 0;
+          while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 1000; i++, n++) {
+              games[(int) (n % games.length)].moved(
+                  moves[(int) (n % moves.length)]);
+            }
+            events.add(1000);
+          }
+        });
+      }
+      start = System.nanoTime();
+      for (Thread worker : workers) {
+        worker.start();
+      }
+      for (Thread worker : workers) {
+        worker.join();
+      }
+      elapsed = System.nanoTime() - start;
+      end = journal.getLog().end();
+      journal.getLog().awaitDurable(end, 10000);
+    }
+
+    System.out.printf("%d threads: %,d events in %.1f s = %,.0f events/s,"
+        + " %.1f MB logged%n", threads, events.sum(), elapsed / 1e9,
+        events.sum() / (elapsed / 1e9), end / 1e6);
+    for (String line : MetricsRegistry.getDefault().scrape().split("\n")) {
+      if (line.startsWith("chess_log_sync") && !line.contains("bucket")) {
+        System.out.println(line);
+      }
+    }
+
+    if (temporary) {
+      try (Stream<Path> files = Files.walk(dir)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> {
+          file.toFile().delete();
+        });
+      }
+    }
+  }
+
+}
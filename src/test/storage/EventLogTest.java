@@ -0,0 +1,111 @@
+package storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the memory-mapped event log.
+ *
+ * @author knorms
+ *
+ */
+public class EventLogTest {
+  private static final int SEGMENT_BYTES = 1024;
+
+  private Path dir;
+
+  @Before
+  public void open() throws IOException {
+    dir = Files.createTempDirectory("events");
+  }
+
+  @After
+  public void delete() throws IOException {
+    try (Stream<Path> files = Files.walk(dir)) {
+      files.sorted(Comparator.reverseOrder()).forEach(file -> {
+        file.toFile().delete();
+      });
+    }
+  }
+
+  private static ByteBuffer record(int i) {
+    ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES + i % 50);
+    buf.putInt(0, i);
+    return buf;
+  }
+
+  private List<Integer> readAll() throws IOException {
+    List<Integer> read = new ArrayList<>();
+    EventLog.read(dir, 0, (position, record) -> read.add(record.getInt(0)));
+    return read;
+  }
+
+  /**
+   * Test that records come back in order across segments, and that a log
+   * opened again appends after them.
+   */
+  @Test
+  public void rolloverTest() throws IOException, InterruptedException {
+    List<Integer> written = new ArrayList<>();
+    try (EventLog log = new EventLog(dir, SEGMENT_BYTES, 1)) {
+      for (int i = 0; i < 200; i++) {
+        log.append(record(i + 4));
+        written.add(i + 4);
+      }
+      assertTrue(log.awaitDurable(log.end(), 5000));
+    }
+    try (Stream<Path> files = Files.list(dir)) {
+      assertTrue(files.count() > 1);
+    }
+
+    try (EventLog log = new EventLog(dir, SEGMENT_BYTES, 1)) {
+      long end = log.end();
+      assertEquals(end, log.append(record(1000)));
+      written.add(1000);
+    }
+    assertEquals(written, readAll());
+  }
+
+  /**
+   * Test that a log ends before a record torn by a crash and is appended to
+   * from there.
+   */
+  @Test
+  public void tornTest() throws IOException {
+    long second;
+    try (EventLog log = new EventLog(dir, SEGMENT_BYTES, 1)) {
+      log.append(record(10));
+      second = log.append(record(11));
+      log.append(record(12));
+    }
+    try (RandomAccessFile file = new RandomAccessFile(
+        dir.resolve(String.format("%020d.log", 0)).toFile(), "rw")) {
+      file.seek(second + 8);
+      file.write(0x7f);
+    }
+
+    List<Integer> read = readAll();
+    assertEquals(1, read.size());
+    try (EventLog log = new EventLog(dir, SEGMENT_BYTES, 1)) {
+      assertEquals(second, log.append(record(13)));
+    }
+    read = readAll();
+    assertEquals(2, read.size());
+    assertEquals(13, (int) read.get(1));
+  }
+
+}
@@ -0,0 +1,321 @@
+package storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import board.IllegalMoveException;
+import board.Location;
+import game.Color;
+import game.Game;
+import game.Game.TimeControl;
+import game.Move;
+import players.GuiPlayer;
+import poweractions.PowerAction;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+import storage.GameArchive.Filter;
+import storage.GameArchive.Outcome;
+import storage.GameRecorder.Recording;
+
+/**
+ * Test exporting and querying recorded games.
+ *
+ * @author knorms
+ *
+ */
+public class GameArchiveTest {
+  private File file;
+  private GameRecorder recorder;
+
+  @Before
+  public void open() throws IOException, SQLException {
+    file = File.createTempFile("games", ".db");
+    recorder = new GameRecorder(file.getPath());
+  }
+
+  @After
+  public void close() {
+    recorder.close();
+    for (String suffix : new String[] {"", "-wal", "-shm"}) {
+      new File(file.getPath() + suffix).delete();
+    }
+  }
+
+  private static void move(Game game, int fromRow, int fromCol, int toRow,
+      int toCol) throws IllegalMoveException {
+    game.getActivePlayer().setMove(new Move(new Location(fromRow, fromCol),
+        new Location(toRow, toCol)));
+    game.turn();
+  }
+
+  /**
+   * Events of a stream of games, one string each.
+   */
+  private static List<String> read(byte[] bytes) throws IOException {
+    List<String> events = new ArrayList<>();
+    GameRecordReader reader =
+        new GameRecordReader(new ByteArrayInputStream(bytes));
+    GameRecordReader.Handler handler = new GameRecordReader.Handler() {
+      @Override
+      public void game(GameRecord record) {
+        events.add("game " + record.getId() + " " + record.getWhite() + " "
+            + record.getBlack() + " " + record.getTimeControl() + " "
+            + record.getResult() + " " + record.getReason() + " "
+            + (record.getEnded() - record.getStarted() >= 0));
+      }
+
+      @Override
+      public void moved(int from, int to, int promotion) {
+        events.add("move " + from + " " + to + " " + promotion);
+      }
+
+      @Override
+      public void spawned(int square, Rarity rarity) {
+        events.add("spawn " + square + " " + rarity);
+      }
+
+      @Override
+      public void powerUsed(Rarity rarity, int id, int input, int movedTo) {
+        events.add("power " + rarity + " " + id + " " + input + " "
+            + movedTo);
+      }
+    };
+    while (reader.next(handler)) {
+      events.add("end");
+    }
+    return events;
+  }
+
+  /**
+   * Insert finished games, started a second apart from 0, with ids from 1:
+   * alice against bob, every third one untimed, and an unfinished one last.
+   */
+  private void insertGames(int count) throws SQLException {
+    try (Connection connection = recorder.getStore().connect();
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO"
+            + " games (id, white, black, time_control, started, ended,"
+            + " result) VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+      String[] results = {"1-0", "0-1", "1/2-1/2", "1-0"};
+      for (int id = 1; id <= count + 1; id++) {
+        boolean finished = id <= count;
+        insert.setInt(1, id);
+        insert.setString(2, id % 2 == 0 ? "alice" : "bob");
+        insert.setString(3, id % 2 == 0 ? "bob" : "alice");
+        insert.setString(4, id % 3 == 0 ? null : "QUICK");
+        insert.setLong(5, id * 1000L);
+        insert.setObject(6, finished ? id * 1000L + 500 : null);
+        insert.setString(7, finished ? results[id % 4] : null);
+        insert.executeUpdate();
+      }
+    }
+  }
+
+  /**
+   * Test that a player's games are paged newest first and filtered.
+   */
+  @Test
+  public void gamesTest() throws SQLException {
+    insertGames(10);
+    try (GameArchive archive = new GameArchive(recorder.getStore())) {
+      List<GameRecord> page =
+          archive.games("alice", new Filter(), Long.MAX_VALUE, 4);
+      assertEquals(4, page.size());
+      assertEquals(10, page.get(0).getId());
+      assertEquals(7, page.get(3).getId());
+      page = archive.games("alice", new Filter(), 7, 4);
+      assertEquals(6, page.get(0).getId());
+      page = archive.games("alice", new Filter(), 3, 4);
+      assertEquals(2, page.size());
+
+      // alice won 4 and 8 as white and 1, 5 and 9 as black, lost 3 and 7
+      // and drew 2, 6 and 10
+      List<Long> ids = new ArrayList<>();
+      for (GameRecord game : archive.games("alice",
+          new Filter().outcome(Outcome.WIN), Long.MAX_VALUE, 50)) {
+        ids.add(game.getId());
+      }
+      assertEquals("[9, 8, 5, 4, 1]", ids.toString());
+      assertEquals(3, archive.games("bob",
+          new Filter().outcome(Outcome.DRAW), Long.MAX_VALUE, 50).size());
+      assertEquals(7, archive.games("bob",
+          new Filter().timeControl("QUICK"), Long.MAX_VALUE, 50).size());
+      assertEquals(3, archive.games("bob",
+          new Filter().started(4000, 7000), Long.MAX_VALUE, 50).size());
+      assertTrue(archive.games("carol", new Filter(), Long.MAX_VALUE, 50)
+          .isEmpty());
+
+      Map<String, Long> winners = archive.topWinners("QUICK", 0,
+          Long.MAX_VALUE, 10);
+      assertEquals("{alice=4, bob=1}", winners.toString());
+      assertEquals("{alice=5}",
+          archive.topWinners(null, 0, Long.MAX_VALUE, 1).toString());
+    }
+  }
+
+  /**
+   * Test that a profile counts both sides and is cached.
+   */
+  @Test
+  public void profileTest() throws SQLException {
+    insertGames(10);
+    try (GameArchive archive =
+        new GameArchive(recorder.getStore(), 10, 60000)) {
+      PlayerProfile alice = archive.profile("alice");
+      assertEquals(10, alice.getGames());
+      assertEquals(5, alice.getWins());
+      assertEquals(2, alice.getLosses());
+      assertEquals(3, alice.getDraws());
+      assertEquals(10000, alice.getLastPlayed());
+
+      try (Connection connection = recorder.getStore().connect();
+          Statement statement = connection.createStatement()) {
+        statement.executeUpdate("DELETE FROM games");
+      }
+      assertEquals(10, archive.profile("alice").getGames());
+      assertEquals(0, archive.profile("bob").getGames());
+    }
+  }
+
+  /**
+   * Test that the queries read the indexes rather than the whole table.
+   */
+  @Test
+  public void planTest() throws SQLException {
+    try (Connection connection = recorder.getStore().connect();
+        Statement statement = connection.createStatement()) {
+      String[] queries = {
+          "SELECT id FROM games WHERE black = 'a' AND id < 5"
+              + " AND result IS NOT NULL AND time_control = 'QUICK'"
+              + " ORDER BY id DESC LIMIT 50",
+          "SELECT result, COUNT(*), MAX(started) FROM games"
+              + " WHERE white = 'a' AND result IS NOT NULL GROUP BY result",
+          "SELECT white, COUNT(*) FROM games WHERE result = '1-0'"
+              + " AND time_control = 'QUICK' AND started >= 0"
+              + " AND started < 5 GROUP BY white"};
+      for (String query : queries) {
+        StringBuilder plan = new StringBuilder();
+        try (ResultSet row =
+            statement.executeQuery("EXPLAIN QUERY PLAN " + query)) {
+          while (row.next()) {
+            plan.append(row.getString(4)).append('\n');
+          }
+        }
+        assertTrue(plan.toString(), plan.toString().contains("INDEX games_"));
+        assertFalse(plan.toString(), plan.toString().contains("SCAN TABLE"));
+        assertFalse(plan.toString(), plan.toString().contains("ORDER BY"));
+      }
+    }
+  }
+
+  /**
+   * Test that a finished game is exported with its spawns and powers in the
+   * order they happened, and that a game still being played isn't.
+   */
+  @Test
+  public void exportTest() throws IllegalMoveException, InterruptedException,
+      IOException, SQLException {
+    Game game = new Game();
+    game.addPlayer(new GuiPlayer(Color.WHITE, 0, "alice"));
+    game.addPlayer(new GuiPlayer(Color.BLACK, 1, "bob"));
+    game.setTilNextPowerUp(100);
+    Recording recording =
+        recorder.start(TimeControl.QUICK, "alice", "bob");
+    game.addListener(recording);
+    Recording unfinished = recorder.start(null, "carol", null);
+
+    move(game, 1, 4, 3, 4);
+    move(game, 6, 3, 4, 3);
+    move(game, 0, 6, 2, 5);
+    game.spawnPowerObject(new Location(2, 0),
+        PowerObject.ofRarity(Rarity.LEGENDARY));
+    move(game, 7, 1, 5, 2);
+    move(game, 0, 1, 2, 0);
+    PowerAction chosen = game.getActionOptions().get(0);
+    game.getActivePlayer().setAction(chosen);
+    game.executePowerAction(null);
+    recorder.finish(recording, "0-1", "RESIGNATION");
+    assertTrue(recorder.getStore().flush(5000));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GameArchive archive = new GameArchive(recorder.getStore());
+    assertEquals(1, archive.export(0, out));
+    List<String> events = read(out.toByteArray());
+    assertEquals("game " + recording.getId()
+        + " alice bob QUICK 0-1 RESIGNATION true", events.get(0));
+    assertEquals("move 12 28 0", events.get(1));
+    assertEquals("move 51 35 0", events.get(2));
+    assertEquals("move 6 21 0", events.get(3));
+    assertEquals("spawn 16 LEGENDARY", events.get(4));
+    assertEquals("move 57 42 0", events.get(5));
+    assertEquals("move 1 16 0", events.get(6));
+    assertTrue(events.get(7).startsWith("power LEGENDARY " + chosen.getId()
+        + " -1 "));
+    assertEquals("end", events.get(8));
+    assertEquals(9, events.size());
+
+    out.reset();
+    assertEquals(0, archive.export(unfinished.getId(), out));
+    assertTrue(read(out.toByteArray()).isEmpty());
+  }
+
+  /**
+   * Test that what is written is read back, promotions, missing names and
+   * squares included.
+   */
+  @Test
+  public void formatTest() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GameRecordWriter writer = new GameRecordWriter(out);
+    writer.beginGame(new GameRecord(1L << 40, "\u00e9lise", null, null,
+        1500000000000L, 0, null, null));
+    writer.move(55, 63, GameJournal.KNIGHT);
+    writer.power(Rarity.RARE, 4, 0, 63);
+    writer.endGame();
+    writer.beginGame(new GameRecord(3, "a", "b", "SLOW", 5, 9, "*", null));
+    writer.finish();
+
+    List<String> events = read(out.toByteArray());
+    assertEquals("game " + (1L << 40) + " \u00e9lise null null null null"
+        + " false", events.get(0));
+    assertEquals("move 55 63 " + GameJournal.KNIGHT, events.get(1));
+    assertEquals("power RARE 4 0 63", events.get(2));
+    assertEquals("end", events.get(3));
+    assertEquals("game 3 a b SLOW * null true", events.get(4));
+    assertEquals(6, events.size());
+    // 4 + 25 + 8 for the first game, 16 + 2 for the second, 1 to end
+    assertEquals(56, out.size());
+
+    GameRecordReader reader = new GameRecordReader(
+        new ByteArrayInputStream(out.toByteArray()));
+    GameRecord[] first = new GameRecord[1];
+    reader.next(new GameRecordReader.Handler() {
+      @Override
+      public void game(GameRecord record) {
+        first[0] = record;
+      }
+    });
+    assertEquals(1500000000000L, first[0].getStarted());
+    assertEquals(0, first[0].getEnded());
+    assertNull(first[0].getBlack());
+  }
+
+}
@@ -0,0 +1,99 @@
+package storage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import board.IllegalMoveException;
+import board.Location;
+import game.Color;
+import game.Game;
+import game.Game.TimeControl;
+import game.Move;
+import players.GuiPlayer;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+
+/**
+ * Test logging games to an event log.
+ *
+ * @author knorms
+ *
+ */
+public class GameJournalTest {
+
+  /**
+   * Test that a game's changes are read back in the order made.
+   */
+  @Test
+  public void journalTest() throws IOException, IllegalMoveException {
+    Path dir = Files.createTempDirectory("journal");
+    try {
+      Game game = new Game();
+      game.setTimeControl(TimeControl.STANDARD);
+      GuiPlayer white = new GuiPlayer(Color.WHITE, 0, "alice");
+      GuiPlayer black = new GuiPlayer(Color.BLACK, 1, "bob");
+      game.addPlayer(white);
+      game.addPlayer(black);
+      try (GameJournal journal = new GameJournal(new EventLog(dir))) {
+        game.addListener(journal.started(7, game));
+        game.spawnPowerObject(new Location(3, 4),
+            PowerObject.ofRarity(Rarity.RARE));
+        white.setMove(new Move(new Location(1, 4), new Location(3, 4)));
+        game.turn();
+        journal.ended(7);
+      }
+
+      List<String> events = new ArrayList<>();
+      GameJournal.read(dir, 0, new GameJournal.Handler() {
+        @Override
+        public void started(int gameId, int timeControl, boolean isPublic) {
+          events.add("started " + gameId + " " + timeControl);
+        }
+
+        @Override
+        public void moved(int gameId, int from, int to) {
+          events.add("moved " + from + " " + to);
+        }
+
+        @Override
+        public void spawned(int gameId, int square, int rarity,
+            int next) {
+          events.add("spawned " + square + " " + rarity);
+        }
+
+        @Override
+        public void offered(int gameId, int rarity, int[] ids,
+            int captured) {
+          events.add("offered " + rarity + " " + ids.length + " " + captured);
+        }
+
+        @Override
+        public void ended(int gameId) {
+          events.add("ended " + gameId);
+        }
+      });
+
+      assertEquals("started 7 1", events.get(0));
+      assertEquals("spawned 28 1", events.get(1));
+      assertEquals("moved 12 28", events.get(2));
+      assertEquals("offered 1 2 28", events.get(3));
+      assertEquals("ended 7", events.get(events.size() - 1));
+    } finally {
+      try (Stream<Path> files = Files.walk(dir)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> {
+          file.toFile().delete();
+        });
+      }
+    }
+  }
+
+}
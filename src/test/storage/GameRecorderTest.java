@@ -0,0 +1,177 @@
+package storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import board.IllegalMoveException;
+import board.Location;
+import game.Color;
+import game.Game;
+import game.Game.TimeControl;
+import game.Move;
+import players.GuiPlayer;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+import storage.GameRecorder.Recording;
+
+/**
+ * Test recording games to SQLite.
+ *
+ * @author knorms
+ *
+ */
+public class GameRecorderTest {
+  private File file;
+  private GameRecorder recorder;
+
+  @Before
+  public void open() throws IOException, SQLException {
+    file = File.createTempFile("games", ".db");
+    recorder = new GameRecorder(file.getPath());
+  }
+
+  @After
+  public void close() {
+    recorder.close();
+    for (String suffix : new String[] {"", "-wal", "-shm"}) {
+      new File(file.getPath() + suffix).delete();
+    }
+  }
+
+  private long query(String sql) throws SQLException {
+    try (Connection connection = recorder.getStore().connect();
+        Statement statement = connection.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      assertTrue(result.next());
+      return result.getLong(1);
+    }
+  }
+
+  /**
+   * Test that the moves and spawns of a game played through turn are
+   * recorded with its result.
+   */
+  @Test
+  public void recordTest()
+      throws IllegalMoveException, InterruptedException, SQLException {
+    Game game = new Game();
+    GuiPlayer white = new GuiPlayer(Color.WHITE, 0, "alice");
+    GuiPlayer black = new GuiPlayer(Color.BLACK, 1, "bob");
+    game.addPlayer(white);
+    game.addPlayer(black);
+    Recording recording =
+        recorder.start(TimeControl.QUICK, "alice", "bob");
+    game.addListener(recording);
+
+    white.setMove(new Move(new Location(1, 4), new Location(3, 4)));
+    game.turn();
+    black.setMove(new Move(new Location(6, 4), new Location(4, 4)));
+    game.turn();
+    game.spawnPowerObject(new Location(4, 0),
+        PowerObject.ofRarity(Rarity.COMMON));
+    recorder.finish(recording, "1-0", "RESIGNATION");
+    assertTrue(recorder.getStore().flush(5000));
+
+    long id = recording.getId();
+    assertEquals(2, query("SELECT COUNT(*) FROM moves WHERE game = " + id));
+    assertEquals(12, query("SELECT from_square FROM moves WHERE game = " + id
+        + " AND ply = 0"));
+    assertEquals(28, query("SELECT to_square FROM moves WHERE game = " + id
+        + " AND ply = 0"));
+    // turn may have spawned a box of its own
+    assertEquals(1, query("SELECT COUNT(*) FROM spawns WHERE game = " + id
+        + " AND ply = 2 AND square = 32 AND rarity = 'COMMON'"));
+    assertEquals(2, query("SELECT plies FROM games WHERE id = " + id
+        + " AND result = '1-0' AND white = 'alice'"));
+  }
+
+  /**
+   * Test that a game recorded here goes on under its id from its history,
+   * which replaces what was written of it, and that new ids come after it.
+   */
+  @Test
+  public void resumeTest() throws InterruptedException, SQLException {
+    GameHistory history = new GameHistory();
+    history.moved(new Move(new Location(1, 4), new Location(3, 4)));
+    history.spawned(new Location(4, 0), PowerObject.ofRarity(Rarity.COMMON));
+    // written before a crash, but not in the history
+    recorder.getStore().submit(s -> {
+      s.statement("INSERT INTO moves (game, ply, from_square, to_square)"
+          + " VALUES (40, 5, 1, 2)").executeUpdate();
+    });
+
+    Recording recording =
+        recorder.resume(40, TimeControl.QUICK, "alice", "bob", history);
+    recording.moved(new Move(new Location(6, 4), new Location(4, 4)));
+    recorder.finish(recording, "0-1", "RESIGNATION");
+    assertTrue(recorder.getStore().flush(5000));
+
+    assertEquals(2, query("SELECT COUNT(*) FROM moves WHERE game = 40"));
+    assertEquals(52, query("SELECT from_square FROM moves WHERE game = 40"
+        + " AND ply = 1"));
+    assertEquals(1, query("SELECT COUNT(*) FROM spawns WHERE game = 40"
+        + " AND ply = 1 AND square = 32"));
+    assertEquals(2, query("SELECT plies FROM games WHERE id = 40"
+        + " AND white = 'alice' AND result = '0-1'"));
+    assertTrue(recorder.start(null, "c", "d").getId() > 40);
+  }
+
+  /**
+   * Test that a game recorded elsewhere is recorded under a new id with its
+   * history.
+   */
+  @Test
+  public void adoptTest() throws InterruptedException, SQLException {
+    Recording first = recorder.start(TimeControl.SLOW, "a", "b");
+    GameHistory history = new GameHistory();
+    history.moved(new Move(new Location(1, 4), new Location(3, 4)));
+    Recording recording =
+        recorder.adopt(TimeControl.QUICK, "alice", "bob", history);
+    recording.moved(new Move(new Location(6, 4), new Location(4, 4)));
+    assertTrue(recorder.getStore().flush(5000));
+
+    long id = recording.getId();
+    assertTrue(id > first.getId());
+    assertEquals(2, query("SELECT COUNT(*) FROM moves WHERE game = " + id));
+    assertEquals(history.getStarted(),
+        query("SELECT started FROM games WHERE id = " + id));
+  }
+
+  /**
+   * Test that ids go on from the last game recorded when the database is
+   * opened again.
+   */
+  @Test
+  public void reopenTest() throws InterruptedException, SQLException {
+    Recording first = recorder.start(TimeControl.SLOW, "a", "b");
+    assertTrue(recorder.getStore().flush(5000));
+    recorder.close();
+
+    recorder = new GameRecorder(file.getPath());
+    assertTrue(recorder.start(null, "c", "d").getId() > first.getId());
+  }
+
+  /**
+   * Test that writes are dropped, not waited for, once the store is closed.
+   */
+  @Test
+  public void closedTest() throws SQLException {
+    SqliteStore store = recorder.getStore();
+    store.close();
+    assertFalse(store.submit(s -> {
+    }));
+  }
+
+}
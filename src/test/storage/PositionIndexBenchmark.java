@@ -0,0 +1,308 @@
+package storage;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import board.Board;
+import board.IllegalMoveException;
+import board.Location;
+import game.Color;
+import game.Game;
+import game.Move;
+import game.PositionHash;
+import pieces.Pawn;
+import pieces.Piece;
+import players.GuiPlayer;
+
+/**
+ * Measures the position index: how fast games are replayed into it, how
+ * long lookups take in an index of hundreds of millions of positions, and
+ * how long merging its runs takes. The large index is written directly as
+ * runs of random positions, since replaying that many games would take
+ * hours. Run with main; not a unit test.
+ *
+ * Arguments: positions (default 200000000), runs (default 4), games to
+ * replay (default 5000), directory for the runs (default a temporary one,
+ * deleted afterwards).
+ *
+ * @author knorms
+ *
+ */
+public final class PositionIndexBenchmark {
+  private static final int QUERIES = 20000;
+  private static final int SAMPLES = 1 << 16;
+
+  private PositionIndexBenchmark() {
+  }
+
+  /**
+   * Play a game of random moves, no promotions, until it ends or reaches
+   * plies.
+   *
+   * @return the moves, from and to squares.
+   */
+  private static List<int[]> randomGame(Random random, int plies) {
+    Game game = new Game();
+    game.addPlayer(new GuiPlayer(Color.WHITE, 0, "white"));
+    game.addPlayer(new GuiPlayer(Color.BLACK, 1, "black"));
+    game.setReplaying(true);
+    List<int[]> moves = new ArrayList<>();
+    while (moves.size() < plies && !game.getGameOverStatus()) {
+      Color color = game.getActivePlayer().getColor();
+      Move move = null;
+      for (int tries = 0; tries < 4000 && move == null; tries++) {
+        Location from = new Location(random.nextInt(8), random.nextInt(8));
+        Location to = new Location(random.nextInt(8), random.nextInt(8));
+        Piece piece = game.getPieceAt(from);
+        if (piece == null || piece.getColor() != color
+            || piece instanceof Pawn
+                && (to.getRow() == 0 || to.getRow() == Board.SIZE - 1)) {
+          continue;
+        }
+        Move candidate = new Move(from, to);
+        if (game.validMove(candidate)) {
+          move = candidate;
+        }
+      }
+      if (move == null) {
+        break;
+      }
+      game.getActivePlayer().setMove(move);
+      try {
+        game.turn();
+      } catch (IllegalMoveException | RuntimeException e) {
+        break;
+      }
+      moves.add(new int[] {
+          move.getStart().getRow() * 8 + move.getStart().getCol(),
+          move.getEnd().getRow() * 8 + move.getEnd().getCol()});
+    }
+    return moves;
+  }
+
+  private static void replayBuild(int games) throws Exception {
+    File file = File.createTempFile("archive", ".db");
+    Path dir = Files.createTempDirectory("positions");
+    try (SqliteStore store =
+        new SqliteStore(file.getPath(), GameRecorder.SCHEMA)) {
+      Random random = new Random(1);
+      String[] results = {"1-0", "0-1", "1/2-1/2"};
+      long plies = 0;
+      try (Connection connection = store.connect()) {
+        connection.setAutoCommit(false);
+        PreparedStatement game = connection.prepareStatement("INSERT INTO"
+            + " games VALUES (?, 'white', 'black', 'STANDARD', ?, ?, ?,"
+            + " 'CHECKMATE', ?)");
+        PreparedStatement insert =
+            connection.prepareStatement("INSERT INTO moves VALUES (?, ?, ?,"
+                + " ?, NULL)");
+        for (int id = 1; id <= games; id++) {
+          List<int[]> moves = randomGame(random, 20 + random.nextInt(40));
+          game.setInt(1, id);
+          game.setLong(2, 1500000000000L + id * 1000L);
+          game.setLong(3, 1500000600000L + id * 1000L);
+          game.setString(4, results[random.nextInt(results.length)]);
+          game.setInt(5, moves.size());
+          game.executeUpdate();
+          for (int ply = 0; ply < moves.size(); ply++) {
+            insert.setInt(1, id);
+            insert.setInt(2, ply);
+            insert.setInt(3, moves.get(ply)[0]);
+            insert.setInt(4, moves.get(ply)[1]);
+            insert.addBatch();
+          }
+          plies += moves.size();
+        }
+        insert.executeBatch();
+        connection.commit();
+      }
+      System.out.printf("recorded %,d random games, %,d moves%n", games,
+          plies);
+
+      int threads = Runtime.getRuntime().availableProcessors();
+      try (GameArchive archive = new GameArchive(store);
+          PositionIndex index = new PositionIndex(dir)) {
+        long start = System.nanoTime();
+        index.build(archive, threads, 1000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("replayed into the index on %d threads in %.1f s"
+            + " = %,.0f positions/s, %d runs%n", threads, seconds,
+            index.size() / seconds, index.runs());
+        long opening = PositionHash.of(new Board(), true);
+        System.out.printf("%d games from the start, %d first moves%n",
+            index.games(opening, 0, 100).size(),
+            index.moves(opening).size());
+      }
+    } finally {
+      for (String suffix : new String[] {"", "-wal", "-shm"}) {
+        new File(file.getPath() + suffix).delete();
+      }
+      for (File run : dir.toFile().listFiles()) {
+        run.delete();
+      }
+      Files.delete(dir);
+    }
+  }
+
+  /**
+   * Write a run of random positions in the format of PositionIndex, a few
+   * games each, with a summary for one position in four.
+   *
+   * @return a sample of the hashes written.
+   */
+  private static long[] writeRun(Path file, long entries, long firstGame,
+      Random random) throws Exception {
+    long[] sample = new long[SAMPLES];
+    // spread the hashes evenly over the longs, in order
+    long step = Long.MAX_VALUE / entries * 2;
+    long hash = Long.MIN_VALUE;
+    long summaries = 0;
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+      ByteBuffer summaryBuffer = ByteBuffer.allocate(1 << 20);
+      File summaryFile = File.createTempFile("summaries", ".tmp",
+          file.getParent().toFile());
+      try (FileChannel summaryChannel = FileChannel.open(
+          summaryFile.toPath(), StandardOpenOption.WRITE)) {
+        channel.position(32);
+        long i = 0;
+        while (i < entries) {
+          hash += 1 + (long) (random.nextDouble() * (step - 1));
+          int games = 1 + random.nextInt(4);
+          for (int g = 0; g < games && i < entries; g++, i++) {
+            if (buffer.remaining() < 16) {
+              buffer.flip();
+              channel.write(buffer);
+              buffer.clear();
+            }
+            // different games, in order, reach the same position
+            long game = firstGame + g * (entries >> 7) + (i >> 7);
+            buffer.putLong(hash).putLong(game << 32 | (long) g << 18
+                | random.nextInt(3) << 16 | random.nextInt(1 << 12));
+            if (i % (entries / SAMPLES) == 0 && i / (entries / SAMPLES)
+                < SAMPLES) {
+              sample[(int) (i / (entries / SAMPLES))] = hash;
+            }
+          }
+          if (random.nextInt(4) == 0) {
+            if (summaryBuffer.remaining() < 24) {
+              summaryBuffer.flip();
+              summaryChannel.write(summaryBuffer);
+              summaryBuffer.clear();
+            }
+            summaryBuffer.putLong(hash).putInt(random.nextInt(1 << 12))
+                .putInt(random.nextInt(100)).putInt(random.nextInt(100))
+                .putInt(random.nextInt(100));
+            summaries++;
+          }
+        }
+        buffer.flip();
+        channel.write(buffer);
+        summaryBuffer.flip();
+        summaryChannel.write(summaryBuffer);
+      }
+      try (FileChannel summaryChannel = FileChannel.open(
+          summaryFile.toPath(), StandardOpenOption.READ)) {
+        summaryChannel.transferTo(0, summaryChannel.size(), channel);
+      }
+      summaryFile.delete();
+      ByteBuffer header = ByteBuffer.allocate(32);
+      header.putInt(PositionIndex.MAGIC).putInt(0).putLong(entries)
+          .putLong(summaries).putLong(firstGame + (entries >> 5)).flip();
+      channel.write(header, 0);
+    }
+    return sample;
+  }
+
+  private static void report(String name, long[] nanos) {
+    Arrays.sort(nanos);
+    System.out.printf("%-30s p50 %8.1f us  p99 %8.1f us  max %8.1f us%n",
+        name, nanos[nanos.length / 2] / 1e3,
+        nanos[nanos.length * 99 / 100] / 1e3, nanos[nanos.length - 1] / 1e3);
+  }
+
+  private static void lookups(PositionIndex index, long[] hashes,
+      String label) {
+    Random random = new Random(3);
+    long[] games = new long[QUERIES];
+    long[] moves = new long[QUERIES];
+    long found = 0;
+    for (int i = 0; i < QUERIES; i++) {
+      long hash = hashes[random.nextInt(hashes.length)];
+      long t = System.nanoTime();
+      found += index.games(hash, 0, 50).size();
+      games[i] = System.nanoTime() - t;
+      t = System.nanoTime();
+      index.moves(hash);
+      moves[i] = System.nanoTime() - t;
+    }
+    System.out.printf("%s: %,d queries, %.1f games found each%n", label,
+        QUERIES, (double) found / QUERIES);
+    report("games of a position", games);
+    report("moves from a position", moves);
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *          positions, runs, games, directory; all optional.
+   * @throws Exception
+   *           If the index can't be written or read.
+   */
+  public static void main(String[] args) throws Exception {
+    long entries = args.length > 0 ? Long.parseLong(args[0]) : 200000000L;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int games = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+    boolean temporary = args.length < 4;
+    Path dir = temporary ? Files.createTempDirectory("positions")
+        : new File(args[3]).toPath();
+
+    replayBuild(games);
+    try {
+      Files.createDirectories(dir);
+      long start = System.nanoTime();
+      Random random = new Random(2);
+      long[] hashes = new long[0];
+      for (int r = 0; r < runs; r++) {
+        long[] sample = writeRun(dir.resolve("run-" + r + ".idx"),
+            entries / runs, 1 + r * (entries / runs >> 5) + r, random);
+        hashes = Arrays.copyOf(hashes, hashes.length + sample.length);
+        System.arraycopy(sample, 0, hashes, hashes.length - sample.length,
+            SAMPLES);
+      }
+      System.out.printf("wrote %,d positions in %d runs in %d s%n", entries,
+          runs, (System.nanoTime() - start) / 1000000000);
+
+      try (PositionIndex index = new PositionIndex(dir)) {
+        lookups(index, hashes, "cold");
+        lookups(index, hashes, "warm");
+        start = System.nanoTime();
+        index.compact();
+        System.out.printf("merged into %d run in %d s%n", index.runs(),
+            (System.nanoTime() - start) / 1000000000);
+        lookups(index, hashes, "merged");
+        lookups(index, hashes, "merged, warm");
+      }
+    } finally {
+      if (temporary) {
+        for (File run : dir.toFile().listFiles()) {
+          run.delete();
+        }
+        Files.delete(dir);
+      }
+    }
+  }
+
+}
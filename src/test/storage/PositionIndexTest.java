@@ -0,0 +1,221 @@
+package storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import board.Board;
+import board.IllegalMoveException;
+import board.Location;
+import game.Color;
+import game.Game;
+import game.Game.TimeControl;
+import game.Move;
+import game.PositionHash;
+import players.GuiPlayer;
+import poweractions.PowerAction;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+import storage.GameRecorder.Recording;
+import storage.PositionIndex.MoveStats;
+import storage.PositionIndex.Occurrence;
+
+/**
+ * Test building and searching the position index.
+ *
+ * @author knorms
+ *
+ */
+public class PositionIndexTest {
+  private static final int E2 = 12;
+  private static final int E4 = 28;
+  private static final int D2 = 11;
+  private static final int D4 = 27;
+  private static final int E7 = 52;
+  private static final int E5 = 36;
+  private static final int C7 = 50;
+  private static final int C5 = 34;
+  private static final int D7 = 51;
+  private static final int D5 = 35;
+
+  private File file;
+  private Path dir;
+  private GameRecorder recorder;
+
+  @Before
+  public void open() throws IOException, SQLException {
+    file = File.createTempFile("games", ".db");
+    dir = Files.createTempDirectory("positions");
+    recorder = new GameRecorder(file.getPath());
+  }
+
+  @After
+  public void close() throws IOException {
+    recorder.close();
+    for (String suffix : new String[] {"", "-wal", "-shm"}) {
+      new File(file.getPath() + suffix).delete();
+    }
+    for (File run : dir.toFile().listFiles()) {
+      run.delete();
+    }
+    Files.delete(dir);
+  }
+
+  private static Game newGame() {
+    Game game = new Game();
+    game.addPlayer(new GuiPlayer(Color.WHITE, 0, "alice"));
+    game.addPlayer(new GuiPlayer(Color.BLACK, 1, "bob"));
+    game.setTilNextPowerUp(100);
+    return game;
+  }
+
+  private static void move(Game game, int from, int to)
+      throws IllegalMoveException {
+    game.getActivePlayer().setMove(new Move(
+        new Location(from / Board.SIZE, from % Board.SIZE),
+        new Location(to / Board.SIZE, to % Board.SIZE)));
+    game.turn();
+  }
+
+  /**
+   * Record a game of the moves given as from and to squares.
+   *
+   * @return the game as it ended.
+   */
+  private Game play(String result, int... squares)
+      throws IllegalMoveException {
+    Game game = newGame();
+    Recording recording = recorder.start(TimeControl.QUICK, "alice", "bob");
+    game.addListener(recording);
+    for (int i = 0; i < squares.length; i += 2) {
+      move(game, squares[i], squares[i + 1]);
+    }
+    recorder.finish(recording, result, "MATE");
+    return game;
+  }
+
+  private static List<Long> ids(List<Occurrence> found) {
+    List<Long> ids = new ArrayList<>();
+    for (Occurrence occurrence : found) {
+      ids.add(occurrence.getGame());
+    }
+    return ids;
+  }
+
+  /**
+   * Test that a FEN hashes as the board it reads.
+   */
+  @Test
+  public void fenTest() {
+    long start = PositionHash.of(new Board(), true);
+    assertEquals(start, PositionHash.ofFen(
+        "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1"));
+    assertTrue(start != PositionHash.ofFen(
+        "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR b KQkq - 0 1"));
+    assertTrue(start != PositionHash.ofFen(
+        "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w Kkq - 0 1"));
+  }
+
+  /**
+   * Test that games are found by the positions they reached and the moves
+   * played from them are counted, across builds, merges and reopening.
+   */
+  @Test
+  public void buildTest() throws IllegalMoveException, IOException,
+      SQLException, InterruptedException {
+    play("1-0", E2, E4, E7, E5);
+    play("0-1", E2, E4, C7, C5);
+    play("1/2-1/2", D2, D4, D7, D5);
+    assertTrue(recorder.getStore().flush(5000));
+    long start = PositionHash.of(new Board(), true);
+    Game afterE4 = newGame();
+    move(afterE4, E2, E4);
+    long e4 = PositionHash.of(afterE4);
+
+    try (GameArchive archive = new GameArchive(recorder.getStore());
+        PositionIndex index = new PositionIndex(dir)) {
+      // two batches of two ids, run one at a time
+      assertEquals(3, index.build(archive, 1, 2));
+      assertEquals(3, index.indexedThrough());
+      assertEquals(2, index.runs());
+      // five positions before a move and at the end of each game
+      assertEquals(9, index.size());
+      check(index, start, e4);
+      assertEquals(1, ids(index.games(start, 1, 1)).size());
+      assertEquals(2L, (long) ids(index.games(start, 1, 1)).get(0));
+      assertEquals(0, index.build(archive, 1, 2));
+
+      // a game with a power box and a power used is replayed as played
+      Game powered = newGame();
+      Recording recording =
+          recorder.start(TimeControl.QUICK, "alice", "bob");
+      powered.addListener(recording);
+      move(powered, E2, E4);
+      move(powered, D7, D5);
+      move(powered, 6, 21);
+      powered.spawnPowerObject(new Location(2, 0),
+          PowerObject.ofRarity(Rarity.LEGENDARY));
+      move(powered, 57, 42);
+      move(powered, 1, 16);
+      PowerAction chosen = powered.getActionOptions().get(0);
+      powered.getActivePlayer().setAction(chosen);
+      powered.executePowerAction(null);
+      recorder.finish(recording, "1-0", "MATE");
+      assertTrue(recorder.getStore().flush(5000));
+
+      assertEquals(1, index.build(archive, 2, 10));
+      assertEquals(3, index.runs());
+      List<Occurrence> ended = index.games(PositionHash.of(powered), 0, 10);
+      assertEquals(1, ended.size());
+      assertEquals(recording.getId(), ended.get(0).getGame());
+      assertEquals(5, ended.get(0).getPly());
+      assertEquals(4, index.games(start, 0, 10).size());
+
+      index.compact();
+      assertEquals(1, index.runs());
+      assertEquals(15, index.size());
+      assertEquals(4, index.games(start, 0, 10).size());
+      assertEquals(2, index.moves(start).get(0).getWhiteWins());
+    }
+
+    try (PositionIndex index = new PositionIndex(dir)) {
+      assertEquals(4, index.indexedThrough());
+      assertEquals(1, index.runs());
+      assertEquals(3, index.games(e4, 0, 10).size());
+      assertEquals(1, dir.toFile().listFiles().length);
+    }
+  }
+
+  private static void check(PositionIndex index, long start, long e4) {
+    List<Occurrence> games = index.games(start, 0, 10);
+    assertEquals(3, games.size());
+    assertEquals(1, games.get(0).getGame());
+    assertEquals(0, games.get(0).getPly());
+    List<Occurrence> afterE4 = index.games(e4, 0, 10);
+    assertEquals(2, afterE4.size());
+    assertEquals(1, afterE4.get(1).getPly());
+
+    List<MoveStats> moves = index.moves(start);
+    assertEquals(2, moves.size());
+    assertEquals(E2, moves.get(0).getFrom());
+    assertEquals(E4, moves.get(0).getTo());
+    assertEquals(1, moves.get(0).getWhiteWins());
+    assertEquals(1, moves.get(0).getBlackWins());
+    assertEquals(0, moves.get(0).getDraws());
+    assertEquals(D4, moves.get(1).getTo());
+    assertEquals(1, moves.get(1).getDraws());
+    assertEquals(2, index.moves(e4).size());
+  }
+
+}
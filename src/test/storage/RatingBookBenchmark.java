@@ -0,0 +1,104 @@
+package storage;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import game.Game.TimeControl;
+
+/**
+ * Measures how fast the rating book rates games: a generated archive of
+ * games spread over many hourly rating periods is rated from scratch, then
+ * the ratings are looked up as the matchmaker does. Run with main; not a
+ * unit test.
+ *
+ * Arguments: games (default 1000000), players (default 50000), periods
+ * (default 1000).
+ *
+ * @author knorms
+ *
+ */
+public final class RatingBookBenchmark {
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+  private static final int LOOKUPS = 1000000;
+
+  private RatingBookBenchmark() {
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *          games, players, periods; all optional.
+   * @throws Exception
+   *           If the database can't be written or read.
+   */
+  public static void main(String[] args) throws Exception {
+    int games = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int players = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+    int periods = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+    File file = File.createTempFile("ratings", ".db");
+    TimeControl[] controls = TimeControl.values();
+    String[] results = {"1-0", "0-1", "1/2-1/2"};
+    long first = 1500000000000L;
+    try (SqliteStore store =
+        new SqliteStore(file.getPath(), GameRecorder.SCHEMA)) {
+      Random random = new Random(1);
+      try (Connection connection = store.connect()) {
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement(
+            "INSERT INTO games VALUES (?, ?, ?, ?, ?, ?, ?, 'MATE', 40)")) {
+          for (int id = 1; id <= games; id++) {
+            long ended = first + (long) id * periods * HOUR / games;
+            insert.setInt(1, id);
+            insert.setString(2, "player" + random.nextInt(players));
+            insert.setString(3, "player" + random.nextInt(players));
+            insert.setString(4,
+                controls[random.nextInt(controls.length)].name());
+            insert.setLong(5, ended - 600000);
+            insert.setLong(6, ended);
+            insert.setString(7, results[random.nextInt(results.length)]);
+            insert.addBatch();
+            if (id % 10000 == 0) {
+              insert.executeBatch();
+            }
+          }
+          insert.executeBatch();
+        }
+        connection.commit();
+      }
+      System.out.printf("recorded %,d games of %,d players over %,d"
+          + " periods%n", games, players, periods);
+
+      RatingBook book = new RatingBook(store, HOUR,
+          () -> first + (periods + 2L) * HOUR);
+      long start = System.nanoTime();
+      long rated = book.rate();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("rated %,d games in %.1f s = %,.0f games/s%n", rated,
+          seconds, rated / seconds);
+      start = System.nanoTime();
+      store.flush(TimeUnit.MINUTES.toMillis(5));
+      System.out.printf("ratings committed %d ms later%n",
+          (System.nanoTime() - start) / 1000000);
+
+      Random lookups = new Random(2);
+      long sum = 0;
+      start = System.nanoTime();
+      for (int i = 0; i < LOOKUPS; i++) {
+        sum += book.rating("player" + lookups.nextInt(players),
+            controls[i % controls.length]).rounded();
+      }
+      System.out.printf("%,d lookups, %.0f ns each, mean rating %d%n",
+          LOOKUPS, (double) (System.nanoTime() - start) / LOOKUPS,
+          sum / LOOKUPS);
+    } finally {
+      for (String suffix : new String[] {"", "-wal", "-shm"}) {
+        new File(file.getPath() + suffix).delete();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,118 @@
+package storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import game.Game.TimeControl;
+
+/**
+ * Test rating players with Glicko-2.
+ *
+ * @author knorms
+ *
+ */
+public class RatingBookTest {
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+  private File file;
+  private GameRecorder recorder;
+
+  @Before
+  public void open() throws IOException, SQLException {
+    file = File.createTempFile("games", ".db");
+    recorder = new GameRecorder(file.getPath());
+  }
+
+  @After
+  public void close() {
+    recorder.close();
+    for (String suffix : new String[] {"", "-wal", "-shm"}) {
+      new File(file.getPath() + suffix).delete();
+    }
+  }
+
+  private void play(TimeControl timeControl, String white, String black,
+      String result) {
+    recorder.finish(recorder.start(timeControl, white, black), result,
+        "RESIGNATION");
+  }
+
+  /**
+   * Test the worked example of Glickman's "Example of the Glicko-2 system".
+   */
+  @Test
+  public void exampleTest() {
+    Rating player = new Rating(1500, 200, 0.06, 0, 0);
+    Rating[] opponents = {new Rating(1400, 30, 0.06, 0, 0),
+        new Rating(1550, 100, 0.06, 0, 0), new Rating(1700, 300, 0.06, 0, 0)};
+    Rating after = Glicko2.rate(player, opponents, new double[] {1, 0, 0},
+        3, 7);
+    assertEquals(1464.06, after.getRating(), 0.01);
+    assertEquals(151.52, after.getDeviation(), 0.01);
+    assertEquals(0.05999, after.getVolatility(), 0.00001);
+    assertEquals(3, after.getGames());
+    assertEquals(7, after.getRatedAt());
+  }
+
+  /**
+   * Test that finished periods are rated once, that ratings survive a
+   * restart and that a deviation grows while a player sits out.
+   */
+  @Test
+  public void rateTest() throws SQLException, InterruptedException {
+    play(TimeControl.QUICK, "alice", "bob", "1-0");
+    play(TimeControl.QUICK, "bob", "alice", "0-1");
+    play(TimeControl.SLOW, "carol", "dave", "1/2-1/2");
+    // not rated: untimed, without a result, against themselves
+    play(null, "alice", "carol", "1-0");
+    play(TimeControl.QUICK, "alice", "carol", "*");
+    play(TimeControl.QUICK, "bob", "bob", "1-0");
+    assertTrue(recorder.getStore().flush(5000));
+
+    AtomicLong now = new AtomicLong(System.currentTimeMillis());
+    RatingBook book = new RatingBook(recorder.getStore(), HOUR, now::get);
+    // the period the games ended in isn't over
+    assertEquals(0, book.rate());
+    assertSame(Rating.UNRATED, book.rating("alice", TimeControl.QUICK));
+
+    now.addAndGet(2 * HOUR);
+    assertEquals(3, book.rate());
+    Rating alice = book.rating("alice", TimeControl.QUICK);
+    Rating bob = book.rating("bob", TimeControl.QUICK);
+    assertEquals(2, alice.getGames());
+    assertTrue(alice.getRating() > 1500);
+    assertEquals(3000, alice.getRating() + bob.getRating(), 0.001);
+    assertTrue(alice.getDeviation() < Glicko2.DEFAULT_DEVIATION);
+    assertEquals(1500, book.rating("carol", TimeControl.SLOW).getRating(),
+        0.001);
+    assertSame(Rating.UNRATED, book.rating("alice", TimeControl.SLOW));
+    assertEquals(2, book.ratings(TimeControl.QUICK).size());
+    assertEquals(0, book.rate());
+
+    assertTrue(recorder.getStore().flush(5000));
+    RatingBook reopened =
+        new RatingBook(recorder.getStore(), HOUR, now::get);
+    assertEquals(book.ratedUntil(), reopened.ratedUntil());
+    assertEquals(alice.getRating(),
+        reopened.rating("alice", TimeControl.QUICK).getRating(), 0.001);
+    assertEquals(0, reopened.rate());
+
+    now.addAndGet(1000 * HOUR);
+    Rating idle = reopened.rating("alice", TimeControl.QUICK);
+    assertEquals(alice.getRating(), idle.getRating(), 0.001);
+    assertTrue(idle.getDeviation() > alice.getDeviation());
+    assertTrue(idle.getDeviation() <= Glicko2.DEFAULT_DEVIATION);
+  }
+
+}
@@ -0,0 +1,97 @@
+package storage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test writing to SQLite in batches behind the callers' backs.
+ *
+ * @author knorms
+ *
+ */
+public class SqliteStoreTest {
+  private static final String INSERT = "INSERT INTO rows (id) VALUES (?)";
+
+  private File file;
+
+  @Before
+  public void open() throws IOException {
+    file = File.createTempFile("store", ".db");
+  }
+
+  @After
+  public void delete() {
+    for (String suffix : new String[] {"", "-wal", "-shm"}) {
+      new File(file.getPath() + suffix).delete();
+    }
+  }
+
+  private SqliteStore store() throws SQLException {
+    return new SqliteStore(file.getPath(),
+        "CREATE TABLE IF NOT EXISTS rows (id INTEGER PRIMARY KEY)");
+  }
+
+  private static void insert(SqliteStore store, int id) {
+    store.submit(s -> {
+      s.statement(INSERT).setInt(1, id);
+      s.statement(INSERT).executeUpdate();
+    });
+  }
+
+  private long count() throws SQLException {
+    try (SqliteStore store = store();
+        Connection connection = store.connect();
+        Statement statement = connection.createStatement();
+        ResultSet result =
+            statement.executeQuery("SELECT COUNT(*) FROM rows")) {
+      assertTrue(result.next());
+      return result.getLong(1);
+    }
+  }
+
+  /**
+   * Test that closing with writes queued commits them and returns once they
+   * are.
+   */
+  @Test
+  public void closeTest() throws SQLException {
+    SqliteStore store = store();
+    for (int id = 0; id < 20000; id++) {
+      insert(store, id);
+    }
+    long start = System.nanoTime();
+    store.close();
+    assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+    assertEquals(20000, count());
+  }
+
+  /**
+   * Test that a write the database rejects doesn't take the rest of its
+   * batch with it.
+   */
+  @Test
+  public void rejectedTest() throws SQLException, InterruptedException {
+    try (SqliteStore store = store()) {
+      insert(store, 1);
+      assertTrue(store.flush(5000));
+      // queued together, so likely one batch
+      for (int id = 0; id < 100; id++) {
+        insert(store, id);
+      }
+      assertTrue(store.flush(5000));
+    }
+    assertEquals(100, count());
+  }
+
+}
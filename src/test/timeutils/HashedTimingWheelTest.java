@@ -0,0 +1,84 @@
+package timeutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import timeutils.HashedTimingWheel.Timeout;
+
+/**
+ * Test the hashed timing wheel.
+ *
+ * @author knorms
+ *
+ */
+public class HashedTimingWheelTest {
+  private final HashedTimingWheel wheel =
+      new HashedTimingWheel("test-wheel", 10, 8);
+
+  /**
+   * Stop the wheel's thread.
+   */
+  @After
+  public void tearDown() {
+    wheel.stop();
+  }
+
+  /**
+   * Test that tasks fire no earlier than their delay, including tasks more
+   * than one turn of the wheel away.
+   *
+   * @throws InterruptedException
+   *           If interrupted while waiting.
+   */
+  @Test
+  public void firesAfterDelayTest() throws InterruptedException {
+    CountDownLatch fired = new CountDownLatch(2);
+    long start = System.nanoTime();
+    long[] elapsed = new long[2];
+    wheel.schedule(() -> {
+      elapsed[0] = System.nanoTime() - start;
+      fired.countDown();
+    }, 30, TimeUnit.MILLISECONDS);
+    // 8 buckets of 10ms: 250ms is three turns away
+    wheel.schedule(() -> {
+      elapsed[1] = System.nanoTime() - start;
+      fired.countDown();
+    }, 250, TimeUnit.MILLISECONDS);
+
+    assertTrue(fired.await(2, TimeUnit.SECONDS));
+    assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(30));
+    assertTrue(elapsed[1] >= TimeUnit.MILLISECONDS.toNanos(250));
+    assertEquals(0, wheel.pending());
+  }
+
+  /**
+   * Test that cancelled tasks never run.
+   *
+   * @throws InterruptedException
+   *           If interrupted while waiting.
+   */
+  @Test
+  public void cancelTest() throws InterruptedException {
+    AtomicInteger runs = new AtomicInteger();
+    CountDownLatch later = new CountDownLatch(1);
+    Timeout cancelled =
+        wheel.schedule(runs::incrementAndGet, 20, TimeUnit.MILLISECONDS);
+    wheel.schedule(later::countDown, 60, TimeUnit.MILLISECONDS);
+    assertTrue(cancelled.cancel());
+    assertFalse(cancelled.cancel());
+
+    assertTrue(later.await(2, TimeUnit.SECONDS));
+    assertEquals(0, runs.get());
+    assertTrue(cancelled.isCancelled());
+    assertFalse(cancelled.isExpired());
+  }
+
+}
@@ -0,0 +1,109 @@
+package websockets;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import board.Location;
+import game.Color;
+import game.Move;
+import pieces.Knight;
+import pieces.Queen;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+
+/**
+ * Compares bytes per move and encode/decode time of the binary GAME_UPDATE
+ * protocol against the Gson JSON protocol. Run with main; not a unit test.
+ *
+ * @author knorms
+ *
+ */
+public final class BinaryProtocolBenchmark {
+  private static final Gson GSON = new Gson();
+  private static final int WARMUP = 200_000;
+  private static final int ITERATIONS = 1_000_000;
+
+  private BinaryProtocolBenchmark() {
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *          Unused.
+   */
+  public static void main(String[] args) {
+    Move move = new Move(new Location(0, 6), new Location(2, 5));
+    GameUpdate update = new GameUpdate();
+    update.add(SquareUpdate.powerObject(new Location(4, 3),
+        new PowerObject(Rarity.RARE)));
+    update.add(SquareUpdate.invulnerable(new Location(2, 5),
+        new Knight(Color.WHITE)));
+    update.add(SquareUpdate.piece(new Location(7, 3), new Queen(Color.BLACK)));
+    update.add(SquareUpdate.empty(new Location(5, 5)));
+    List<SquareUpdate> squares = update.getUpdates();
+
+    String json = encodeJson(squares, move);
+    ByteBuffer binary = encodeBinary(squares, move);
+    System.out.printf("bytes per move: json=%d binary=%d (%.1fx smaller)%n",
+        json.getBytes(StandardCharsets.UTF_8).length, binary.remaining(),
+        (double) json.length() / binary.remaining());
+
+    long sink = 0;
+    for (int i = 0; i < WARMUP; i++) {
+      sink += encodeJson(squares, move).length();
+      sink += encodeBinary(squares, move).remaining();
+      sink += GSON.fromJson(json, JsonObject.class).size();
+      sink += BinaryProtocol.decodeGameUpdate(binary.duplicate()).getAction();
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      sink += encodeJson(squares, move).length();
+    }
+    long jsonEncode = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      sink += encodeBinary(squares, move).remaining();
+    }
+    long binaryEncode = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      sink += GSON.fromJson(json, JsonObject.class).size();
+    }
+    long jsonDecode = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      sink += BinaryProtocol.decodeGameUpdate(binary.duplicate()).getAction();
+    }
+    long binaryDecode = System.nanoTime() - start;
+
+    System.out.printf("encode ns/op: json=%.1f binary=%.1f%n",
+        (double) jsonEncode / ITERATIONS, (double) binaryEncode / ITERATIONS);
+    System.out.printf("decode ns/op: json=%.1f binary=%.1f%n",
+        (double) jsonDecode / ITERATIONS, (double) binaryDecode / ITERATIONS);
+    System.out.println("(sink " + sink + ")");
+  }
+
+  private static String encodeJson(List<SquareUpdate> squares, Move move) {
+    GameUpdate update = new GameUpdate();
+    update.addAll(squares);
+    return update.jsonFrame().with(GameUpdate.jsonFields(
+        ChessWebSocket.Action.MOVE, move, null));
+  }
+
+  private static ByteBuffer encodeBinary(List<SquareUpdate> squares,
+      Move move) {
+    return BinaryProtocol.encodeGameUpdate(
+        BinaryProtocol.encodeSquares(squares), 1, 300_000, 300_000,
+        ChessWebSocket.Action.MOVE.ordinal(), move, null);
+  }
+
+}
@@ -0,0 +1,108 @@
+package websockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import board.Location;
+import game.Color;
+import game.Game;
+import game.Move;
+import pieces.King;
+import pieces.Pawn;
+import poweractions.PowerAction;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+
+/**
+ * Test BinaryProtocol.
+ *
+ * @author knorms
+ *
+ */
+public class BinaryProtocolTest {
+
+  private static List<SquareUpdate> sampleUpdates() {
+    List<SquareUpdate> updates = new ArrayList<>();
+    updates.add(SquareUpdate.empty(new Location(3, 4)));
+    updates.add(SquareUpdate.piece(new Location(0, 4), new King(Color.WHITE)));
+    updates.add(
+        SquareUpdate.invulnerable(new Location(6, 7), new Pawn(Color.BLACK)));
+    updates.add(SquareUpdate.powerObject(new Location(5, 2),
+        new PowerObject(Rarity.LEGENDARY)));
+    updates.add(SquareUpdate.blackHole(new Location(7, 7)));
+    return updates;
+  }
+
+  /**
+   * Test that square updates survive a round trip.
+   */
+  @Test
+  public void squaresRoundTripTest() {
+    List<SquareUpdate> updates = sampleUpdates();
+    byte[] packed = BinaryProtocol.encodeSquares(updates);
+    assertEquals(1 + 2 * updates.size(), packed.length);
+
+    List<SquareUpdate> decoded =
+        BinaryProtocol.decodeSquares(ByteBuffer.wrap(packed));
+    assertEquals(updates, decoded);
+    for (int i = 0; i < updates.size(); i++) {
+      assertEquals(updates.get(i).toJson(), decoded.get(i).toJson());
+    }
+  }
+
+  /**
+   * Test a full GAME_UPDATE with a move and power prompt.
+   */
+  @Test
+  public void gameUpdateRoundTripTest() {
+    Game game = new Game();
+    Location captured = new Location(4, 4);
+    List<PowerAction> options = new ArrayList<>();
+    options.add(PowerAction.stringToAction("Shield", game, captured));
+    options.add(PowerAction.stringToAction("Swap", game, captured));
+    Move move = new Move(new Location(1, 4), new Location(3, 4));
+
+    byte[] squares = BinaryProtocol.encodeSquares(sampleUpdates());
+    ByteBuffer frame = BinaryProtocol.encodeGameUpdate(squares, 17,
+        245_000, 181_250, ChessWebSocket.Action.SELECT_POWER.ordinal(), move,
+        options);
+    BinaryProtocol.Decoded decoded = BinaryProtocol.decodeGameUpdate(frame);
+
+    assertEquals(ChessWebSocket.Action.SELECT_POWER.ordinal(),
+        decoded.getAction());
+    assertEquals(17, decoded.getSeq());
+    assertEquals(245_000, decoded.getWhiteMillis());
+    assertEquals(181_250, decoded.getBlackMillis());
+    assertEquals(move.getStart(), decoded.getMove().getStart());
+    assertEquals(move.getEnd(), decoded.getMove().getEnd());
+    assertEquals(Rarity.COMMON.ordinal(), decoded.getRarity());
+    assertEquals(3, decoded.getId1());
+    assertEquals(4, decoded.getId2());
+    assertEquals(sampleUpdates(), decoded.getUpdates());
+  }
+
+  /**
+   * Test a GAME_UPDATE without optional parts.
+   */
+  @Test
+  public void minimalGameUpdateTest() {
+    ByteBuffer frame = BinaryProtocol.encodeGameUpdate(
+        BinaryProtocol.encodeSquares(new ArrayList<>()), 1, -1, -1,
+        ChessWebSocket.Action.MOVE.ordinal(), null, null);
+    assertEquals(7, frame.remaining());
+
+    BinaryProtocol.Decoded decoded = BinaryProtocol.decodeGameUpdate(frame);
+    assertEquals(ChessWebSocket.Action.MOVE.ordinal(), decoded.getAction());
+    assertNull(decoded.getMove());
+    assertEquals(-1, decoded.getWhiteMillis());
+    assertEquals(-1, decoded.getRarity());
+    assertEquals(0, decoded.getUpdates().size());
+  }
+
+}
@@ -0,0 +1,77 @@
+package websockets;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import board.Location;
+import game.Game;
+import game.Move;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+import websockets.ChessWebSocket.MessageType;
+
+/**
+ * Test GameChannel.
+ *
+ * @author knorms
+ *
+ */
+public class GameChannelTest {
+
+  private static GameUpdate spawnUpdate(Location loc) {
+    GameUpdate update = new GameUpdate();
+    update.add(SquareUpdate.powerObject(loc,
+        PowerObject.ofRarity(Rarity.COMMON)));
+    return update;
+  }
+
+  /**
+   * Test that updates are numbered in order and replayed from the buffer.
+   */
+  @Test
+  public void resyncTest() {
+    Game game = new Game();
+    GameChannel channel = new GameChannel();
+    Location a = new Location(3, 3);
+    Location b = new Location(4, 4);
+    assertEquals(1, channel.publish(spawnUpdate(a), null, game).getSeq());
+    Move move = new Move(new Location(1, 0), new Location(2, 0));
+    assertEquals(2, channel.publish(spawnUpdate(b), move, game).getSeq());
+    assertEquals(2, channel.getSeq());
+
+    GameUpdate reply = channel.resync(1, game);
+    assertEquals(MessageType.RESYNC, reply.getType());
+    assertEquals(2, reply.getSeq());
+    // move squares come first, then the update's own squares
+    assertEquals(3, reply.getUpdates().size());
+    assertEquals(SquareUpdate.empty(move.getStart()),
+        reply.getUpdates().get(0));
+    assertEquals(b.getRow(), reply.getUpdates().get(2).getRow());
+
+    assertEquals(4, channel.resync(0, game).getUpdates().size());
+    assertEquals(0, channel.resync(2, game).getUpdates().size());
+  }
+
+  /**
+   * Test that a client too far behind gets a keyframe.
+   */
+  @Test
+  public void keyframeTest() {
+    Game game = new Game();
+    GameChannel channel = new GameChannel();
+    for (int i = 0; i <= GameChannel.CAPACITY; i++) {
+      channel.publish(new GameUpdate(), null, game);
+    }
+
+    GameUpdate reply = channel.resync(0, game);
+    assertEquals(MessageType.KEYFRAME, reply.getType());
+    assertEquals(GameChannel.CAPACITY + 1, reply.getSeq());
+    // starting position: 32 pieces
+    assertEquals(32, reply.getUpdates().size());
+
+    assertEquals(MessageType.KEYFRAME, channel.resync(99, game).getType());
+    assertEquals(MessageType.RESYNC, channel.resync(1, game).getType());
+  }
+
+}
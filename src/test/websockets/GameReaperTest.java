@@ -0,0 +1,99 @@
+package websockets;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import websockets.GameReaper.Phase;
+
+/**
+ * Test eviction of idle games by phase.
+ *
+ * @author knorms
+ *
+ */
+public class GameReaperTest {
+  private final AtomicLong now = new AtomicLong();
+  private final Map<Integer, Phase> games = new HashMap<>();
+  private final GameReaper reaper = new GameReaper(games::get,
+      id -> games.remove(id) == null ? -1 : 1000, now::get);
+
+  /**
+   * Test that each phase is evicted after its own time-to-live and counted.
+   */
+  @Test
+  public void ttlPerPhaseTest() {
+    reaper.setTtl(Phase.OVER, 10);
+    reaper.setTtl(Phase.WAITING, 100);
+    games.put(1, Phase.OVER);
+    games.put(2, Phase.WAITING);
+    games.put(3, Phase.PLAYING);
+    reaper.touch(1);
+    reaper.touch(2);
+    reaper.touch(3);
+
+    now.set(9);
+    assertEquals(0, reaper.sweep());
+    now.set(10);
+    assertEquals(1, reaper.sweep());
+    now.set(100);
+    assertEquals(1, reaper.sweep());
+
+    assertEquals(1, reaper.getReclaimed(Phase.OVER));
+    assertEquals(1, reaper.getReclaimed(Phase.WAITING));
+    assertEquals(0, reaper.getReclaimed(Phase.PLAYING));
+    assertEquals(2000, reaper.getBytesReclaimed());
+    assertEquals(1, reaper.tracked());
+  }
+
+  /**
+   * Test that activity postpones eviction and that games removed elsewhere
+   * are dropped without being counted.
+   */
+  @Test
+  public void touchAndForgetTest() {
+    reaper.setTtl(Phase.PLAYING, 50);
+    games.put(1, Phase.PLAYING);
+    games.put(2, Phase.PLAYING);
+    reaper.touch(1);
+    reaper.touch(2);
+
+    now.set(40);
+    reaper.touch(1);
+    games.remove(2);
+    now.set(60);
+    assertEquals(0, reaper.sweep());
+    assertEquals(1, reaper.tracked());
+
+    now.set(90);
+    assertEquals(1, reaper.sweep());
+    assertEquals(0, reaper.tracked());
+  }
+
+  /**
+   * Test that a game that fails to evict doesn't stop the others.
+   */
+  @Test
+  public void failedEvictTest() {
+    GameReaper failing = new GameReaper(games::get, id -> {
+      if (id == 1) {
+        throw new IllegalStateException("ERROR: broken game.");
+      }
+      return games.remove(id) == null ? -1 : 1000;
+    }, now::get);
+    failing.setTtl(Phase.OVER, 10);
+    games.put(1, Phase.OVER);
+    games.put(2, Phase.OVER);
+    failing.touch(1);
+    failing.touch(2);
+
+    now.set(10);
+    assertEquals(1, failing.sweep());
+    assertEquals(1, failing.getReclaimed(Phase.OVER));
+  }
+
+}
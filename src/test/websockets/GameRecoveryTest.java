@@ -0,0 +1,135 @@
+package websockets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import board.IllegalMoveException;
+import board.Location;
+import game.Color;
+import game.Game;
+import game.Game.TimeControl;
+import game.Move;
+import players.GuiPlayer;
+import poweractions.Clone;
+import poweractions.PowerAction;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+import repl.ChessReplUtils;
+import storage.EventLog;
+import storage.GameHistory;
+import storage.GameJournal;
+
+/**
+ * Test rebuilding games from the event log.
+ *
+ * @author knorms
+ *
+ */
+public class GameRecoveryTest {
+
+  private static void move(Game game, int fromRow, int fromCol, int toRow,
+      int toCol) throws IllegalMoveException {
+    game.getActivePlayer().setMove(new Move(new Location(fromRow, fromCol),
+        new Location(toRow, toCol)));
+    game.turn();
+  }
+
+  /**
+   * The events of a history as written, without the start time, which the
+   * journal doesn't keep.
+   */
+  private static byte[] bytes(GameHistory history) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    history.write(new DataOutputStream(bytes));
+    return Arrays.copyOfRange(bytes.toByteArray(), Long.BYTES, bytes.size());
+  }
+
+  /**
+   * Test that a game comes back as it was, powers and their random outcomes
+   * and its recording included, and that a game that ended doesn't come
+   * back.
+   */
+  @Test
+  public void replayTest() throws IOException, IllegalMoveException {
+    Path dir = Files.createTempDirectory("recovery");
+    try {
+      Game game = new Game();
+      GameHistory recorded;
+      game.setTimeControl(TimeControl.QUICK);
+      game.addPlayer(new GuiPlayer(Color.WHITE, 0, "alice"));
+      game.addPlayer(new GuiPlayer(Color.BLACK, 1, "bob"));
+      // no boxes but the one placed below
+      game.setTilNextPowerUp(100);
+      try (GameJournal journal = new GameJournal(new EventLog(dir))) {
+        game.addListener(journal.started(1, game));
+        journal.joined(1, Color.WHITE, "alice", "1.a");
+        journal.joined(1, Color.BLACK, "bob", "1.b");
+        journal.recorded(1, 7);
+        GameHistory history = new GameHistory();
+        game.addListener(history);
+        journal.started(2, new Game());
+        journal.ended(2);
+
+        move(game, 1, 4, 3, 4);
+        move(game, 6, 3, 4, 3);
+        move(game, 0, 6, 2, 5);
+        move(game, 7, 1, 5, 2);
+        game.spawnPowerObject(new Location(2, 0),
+            PowerObject.ofRarity(Rarity.LEGENDARY));
+        move(game, 0, 1, 2, 0);
+
+        PowerAction chosen = game.getActionOptions().get(0);
+        for (PowerAction option : game.getActionOptions()) {
+          if (option instanceof Clone) {
+            chosen = option;
+          }
+        }
+        game.getActivePlayer().setAction(chosen);
+        game.executePowerAction(null);
+        move(game, 6, 4, 4, 4);
+        recorded = history;
+      }
+
+      Collection<SavedGame> games = GameRecovery.replay(dir);
+      assertEquals(1, games.size());
+      SavedGame saved = games.iterator().next();
+      Game copy = saved.getGame();
+      assertEquals(1, saved.getId());
+      assertEquals(ChessReplUtils.getBoardString(game.getBoard()),
+          ChessReplUtils.getBoardString(copy.getBoard()));
+      assertEquals(game.getBoard().getLocationSet(),
+          copy.getBoard().getLocationSet());
+      assertEquals(game.whiteToMove(), copy.whiteToMove());
+      assertEquals(game.getGameState(), copy.getGameState());
+      assertEquals(game.getHistory(), copy.getHistory());
+      assertEquals(TimeControl.QUICK, copy.getTimeControl());
+      assertEquals(2, saved.getPlayers().size());
+      assertEquals("1.b", saved.getPlayers().get(1).getToken());
+      assertTrue(copy.getTilNextPowerUp() > 0);
+      // the recording goes on from where it was
+      assertEquals(7, saved.getRecordId());
+      assertEquals(6, saved.getHistory().getPly());
+      assertArrayEquals(bytes(recorded), bytes(saved.getHistory()));
+    } finally {
+      try (Stream<Path> files = Files.walk(dir)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> {
+          file.toFile().delete();
+        });
+      }
+    }
+  }
+
+}
@@ -0,0 +1,187 @@
+package websockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import board.IllegalMoveException;
+import board.Location;
+import game.Color;
+import game.Game;
+import game.Game.TimeControl;
+import game.Move;
+import players.GuiPlayer;
+import poweractions.PowerAction;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+import storage.GameArchive;
+import storage.GameRecorder;
+import storage.GameRecorder.Recording;
+import websockets.ChessWebSocket.MessageType;
+
+/**
+ * Test streaming recorded games back as updates.
+ *
+ * @author knorms
+ *
+ */
+public class GameReplayStreamTest {
+  private static final JsonParser PARSER = new JsonParser();
+
+  private File file;
+  private GameRecorder recorder;
+
+  @Before
+  public void open() throws IOException, SQLException {
+    file = File.createTempFile("games", ".db");
+    recorder = new GameRecorder(file.getPath());
+  }
+
+  @After
+  public void close() {
+    recorder.close();
+    for (String suffix : new String[] {"", "-wal", "-shm"}) {
+      new File(file.getPath() + suffix).delete();
+    }
+  }
+
+  private static void move(Game game, int from, int to)
+      throws IllegalMoveException {
+    game.getActivePlayer().setMove(new Move(
+        new Location(from / 8, from % 8), new Location(to / 8, to % 8)));
+    game.turn();
+  }
+
+  /**
+   * What a client shows on each square of a game, by square.
+   */
+  private static Map<Integer, String> boardOf(Game game) {
+    Map<Integer, String> board = new HashMap<>();
+    for (int square = 0; square < 64; square++) {
+      SquareUpdate update = GameChannel.squareOf(game.getBoard(),
+          new Location(square / 8, square % 8));
+      if (update != null) {
+        board.put(square, update.toJson().toString());
+      }
+    }
+    return board;
+  }
+
+  /**
+   * Apply streamed messages as a client does.
+   */
+  private static Map<Integer, String> apply(List<JsonObject> messages) {
+    Map<Integer, String> board = new HashMap<>();
+    for (JsonObject message : messages) {
+      if (message.get("type").getAsInt() == MessageType.KEYFRAME.ordinal()) {
+        board.clear();
+      }
+      for (JsonElement element : message.getAsJsonArray("updates")) {
+        JsonObject update = element.getAsJsonObject();
+        int square = update.get("row").getAsInt() * 8
+            + update.get("col").getAsInt();
+        if (update.get("state").getAsInt() == 0) {
+          board.remove(square);
+        } else {
+          board.put(square, update.toString());
+        }
+      }
+    }
+    return board;
+  }
+
+  private static List<JsonObject> stream(GameArchive archive, long id,
+      int from) throws IOException, SQLException {
+    StringWriter out = new StringWriter();
+    GameReplayStream.open(archive, id, from).writeTo(out);
+    List<JsonObject> messages = new ArrayList<>();
+    for (String line : out.toString().split("\n")) {
+      messages.add(PARSER.parse(line).getAsJsonObject());
+    }
+    return messages;
+  }
+
+  /**
+   * Test that a game streamed from the start, from a ply between keyframes
+   * and from past its end leaves a client with the board it ended on.
+   */
+  @Test
+  public void streamTest() throws IllegalMoveException, IOException,
+      SQLException, InterruptedException {
+    Game game = new Game();
+    game.addPlayer(new GuiPlayer(Color.WHITE, 0, "alice"));
+    game.addPlayer(new GuiPlayer(Color.BLACK, 1, "bob"));
+    game.setTilNextPowerUp(100);
+    Recording recording = recorder.start(TimeControl.QUICK, "alice", "bob");
+    game.addListener(recording);
+    Map<Integer, String> at30 = null;
+    // knights out and back, nine times over
+    for (int i = 0; i < 9; i++) {
+      int[] squares = {6, 21, 62, 45, 21, 6, 45, 62};
+      for (int j = 0; j < squares.length; j += 2) {
+        if (i * 4 + j / 2 == 30) {
+          at30 = boardOf(game);
+        }
+        move(game, squares[j], squares[j + 1]);
+      }
+    }
+    game.spawnPowerObject(new Location(2, 0),
+        PowerObject.ofRarity(Rarity.LEGENDARY));
+    move(game, 1, 16);
+    PowerAction chosen = game.getActionOptions().get(0);
+    game.getActivePlayer().setAction(chosen);
+    game.executePowerAction(null);
+    recorder.finish(recording, "1-0", "RESIGNATION");
+    assertTrue(recorder.getStore().flush(5000));
+    Map<Integer, String> end = boardOf(game);
+
+    try (GameArchive archive = new GameArchive(recorder.getStore())) {
+      List<JsonObject> all = stream(archive, recording.getId(), 0);
+      // the keyframe, 37 moves, the box and the power
+      assertEquals(40, all.size());
+      assertEquals(MessageType.KEYFRAME.ordinal(),
+          all.get(0).get("type").getAsInt());
+      assertEquals(32, all.get(0).getAsJsonArray("updates").size());
+      JsonObject first = all.get(1);
+      assertEquals(MessageType.GAME_UPDATE.ordinal(),
+          first.get("type").getAsInt());
+      assertEquals(1, first.get("seq").getAsInt());
+      assertEquals(2, first.getAsJsonArray("updates").size());
+      assertEquals(6, first.getAsJsonObject("move").getAsJsonObject("from")
+          .get("col").getAsInt());
+      assertEquals(end, apply(all));
+
+      assertEquals(16, archive.keyframe(recording.getId(), 30).getPly());
+      List<JsonObject> seeked = stream(archive, recording.getId(), 30);
+      assertEquals(30, seeked.get(0).get("seq").getAsInt());
+      assertEquals(at30, apply(seeked.subList(0, 1)));
+      assertEquals(1 + 7 + 2, seeked.size());
+      assertEquals(end, apply(seeked));
+
+      List<JsonObject> past = stream(archive, recording.getId(), 1000);
+      assertEquals(1, past.size());
+      assertEquals(37, past.get(0).get("seq").getAsInt());
+      assertEquals(end, apply(past));
+
+      assertNull(GameReplayStream.open(archive, 99, 0));
+    }
+  }
+
+}
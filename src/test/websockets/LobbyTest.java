@@ -0,0 +1,133 @@
+package websockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import game.Color;
+import game.Game.TimeControl;
+
+/**
+ * Test Lobby.
+ *
+ * @author knorms
+ *
+ */
+public class LobbyTest {
+  private static final Gson GSON = new Gson();
+
+  private static JsonObject parse(String text) {
+    return GSON.fromJson(text, JsonObject.class);
+  }
+
+  /**
+   * Test paging through all games and by time control.
+   */
+  @Test
+  public void pageTest() {
+    Lobby lobby = new Lobby(batch -> { });
+    for (int id = 0; id < 5; id++) {
+      lobby.open(id, id % 2 == 0 ? TimeControl.QUICK : TimeControl.SLOW,
+          "p" + id, Color.WHITE);
+    }
+
+    JsonObject first = parse(lobby.page(null, -1, 2));
+    assertEquals(5, first.get("total").getAsInt());
+    assertEquals(2, first.getAsJsonObject("games").size());
+    assertEquals(1, first.get("next").getAsInt());
+
+    JsonObject last = parse(lobby.page(null, 3, 2));
+    assertEquals(1, last.getAsJsonObject("games").size());
+    assertEquals("p4", last.getAsJsonObject("games").getAsJsonObject("4")
+        .get("name").getAsString());
+    assertFalse(last.has("next"));
+
+    JsonObject quick = parse(lobby.page(TimeControl.QUICK, -1, 50));
+    assertEquals(3, quick.get("total").getAsInt());
+    assertTrue(quick.getAsJsonObject("games").has("2"));
+    assertFalse(quick.getAsJsonObject("games").has("1"));
+
+    // totals are counted, not walked: opening again mustn't count twice
+    lobby.open(2, TimeControl.QUICK, "p2", Color.BLACK);
+    lobby.close(0);
+    lobby.close(0);
+    assertEquals(4, lobby.size());
+    assertEquals(2, parse(lobby.page(TimeControl.QUICK, -1, 50))
+        .get("total").getAsInt());
+  }
+
+  /**
+   * Test that the first page is cached until the lobby changes.
+   */
+  @Test
+  public void snapshotTest() {
+    Lobby lobby = new Lobby(batch -> { });
+    lobby.open(1, TimeControl.STANDARD, "a", Color.BLACK);
+    String page = lobby.firstPage();
+    assertSame(page, lobby.firstPage());
+
+    lobby.close(1);
+    assertEquals(0, parse(lobby.firstPage()).getAsJsonObject("games").size());
+  }
+
+  /**
+   * Test that changes are batched and that a game opened and closed in the
+   * same batch is never broadcast.
+   */
+  @Test
+  public void batchTest() {
+    List<String> sent = new ArrayList<>();
+    Lobby lobby = new Lobby(sent::add);
+    lobby.open(1, TimeControl.QUICK, "a", Color.WHITE);
+    lobby.flush();
+    lobby.open(2, TimeControl.QUICK, "b", Color.WHITE);
+    lobby.open(3, TimeControl.QUICK, "c", Color.WHITE);
+    lobby.close(2);
+    lobby.close(1);
+    lobby.close(42);
+    lobby.flush();
+    lobby.flush();
+
+    assertEquals(2, sent.size());
+    JsonObject batch = parse(sent.get(1));
+    assertEquals(HomeWebSocket.MessageType.GAMES_CHANGED.ordinal(),
+        batch.get("type").getAsInt());
+    assertEquals(1, batch.getAsJsonObject("added").size());
+    assertTrue(batch.getAsJsonObject("added").has("3"));
+    assertEquals(1, batch.getAsJsonArray("removed").size());
+    assertEquals(1, batch.getAsJsonArray("removed").get(0).getAsInt());
+  }
+
+  /**
+   * Test that a batch that fails to send doesn't stop the batches after it.
+   */
+  @Test
+  public void failedBatchTest() throws InterruptedException {
+    CountDownLatch sent = new CountDownLatch(1);
+    AtomicInteger batches = new AtomicInteger();
+    Lobby lobby = new Lobby(batch -> {
+      if (batches.incrementAndGet() == 1) {
+        throw new IllegalStateException("Blocking message pending");
+      }
+      sent.countDown();
+    });
+    lobby.start(10);
+    lobby.open(1, TimeControl.QUICK, "a", Color.WHITE);
+    Thread.sleep(100);
+    lobby.open(2, TimeControl.QUICK, "b", Color.WHITE);
+    assertTrue(sent.await(5, TimeUnit.SECONDS));
+  }
+
+}
@@ -0,0 +1,121 @@
+package websockets;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import game.Game.TimeControl;
+
+/**
+ * Test pairing of waiting players by time control and rating.
+ *
+ * @author knorms
+ *
+ */
+public class MatchmakerTest {
+  private final AtomicLong now = new AtomicLong();
+  private final List<String> pairs = new ArrayList<>();
+  private final Matchmaker<String> matchmaker = new Matchmaker<>(
+      (a, b) -> pairs.add(a.getKey() + "-" + b.getKey()), now::get);
+
+  /**
+   * Test that the closest rating in the same time control is chosen.
+   */
+  @Test
+  public void closestRatingTest() {
+    matchmaker.seek("a", "A", 1500, TimeControl.QUICK);
+    matchmaker.seek("b", "B", 1580, TimeControl.QUICK);
+    matchmaker.seek("c", "C", 1520, TimeControl.QUICK);
+    matchmaker.seek("d", "D", 1500, TimeControl.SLOW);
+
+    assertEquals(1, matchmaker.tick());
+    assertEquals("a-c", pairs.get(0));
+    assertEquals(2, matchmaker.waiting());
+  }
+
+  /**
+   * Test that the bucket above is searched even when the seeker's own bucket
+   * has other players in it, and that a bucket with no acceptable opponent
+   * doesn't stop the search.
+   */
+  @Test
+  public void neighbourBucketTest() {
+    // 1500 to 1549 share a bucket; 1550 is in the next one
+    matchmaker.seek("a", "A", 1549, TimeControl.QUICK);
+    matchmaker.seek("b", "B", 1500, TimeControl.QUICK);
+    matchmaker.seek("c", "C", 1550, TimeControl.QUICK);
+    assertEquals(1, matchmaker.tick());
+    assertEquals("a-c", pairs.get(0));
+
+    // d has waited long enough for e, e not yet for d; f is further but
+    // accepts
+    matchmaker.seek("d", "D", 1000, TimeControl.SLOW);
+    matchmaker.seek("f", "F", 1240, TimeControl.SLOW);
+    now.set(22_000);
+    matchmaker.seek("e", "E", 1170, TimeControl.SLOW);
+    now.set(25_000);
+    assertEquals(1, matchmaker.tick());
+    assertEquals("d-f", pairs.get(1));
+  }
+
+  /**
+   * Test that a pair that fails to start doesn't lose the other pairs.
+   */
+  @Test
+  public void failedMatchTest() {
+    Matchmaker<String> failing = new Matchmaker<>((a, b) -> {
+      if (a.getKey().equals("a") || b.getKey().equals("a")) {
+        throw new IllegalStateException("ERROR: closed.");
+      }
+      pairs.add(a.getKey() + "-" + b.getKey());
+    }, now::get);
+    failing.seek("a", "A", 1500, TimeControl.QUICK);
+    failing.seek("b", "B", 1500, TimeControl.QUICK);
+    failing.seek("c", "C", 1500, TimeControl.SLOW);
+    failing.seek("d", "D", 1500, TimeControl.SLOW);
+
+    assertEquals(2, failing.tick());
+    assertEquals(1, pairs.size());
+    assertEquals("c-d", pairs.get(0));
+  }
+
+  /**
+   * Test that windows widen with waiting time until both players accept.
+   */
+  @Test
+  public void wideningWindowTest() {
+    matchmaker.seek("a", "A", 1200, TimeControl.STANDARD);
+    matchmaker.seek("b", "B", 1500, TimeControl.STANDARD);
+    assertEquals(0, matchmaker.tick());
+
+    // 300 apart: windows reach 300 after (300 - 100) / 20 = 10 seconds
+    now.set(9_000);
+    assertEquals(0, matchmaker.tick());
+    now.set(10_000);
+    assertEquals(1, matchmaker.tick());
+    assertEquals(0, matchmaker.waiting());
+  }
+
+  /**
+   * Test that cancelled players are never paired and that seeking again
+   * replaces an earlier seek.
+   */
+  @Test
+  public void cancelTest() {
+    matchmaker.seek("a", "A", 1500, TimeControl.QUICK);
+    matchmaker.seek("b", "B", 1500, TimeControl.QUICK);
+    matchmaker.cancel("b");
+    assertEquals(0, matchmaker.tick());
+
+    matchmaker.seek("b", "B", 1500, TimeControl.SLOW);
+    matchmaker.seek("b", "B", 1510, TimeControl.QUICK);
+    assertEquals(2, matchmaker.waiting());
+    assertEquals(1, matchmaker.tick());
+    assertEquals("a-b", pairs.get(0));
+  }
+
+}
@@ -0,0 +1,94 @@
+package websockets;
+
+import java.lang.management.ManagementFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * Compares parse time and garbage per message of MessageDecoder against
+ * parsing into a Gson JsonObject tree and pulling fields out of it. Run with
+ * main; not a unit test.
+ *
+ * @author knorms
+ *
+ */
+public final class MessageDecoderBenchmark {
+  private static final Gson GSON = new Gson();
+  private static final int WARMUP = 200_000;
+  private static final int ITERATIONS = 1_000_000;
+  private static final String MOVE = "{\"gameId\":12,\"playerId\":25,"
+      + "\"type\":4,\"action\":1,\"move\":{\"from\":{\"row\":6,\"col\":4},"
+      + "\"to\":{\"row\":4,\"col\":4}}}";
+
+  private MessageDecoderBenchmark() {
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *          Unused.
+   * @throws Exception
+   *           If a message fails to decode.
+   */
+  public static void main(String[] args) throws Exception {
+    long sink = 0;
+    for (int i = 0; i < WARMUP; i++) {
+      sink += tree(MOVE);
+      sink += streaming(MOVE);
+    }
+
+    long bytes = allocatedBytes();
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      sink += tree(MOVE);
+    }
+    long treeTime = System.nanoTime() - start;
+    long treeBytes = allocatedBytes() - bytes;
+
+    bytes = allocatedBytes();
+    start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      sink += streaming(MOVE);
+    }
+    long streamTime = System.nanoTime() - start;
+    long streamBytes = allocatedBytes() - bytes;
+
+    System.out.printf("ns/msg: tree=%.1f streaming=%.1f%n",
+        (double) treeTime / ITERATIONS, (double) streamTime / ITERATIONS);
+    System.out.printf("bytes/msg: tree=%d streaming=%d%n",
+        treeBytes / ITERATIONS, streamBytes / ITERATIONS);
+    System.out.println("(sink " + sink + ")");
+  }
+
+  private static long tree(String frame) {
+    JsonObject received = GSON.fromJson(frame, JsonObject.class);
+    int type = received.get("type").getAsInt();
+    ChessWebSocket.MessageType.values();
+    int action = received.get("action").getAsInt();
+    ChessWebSocket.Action.values();
+    JsonObject move = received.get("move").getAsJsonObject();
+    JsonObject from = move.get("from").getAsJsonObject();
+    JsonObject to = move.get("to").getAsJsonObject();
+    return type + action + received.get("gameId").getAsInt()
+        + received.get("playerId").getAsInt() + from.get("row").getAsInt()
+        + from.get("col").getAsInt() + to.get("row").getAsInt()
+        + to.get("col").getAsInt();
+  }
+
+  private static long streaming(String frame)
+      throws MalformedMessageException {
+    InboundMessage msg = MessageDecoder.decode(frame);
+    return msg.getType().ordinal() + msg.getAction().ordinal()
+        + msg.getGameId() + msg.getPlayerId()
+        + msg.getMove().getStart().getRow() + msg.getMove().getEnd().getCol();
+  }
+
+  private static long allocatedBytes() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean()).getThreadAllocatedBytes(
+            Thread.currentThread().getId());
+  }
+
+}
@@ -0,0 +1,109 @@
+package websockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import board.Location;
+import websockets.ChessWebSocket.Action;
+import websockets.ChessWebSocket.MessageType;
+
+/**
+ * Test MessageDecoder.
+ *
+ * @author knorms
+ *
+ */
+public class MessageDecoderTest {
+
+  private static void assertMalformed(String frame) {
+    try {
+      MessageDecoder.decode(frame);
+      fail("Expected MalformedMessageException for " + frame);
+    } catch (MalformedMessageException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Test decoding a move.
+   *
+   * @throws MalformedMessageException
+   *           If decoding fails.
+   */
+  @Test
+  public void moveTest() throws MalformedMessageException {
+    InboundMessage msg = MessageDecoder.decode("{\"gameId\":3,\"playerId\":7,"
+        + "\"type\":4,\"action\":1,\"extra\":{\"a\":[1,2]},"
+        + "\"move\":{\"from\":{\"row\":1,\"col\":4},\"to\":{\"row\":3,"
+        + "\"col\":4}}}");
+    assertEquals(MessageType.PLAYER_ACTION, msg.getType());
+    assertEquals(Action.MOVE, msg.getAction());
+    assertEquals(3, msg.getGameId());
+    assertEquals(7, msg.getPlayerId());
+    assertEquals(new Location(1, 4), msg.getMove().getStart());
+    assertEquals(new Location(3, 4), msg.getMove().getEnd());
+  }
+
+  /**
+   * Test that values sent as strings are read like Gson would.
+   *
+   * @throws MalformedMessageException
+   *           If decoding fails.
+   */
+  @Test
+  public void createGameTest() throws MalformedMessageException {
+    InboundMessage msg = MessageDecoder.decode("{\"type\":0,\"color\":\"true\","
+        + "\"name\":\"Katie\",\"timeControl\":\"2\",\"public\":false}");
+    assertEquals(MessageType.CREATE_GAME, msg.getType());
+    assertTrue(msg.getColor());
+    assertEquals("Katie", msg.getName());
+    assertEquals(2, msg.getTimeControl());
+    assertFalse(msg.isPublic());
+  }
+
+  /**
+   * Test both forms of power follow ups.
+   *
+   * @throws MalformedMessageException
+   *           If decoding fails.
+   */
+  @Test
+  public void followUpTest() throws MalformedMessageException {
+    InboundMessage square = MessageDecoder.decode("{\"type\":4,\"action\":2,"
+        + "\"gameId\":0,\"playerId\":0,\"selection\":true,"
+        + "\"followUp\":{\"row\":5,\"col\":6}}");
+    assertTrue(square.getSelection());
+    assertEquals(new Location(5, 6), square.getFollowUpLocation());
+    assertNull(square.getFollowUpMove());
+
+    InboundMessage move = MessageDecoder.decode("{\"type\":4,\"action\":2,"
+        + "\"gameId\":0,\"playerId\":0,\"selection\":false,\"followUp\":"
+        + "{\"from\":{\"row\":0,\"col\":0},\"to\":{\"row\":0,\"col\":1}}}");
+    assertNull(move.getFollowUpLocation());
+    assertEquals(new Location(0, 1), move.getFollowUpMove().getEnd());
+  }
+
+  /**
+   * Test that invalid frames are rejected with an explicit error.
+   */
+  @Test
+  public void malformedTest() {
+    assertMalformed("not json");
+    assertMalformed("[1,2]");
+    assertMalformed("{\"gameId\":1}");
+    assertMalformed("{\"type\":42}");
+    assertMalformed("{\"type\":5}");
+    assertMalformed("{\"type\":1,\"name\":\"Dain\"}");
+    assertMalformed("{\"type\":4,\"action\":1,\"gameId\":0,\"playerId\":0}");
+    assertMalformed("{\"type\":4,\"action\":1,\"gameId\":0,\"playerId\":0,"
+        + "\"move\":{\"from\":{\"row\":8,\"col\":0},\"to\":{\"row\":0,"
+        + "\"col\":0}}}");
+    assertMalformed("{\"type\":2,\"gameId\":0,\"playerId\":0,\"reason\":9}");
+  }
+
+}
@@ -0,0 +1,61 @@
+package websockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Test OutboundFrame.
+ *
+ * @author knorms
+ *
+ */
+public class OutboundFrameTest {
+  private static final Gson GSON = new Gson();
+
+  /**
+   * Test that a templated suffix produces the same JSON as serializing the
+   * full message.
+   */
+  @Test
+  public void suffixTest() {
+    JsonObject message = new JsonObject();
+    message.addProperty("type", 5);
+    message.add("updates", new JsonArray());
+    OutboundFrame frame = new OutboundFrame(message);
+    assertEquals(GSON.toJson(message), frame.encoded());
+
+    String withAction = frame.with("action", 1);
+    message.addProperty("action", 1);
+    assertEquals(GSON.toJson(message), withAction);
+
+    // same suffix is shared, not rebuilt
+    assertSame(withAction, frame.with("action", 1));
+  }
+
+  /**
+   * Test appending several fields and appending to an empty object.
+   */
+  @Test
+  public void fieldsTest() {
+    OutboundFrame empty = new OutboundFrame(new JsonObject());
+    assertEquals("{\"result\":0}", empty.with("result", 0));
+
+    JsonObject fields = new JsonObject();
+    fields.addProperty("action", 2);
+    fields.addProperty("id1", 3);
+    assertEquals("{\"action\":2,\"id1\":3}", empty.with(fields));
+
+    JsonObject message = new JsonObject();
+    message.addProperty("type", 5);
+    OutboundFrame frame = new OutboundFrame(message);
+    assertEquals("{\"type\":5,\"action\":2,\"id1\":3}", frame.with(fields));
+    assertEquals(frame.encoded(), frame.with(new JsonObject()));
+  }
+
+}
@@ -0,0 +1,108 @@
+package websockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import websockets.ChessWebSocket.MessageType;
+import websockets.RateLimiter.Verdict;
+import websockets.TokenBucket.Limit;
+
+/**
+ * Test per session and per address rate limiting of frames.
+ *
+ * @author knorms
+ *
+ */
+public class RateLimiterTest {
+  private final AtomicLong nanos = new AtomicLong();
+  private final RateLimiter<String> limiter = new RateLimiter<>(
+      new Limit(2, 1), new Limit(5, 1), new Limit(3, 1), nanos::get);
+
+  private void advance(long millis) {
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /**
+   * Test that a burst is allowed, further frames are dropped, and the bucket
+   * refills over time.
+   */
+  @Test
+  public void burstAndRefillTest() {
+    limiter.setLimit(MessageType.PLAYER_ACTION, new Limit(3, 2));
+    limiter.open("a", "1.2.3.4");
+    for (int i = 0; i < 3; i++) {
+      assertEquals(Verdict.ALLOW,
+          limiter.check("a", MessageType.PLAYER_ACTION));
+    }
+    assertEquals(Verdict.DROP, limiter.check("a", MessageType.PLAYER_ACTION));
+    // other types have their own bucket
+    assertEquals(Verdict.ALLOW, limiter.check("a", MessageType.RESYNC));
+
+    advance(500);
+    assertEquals(Verdict.ALLOW, limiter.check("a", MessageType.PLAYER_ACTION));
+    assertEquals(Verdict.DROP, limiter.check("a", MessageType.PLAYER_ACTION));
+    assertEquals(2, limiter.getDropped());
+  }
+
+  /**
+   * Test that a session that keeps sending after being throttled is
+   * disconnected.
+   */
+  @Test
+  public void disconnectTest() {
+    limiter.open("a", "1.2.3.4");
+    limiter.checkKeepAlive("a");
+    limiter.checkKeepAlive("a");
+    for (int i = 0; i < 3; i++) {
+      assertEquals(Verdict.DROP, limiter.checkKeepAlive("a"));
+    }
+    assertEquals(Verdict.DISCONNECT, limiter.checkKeepAlive("a"));
+    assertEquals(1, limiter.getDisconnected());
+  }
+
+  /**
+   * Test that sessions from one address share its bucket until the last of
+   * them closes.
+   */
+  @Test
+  public void addressTest() {
+    limiter.setLimit(MessageType.PLAYER_ACTION, new Limit(10, 1));
+    limiter.open("a", "1.2.3.4");
+    limiter.open("b", "1.2.3.4");
+    limiter.open("c", "5.6.7.8");
+    for (int i = 0; i < 5; i++) {
+      limiter.check(i % 2 == 0 ? "a" : "b", MessageType.PLAYER_ACTION);
+    }
+    assertEquals(Verdict.DROP, limiter.check("b", MessageType.PLAYER_ACTION));
+    assertEquals(Verdict.ALLOW, limiter.check("c", MessageType.PLAYER_ACTION));
+
+    limiter.close("a");
+    assertEquals(Verdict.DROP, limiter.check("b", MessageType.PLAYER_ACTION));
+    limiter.close("b");
+    limiter.open("d", "1.2.3.4");
+    assertEquals(Verdict.ALLOW, limiter.check("d", MessageType.PLAYER_ACTION));
+  }
+
+  /**
+   * Test that the type of a frame is read without parsing it.
+   */
+  @Test
+  public void peekTypeTest() {
+    assertEquals(MessageType.PLAYER_ACTION,
+        MessageDecoder.peekType("{\"gameId\":3,\"type\": 4}"));
+    assertEquals(MessageType.CREATE_GAME,
+        MessageDecoder.peekType("{\"type\":\"0\"}"));
+    // "type" as a value is not the key
+    assertEquals(MessageType.JOIN_GAME, MessageDecoder
+        .peekType("{\"name\":\"type\",\"type\" : 1,\"gameId\":2}"));
+    assertNull(MessageDecoder.peekType("{\"gameId\":3}"));
+    assertNull(MessageDecoder.peekType("{\"type\":999}"));
+    assertNull(MessageDecoder.peekType("{\"type\":x}"));
+  }
+
+}
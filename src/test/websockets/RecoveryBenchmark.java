@@ -0,0 +1,107 @@
+package websockets;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import board.Location;
+import game.Color;
+import game.Game;
+import game.Game.TimeControl;
+import game.Move;
+import players.GuiPlayer;
+import powerups.PowerObject;
+import powerups.PowerObject.Rarity;
+import storage.EventLog;
+import storage.GameJournal;
+
+/**
+ * Measures how long the server takes to bring back its games after a crash:
+ * first from the journal alone, then from a checkpoint and the journal since.
+ * Run with main; not a unit test.
+ *
+ * Arguments: games (default 50000), moves per game (default 40).
+ *
+ * @author knorms
+ *
+ */
+public final class RecoveryBenchmark {
+  private static final int[][] OPENING = {
+      {1, 4, 3, 4}, {6, 4, 4, 4}, {0, 6, 2, 5}, {7, 1, 5, 2}};
+  private static final int[][] SHUFFLE = {
+      {2, 5, 0, 6}, {5, 2, 7, 1}, {0, 6, 2, 5}, {7, 1, 5, 2}};
+
+  private RecoveryBenchmark() {
+  }
+
+  private static void play(Game game, int[] move) throws Exception {
+    game.getActivePlayer().setMove(new Move(new Location(move[0], move[1]),
+        new Location(move[2], move[3])));
+    game.turn();
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args
+   *          games, moves per game; all optional.
+   * @throws Exception
+   *           If the journal can't be written or read.
+   */
+  public static void main(String[] args) throws Exception {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+    int moves = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+    Path dir = Files.createTempDirectory("recovery");
+    try {
+      long start = System.nanoTime();
+      try (GameJournal journal = new GameJournal(new EventLog(dir))) {
+        for (int id = 0; id < count; id++) {
+          Game game = new Game();
+          game.setTimeControl(TimeControl.STANDARD);
+          game.addPlayer(new GuiPlayer(Color.WHITE, 0, "white" + id));
+          game.addPlayer(new GuiPlayer(Color.BLACK, 1, "black" + id));
+          game.setTilNextPowerUp(Integer.MAX_VALUE);
+          game.addListener(journal.started(id, game));
+          journal.joined(id, Color.WHITE, "white" + id, id + ".w");
+          journal.joined(id, Color.BLACK, "black" + id, id + ".b");
+          game.spawnPowerObject(new Location(4, 0),
+              PowerObject.ofRarity(Rarity.COMMON));
+          for (int i = 0; i < moves; i++) {
+            play(game, i < OPENING.length ? OPENING[i]
+                : SHUFFLE[(i - OPENING.length) % SHUFFLE.length]);
+          }
+        }
+        journal.getLog().awaitDurable(journal.getLog().end(), 10000);
+      }
+      System.out.printf("journaled %,d games of %d moves in %d ms%n", count,
+          moves, (System.nanoTime() - start) / 1000000);
+
+      // from the journal alone, as if no checkpoint had been written yet
+      try (GameJournal journal = new GameJournal(new EventLog(dir))) {
+        ChessWebSocket.setJournal(journal);
+        GameRecovery.recover(dir);
+
+        start = System.nanoTime();
+        int written = GameRecovery.checkpoint(journal, dir);
+        System.out.printf("checkpointed %,d games in %d ms%n", written,
+            (System.nanoTime() - start) / 1000000);
+        ChessWebSocket.setJournal(null);
+      }
+
+      // from the checkpoint; the games are already hosted, so only replay
+      start = System.nanoTime();
+      int replayed = GameRecovery.replay(dir).size();
+      System.out.printf("replayed %,d games from the checkpoint in %d ms%n",
+          replayed, (System.nanoTime() - start) / 1000000);
+    } finally {
+      try (Stream<Path> files = Files.walk(dir)) {
+        files.sorted(Comparator.reverseOrder()).forEach(file -> {
+          file.toFile().delete();
+        });
+      }
+    }
+    System.exit(0);
+  }
+
+}
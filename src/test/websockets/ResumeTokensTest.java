@@ -0,0 +1,68 @@
+package websockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test ResumeTokens.
+ *
+ * @author knorms
+ *
+ */
+public class ResumeTokensTest {
+
+  /**
+   * Test issuing, looking up and revoking tokens.
+   */
+  @Test
+  public void tokenTest() {
+    ResumeTokens tokens = new ResumeTokens();
+    String token = tokens.issue(3, 7);
+    assertEquals(3, tokens.lookup(token).getGameId());
+    assertEquals(7, tokens.lookup(token).getPlayerId());
+    assertNull(tokens.lookup("guess"));
+    assertNull(tokens.lookup(null));
+
+    // a new token replaces the old one
+    String next = tokens.issue(3, 7);
+    assertNotEquals(token, next);
+    assertNull(tokens.lookup(token));
+
+    // the game is readable from the token alone, for routing
+    assertEquals(3, ResumeTokens.gameOf(next));
+    assertEquals(-1, ResumeTokens.gameOf("guess"));
+    assertEquals(-1, ResumeTokens.gameOf(null));
+
+    tokens.revoke(7);
+    assertNull(tokens.lookup(next));
+  }
+
+  /**
+   * Test that the grace window expires unless the player resumes.
+   *
+   * @throws InterruptedException
+   *           If interrupted while waiting.
+   */
+  @Test
+  public void graceTest() throws InterruptedException {
+    ResumeTokens tokens = new ResumeTokens(20);
+    CountDownLatch expired = new CountDownLatch(1);
+    tokens.startGrace(1, expired::countDown);
+    assertTrue(expired.await(2, TimeUnit.SECONDS));
+    assertFalse(tokens.endGrace(1));
+
+    CountDownLatch resumed = new CountDownLatch(1);
+    tokens.startGrace(2, resumed::countDown);
+    assertTrue(tokens.endGrace(2));
+    assertFalse(resumed.await(100, TimeUnit.MILLISECONDS));
+  }
+
+}
@@ -0,0 +1,168 @@
+package websockets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import board.Location;
+import game.Game;
+import game.Move;
+import websockets.ChessWebSocket.MessageType;
+
+/**
+ * Test spectator fan-out through GameChannel.
+ *
+ * @author knorms
+ *
+ */
+public class SpectatorTest {
+  private static final Gson GSON = new Gson();
+
+  /**
+   * Create a session that records what is sent to it.
+   */
+  private static Session recordingSession(List<String> sent) {
+    return session(sent, 0, false);
+  }
+
+  /**
+   * Create a session that records what is sent to it, refusing the first
+   * sends as Jetty does while a blocking send is pending, and failing every
+   * write after them if it is broken.
+   */
+  private static Session session(List<String> sent, int refused,
+      boolean broken) {
+    AtomicInteger sends = new AtomicInteger();
+    RemoteEndpoint remote = (RemoteEndpoint) Proxy.newProxyInstance(
+        RemoteEndpoint.class.getClassLoader(),
+        new Class<?>[] {RemoteEndpoint.class}, (proxy, method, args) -> {
+          if (!method.getName().startsWith("sendString")) {
+            return null;
+          }
+          if (sends.incrementAndGet() <= refused) {
+            throw new IllegalStateException("Blocking message pending");
+          }
+          WriteCallback callback = args.length > 1 ? (WriteCallback) args[1]
+              : null;
+          if (broken && callback != null) {
+            callback.writeFailed(new IOException("Broken pipe"));
+          } else {
+            sent.add((String) args[0]);
+          }
+          return null;
+        });
+    return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(),
+        new Class<?>[] {Session.class}, (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "isOpen":
+              return true;
+            case "getRemote":
+              return remote;
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              return null;
+          }
+        });
+  }
+
+  private static void await(List<String> sent, int count)
+      throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    while (sent.size() < count && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+  }
+
+  private static JsonObject parse(String text) {
+    return GSON.fromJson(text, JsonObject.class);
+  }
+
+  /**
+   * Test that a late joiner gets a keyframe, then every update in order, and
+   * that all spectators share one encoding.
+   *
+   * @throws InterruptedException
+   *           If interrupted while waiting for the fan-out.
+   */
+  @Test
+  public void fanOutTest() throws InterruptedException {
+    Game game = new Game();
+    GameChannel channel = new GameChannel();
+    channel.publish(new GameUpdate(), null, game);
+
+    List<String> first = new CopyOnWriteArrayList<>();
+    List<String> second = new CopyOnWriteArrayList<>();
+    channel.watch(recordingSession(first), game);
+    channel.watch(recordingSession(second), game);
+    assertEquals(2, channel.spectatorCount());
+
+    Move move = new Move(new Location(1, 4), new Location(3, 4));
+    for (int i = 0; i < 20; i++) {
+      channel.publish(new GameUpdate(), i == 0 ? move : null, game);
+    }
+    await(first, 21);
+    await(second, 21);
+
+    assertEquals(21, first.size());
+    JsonObject keyframe = parse(first.get(0));
+    assertEquals(MessageType.KEYFRAME.ordinal(),
+        keyframe.get("type").getAsInt());
+    assertEquals(1, keyframe.get("seq").getAsInt());
+    JsonObject update = parse(first.get(1));
+    assertEquals(2, update.get("seq").getAsInt());
+    assertTrue(update.has("move"));
+    for (int i = 1; i < first.size(); i++) {
+      assertEquals(i + 1, parse(first.get(i)).get("seq").getAsInt());
+      // encoded once, shared by both spectators
+      assertSame(first.get(i), second.get(i));
+    }
+  }
+
+  /**
+   * Test that a spectator stays when a send is refused and is dropped when
+   * its connection fails to write.
+   *
+   * @throws InterruptedException
+   *           If interrupted while waiting for the fan-out.
+   */
+  @Test
+  public void failedSendTest() throws InterruptedException {
+    Game game = new Game();
+    GameChannel channel = new GameChannel();
+    channel.publish(new GameUpdate(), null, game);
+
+    List<String> refused = new CopyOnWriteArrayList<>();
+    List<String> broken = new CopyOnWriteArrayList<>();
+    channel.watch(session(refused, 1, false), game);
+    channel.watch(session(broken, 0, true), game);
+    channel.publish(new GameUpdate(), null, game);
+    await(refused, 1);
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+    while (channel.spectatorCount() > 1 && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(1, channel.spectatorCount());
+    assertEquals(1, refused.size());
+    assertEquals(0, broken.size());
+  }
+
+}